@@ -0,0 +1,56 @@
+package com.example.wifiawarecom;
+
+/**
+ * The few Wi-Fi Aware calls the session lifecycle needs, so {@link AwareSessions} can run against
+ * a fake. Sessions, discovery sessions and peers are opaque handles, as in {@link Transport}.
+ * Listeners are called on a single thread of the facade, never from inside the call that
+ * registered them.
+ */
+public interface AwareFacade {
+
+    interface AttachListener {
+        void onAttached(Object session);
+
+        void onAttachFailed();
+    }
+
+    interface DiscoveryListener {
+        /**
+         * The publish or subscribe request of discoverySession is running.
+         */
+        void onStarted(Object discoverySession);
+
+        void onFailed();
+
+        /**
+         * Subscriber side: a publisher of the service was found.
+         */
+        void onDiscovered(Object peer);
+
+        void onMessageReceived(Object peer, byte[] message);
+
+        void onMessageSent(int messageId);
+
+        void onMessageSendFailed(int messageId);
+    }
+
+    boolean isAvailable();
+
+    void attach(AttachListener listener);
+
+    void publish(Object session, String serviceName, DiscoveryListener listener);
+
+    void subscribe(Object session, String serviceName, DiscoveryListener listener);
+
+    void sendMessage(Object discoverySession, Object peer, int messageId, byte[] message);
+
+    /**
+     * Closes a session or a discovery session.
+     */
+    void close(Object handle);
+
+    /**
+     * Data paths to the peers of a discovery session.
+     */
+    Transport newTransport(Object discoverySession);
+}
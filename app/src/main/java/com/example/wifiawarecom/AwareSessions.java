@@ -0,0 +1,605 @@
+package com.example.wifiawarecom;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+
+/**
+ * Lifecycle of the Wi-Fi Aware session, the publish and subscribe sessions and the data paths
+ * opened from the subscriber to every publisher it finds. Nothing blocks: every step returns a future completed from the
+ * facade callbacks. Publishing and subscribing share one attach and go on at the same time.
+ * A future that is cancelled or timed out gives up its step, whatever the step produces
+ * afterwards is closed. Small messages can go over the discovery sessions before any data
+ * path is up, see {@link DiscoveryMessenger}.
+ * The connect message carries a random token that the subscriber sends again in the handshake of
+ * its data path, so the shared listening port of the publisher matches the connection to the peer
+ * even before the address of the peer is known.
+ */
+public class AwareSessions {
+
+    private static final byte[] CONNECT_MESSAGE = "connect".getBytes(StandardCharsets.UTF_8);
+    //Los de DiscoveryMessenger empiezan en 1, los de conexion bajan desde 0 (uno por publicador)
+    private static final int CONNECT_MESSAGE_ID = 0;
+    private static final int TOKEN_SIZE = 16;
+    //Un hilo de I/O basta para los pocos publicadores de una sesion
+    private static final int CLIENT_LOOPS = 1;
+
+    /**
+     * Runs the timeouts, on Android a Handler of the worker thread.
+     */
+    public interface Scheduler {
+        /**
+         * Runs task after delayMillis unless the returned handle is cancelled before.
+         */
+        Cancellable schedule(Runnable task, long delayMillis);
+    }
+
+    public interface Cancellable {
+        void cancel();
+    }
+
+    private final AwareFacade mFacade;
+    private final Scheduler mScheduler;
+    private final WifiAwareViewModel mModel;
+    private final long mTimeoutMillis;
+    private final SecureRandom mRandom = new SecureRandom();
+
+    //Todo el estado bajo el lock de this
+    private CompletableFuture<Object> mAttach = null;
+    private Object mSession = null;
+    private CompletableFuture<Server> mPublish = null;
+    private Object mPublishSession = null;
+    private Server mServer = null;
+    private CompletableFuture<Void> mSubscribe = null;
+    private Object mSubscribeSession = null;
+    private CompletableFuture<ClientGroup> mDataPath = null;
+    private ClientGroup mClients = null;
+    private DiscoveryMessenger mPublishMessenger = null;
+    private DiscoveryMessenger mSubscribeMessenger = null;
+    private final List<Object> mPublishers = new ArrayList<>();
+
+    /**
+     * @param scheduler runs the timeouts
+     * @param model handed to the publishing Server, can be null
+     * @param timeoutMillis limit of attach, publish and subscribe, counted from the call
+     */
+    public AwareSessions(AwareFacade facade, Scheduler scheduler, WifiAwareViewModel model,
+                         long timeoutMillis){
+        mFacade = facade;
+        mScheduler = scheduler;
+        mModel = model;
+        mTimeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Attaches to Wi-Fi Aware, or joins the attach in progress. A failed attach is tried again
+     * on the next call.
+     */
+    public CompletableFuture<Void> attach(){
+        final CompletableFuture<Void> attached = new CompletableFuture<>();
+        attachSession().whenComplete(new BiConsumer<Object, Throwable>() {
+            @Override
+            public void accept(Object session, Throwable error) {
+                if(error != null) attached.completeExceptionally(unwrap(error));
+                else attached.complete(null);
+            }
+        });
+        return attached;
+    }
+
+    private synchronized CompletableFuture<Object> attachSession(){
+        if(mAttach != null && !mAttach.isCompletedExceptionally()) return mAttach;
+        final CompletableFuture<Object> attach = new CompletableFuture<>();
+        mAttach = attach;
+        timeout(attach, "attach");
+        mFacade.attach(new AwareFacade.AttachListener() {
+            @Override
+            public void onAttached(Object session) {
+                synchronized (AwareSessions.this){
+                    if(attach.complete(session)){
+                        mSession = session;
+                        return;
+                    }
+                }
+                mFacade.close(session);
+            }
+
+            @Override
+            public void onAttachFailed() {
+                attach.completeExceptionally(new IOException("Wi-Fi Aware attach failed"));
+            }
+        });
+        return attach;
+    }
+
+    /**
+     * Attaches if needed and publishes serviceName, the future gets the started Server that
+     * accepts the subscribers of the service. While a publish is running or pending the same
+     * future is returned.
+     */
+    public synchronized CompletableFuture<Server> publish(final String serviceName){
+        if(mPublish != null && !mPublish.isCompletedExceptionally() && !mPublish.isCancelled()) return mPublish;
+        final CompletableFuture<Server> publish = new CompletableFuture<>();
+        mPublish = publish;
+        timeout(publish, "publish");
+        attachSession().whenComplete(new BiConsumer<Object, Throwable>() {
+            @Override
+            public void accept(Object session, Throwable error) {
+                if(error != null) publish.completeExceptionally(unwrap(error));
+                else if(!publish.isDone()) mFacade.publish(session, serviceName, new PublishListener(publish));
+            }
+        });
+        return publish;
+    }
+
+    /**
+     * Attaches if needed and subscribes to serviceName, the future completes once the subscribe
+     * session runs. Data paths to the publishers found follow, see {@link #getDataPath()}.
+     */
+    public synchronized CompletableFuture<Void> subscribe(final String serviceName){
+        if(mSubscribe != null && !mSubscribe.isCompletedExceptionally() && !mSubscribe.isCancelled()) return mSubscribe;
+        final CompletableFuture<Void> subscribe = new CompletableFuture<>();
+        final CompletableFuture<ClientGroup> dataPath = new CompletableFuture<>();
+        mSubscribe = subscribe;
+        mDataPath = dataPath;
+        timeout(subscribe, "subscribe");
+        attachSession().whenComplete(new BiConsumer<Object, Throwable>() {
+            @Override
+            public void accept(Object session, Throwable error) {
+                if(error != null){
+                    subscribe.completeExceptionally(unwrap(error));
+                    dataPath.completeExceptionally(unwrap(error));
+                }
+                else if(!subscribe.isDone()){
+                    mFacade.subscribe(session, serviceName, new SubscribeListener(subscribe, dataPath));
+                }
+            }
+        });
+        return subscribe;
+    }
+
+    /**
+     * Connections to the publishers found by the last {@link #subscribe(String)}, completed when the
+     * first one got its connect message. Every publisher found later joins the same group. It has no
+     * timeout, discovery waits for a publisher as long as the subscribe session runs.
+     * @return null before any subscribe
+     */
+    public synchronized CompletableFuture<ClientGroup> getDataPath(){
+        return mDataPath;
+    }
+
+    /**
+     * Publishers found by the subscribe session, in the order they were discovered.
+     */
+    public synchronized List<Object> getPublishers(){
+        return new ArrayList<>(mPublishers);
+    }
+
+    public synchronized boolean isAttached(){
+        return mSession != null;
+    }
+
+    public synchronized boolean isPublishing(){
+        return mServer != null;
+    }
+
+    public synchronized boolean isSubscribed(){
+        return mSubscribeSession != null;
+    }
+
+    public synchronized Server getServer(){
+        return mServer;
+    }
+
+    private synchronized ClientGroup getClients(){
+        return mClients;
+    }
+
+    /**
+     * Publisher side: small messages to subscribers over discovery messages. What subscribers send
+     * this way reaches the router of the Server.
+     * @return null while not publishing
+     */
+    public synchronized DiscoveryMessenger getPublishMessenger(){
+        return mPublishMessenger;
+    }
+
+    /**
+     * Subscriber side: what the publisher sends over discovery messages reaches its router. The
+     * group of {@link #getDataPath()} routes the frames of the data paths there too, a consumer
+     * registered on it gets its stream whichever path the publisher took.
+     * @return null while not subscribed
+     */
+    public synchronized DiscoveryMessenger getSubscribeMessenger(){
+        return mSubscribeMessenger;
+    }
+
+    /**
+     * Subscriber side: sends to the first publisher found, see {@link #sendToPublisher(Object, int, ByteBuffer)}.
+     * @return false before a publisher is found or if the path taken refused it
+     */
+    public boolean sendToPublisher(int streamId, ByteBuffer payload){
+        Object publisher;
+        synchronized (this){
+            publisher = mPublishers.isEmpty() ? null : mPublishers.get(0);
+        }
+        return publisher != null && sendToPublisher(publisher, streamId, payload);
+    }
+
+    /**
+     * Subscriber side: sends to a publisher as a discovery message as soon as it is discovered,
+     * without waiting for its data path. Large or frequent messages go through the data path
+     * instead, see {@link DiscoveryMessenger}.
+     * @return false while not subscribed or if the path taken refused it
+     */
+    public boolean sendToPublisher(Object publisher, int streamId, ByteBuffer payload){
+        DiscoveryMessenger messenger;
+        synchronized (this){
+            messenger = mSubscribeMessenger;
+        }
+        return messenger != null && messenger.send(publisher, streamId, payload);
+    }
+
+    /**
+     * Cancels the steps in progress and closes everything opened so far.
+     */
+    public void close(){
+        Object session, publishSession, subscribeSession;
+        Server server;
+        ClientGroup clients;
+        synchronized (this){
+            cancel(mAttach);
+            cancel(mPublish);
+            cancel(mSubscribe);
+            cancel(mDataPath);
+            session = mSession;
+            publishSession = mPublishSession;
+            server = mServer;
+            subscribeSession = mSubscribeSession;
+            clients = mClients;
+            mAttach = null;
+            mSession = null;
+            mPublish = null;
+            mPublishSession = null;
+            mServer = null;
+            mSubscribe = null;
+            mSubscribeSession = null;
+            mDataPath = null;
+            mClients = null;
+            mPublishMessenger = null;
+            mSubscribeMessenger = null;
+            mPublishers.clear();
+        }
+        if(publishSession != null){
+            mFacade.close(publishSession);
+            server.stop();
+        }
+        if(subscribeSession != null){
+            mFacade.close(subscribeSession);
+            if(clients != null) clients.stop();
+        }
+        if(session != null) mFacade.close(session);
+    }
+
+    private static void cancel(CompletableFuture<?> future){
+        if(future != null) future.cancel(false);
+    }
+
+    private void timeout(final CompletableFuture<?> future, final String step){
+        final Cancellable timeout = mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                future.completeExceptionally(new TimeoutException(step + " timed out after " + mTimeoutMillis + " ms"));
+            }
+        }, mTimeoutMillis);
+        //Terminado antes de tiempo: la tarea no se queda en el Handler hasta el timeout
+        future.whenComplete(new BiConsumer<Object, Throwable>() {
+            @Override
+            public void accept(Object value, Throwable error) {
+                timeout.cancel();
+            }
+        });
+    }
+
+    private DiscoveryMessenger newMessenger(final Object discoverySession, StreamRouter router,
+                                            DiscoveryMessenger.Fallback fallback){
+        return new DiscoveryMessenger(new DiscoveryMessenger.Sender() {
+            @Override
+            public void sendMessage(Object peer, int messageId, byte[] message) {
+                mFacade.sendMessage(discoverySession, peer, messageId, message);
+            }
+        }, router, fallback);
+    }
+
+    private static byte[] connectMessage(byte[] token){
+        byte[] message = Arrays.copyOf(CONNECT_MESSAGE, CONNECT_MESSAGE.length + token.length);
+        System.arraycopy(token, 0, message, CONNECT_MESSAGE.length, token.length);
+        return message;
+    }
+
+    /**
+     * @return the token after the connect message, null if message is something else or has none
+     */
+    static byte[] readConnectToken(byte[] message){
+        if(message.length <= CONNECT_MESSAGE.length
+                || message.length > CONNECT_MESSAGE.length + Handshake.MAX_TOKEN_SIZE) return null;
+        for(int i = 0; i < CONNECT_MESSAGE.length; ++i){
+            if(message[i] != CONNECT_MESSAGE[i]) return null;
+        }
+        return Arrays.copyOfRange(message, CONNECT_MESSAGE.length, message.length);
+    }
+
+    private static Throwable unwrap(Throwable error){
+        if(error instanceof CompletionException && error.getCause() != null) return error.getCause();
+        return error;
+    }
+
+    private class PublishListener implements AwareFacade.DiscoveryListener {
+
+        private final CompletableFuture<Server> mFuture;
+        //Solo desde el hilo de la fachada
+        private DiscoveryMessenger mMessenger = null;
+        private TokenTransport mTransport = null;
+
+        PublishListener(CompletableFuture<Server> future){
+            mFuture = future;
+        }
+
+        @Override
+        public void onStarted(Object discoverySession) {
+            final Server server;
+            try {
+                //Un solo puerto para todos los peers, se emparejan por direccion o por el token del mensaje de conexion
+                mTransport = new TokenTransport(mFacade.newTransport(discoverySession));
+                server = new Server(mTransport, mModel, 0, true);
+                server.start();
+            } catch (IOException e) {
+                mFacade.close(discoverySession);
+                mFuture.completeExceptionally(e);
+                return;
+            }
+            DiscoveryMessenger messenger = newMessenger(discoverySession, server.getRouter(),
+                    new DiscoveryMessenger.Fallback() {
+                        @Override
+                        public boolean send(Object peer, int streamId, ByteBuffer payload) {
+                            return server.send(peer, streamId, payload);
+                        }
+                    });
+            synchronized (AwareSessions.this){
+                if(mFuture.complete(server)){
+                    mPublishSession = discoverySession;
+                    mServer = server;
+                    mPublishMessenger = messenger;
+                    mMessenger = messenger;
+                    return;
+                }
+            }
+            mFacade.close(discoverySession);
+            server.stop();
+        }
+
+        @Override
+        public void onFailed() {
+            mFuture.completeExceptionally(new IOException("Wi-Fi Aware publish failed"));
+        }
+
+        @Override
+        public void onDiscovered(Object peer) {}
+
+        @Override
+        public void onMessageReceived(Object peer, byte[] message) {
+            if(mMessenger == null || mMessenger.onMessage(peer, message)) return;
+            //Cualquier otro mensaje pide el camino de datos, el de conexion trae el token del handshake
+            byte[] token = readConnectToken(message);
+            if(token != null) mTransport.putToken(peer, token);
+            Server server = getServer();
+            if(server != null) server.addNewConnection(peer);
+        }
+
+        @Override
+        public void onMessageSent(int messageId) {
+            if(mMessenger != null) mMessenger.onSendResult(messageId, true);
+        }
+
+        @Override
+        public void onMessageSendFailed(int messageId) {
+            if(mMessenger != null) mMessenger.onSendResult(messageId, false);
+        }
+    }
+
+    private class SubscribeListener implements AwareFacade.DiscoveryListener {
+
+        private final CompletableFuture<Void> mFuture;
+        private final CompletableFuture<ClientGroup> mDataPath;
+        //Lo comparten el messenger y el grupo
+        private final StreamRouter mRouter = new StreamRouter();
+        //Solo desde el hilo de la fachada
+        private Object mDiscoverySession = null;
+        private DiscoveryMessenger mMessenger = null;
+        private TokenTransport mTransport = null;
+        private ClientGroup mGroup = null;
+        //Publicadores ya vistos, y los que esperan a que salga su mensaje de conexion por id
+        private final List<Object> mDiscovered = new ArrayList<>();
+        private final Map<Integer, Object> mConnecting = new HashMap<>();
+        private int mNextConnectId = CONNECT_MESSAGE_ID;
+
+        SubscribeListener(CompletableFuture<Void> future, CompletableFuture<ClientGroup> dataPath){
+            mFuture = future;
+            mDataPath = dataPath;
+        }
+
+        @Override
+        public void onStarted(Object discoverySession) {
+            DiscoveryMessenger messenger = newMessenger(discoverySession, mRouter,
+                    new DiscoveryMessenger.Fallback() {
+                        @Override
+                        public boolean send(Object peer, int streamId, ByteBuffer payload) {
+                            ClientGroup clients = getClients();
+                            return clients != null && clients.send(peer, streamId, payload);
+                        }
+                    });
+            synchronized (AwareSessions.this){
+                if(mFuture.complete(null)){
+                    mSubscribeSession = discoverySession;
+                    mSubscribeMessenger = messenger;
+                    mDiscoverySession = discoverySession;
+                    mMessenger = messenger;
+                    mTransport = new TokenTransport(mFacade.newTransport(discoverySession));
+                    return;
+                }
+            }
+            mDataPath.cancel(false);
+            mFacade.close(discoverySession);
+        }
+
+        @Override
+        public void onFailed() {
+            IOException error = new IOException("Wi-Fi Aware subscribe failed");
+            mFuture.completeExceptionally(error);
+            mDataPath.completeExceptionally(error);
+        }
+
+        @Override
+        public void onDiscovered(Object peer) {
+            if(mDiscoverySession == null || mDataPath.isCompletedExceptionally() || mDiscovered.contains(peer)) return;
+            mDiscovered.add(peer);
+            synchronized (AwareSessions.this){
+                if(mSubscribeMessenger == mMessenger) mPublishers.add(peer);
+            }
+            int messageId = mNextConnectId;
+            mNextConnectId = mNextConnectId == Integer.MIN_VALUE ? CONNECT_MESSAGE_ID : mNextConnectId - 1;
+            mConnecting.put(messageId, peer);
+            //Un token por publicador, el mismo si hay que volver a pedirlo
+            byte[] token = mTransport.getToken(peer);
+            if(token == null){
+                token = new byte[TOKEN_SIZE];
+                mRandom.nextBytes(token);
+                mTransport.putToken(peer, token);
+            }
+            mFacade.sendMessage(mDiscoverySession, peer, messageId, connectMessage(token));
+        }
+
+        @Override
+        public void onMessageReceived(Object peer, byte[] message) {
+            if(mMessenger != null) mMessenger.onMessage(peer, message);
+        }
+
+        @Override
+        public void onMessageSendFailed(int messageId) {
+            if(mMessenger != null && mMessenger.onSendResult(messageId, false)) return;
+            //Se vuelve a pedir si se descubre otra vez
+            Object publisher = mConnecting.remove(messageId);
+            if(publisher != null) mDiscovered.remove(publisher);
+        }
+
+        @Override
+        public void onMessageSent(int messageId) {
+            if(mMessenger != null && mMessenger.onSendResult(messageId, true)) return;
+            Object publisher = mConnecting.remove(messageId);
+            if(publisher == null || !openGroup()) return;
+            mGroup.addPeer(publisher);
+        }
+
+        /**
+         * The group is created with the first publisher that got its connect message.
+         * @return false if the data path was given up
+         */
+        private boolean openGroup(){
+            if(mGroup != null) return true;
+            if(mDataPath.isDone()) return false;
+            ClientGroup group;
+            try {
+                group = new ClientGroup(mTransport, CLIENT_LOOPS, true, mRouter);
+            } catch (IOException e) {
+                mDataPath.completeExceptionally(e);
+                return false;
+            }
+            group.start();
+            synchronized (AwareSessions.this){
+                if(mDataPath.complete(group)){
+                    mClients = group;
+                    mGroup = group;
+                    return true;
+                }
+            }
+            group.stop();
+            return false;
+        }
+    }
+
+    /**
+     * The transport of a discovery session with the handshake tokens exchanged in the connect
+     * messages, for transports that have none of their own (PeerHandles differ on each side).
+     */
+    private static class TokenTransport implements Transport {
+
+        private final Transport mTransport;
+        private final ConcurrentMap<Object, byte[]> mTokens = new ConcurrentHashMap<>();
+
+        TokenTransport(Transport transport){
+            mTransport = transport;
+        }
+
+        byte[] getToken(Object peer){
+            return mTokens.get(peer);
+        }
+
+        /**
+         * Before the data path to peer is requested, the Server reads the token when the peer is added.
+         */
+        void putToken(Object peer, byte[] token){
+            mTokens.put(peer, token);
+        }
+
+        @Override
+        public InetSocketAddress getBindAddress() {
+            return mTransport.getBindAddress();
+        }
+
+        @Override
+        public void publish(Object peer, int port, Callback callback) throws IOException {
+            mTransport.publish(peer, port, callback);
+        }
+
+        @Override
+        public void subscribe(Object peer, Callback callback) throws IOException {
+            mTransport.subscribe(peer, callback);
+        }
+
+        @Override
+        public SocketChannel openChannel(Object peer) throws IOException {
+            return mTransport.openChannel(peer);
+        }
+
+        @Override
+        public InetAddress getPeerAddress(Object peer) {
+            return mTransport.getPeerAddress(peer);
+        }
+
+        @Override
+        public byte[] getHandshakeToken(Object peer) {
+            byte[] token = mTokens.get(peer);
+            return token != null ? token : mTransport.getHandshakeToken(peer);
+        }
+
+        @Override
+        public void release(Object peer) {
+            mTransport.release(peer);
+        }
+    }
+}
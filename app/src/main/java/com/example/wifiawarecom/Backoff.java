@@ -0,0 +1,48 @@
+package com.example.wifiawarecom;
+
+import java.util.Random;
+
+/**
+ * Exponential backoff with jitter between reconnection attempts: the n-th delay is drawn between
+ * half and all of min(max, base * 2^n), so peers that lost the link together do not retry in step.
+ */
+public class Backoff {
+
+    private final long mBaseMillis;
+    private final long mMaxMillis;
+    private final Random mRandom;
+    private int mAttempts = 0;
+
+    public Backoff(long baseMillis, long maxMillis){
+        this(baseMillis, maxMillis, new Random());
+    }
+
+    public Backoff(long baseMillis, long maxMillis, Random random){
+        if(baseMillis <= 0 || maxMillis < baseMillis){
+            throw new IllegalArgumentException("Backoff must satisfy 0 < base <= max");
+        }
+        mBaseMillis = baseMillis;
+        mMaxMillis = maxMillis;
+        mRandom = random;
+    }
+
+    public long nextDelayMillis(){
+        //Se compara antes de desplazar para no desbordar
+        long ceiling = mAttempts < 62 && (mMaxMillis >> mAttempts) >= mBaseMillis
+                ? mBaseMillis << mAttempts : mMaxMillis;
+        if(mAttempts < 62) ++mAttempts;
+        long half = ceiling / 2;
+        return half + (long) (mRandom.nextDouble() * (ceiling - half + 1));
+    }
+
+    /**
+     * Back to the base delay, after a connection that worked.
+     */
+    public void reset(){
+        mAttempts = 0;
+    }
+
+    public int getAttempts(){
+        return mAttempts;
+    }
+}
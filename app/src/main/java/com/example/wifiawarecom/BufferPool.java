@@ -0,0 +1,100 @@
+package com.example.wifiawarecom;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Fixed budget pool of equally sized direct buffers.
+ * Memory is reserved in slabs (one allocateDirect per slab) that are carved into buffers,
+ * slabs are only allocated on demand until the budget is reached and never freed.
+ */
+public class BufferPool {
+
+    private final int mBufferSize;
+    private final int mBuffersPerSlab;
+    private final int mMaxSlabs;
+    private final ArrayDeque<ByteBuffer> mFree;
+
+    private int mSlabs = 0;
+    private int mInUse = 0;
+    private int mHighWater = 0;
+    private long mExhausted = 0;
+
+    public BufferPool(int bufferSize, int buffersPerSlab, long budgetBytes){
+        if(bufferSize <= 0 || buffersPerSlab <= 0){
+            throw new IllegalArgumentException("bufferSize and buffersPerSlab must be positive");
+        }
+        long slabBytes = (long) bufferSize * buffersPerSlab;
+        if(slabBytes > Integer.MAX_VALUE || budgetBytes < slabBytes){
+            throw new IllegalArgumentException("Budget must hold at least one slab of " + slabBytes + " bytes");
+        }
+        mBufferSize = bufferSize;
+        mBuffersPerSlab = buffersPerSlab;
+        mMaxSlabs = (int) Math.min(Integer.MAX_VALUE, budgetBytes / slabBytes);
+        mFree = new ArrayDeque<>(buffersPerSlab);
+    }
+
+    /**
+     * @return a cleared direct buffer, or null if the whole budget is leased
+     */
+    public synchronized ByteBuffer lease(){
+        if(mFree.isEmpty() && !allocateSlab()){
+            ++mExhausted;
+            return null;
+        }
+        ByteBuffer buffer = mFree.pop();
+        buffer.clear();
+        if(++mInUse > mHighWater) mHighWater = mInUse;
+        return buffer;
+    }
+
+    public synchronized void release(ByteBuffer buffer){
+        if(buffer == null) return;
+        if(!buffer.isDirect() || buffer.capacity() != mBufferSize){
+            throw new IllegalArgumentException("Buffer does not belong to this pool");
+        }
+        if(mInUse == 0){
+            throw new IllegalStateException("Buffer released more times than leased");
+        }
+        --mInUse;
+        mFree.push(buffer);
+    }
+
+    private boolean allocateSlab(){
+        if(mSlabs >= mMaxSlabs) return false;
+        ByteBuffer slab = ByteBuffer.allocateDirect(mBufferSize * mBuffersPerSlab);
+        for(int i = 0; i < mBuffersPerSlab; ++i){
+            slab.limit((i + 1) * mBufferSize).position(i * mBufferSize);
+            mFree.push(slab.slice());
+        }
+        ++mSlabs;
+        return true;
+    }
+
+    public int getBufferSize(){
+        return mBufferSize;
+    }
+
+    public int getCapacity(){
+        return mMaxSlabs * mBuffersPerSlab;
+    }
+
+    public synchronized int getInUse(){
+        return mInUse;
+    }
+
+    public synchronized int getHighWater(){
+        return mHighWater;
+    }
+
+    /**
+     * Number of leases refused because the budget was exhausted.
+     */
+    public synchronized long getExhaustedCount(){
+        return mExhausted;
+    }
+
+    public synchronized long getAllocatedBytes(){
+        return (long) mSlabs * mBuffersPerSlab * mBufferSize;
+    }
+}
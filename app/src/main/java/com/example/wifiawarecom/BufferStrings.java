@@ -0,0 +1,26 @@
+package com.example.wifiawarecom;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * ByteBuffer to String conversion without Android dependencies, so the benchmark module can use it.
+ */
+public final class BufferStrings {
+
+    private BufferStrings(){}
+
+    /**
+     * Decodes the remaining bytes of buffer and consumes them.
+     */
+    public static String decode(ByteBuffer buffer, Charset charset){
+        if(buffer.hasArray()) {
+            String str = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining(), charset);
+            buffer.position(buffer.limit());
+            return str;
+        }
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return new String(bytes, charset);
+    }
+}
@@ -0,0 +1,250 @@
+package com.example.wifiawarecom;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Append-only capture of received frames, for {@link CaptureReplay}. append() copies the frame and
+ * queues it without blocking (over the queue budget the frame is dropped and counted), a thread of
+ * its own writes the records into memory mapped segments of a fixed size. All integers big endian.
+ * <pre>
+ * segment  magic(4) version(4) startMillis(8) startNanos(8) records, up to a record length of 0
+ * record   length(4), bytes after this field, type(1)
+ *   PEER   peerId(4) name       before the first frame of each peer in every segment
+ *   FRAME  nanos(8) peerId(4) streamId(4) payload, streamId -1 if it could not be read
+ * </pre>
+ * Segments are preallocated, so a segment cut by a crash also ends at the first zero length.
+ */
+public class CaptureLog {
+
+    static final int MAGIC = 0x5741434C;
+    static final int VERSION = 1;
+    static final int SEGMENT_HEADER_SIZE = 4 + 4 + 8 + 8;
+    static final byte TYPE_PEER = 1;
+    static final byte TYPE_FRAME = 2;
+    static final int FRAME_HEADER_SIZE = 4 + 1 + 8 + 4 + 4;
+    static final int MAX_PEER_NAME_SIZE = 255;
+    static final String SEGMENT_FORMAT = "capture-%05d.log";
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    public static final long DEFAULT_QUEUE_BUDGET = 8 * 1024 * 1024;
+    //Lo que espera el hilo de escritura cuando la cola esta vacia
+    private static final long DRAIN_PERIOD_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private static final class Record {
+        final long mNanos;
+        final Object mPeer;
+        final int mStreamId;
+        final byte[] mPayload;
+
+        Record(long nanos, Object peer, int streamId, byte[] payload){
+            mNanos = nanos;
+            mPeer = peer;
+            mStreamId = streamId;
+            mPayload = payload;
+        }
+    }
+
+    private final File mDirectory;
+    private final int mSegmentSize;
+    //Un frame cabe siempre en un segmento nuevo, con el registro de su peer delante
+    private final int mMaxPayloadSize;
+    private final long mQueueBudget;
+    private final MpscQueue<Record> mQueue = new MpscQueue<>();
+    private final AtomicLong mQueuedBytes = new AtomicLong();
+    private final Thread mThread;
+    private volatile boolean mClosed = false;
+
+    //Solo desde el hilo de escritura
+    private MappedByteBuffer mSegment = null;
+    private int mSegmentIndex = -1;
+    private final Map<Object, Integer> mPeerIds = new HashMap<>();
+    private IOException mFailure = null;
+
+    private final AtomicLong mFramesCaptured = new AtomicLong();
+    private final AtomicLong mFramesDropped = new AtomicLong();
+    private final AtomicLong mBytesWritten = new AtomicLong();
+
+    public CaptureLog(File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_QUEUE_BUDGET);
+    }
+
+    /**
+     * Starts writing to directory, segments already there are overwritten.
+     * @param queueBudget payload bytes waiting for the writer thread above which frames are dropped
+     */
+    public CaptureLog(File directory, int segmentSize, long queueBudget) throws IOException {
+        if(segmentSize < SEGMENT_HEADER_SIZE + 4 + 1 + 4 + MAX_PEER_NAME_SIZE + FRAME_HEADER_SIZE + 4){
+            throw new IllegalArgumentException("Segment size too small: " + segmentSize);
+        }
+        if(!directory.isDirectory() && !directory.mkdirs()){
+            throw new IOException("Cannot create " + directory);
+        }
+        mDirectory = directory;
+        mSegmentSize = segmentSize;
+        mMaxPayloadSize = segmentSize - SEGMENT_HEADER_SIZE - (4 + 1 + 4 + MAX_PEER_NAME_SIZE) - FRAME_HEADER_SIZE - 4;
+        mQueueBudget = queueBudget;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "CaptureLog");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    static File segmentFile(File directory, int index){
+        return new File(directory, String.format(Locale.ROOT, SEGMENT_FORMAT, index));
+    }
+
+    /**
+     * Queues a copy of frame (stream id and payload, at its position), frame is not consumed.
+     * Safe from any thread, never blocks.
+     * @return false if the log is closed or the queue is over its budget
+     */
+    public boolean append(Object peer, ByteBuffer frame){
+        long nanos = System.nanoTime();
+        if(mClosed){
+            mFramesDropped.incrementAndGet();
+            return false;
+        }
+        ByteBuffer view = frame.duplicate();
+        int streamId;
+        try {
+            streamId = StreamRouter.readStreamId(view);
+        } catch (RuntimeException e) {
+            //Se guarda tal cual, tambien interesa lo que llego mal
+            view = frame.duplicate();
+            streamId = -1;
+        }
+        int size = view.remaining();
+        if(size > mMaxPayloadSize){
+            mFramesDropped.incrementAndGet();
+            return false;
+        }
+        if(mQueuedBytes.addAndGet(size) > mQueueBudget){
+            mQueuedBytes.addAndGet(-size);
+            mFramesDropped.incrementAndGet();
+            return false;
+        }
+        byte[] payload = new byte[size];
+        view.get(payload);
+        mQueue.offer(new Record(nanos, peer, streamId, payload));
+        return true;
+    }
+
+    /**
+     * Writes what is queued, forces the last segment to disk and stops the writer thread.
+     * @throws IOException if a segment could not be written, frames from then on were dropped
+     */
+    public void close() throws IOException {
+        mClosed = true;
+        LockSupport.unpark(mThread);
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if(mFailure != null) throw mFailure;
+    }
+
+    private void drain(){
+        while(true){
+            boolean closed = mClosed;
+            Record record;
+            while((record = mQueue.poll()) != null){
+                mQueuedBytes.addAndGet(-record.mPayload.length);
+                if(mFailure != null){
+                    mFramesDropped.incrementAndGet();
+                    continue;
+                }
+                try {
+                    write(record);
+                    mFramesCaptured.incrementAndGet();
+                } catch (IOException e) {
+                    mFailure = e;
+                    mFramesDropped.incrementAndGet();
+                }
+            }
+            //Lo encolado antes de ver mClosed ya se ha escrito
+            if(closed) break;
+            LockSupport.parkNanos(DRAIN_PERIOD_NANOS);
+        }
+        if(mSegment != null){
+            mSegment.force();
+            mSegment = null;
+        }
+    }
+
+    private void write(Record record) throws IOException {
+        int size = FRAME_HEADER_SIZE + record.mPayload.length;
+        if(mSegment == null || mSegment.remaining() < size + 4) roll();
+        Integer peerId = mPeerIds.get(record.mPeer);
+        if(peerId == null){
+            byte[] name = String.valueOf(record.mPeer).getBytes(StandardCharsets.UTF_8);
+            if(name.length > MAX_PEER_NAME_SIZE) name = Arrays.copyOf(name, MAX_PEER_NAME_SIZE);
+            if(mSegment.remaining() < 4 + 1 + 4 + name.length + size + 4) roll();
+            peerId = mPeerIds.size();
+            mPeerIds.put(record.mPeer, peerId);
+            mSegment.putInt(1 + 4 + name.length).put(TYPE_PEER).putInt(peerId).put(name);
+            mBytesWritten.addAndGet(4 + 1 + 4 + name.length);
+        }
+        mSegment.putInt(size - 4).put(TYPE_FRAME).putLong(record.mNanos).putInt(peerId).putInt(record.mStreamId)
+                .put(record.mPayload);
+        mBytesWritten.addAndGet(size);
+    }
+
+    private void roll() throws IOException {
+        if(mSegment != null){
+            //El resto del segmento ya esta a cero, marca el final
+            mSegment.force();
+        }
+        ++mSegmentIndex;
+        File file = segmentFile(mDirectory, mSegmentIndex);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(0);
+            mSegment = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, mSegmentSize);
+        }
+        mSegment.putInt(MAGIC).putInt(VERSION).putLong(System.currentTimeMillis()).putLong(System.nanoTime());
+        mPeerIds.clear();
+    }
+
+    public File getDirectory(){
+        return mDirectory;
+    }
+
+    public long getFramesCaptured(){
+        return mFramesCaptured.get();
+    }
+
+    /**
+     * Frames refused by append() plus frames lost to a write error.
+     */
+    public long getFramesDropped(){
+        return mFramesDropped.get();
+    }
+
+    public long getBytesWritten(){
+        return mBytesWritten.get();
+    }
+
+    /**
+     * Segments written so far.
+     */
+    public int getSegmentCount(){
+        return mSegmentIndex + 1;
+    }
+}
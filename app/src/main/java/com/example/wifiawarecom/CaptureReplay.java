@@ -0,0 +1,151 @@
+package com.example.wifiawarecom;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads the segments of a {@link CaptureLog} back in order, mapped read only, and feeds the frames
+ * to a StreamRouter, usually {@link Server#getRouter()}, at the original pace or as fast as possible.
+ * Peers come back as their names (Strings): consumers that look up live connections find none.
+ */
+public class CaptureReplay {
+
+    public interface FrameVisitor {
+        /**
+         * @param payload the bytes after the stream id, only valid during the call
+         */
+        void onFrame(long nanos, Object peer, int streamId, ByteBuffer payload) throws InterruptedException;
+    }
+
+    private static final int INITIAL_FRAME_SIZE = 8192;
+
+    private final File mDirectory;
+
+    public CaptureReplay(File directory){
+        mDirectory = directory;
+    }
+
+    /**
+     * @return consecutive segments found in the directory
+     */
+    public int getSegmentCount(){
+        int count = 0;
+        while(CaptureLog.segmentFile(mDirectory, count).isFile()) ++count;
+        return count;
+    }
+
+    /**
+     * Visits every frame of the capture in the order it was written.
+     * @return frames visited
+     * @throws IOException if a segment is unreadable or malformed
+     */
+    public long read(FrameVisitor visitor) throws IOException, InterruptedException {
+        long frames = 0;
+        //Un solo String por nombre, el peer es el mismo objeto en todos los segmentos
+        Map<String, String> names = new HashMap<>();
+        List<String> peers = new ArrayList<>();
+        for(int index = 0; ; ++index){
+            File file = CaptureLog.segmentFile(mDirectory, index);
+            if(!file.isFile()) return frames;
+            MappedByteBuffer segment;
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                segment = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            }
+            if(segment.remaining() < CaptureLog.SEGMENT_HEADER_SIZE || segment.getInt() != CaptureLog.MAGIC
+                    || segment.getInt() != CaptureLog.VERSION){
+                throw new IOException(file + " is not a capture segment");
+            }
+            segment.position(CaptureLog.SEGMENT_HEADER_SIZE);
+            peers.clear();
+            while(segment.remaining() >= 4){
+                int length = segment.getInt();
+                if(length == 0) break;
+                if(length < 1 || length > segment.remaining()){
+                    throw new IOException("Record of " + length + " bytes at " + (segment.position() - 4) + " in " + file);
+                }
+                int end = segment.position() + length;
+                byte type = segment.get();
+                if(type == CaptureLog.TYPE_PEER && length >= 1 + 4){
+                    int peerId = segment.getInt();
+                    byte[] bytes = new byte[end - segment.position()];
+                    segment.get(bytes);
+                    String name = new String(bytes, StandardCharsets.UTF_8);
+                    String known = names.get(name);
+                    if(known == null) names.put(name, known = name);
+                    while(peers.size() <= peerId) peers.add(null);
+                    peers.set(peerId, known);
+                } else if(type == CaptureLog.TYPE_FRAME && length >= CaptureLog.FRAME_HEADER_SIZE - 4){
+                    long nanos = segment.getLong();
+                    int peerId = segment.getInt();
+                    int streamId = segment.getInt();
+                    if(peerId < 0 || peerId >= peers.size() || peers.get(peerId) == null){
+                        throw new IOException("Frame of unknown peer " + peerId + " in " + file);
+                    }
+                    ByteBuffer payload = segment.slice();
+                    payload.limit(end - segment.position());
+                    visitor.onFrame(nanos, peers.get(peerId), streamId, payload);
+                    ++frames;
+                } else {
+                    throw new IOException("Unknown record type " + type + " in " + file);
+                }
+                segment.position(end);
+            }
+        }
+    }
+
+    /**
+     * Dispatches every frame of the capture on router from the calling thread, the frames as the
+     * server read them (stream id and payload), compressed streams included.
+     * @param originalPace keep the gaps between frames, otherwise as fast as the consumers go
+     * @return frames replayed
+     */
+    public long replay(StreamRouter router, boolean originalPace) throws IOException, InterruptedException {
+        return read(new Dispatcher(router, originalPace));
+    }
+
+    private static class Dispatcher implements FrameVisitor {
+
+        private final StreamRouter mRouter;
+        private final boolean mOriginalPace;
+        private ByteBuffer mFrame = ByteBuffer.allocate(INITIAL_FRAME_SIZE);
+        private boolean mStarted = false;
+        private long mFirstNanos = 0;
+        private long mStartNanos = 0;
+
+        Dispatcher(StreamRouter router, boolean originalPace){
+            mRouter = router;
+            mOriginalPace = originalPace;
+        }
+
+        @Override
+        public void onFrame(long nanos, Object peer, int streamId, ByteBuffer payload) throws InterruptedException {
+            if(mOriginalPace){
+                long now = System.nanoTime();
+                if(!mStarted){
+                    mStarted = true;
+                    mFirstNanos = nanos;
+                    mStartNanos = now;
+                }
+                long wait = mStartNanos + (nanos - mFirstNanos) - now;
+                if(wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+            }
+            int size = SampleCodec.MAX_VARINT_SIZE + payload.remaining();
+            if(mFrame.capacity() < size) mFrame = ByteBuffer.allocate(Math.max(size, 2 * mFrame.capacity()));
+            mFrame.clear();
+            //Los frames que llegaron sin stream id valido se repiten tal cual
+            if(streamId >= 0) SampleCodec.putVarint(mFrame, streamId);
+            mFrame.put(payload).flip();
+            mRouter.dispatch(peer, mFrame);
+        }
+    }
+}
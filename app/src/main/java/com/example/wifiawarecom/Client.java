@@ -1,149 +1,607 @@
 package com.example.wifiawarecom;
 
-import android.net.ConnectivityManager;
-import android.net.Network;
-import android.net.NetworkCapabilities;
-import android.net.NetworkRequest;
-import android.net.NetworkSpecifier;
-import android.net.wifi.aware.DiscoverySession;
-import android.net.wifi.aware.PeerHandle;
-import android.net.wifi.aware.WifiAwareNetworkInfo;
-import android.net.wifi.aware.WifiAwareNetworkSpecifier;
 import android.util.Log;
 
-import androidx.annotation.NonNull;
-
+import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
-import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.Socket;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
-import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 
+public class Client implements Runnable, FrameWriter.Listener, Transport.Callback{
 
-public class Client implements Runnable{
+    public interface BackpressureListener {
+        void onBackpressure(boolean engaged);
+    }
+
+    /**
+     * Frames pushed by the server, called on the client I/O thread. The buffer is only valid during the call.
+     */
+    public interface ReceiveListener {
+        void onFrame(int stream, ByteBuffer frame);
+    }
 
     private static final String TAG = "Client";
     private static final int BUFFER_SIZE = 8192;
+    private static final int BUFFERS_PER_SLAB = 8;
+    private static final long BUFFER_POOL_BUDGET = 4 * BUFFERS_PER_SLAB * BUFFER_SIZE;
+    private static final int DEFAULT_HIGH_WATERMARK = 64 * 1024;
+    private static final int DEFAULT_LOW_WATERMARK = 16 * 1024;
+    private static final long DEMO_SEND_PERIOD_MS = 1000;
+    private static final long CONNECT_TIMEOUT_MS = 3000;
+    //Para ver stop() mientras se conecta
+    private static final long CONNECT_POLL_MS = 100;
+    private static final long RECONNECT_BASE_MS = 50;
+    private static final long RECONNECT_MAX_MS = 5000;
+    private static final long TIMER_TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final int TIMER_SLOTS = 1024;
+
+    public static final int STREAM_1 = 0;
+    public static final int STREAM_2 = 1;
+
+    private final Transport mTransport;
+    private final Object mPeer;
+    private final boolean mDemo;
+    private volatile InetSocketAddress mPeerAddress;
+    private SocketChannel mSocketChannel;
+    private final BufferPool mBufferPool = new BufferPool(BUFFER_SIZE, BUFFERS_PER_SLAB, BUFFER_POOL_BUDGET);
+    private final FrameWriter mWriter;
+    private final StreamCompressor mCompressor = new StreamCompressor();
+    private volatile BackpressureListener mBackpressureListener = null;
+    private volatile ReceiveListener mReceiveListener = null;
+    private final FileLink mFiles;
+
+    private volatile Selector mSelector;
+    private volatile boolean mFlushRequested = false;
+    private final AtomicBoolean mWakeupPending = new AtomicBoolean(true);
+
+    private final LatencyProbe mProbe = new LatencyProbe();
+    private final ByteBuffer mProbeScratch = ByteBuffer.allocate(LatencyProbe.MAX_PROBE_SIZE);
+    private volatile long mProbeIntervalMillis = 0;
+    private volatile boolean mPingRequested = false;
+    private volatile long mIdleTimeoutMillis = 0;
+
+    //Timers de la sesion (pings, demo, inactividad), solo desde el hilo de I/O
+    private final TimerWheel mTimers = new TimerWheel(TIMER_TICK_NANOS, TIMER_SLOTS, System.nanoTime());
+    private long mArmedProbeMillis = 0;
+    private long mLastReadNanos = 0;
+    private boolean mIdleExpired = false;
+    private final TimerWheel.Timeout mProbeTimer = new TimerWheel.Timeout(new Runnable() {
+        @Override
+        public void run() {
+            sendPing();
+            if(mArmedProbeMillis > 0) schedule(mProbeTimer, mArmedProbeMillis);
+        }
+    });
+    private final TimerWheel.Timeout mIdleTimer = new TimerWheel.Timeout(new Runnable() {
+        @Override
+        public void run() {
+            long deadline = mLastReadNanos + TimeUnit.MILLISECONDS.toNanos(mIdleTimeoutMillis);
+            if(deadline - System.nanoTime() > 0) mTimers.schedule(mIdleTimer, deadline);
+            else mIdleExpired = true;
+        }
+    });
+    private final TimerWheel.Timeout mDemoTimer = new TimerWheel.Timeout(new DemoProducer());
 
-    private final ConnectivityManager mConnManager;
-    private Network mCurrentNet;
-    private NetworkCapabilities mCurrentNetCapabitities;
-    private SocketChannel mSocketChannel_2;
-    private SocketChannel mSocketChannel_1;
-    private ByteBuffer mWriteBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private final Backoff mBackoff = new Backoff(RECONNECT_BASE_MS, RECONNECT_MAX_MS);
+    //Momento en que se perdio la ultima conexion, 0 si no hay ninguna pendiente de recuperar
+    private volatile long mLostNanos = 0;
+    private final LatencyHistogram mRecovery = new LatencyHistogram();
+    //Solo desde el hilo de I/O
+    private boolean mWelcomed = false;
 
     private Thread mClientThread;
-    private boolean mEnabled = false;
-
-    public Client(ConnectivityManager manager, DiscoverySession subscribeSession, PeerHandle handle){
-        mCurrentNetCapabitities = null;
-        mCurrentNet = null;
-        mSocketChannel_1 = null;
-        mSocketChannel_2 = null;
-        mConnManager = manager;
-        NetworkSpecifier networkSpecifier = new WifiAwareNetworkSpecifier.Builder(subscribeSession, handle)
-                .setPskPassphrase("wifiawaretest")
-                .build();
-        NetworkRequest networkRequest = new NetworkRequest.Builder()
-                .addTransportType(NetworkCapabilities.TRANSPORT_WIFI_AWARE)
-                .setNetworkSpecifier(networkSpecifier)
-                .build();
-        mConnManager.requestNetwork(networkRequest, new WifiAwareNetworkCallback());
-    }
-
-    public void start(){
-        if(!mEnabled && mCurrentNetCapabitities != null) {
+    private volatile boolean mEnabled = false;
+
+    /**
+     * Connects to the publisher peer as soon as the transport has a data path, sending the demo counters.
+     * The connection is kept up until stop(): when it drops the client reconnects with backoff,
+     * and frames sent meanwhile stay queued up to the high watermark.
+     */
+    public Client(Transport transport, Object peer) throws IOException {
+        this(transport, peer, DEFAULT_HIGH_WATERMARK, DEFAULT_LOW_WATERMARK, true);
+    }
+
+    /**
+     * @param highWatermark queued bytes at which send() starts refusing frames, also what is kept
+     *                      while disconnected
+     * @param lowWatermark queued bytes at which send() accepts frames again
+     * @param demo whether to send the demo counters once connected
+     */
+    public Client(Transport transport, Object peer, int highWatermark, int lowWatermark, boolean demo) throws IOException {
+        mPeerAddress = null;
+        mSocketChannel = null;
+        mTransport = transport;
+        mPeer = peer;
+        mDemo = demo;
+        mWriter = new FrameWriter(mBufferPool, highWatermark, lowWatermark, this);
+        mFiles = new FileLink(transport, peer, new FileLink.Path() {
+            @Override
+            public InetSocketAddress getAddress() {
+                return mPeerAddress;
+            }
+        }, "Client-file");
+        mTransport.subscribe(peer, this);
+    }
+
+    public synchronized void start(){
+        if(!mEnabled && mPeerAddress != null) {
             mEnabled = true;
-            mClientThread = new Thread(this);
+            mClientThread = new Thread(this, "Client-io");
             mClientThread.start();
         }
     }
 
+    /**
+     * Closes the connection, cuts the file transfers and gives up the data path.
+     */
     public void stop(){
-        if(mEnabled){
-            mEnabled = false;
-            mClientThread.interrupt();
+        Thread clientThread;
+        synchronized (this){
+            clientThread = mClientThread;
+            if(mEnabled){
+                mEnabled = false;
+                Selector selector = mSelector;
+                if(selector != null) selector.wakeup();
+                notifyAll();
+            }
+        }
+        mFiles.close();
+        mTransport.release(mPeer);
+        if(clientThread != null && clientThread != Thread.currentThread()){
+            try {
+                clientThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public boolean isConnected(){
+        return mSelector != null;
+    }
+
+    /**
+     * Time from a lost connection to the next one established, in microseconds.
+     */
+    public LatencyHistogram getRecoveryHistogram(){
+        return mRecovery;
+    }
+
+    /**
+     * The transport keeps its request up, so this is also how the path comes back after onLost().
+     */
+    @Override
+    public void onAvailable(Object peer, InetSocketAddress address) {
+        synchronized (this){
+            if(address.equals(mPeerAddress)){
+                Log.d(TAG, "onAvailable: data path already known");
+                return;
+            }
+            mPeerAddress = address;
+            notifyAll();
         }
+        //Si habia una conexion a la direccion anterior se cierra y se conecta a la nueva
+        Selector selector = mSelector;
+        if(selector != null) selector.wakeup();
+        if(!mEnabled) start();
+    }
+
+    /**
+     * Drops the connection but not the client, it reconnects when the path is available again.
+     */
+    @Override
+    public void onLost(Object peer) {
+        synchronized (this){
+            mPeerAddress = null;
+        }
+        Selector selector = mSelector;
+        if(selector != null) selector.wakeup();
+    }
+
+    public void setBackpressureListener(BackpressureListener listener){
+        mBackpressureListener = listener;
+    }
+
+    public void setReceiveListener(ReceiveListener listener){
+        mReceiveListener = listener;
+    }
+
+    /**
+     * Queues one frame on the given stream without blocking, the bytes are copied. The frame must
+     * fit in one pooled buffer, see {@link FrameWriter#getMaxPayloadSize()}.
+     * @return false if the connection is over its high watermark (backpressure), the client is
+     * stopped or the payload is too large
+     */
+    public boolean send(int stream, ByteBuffer payload){
+        if(!mEnabled) return false;
+        if(!mCompressor.isEnabled(stream)) return mWriter.send(stream, payload);
+        if(payload.remaining() > mCompressor.getMaxBlockSize()) return false;
+        if(!mWriter.send(stream, mCompressor.compress(stream, payload))) return false;
+        payload.position(payload.limit());
+        return true;
+    }
+
+    /**
+     * Sends file to the server on a connection of its own next to the data channel, named with the
+     * handshake token of the transport, see {@link FileTransfer}. The server needs its shared
+     * listener and {@link Server#setFileDirectory(File, FileReceiver.Listener)}.
+     * @return bytes sent, completed on the thread of the transfer; a dropped connection is resumed
+     * a few times before it fails
+     */
+    public CompletableFuture<Long> sendFile(File file, long transferId){
+        return mFiles.send(file, transferId);
+    }
+
+    /**
+     * Fetches the files the server queues for this client ({@link Server#sendFile(Object, File, long)})
+     * into directory, null leaves them queued.
+     * @param listener called on the thread of the transfer once a file is complete, can be null
+     */
+    public void setFileDirectory(File directory, FileReceiver.Listener listener){
+        mFiles.setInbox(directory == null ? null : new FileReceiver(directory), listener);
+    }
+
+    /**
+     * Streams whose payloads go through the compression stage, in both directions. The server
+     * must enable the same ones, see {@link Server#getCompressor()}.
+     */
+    public StreamCompressor getCompressor(){
+        return mCompressor;
+    }
+
+    /**
+     * Blocks until the connection is below its low watermark again.
+     */
+    public boolean awaitWritable(long timeout, TimeUnit unit) throws InterruptedException {
+        return mWriter.awaitWritable(timeout, unit);
+    }
+
+    public FrameWriter getWriter(){
+        return mWriter;
+    }
+
+    /**
+     * Sends one ping on the probe stream from the I/O thread.
+     */
+    public void ping(){
+        mPingRequested = true;
+        wakeup();
+    }
+
+    /**
+     * Pings the server periodically while connected, 0 turns it off. Pings are refused like any
+     * other frame while the connection is backpressured.
+     */
+    public void setProbeInterval(long millis){
+        mProbeIntervalMillis = millis;
+        wakeup();
+    }
+
+    /**
+     * Drops the connection when nothing is received from the server for millis, and reconnects;
+     * 0 (the default) waits for ever. Needs the probes as heartbeat ({@link #setProbeInterval(long)}),
+     * the server answers every ping. Applies from the next connection.
+     */
+    public void setIdleTimeout(long millis){
+        if(millis < 0) throw new IllegalArgumentException("Negative idle timeout");
+        mIdleTimeoutMillis = millis;
+    }
+
+    /**
+     * Round trip histogram and clock offset to the server, kept across reconnections.
+     */
+    public LatencyProbe getProbe(){
+        return mProbe;
+    }
+
+    @Override
+    public void onWriteRequested(FrameWriter writer) {
+        mFlushRequested = true;
+        wakeup();
+    }
+
+    private void wakeup(){
+        Selector selector = mSelector;
+        if(selector != null && mWakeupPending.compareAndSet(false, true)){
+            selector.wakeup();
+        }
+    }
+
+    @Override
+    public void onBackpressure(FrameWriter writer, boolean engaged) {
+        BackpressureListener listener = mBackpressureListener;
+        if(listener != null) listener.onBackpressure(engaged);
     }
 
     @Override
     public void run() {
         try {
-            if(!mConnManager.bindProcessToNetwork(mCurrentNet)) return;
-            WifiAwareNetworkInfo peerAwareInfo = (WifiAwareNetworkInfo) mCurrentNetCapabitities.getTransportInfo();
-            InetAddress peerIpv6 = peerAwareInfo.getPeerIpv6Addr();
-            int peerPort = peerAwareInfo.getPort();
-            mSocketChannel_1 = SocketChannel.open();
-            mSocketChannel_1.connect(new InetSocketAddress(peerIpv6, peerPort));
-            mSocketChannel_2 = SocketChannel.open();
-            mSocketChannel_2.connect(new InetSocketAddress(peerIpv6, peerPort));
-            int i = 0;
-            int j = 100;
             while(mEnabled){
-                mWriteBuffer.clear();
-                mWriteBuffer = ByteBuffer.wrap(String.valueOf(i).getBytes(StandardCharsets.UTF_8));
-                mSocketChannel_1.write(mWriteBuffer);
-                ++i;
-                i %= 11;
-                mWriteBuffer.clear();
-                mWriteBuffer = ByteBuffer.wrap(String.valueOf(j).getBytes(StandardCharsets.UTF_8));
-                mSocketChannel_2.write(mWriteBuffer);
-                --j;
-                if(j < 0) j = 100;
-                Thread.sleep(1000);
+                InetSocketAddress address = awaitPath();
+                if(address == null) break;
+                if(runSession(address)){
+                    //Se ha perdido una conexion que funcionaba, se reintenta rapido
+                    mLostNanos = System.nanoTime();
+                    mBackoff.reset();
+                }
+                if(!mEnabled) break;
+                pause(mBackoff.nextDelayMillis());
+            }
+        } catch (InterruptedException e) {}
+        finally {
+            mWriter.reset();
+            synchronized (this){
+                mEnabled = false;
+                mClientThread = null;
+            }
+        }
+    }
+
+    /**
+     * Waits until the transport reports a data path to the publisher.
+     * @return null once the client is stopped
+     */
+    private synchronized InetSocketAddress awaitPath() throws InterruptedException {
+        while(mEnabled && mPeerAddress == null) wait();
+        return mEnabled ? mPeerAddress : null;
+    }
+
+    /**
+     * Waits before the next attempt, a new data path or stop() cut it short.
+     */
+    private synchronized void pause(long millis) throws InterruptedException {
+        InetSocketAddress address = mPeerAddress;
+        long deadline = System.currentTimeMillis() + millis;
+        long left = millis;
+        while(mEnabled && left > 0 && mPeerAddress == address){
+            wait(left);
+            left = deadline - System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * One connection to address, until it fails, the data path is lost or the client is stopped.
+     * Frames still queued are kept for the next connection.
+     * @return true if the connection was established
+     */
+    private boolean runSession(InetSocketAddress address){
+        Selector selector = null;
+        FrameDecoder decoder = null;
+        boolean connected = false;
+        try {
+            selector = Selector.open();
+            //Un solo socket, los streams van multiplexados por id en cada frame
+            mSocketChannel = mTransport.openChannel(mPeer);
+            //Los frames ya se agrupan en FrameWriter, Nagle solo anadiria latencia
+            mSocketChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            mSocketChannel.configureBlocking(false);
+            connect(selector, address);
+            connected = true;
+            ByteBuffer readBuffer = mBufferPool.lease();
+            if(readBuffer == null) throw new IOException("No read buffer available");
+            decoder = new FrameDecoder(readBuffer);
+            SelectionKey key = mSocketChannel.register(selector, SelectionKey.OP_READ);
+            byte[] token = mTransport.getHandshakeToken(mPeer);
+            if(token != null) handshake(selector, decoder, address, token);
+            mSelector = selector;
+            long lost = mLostNanos;
+            if(lost != 0){
+                mLostNanos = 0;
+                long recovery = System.nanoTime() - lost;
+                mRecovery.record(TimeUnit.NANOSECONDS.toMicros(recovery));
+                Log.d(TAG, "reconnected in " + TimeUnit.NANOSECONDS.toMillis(recovery) + " ms");
+            }
+            //Lo encolado antes de conectar tambien hay que enviarlo
+            onWriteRequested(mWriter);
+            startTimers();
+            while(mEnabled && mPeerAddress == address && !mIdleExpired){
+                mWakeupPending.set(false);
+                armProbe();
+                long timeout = mTimers.nanosUntilNext(System.nanoTime());
+                if(mFlushRequested || mPingRequested || timeout == 0) selector.selectNow();
+                else if(timeout > 0) selector.select(IoLoop.toSelectMillis(timeout));
+                else selector.select();
+                mWakeupPending.set(true);
+                mTimers.advance(System.nanoTime());
+
+                if(mPingRequested){
+                    mPingRequested = false;
+                    sendPing();
+                }
+
+                if(mFlushRequested){
+                    mFlushRequested = false;
+                    flush(key);
+                }
+                selector.selectedKeys().clear();
+                if(key.isValid() && key.isReadable()){
+                    int numRead = decoder.read(mSocketChannel, mFrameListener);
+                    if(numRead == -1){
+                        //El servidor ha cerrado
+                        break;
+                    }
+                    if(numRead > 0) mLastReadNanos = System.nanoTime();
+                }
+                if(key.isValid() && key.isWritable()) flush(key);
             }
-            mSocketChannel_1.close();
-            mSocketChannel_2.close();
         } catch (IOException ex1){
             Log.d(TAG, "Client run: " + ex1.toString());
         }
-        catch (InterruptedException ex2){
-            try {
-                mSocketChannel_1.close();
-                mSocketChannel_2.close();
-            } catch (IOException e) {}
-        }
         finally {
-            mEnabled = false;
-            mClientThread = null;
-            mSocketChannel_1 = null;
-            mSocketChannel_2 = null;
-            mCurrentNetCapabitities = null;
-            mCurrentNet = null;
+            mSelector = null;
+            closeQuietly(mSocketChannel);
+            if(selector != null) closeQuietly(selector);
+            //Un frame cortado a medias se repite entero en la siguiente conexion
+            mWriter.rewindPartialFrame();
+            if(decoder != null) mBufferPool.release(decoder.getBuffer());
+            mSocketChannel = null;
+            mTimers.clear();
+            if(mIdleExpired) Log.d(TAG, "Client run: nothing received for " + mIdleTimeoutMillis + " ms");
         }
+        return connected;
     }
 
+    private void schedule(TimerWheel.Timeout timeout, long delayMillis){
+        mTimers.schedule(timeout, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis));
+    }
 
-    private class WifiAwareNetworkCallback extends ConnectivityManager.NetworkCallback{
+    private void startTimers(){
+        mIdleExpired = false;
+        mArmedProbeMillis = 0;
+        armProbe();
+        if(mDemo) schedule(mDemoTimer, 0);
+        long idle = mIdleTimeoutMillis;
+        if(idle > 0){
+            mLastReadNanos = System.nanoTime();
+            schedule(mIdleTimer, idle);
+        }
+    }
 
-        @Override
-        public void onAvailable(@NonNull Network network) {
-            mCurrentNet = network;
+    /**
+     * Follows setProbeInterval(): a new interval restarts the period with a ping right away.
+     */
+    private void armProbe(){
+        long interval = mProbeIntervalMillis;
+        if(interval == mArmedProbeMillis) return;
+        mArmedProbeMillis = interval;
+        if(interval > 0) schedule(mProbeTimer, 0);
+        else mTimers.cancel(mProbeTimer);
+    }
+
+    /**
+     * Sends HELLO and waits for WELCOME before anything queued goes out, so a shared listening
+     * port can hand the channel over to the loop of this peer.
+     */
+    private void handshake(Selector selector, FrameDecoder decoder, InetSocketAddress address, byte[] token)
+            throws IOException {
+        ByteBuffer payload = ByteBuffer.allocate(1 + token.length);
+        Handshake.writeHello(payload, token);
+        payload.flip();
+        ByteBuffer hello = ByteBuffer.allocate(FrameEncoder.HEADER_SIZE + 3 + payload.remaining());
+        FrameEncoder.encode(hello, Handshake.STREAM, payload);
+        hello.flip();
+        //Un frame tan pequeno cabe entero en el buffer de un socket recien conectado
+        mSocketChannel.write(hello);
+        if(hello.hasRemaining()) throw new IOException("Handshake to " + address + " not sent");
+        mWelcomed = false;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CONNECT_TIMEOUT_MS);
+        while(!mWelcomed){
+            long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if(left <= 0 || !mEnabled) throw new IOException("No handshake answer from " + address);
+            selector.select(Math.min(left, CONNECT_POLL_MS));
+            selector.selectedKeys().clear();
+            if(decoder.read(mSocketChannel, mFrameListener) == -1){
+                throw new IOException("Handshake refused by " + address);
+            }
         }
+    }
 
-        //Debugeando he visto que se llama dos veces a este callback al conectarse
-        //En una primera conexion cliente-servidor, con el objeto NetworkCapabilities de la primera llamada es suficiente, la segunda se puede ignorar
-        //En cambio si cierras el servidor y lo vuelves a abrir, el cliente intentara conectarse arrancando el thread en la primera llamada y fallara.
-        //En la segunda cogiendo el segundo objeto NetworkCapabilities si funciona
-        //Es un poco raro hay que revisarlo
+    /**
+     * Non-blocking connect bounded by CONNECT_TIMEOUT_MS, a stale address must not hold the thread
+     * for the whole TCP timeout.
+     */
+    private void connect(Selector selector, InetSocketAddress address) throws IOException {
+        if(mSocketChannel.connect(address)) return;
+        SelectionKey key = mSocketChannel.register(selector, SelectionKey.OP_CONNECT);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CONNECT_TIMEOUT_MS);
+        while(!mSocketChannel.finishConnect()){
+            long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if(left <= 0 || !mEnabled) throw new IOException("Connect to " + address + " timed out");
+            selector.select(Math.min(left, CONNECT_POLL_MS));
+            selector.selectedKeys().clear();
+        }
+        key.interestOps(0);
+    }
 
-        //He visto que lo que cambia entre las llamadas es la direccion IPv6
-        //Cuando tiene como prefijo %aware_data0 funciona, si no al intentar conectar salta excepcion de argumento invalido
+    /**
+     * Gathering write of everything queued, keeps OP_WRITE while the socket is full.
+     */
+    private void flush(SelectionKey key) throws IOException {
+        boolean drained = mWriter.flush(mSocketChannel);
+        key.interestOps(drained ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    private void sendPing(){
+        mProbeScratch.clear();
+        mProbe.writePing(mProbeScratch);
+        mProbeScratch.flip();
+        mWriter.send(LatencyProbe.STREAM, mProbeScratch);
+    }
+
+    private final FrameDecoder.FrameListener mFrameListener = new FrameDecoder.FrameListener() {
         @Override
-        public void onCapabilitiesChanged(@NonNull Network network, @NonNull NetworkCapabilities networkCapabilities) {
-            if(mCurrentNetCapabitities == null){
-                mCurrentNetCapabitities = networkCapabilities;
-                if(!mEnabled) start();
+        public void onFrame(ByteBuffer frame) {
+            int stream;
+            try {
+                stream = StreamRouter.readStreamId(frame);
+                if(stream == Handshake.STREAM){
+                    if(Handshake.isWelcome(frame)) mWelcomed = true;
+                    else if(Handshake.isFilesWaiting(frame)) mFiles.onFilesWaiting();
+                    return;
+                }
+                if(stream == LatencyProbe.STREAM){
+                    mProbeScratch.clear();
+                    if(mProbe.onProbe(frame, mProbeScratch)){
+                        mProbeScratch.flip();
+                        mWriter.send(LatencyProbe.STREAM, mProbeScratch);
+                    }
+                    return;
+                }
+                if(mCompressor.isEnabled(stream)) frame = mCompressor.decompress(stream, frame);
+            } catch (RuntimeException e) {
+                Log.d(TAG, "read: invalid frame " + e);
+                return;
             }
-            else Log.d(TAG, "onCapabilitiesChanged: Red distinta o nueva capability");
+            ReceiveListener listener = mReceiveListener;
+            if(listener != null) listener.onFrame(stream, frame);
         }
+    };
+
+    private static void closeQuietly(Closeable closeable){
+        if(closeable == null) return;
+        try {
+            closeable.close();
+        } catch (IOException e) {}
+    }
+
+    /**
+     * Contadores de ejemplo, uno por segundo en cada stream, desde un timer del hilo de I/O.
+     */
+    private class DemoProducer implements Runnable{
+
+        private final ByteBuffer mScratch = ByteBuffer.allocate(SampleCodec.MAX_SAMPLE_SIZE);
+        private int mUp = 0;
+        private int mDown = 100;
 
         @Override
-        public void onLost(@NonNull Network network) {
-            mConnManager.unregisterNetworkCallback(this);
-            stop();
+        public void run() {
+            sendSample(STREAM_1, mUp);
+            ++mUp;
+            mUp %= 11;
+            sendSample(STREAM_2, mDown);
+            --mDown;
+            if(mDown < 0) mDown = 100;
+            schedule(mDemoTimer, DEMO_SEND_PERIOD_MS);
+        }
+
+        private void sendSample(int stream, int value){
+            mScratch.clear();
+            SampleCodec.putInt(mScratch, SampleCodec.NO_TIMESTAMP, value);
+            mScratch.flip();
+            send(stream, mScratch);
         }
     }
+
+    public BufferPool getBufferPool(){
+        return mBufferPool;
+    }
 }
@@ -0,0 +1,578 @@
+package com.example.wifiawarecom;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connections to many publishers from a few selector threads, the subscriber side counterpart of
+ * {@link Server}. Every peer added gets a data path request; once the path is up the channel is
+ * connected without blocking on the loop of the peer, HELLO goes first and the peer can be sent
+ * to after WELCOME. A lost connection is retried with backoff from a timer of the same loop.
+ * Frames from every publisher reach {@link #getRouter()} keyed by peer.
+ * Unlike {@link Client} nothing is queued while a peer is disconnected, send() refuses it.
+ */
+public class ClientGroup implements IoLoop.Listener {
+    private static final String TAG = "ClientGroup";
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final int BUFFERS_PER_SLAB = 16;
+    private static final long BUFFER_POOL_BUDGET = 2 * 1024 * 1024;
+    private static final long WRITE_POOL_BUDGET = 4 * 1024 * 1024;
+    private static final int HIGH_WATERMARK = 64 * 1024;
+    private static final int LOW_WATERMARK = 16 * 1024;
+    private static final long CONNECT_TIMEOUT_MS = 3000;
+    private static final long RECONNECT_BASE_MS = 50;
+    private static final long RECONNECT_MAX_MS = 5000;
+    private static final long DEMO_SEND_PERIOD_MS = 1000;
+
+    private final Transport mTransport;
+    private final BufferPool mBufferPool = new BufferPool(BUFFER_SIZE, BUFFERS_PER_SLAB, BUFFER_POOL_BUDGET);
+    private final BufferPool mWritePool = new BufferPool(BUFFER_SIZE, BUFFERS_PER_SLAB, WRITE_POOL_BUDGET);
+    private final IoLoop[] mLoops;
+    private final PeerRegistry<Outbound> mPeers = new PeerRegistry<>();
+    private final StreamRouter mRouter;
+    private final LatencyHistogram mRecovery = new LatencyHistogram();
+    private volatile boolean mEnabled = false;
+    private volatile long mProbeIntervalMillis = 0;
+    private final boolean mDemo;
+    private final TimerWheel.Timeout mDemoTimer = new TimerWheel.Timeout(new DemoProducer());
+    private volatile FileReceiver mFileReceiver = null;
+    private volatile FileReceiver.Listener mFileListener = null;
+
+    //Un buffer de respuesta por hilo de I/O
+    private final ThreadLocal<ByteBuffer> mScratch = new ThreadLocal<ByteBuffer>(){
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocate(Math.max(LatencyProbe.MAX_PROBE_SIZE, 1 + Handshake.MAX_TOKEN_SIZE));
+        }
+    };
+
+    private final Transport.Callback mTransportCallback = new Transport.Callback() {
+        @Override
+        public void onAvailable(Object peer, InetSocketAddress address) {
+            Outbound conn = mPeers.get(peer);
+            if(conn == null || !conn.isOpen()) return;
+            conn.mAddress = address;
+            conn.mLoop.execute(conn.mConnectTask);
+        }
+
+        /**
+         * Closes the channel, the peer reconnects when the path comes back.
+         */
+        @Override
+        public void onLost(Object peer) {
+            Outbound conn = mPeers.get(peer);
+            if(conn == null) return;
+            conn.mAddress = null;
+            conn.mLoop.execute(conn.mLostTask);
+        }
+    };
+
+    public ClientGroup(Transport transport, int loops) throws IOException {
+        this(transport, loops, false);
+    }
+
+    public ClientGroup(Transport transport, int loops, boolean demo) throws IOException {
+        this(transport, loops, demo, new StreamRouter());
+    }
+
+    /**
+     * @param loops selector threads, peers are sharded over them by handle
+     * @param demo whether to send the demo counters to every connected peer
+     * @param router receives the frames of every publisher, it can be shared with other paths to
+     *               the same peers such as a {@link DiscoveryMessenger}
+     */
+    public ClientGroup(Transport transport, int loops, boolean demo, StreamRouter router) throws IOException {
+        if(loops < 1) throw new IllegalArgumentException("At least one loop");
+        mTransport = transport;
+        mDemo = demo;
+        mRouter = router;
+        mRouter.register(Handshake.STREAM, new HandshakeConsumer());
+        mRouter.register(LatencyProbe.STREAM, new ProbeConsumer());
+        mLoops = new IoLoop[loops];
+        for(int i = 0; i < loops; ++i){
+            mLoops[i] = new IoLoop("ClientGroup-io-" + i, mBufferPool, mWritePool, HIGH_WATERMARK, LOW_WATERMARK, this);
+        }
+    }
+
+    public synchronized void start(){
+        if(mEnabled) return;
+        mEnabled = true;
+        for(IoLoop loop : mLoops) loop.start();
+        if(mDemo) mLoops[0].schedule(mDemoTimer, 0);
+    }
+
+    /**
+     * Closes every connection and gives up their data paths.
+     */
+    public void stop(){
+        synchronized (this){
+            if(!mEnabled) return;
+            mEnabled = false;
+        }
+        for(Outbound conn : mPeers.values()) drain(conn);
+        for(IoLoop loop : mLoops) loop.stop();
+    }
+
+    /**
+     * Requests a data path to the publisher peer and keeps a connection to it until removePeer().
+     * @return false if the group is stopped or the transport refused the request
+     */
+    public boolean addPeer(Object peer){
+        if(mPeers.contains(peer)) return true;
+        if(!mEnabled) return false;
+        Outbound conn = new Outbound(peer, loopFor(peer));
+        if(mPeers.putIfAbsent(conn) != null) return true;
+        conn.transition(PeerRegistry.State.DISCOVERED, PeerRegistry.State.REQUESTING);
+        try {
+            mTransport.subscribe(peer, mTransportCallback);
+        } catch (IOException e) {
+            removePeer(peer);
+            return false;
+        }
+        return true;
+    }
+
+    public void removePeer(Object peer){
+        Outbound conn = mPeers.get(peer);
+        if(conn != null) drain(conn);
+    }
+
+    /**
+     * Only the thread that moves the peer to DRAINING closes it, the others find it gone.
+     */
+    private void drain(final Outbound conn){
+        if(conn.moveTo(PeerRegistry.State.DRAINING) == null) return;
+        mPeers.remove(conn);
+        mTransport.release(conn.getHandle());
+        conn.mWriter = null;
+        conn.mFiles.close();
+        conn.mLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                conn.close();
+                conn.moveTo(PeerRegistry.State.CLOSED);
+            }
+        });
+    }
+
+    private IoLoop loopFor(Object peer){
+        return mLoops[(peer.hashCode() & 0x7fffffff) % mLoops.length];
+    }
+
+    /**
+     * Queues payload as one frame of the given stream to the peer, written by its loop. The frame
+     * must fit in one pooled buffer, see {@link FrameWriter#getMaxPayloadSize()}.
+     * @return false until the peer welcomed the connection, or if its queue is over the high
+     * watermark or the payload is too large
+     */
+    public boolean send(Object peer, int streamId, ByteBuffer payload){
+        Outbound conn = mPeers.get(peer);
+        if(conn == null) return false;
+        FrameWriter writer = conn.mWriter;
+        boolean queued = writer != null && writer.send(streamId, payload);
+        conn.mMetrics.onSend(queued);
+        return queued;
+    }
+
+    /**
+     * Sends file to the publisher peer on a connection of its own, see {@link Client#sendFile(File, long)}.
+     * @return bytes sent, or why it failed; fails right away if the peer is not registered
+     */
+    public CompletableFuture<Long> sendFile(Object peer, File file, long transferId){
+        Outbound conn = mPeers.get(peer);
+        if(conn == null){
+            CompletableFuture<Long> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new IOException("Peer " + peer + " not registered"));
+            return failed;
+        }
+        return conn.mFiles.send(file, transferId);
+    }
+
+    /**
+     * Fetches the files every publisher queues for us into directory, see
+     * {@link Client#setFileDirectory(File, FileReceiver.Listener)}.
+     */
+    public void setFileDirectory(File directory, FileReceiver.Listener listener){
+        FileReceiver receiver = directory == null ? null : new FileReceiver(directory);
+        mFileListener = listener;
+        mFileReceiver = receiver;
+        for(Outbound conn : mPeers.values()) conn.mFiles.setInbox(receiver, listener);
+    }
+
+    /**
+     * Sends the remaining bytes of payload to every connected peer, consumed if any took it.
+     * @return peers that queued the frame
+     */
+    public int sendToAll(int streamId, ByteBuffer payload){
+        int queued = 0;
+        for(Outbound conn : mPeers.values()){
+            if(send(conn.getHandle(), streamId, payload.duplicate())) ++queued;
+        }
+        if(queued > 0) payload.position(payload.limit());
+        return queued;
+    }
+
+    public boolean isConnected(Object peer){
+        Outbound conn = mPeers.get(peer);
+        return conn != null && conn.mWriter != null;
+    }
+
+    /**
+     * @return handles of the peers added and not removed
+     */
+    public List<Object> getPeers(){
+        List<Object> peers = new ArrayList<>(mPeers.size());
+        for(Outbound conn : mPeers.values()) peers.add(conn.getHandle());
+        return peers;
+    }
+
+    /**
+     * @return null if the peer is not registered (never added, or already removed)
+     */
+    public PeerRegistry.State getPeerState(Object peer){
+        Outbound conn = mPeers.get(peer);
+        return conn == null ? null : conn.getState();
+    }
+
+    public Map<PeerRegistry.State, Integer> getPeerStateCounts(){
+        return mPeers.getStateCounts();
+    }
+
+    /**
+     * @return bytes queued and not yet written to the peer
+     */
+    public long getQueueDepth(Object peer){
+        Outbound conn = mPeers.get(peer);
+        FrameWriter writer = conn == null ? null : conn.mWriter;
+        return writer == null ? 0 : writer.getPendingBytes();
+    }
+
+    /**
+     * @return null if the peer is not registered
+     */
+    public ConnectionMetrics getConnectionMetrics(Object peer){
+        Outbound conn = mPeers.get(peer);
+        return conn == null ? null : conn.mMetrics;
+    }
+
+    /**
+     * Round trip histogram and clock offset to the peer, kept across reconnections.
+     * @return null if the peer is not registered
+     */
+    public LatencyProbe getProbe(Object peer){
+        Outbound conn = mPeers.get(peer);
+        return conn == null ? null : conn.mProbe;
+    }
+
+    /**
+     * Time from a lost connection to the next one welcomed, in microseconds, for every peer.
+     */
+    public LatencyHistogram getRecoveryHistogram(){
+        return mRecovery;
+    }
+
+    /**
+     * Pings every connected peer periodically, 0 turns it off. The pings double as heartbeats
+     * for an idle timeout on either side.
+     */
+    public void setProbeInterval(long millis){
+        if(millis < 0) throw new IllegalArgumentException("Negative probe interval");
+        mProbeIntervalMillis = millis;
+        for(final Outbound conn : mPeers.values()) conn.mLoop.execute(conn.mArmProbe);
+    }
+
+    /**
+     * Drops connections that receive nothing for millis and reconnects them, see
+     * {@link IoLoop#setIdleTimeout(long)}. Applies from the next connection of each peer.
+     */
+    public void setIdleTimeout(long millis){
+        for(IoLoop loop : mLoops) loop.setIdleTimeout(millis);
+    }
+
+    /**
+     * Stream id to consumer table for the frames of every publisher, the consumers get the peer
+     * handle. {@link Handshake#STREAM} and {@link LatencyProbe#STREAM} are taken.
+     */
+    public StreamRouter getRouter(){
+        return mRouter;
+    }
+
+    public List<IoLoop.Load> getLoopLoads(){
+        List<IoLoop.Load> loads = new ArrayList<>(mLoops.length);
+        for(IoLoop loop : mLoops) loads.add(loop.getLoad());
+        return loads;
+    }
+
+    public BufferPool getBufferPool(){
+        return mBufferPool;
+    }
+
+    public BufferPool getWritePool(){
+        return mWritePool;
+    }
+
+    @Override
+    public void onAccept(IoLoop loop, Object peer, SocketChannel channel) {}
+
+    @Override
+    public void onFrame(Object peer, SocketChannel channel, ByteBuffer frame) {
+        Outbound conn = mPeers.get(peer);
+        //Lo que quede por leer de un canal ya sustituido se descarta
+        if(conn == null || channel != conn.mChannel) return;
+        if(!mRouter.dispatch(peer, frame)) Log.d(TAG, "read: frame without consumer dropped");
+    }
+
+    @Override
+    public void onClosed(Object peer, SelectableChannel channel) {
+        Outbound conn = mPeers.get(peer);
+        if(conn != null && channel == conn.mChannel) conn.onChannelClosed();
+    }
+
+    /**
+     * WELCOME from the publisher, the connection can be used; FILES_WAITING, it has files for us.
+     */
+    private class HandshakeConsumer implements StreamRouter.StreamConsumer{
+
+        @Override
+        public void onFrame(Object peer, int streamId, ByteBuffer payload) {
+            Outbound conn = mPeers.get(peer);
+            if(conn == null) return;
+            if(Handshake.isWelcome(payload)) conn.onWelcome();
+            else if(Handshake.isFilesWaiting(payload)) conn.mFiles.onFilesWaiting();
+        }
+    }
+
+    /**
+     * Answers the pings of the publisher and records the pongs of ours.
+     */
+    private class ProbeConsumer implements StreamRouter.StreamConsumer{
+
+        @Override
+        public void onFrame(Object peer, int streamId, ByteBuffer payload) {
+            Outbound conn = mPeers.get(peer);
+            if(conn == null) return;
+            ByteBuffer reply = mScratch.get();
+            reply.clear();
+            try {
+                if(!conn.mProbe.onProbe(payload, reply)) return;
+            } catch (RuntimeException e) {
+                Log.d(TAG, "read: invalid probe " + e);
+                return;
+            }
+            reply.flip();
+            send(peer, LatencyProbe.STREAM, reply);
+        }
+    }
+
+    /**
+     * Contadores de ejemplo a todos los conectados, desde un timer del primer bucle.
+     */
+    private class DemoProducer implements Runnable{
+
+        private final ByteBuffer mSample = ByteBuffer.allocate(SampleCodec.MAX_SAMPLE_SIZE);
+        private int mUp = 0;
+        private int mDown = 100;
+
+        @Override
+        public void run() {
+            sendSample(Client.STREAM_1, mUp);
+            ++mUp;
+            mUp %= 11;
+            sendSample(Client.STREAM_2, mDown);
+            --mDown;
+            if(mDown < 0) mDown = 100;
+            mLoops[0].schedule(mDemoTimer, TimeUnit.MILLISECONDS.toNanos(DEMO_SEND_PERIOD_MS));
+        }
+
+        private void sendSample(int stream, int value){
+            mSample.clear();
+            SampleCodec.putInt(mSample, SampleCodec.NO_TIMESTAMP, value);
+            mSample.flip();
+            sendToAll(stream, mSample);
+        }
+    }
+
+    private class Outbound extends PeerRegistry.Peer{
+
+        final IoLoop mLoop;
+        final ConnectionMetrics mMetrics = new ConnectionMetrics();
+        final LatencyProbe mProbe = new LatencyProbe();
+        volatile InetSocketAddress mAddress = null;
+        //Se publica con el WELCOME, null mientras no se puede enviar
+        volatile FrameWriter mWriter = null;
+        final FileLink mFiles;
+
+        //Solo desde el hilo del bucle
+        final Backoff mBackoff = new Backoff(RECONNECT_BASE_MS, RECONNECT_MAX_MS);
+        SocketChannel mChannel = null;
+        InetSocketAddress mChannelAddress = null;
+        FrameWriter mPendingWriter = null;
+        long mLostNanos = 0;
+
+        final Runnable mConnectTask = new Runnable() {
+            @Override
+            public void run() {
+                connect();
+            }
+        };
+        final Runnable mLostTask = new Runnable() {
+            @Override
+            public void run() {
+                mLoop.cancel(mRetry);
+                if(mChannel != null) mLoop.close(mChannel);
+            }
+        };
+        final Runnable mArmProbe = new Runnable() {
+            @Override
+            public void run() {
+                if(mProbeIntervalMillis > 0 && mWriter != null) mLoop.schedule(mProbeTimer, 0);
+                else mLoop.cancel(mProbeTimer);
+            }
+        };
+        final TimerWheel.Timeout mRetry = new TimerWheel.Timeout(mConnectTask);
+        final TimerWheel.Timeout mConnectTimeout = new TimerWheel.Timeout(new Runnable() {
+            @Override
+            public void run() {
+                Log.d(TAG, getHandle() + ": no handshake answer from " + mChannelAddress);
+                if(mChannel != null) mLoop.close(mChannel);
+            }
+        });
+        final TimerWheel.Timeout mProbeTimer = new TimerWheel.Timeout(new Runnable() {
+            @Override
+            public void run() {
+                FrameWriter writer = mWriter;
+                long interval = mProbeIntervalMillis;
+                if(writer == null || interval <= 0) return;
+                ByteBuffer ping = mScratch.get();
+                ping.clear();
+                mProbe.writePing(ping);
+                ping.flip();
+                mMetrics.onSend(writer.send(LatencyProbe.STREAM, ping));
+                mLoop.schedule(mProbeTimer, TimeUnit.MILLISECONDS.toNanos(interval));
+            }
+        });
+
+        Outbound(Object handle, IoLoop loop){
+            super(handle);
+            mLoop = loop;
+            mFiles = new FileLink(mTransport, handle, new FileLink.Path() {
+                @Override
+                public InetSocketAddress getAddress() {
+                    return mAddress;
+                }
+            }, "ClientGroup-file");
+            mFiles.setInbox(mFileReceiver, mFileListener);
+        }
+
+        /**
+         * Loop thread. Connects to the current address of the data path, replacing a channel to an
+         * older one.
+         */
+        void connect(){
+            InetSocketAddress address = mAddress;
+            if(!isOpen() || !mEnabled || address == null) return;
+            if(mChannel != null){
+                if(address.equals(mChannelAddress)) return;
+                SocketChannel old = mChannel;
+                onChannelClosed();
+                mLoop.close(old);
+            }
+            mLoop.cancel(mRetry);
+            SocketChannel channel;
+            try {
+                channel = mTransport.openChannel(getHandle());
+                //Los frames ya se agrupan en FrameWriter, Nagle solo anadiria latencia
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            } catch (IOException e) {
+                Log.d(TAG, getHandle() + ": " + e);
+                scheduleRetry();
+                return;
+            }
+            mChannel = channel;
+            mChannelAddress = address;
+            FrameWriter writer = mLoop.connect(channel, address, getHandle(), mMetrics);
+            byte[] token = mTransport.getHandshakeToken(getHandle());
+            if(token == null){
+                //Sin handshake se puede enviar ya, lo encolado sale al conectar
+                mPendingWriter = writer;
+                onWelcome();
+                return;
+            }
+            ByteBuffer hello = mScratch.get();
+            hello.clear();
+            Handshake.writeHello(hello, token);
+            hello.flip();
+            writer.send(Handshake.STREAM, hello);
+            mPendingWriter = writer;
+            mLoop.schedule(mConnectTimeout, TimeUnit.MILLISECONDS.toNanos(CONNECT_TIMEOUT_MS));
+        }
+
+        /**
+         * Loop thread.
+         */
+        void onWelcome(){
+            if(mPendingWriter == null) return;
+            mLoop.cancel(mConnectTimeout);
+            mBackoff.reset();
+            mMetrics.onAccept();
+            mWriter = mPendingWriter;
+            mPendingWriter = null;
+            if(!transition(PeerRegistry.State.REQUESTING, PeerRegistry.State.CONNECTED)) return;
+            if(mLostNanos != 0){
+                long recovery = System.nanoTime() - mLostNanos;
+                mLostNanos = 0;
+                mRecovery.record(TimeUnit.NANOSECONDS.toMicros(recovery));
+            }
+            mArmProbe.run();
+        }
+
+        /**
+         * Loop thread, the current channel is gone: back to REQUESTING and retry if the path is up.
+         */
+        void onChannelClosed(){
+            mChannel = null;
+            mChannelAddress = null;
+            mPendingWriter = null;
+            mWriter = null;
+            mLoop.cancel(mConnectTimeout);
+            mLoop.cancel(mProbeTimer);
+            if(transition(PeerRegistry.State.CONNECTED, PeerRegistry.State.REQUESTING)){
+                mLostNanos = System.nanoTime();
+                //Se perdio una conexion que funcionaba, se reintenta rapido
+                mBackoff.reset();
+            }
+            if(isOpen()) scheduleRetry();
+        }
+
+        private void scheduleRetry(){
+            if(!mEnabled || mAddress == null) return;
+            mLoop.schedule(mRetry, TimeUnit.MILLISECONDS.toNanos(mBackoff.nextDelayMillis()));
+        }
+
+        /**
+         * Loop thread, after the peer moved to DRAINING.
+         */
+        void close(){
+            mLoop.cancel(mRetry);
+            mLoop.cancel(mConnectTimeout);
+            mLoop.cancel(mProbeTimer);
+            mWriter = null;
+            mPendingWriter = null;
+            if(mChannel != null) mLoop.close(mChannel);
+            mChannel = null;
+        }
+    }
+}
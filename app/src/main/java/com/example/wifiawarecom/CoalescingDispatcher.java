@@ -0,0 +1,108 @@
+package com.example.wifiawarecom;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Delivery stage between the I/O threads and the UI. Producers overwrite the latest value of a
+ * stream in a lock-free slot and never wait, the sink gets whatever is newest at most once per
+ * interval on the scheduler thread. Values overwritten before being published are counted as coalesced.
+ */
+public class CoalescingDispatcher<T> {
+
+    public interface Sink<T> {
+        /**
+         * Called on the scheduler thread with the newest value of a stream.
+         */
+        void publish(int stream, T value);
+    }
+
+    /**
+     * Runs the drain task, on Android a Handler of the main looper.
+     */
+    public interface Scheduler {
+        void schedule(Runnable task, long delayMillis);
+    }
+
+    private final AtomicReferenceArray<T> mSlots;
+    private final long mIntervalNanos;
+    private final Scheduler mScheduler;
+    private final Sink<T> mSink;
+    private final AtomicBoolean mScheduled = new AtomicBoolean(false);
+    //Solo lo escribe el hilo del scheduler
+    private volatile long mNextPublishNanos;
+
+    private final AtomicLong mOffered = new AtomicLong();
+    private final AtomicLong mCoalesced = new AtomicLong();
+    private volatile long mPublished = 0;
+    private volatile long mDrains = 0;
+
+    private final Runnable mDrain = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    /**
+     * @param streams number of slots, streams are numbered from 0
+     * @param intervalMillis minimum time between two publications, one display frame for instance
+     */
+    public CoalescingDispatcher(int streams, long intervalMillis, Scheduler scheduler, Sink<T> sink){
+        mSlots = new AtomicReferenceArray<>(streams);
+        mIntervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        mScheduler = scheduler;
+        mSink = sink;
+        mNextPublishNanos = System.nanoTime();
+    }
+
+    /**
+     * Replaces the pending value of the stream, any thread, never blocks.
+     */
+    public void offer(int stream, T value){
+        if(value == null) throw new NullPointerException();
+        mOffered.incrementAndGet();
+        if(mSlots.getAndSet(stream, value) != null) mCoalesced.incrementAndGet();
+        if(mScheduled.compareAndSet(false, true)){
+            long delay = mNextPublishNanos - System.nanoTime();
+            //Redondeo hacia arriba para no adelantarse al plazo
+            mScheduler.schedule(mDrain, delay > 0 ? TimeUnit.NANOSECONDS.toMillis(delay + 999999) : 0);
+        }
+    }
+
+    private void drain(){
+        //El siguiente drain que se programe ya tiene que ver el nuevo plazo
+        mNextPublishNanos = System.nanoTime() + mIntervalNanos;
+        //Antes de vaciar, para que lo que llegue durante el drain vuelva a programarse
+        mScheduled.set(false);
+        ++mDrains;
+        for(int i = 0; i < mSlots.length(); ++i){
+            T value = mSlots.getAndSet(i, null);
+            if(value != null){
+                ++mPublished;
+                mSink.publish(i, value);
+            }
+        }
+    }
+
+    public long getOfferedCount(){
+        return mOffered.get();
+    }
+
+    /**
+     * Values replaced by a newer one before reaching the sink.
+     */
+    public long getCoalescedCount(){
+        return mCoalesced.get();
+    }
+
+    public long getPublishedCount(){
+        return mPublished;
+    }
+
+    public long getDrainCount(){
+        return mDrains;
+    }
+}
@@ -0,0 +1,167 @@
+package com.example.wifiawarecom;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Traffic counters of one peer. The I/O side is only written by the loop that owns the peer's
+ * channels, so it uses ordered stores instead of atomic increments; the send side is written by
+ * any producer and is striped.
+ */
+public class ConnectionMetrics {
+
+    public static class Snapshot {
+        public final Object peer;
+        public final long nanos;
+        public final int channels;
+        public final long bytesIn;
+        public final long framesIn;
+        public final long reads;
+        public final long bytesOut;
+        public final long writes;
+        public final long framesSent;
+        public final long sendsRefused;
+        public final long queueDepth;
+        public final long acceptLatencyNanos;
+
+        Snapshot(Object peer, long nanos, int channels, long bytesIn, long framesIn, long reads, long bytesOut,
+                 long writes, long framesSent, long sendsRefused, long queueDepth, long acceptLatencyNanos){
+            this.peer = peer;
+            this.nanos = nanos;
+            this.channels = channels;
+            this.bytesIn = bytesIn;
+            this.framesIn = framesIn;
+            this.reads = reads;
+            this.bytesOut = bytesOut;
+            this.writes = writes;
+            this.framesSent = framesSent;
+            this.sendsRefused = sendsRefused;
+            this.queueDepth = queueDepth;
+            this.acceptLatencyNanos = acceptLatencyNanos;
+        }
+
+        /**
+         * Read syscalls per received frame, below 1 when several frames arrive in one read.
+         */
+        public double getReadsPerFrame(){
+            return framesIn == 0 ? 0 : (double) reads / framesIn;
+        }
+
+        public double getWritesPerFrame(){
+            return framesSent == 0 ? 0 : (double) writes / framesSent;
+        }
+
+        public double getBytesInPerSecond(Snapshot previous){
+            return perSecond(bytesIn - previous.bytesIn, previous);
+        }
+
+        public double getBytesOutPerSecond(Snapshot previous){
+            return perSecond(bytesOut - previous.bytesOut, previous);
+        }
+
+        public double getFramesInPerSecond(Snapshot previous){
+            return perSecond(framesIn - previous.framesIn, previous);
+        }
+
+        public double getFramesSentPerSecond(Snapshot previous){
+            return perSecond(framesSent - previous.framesSent, previous);
+        }
+
+        private double perSecond(long delta, Snapshot previous){
+            long elapsed = nanos - previous.nanos;
+            return elapsed <= 0 ? 0 : delta * 1e9 / elapsed;
+        }
+
+        @Override
+        public String toString() {
+            return peer + "{channels=" + channels + ", bytesIn=" + bytesIn + ", framesIn=" + framesIn
+                    + ", readsPerFrame=" + String.format("%.4f", getReadsPerFrame()) + ", bytesOut=" + bytesOut
+                    + ", framesSent=" + framesSent + ", sendsRefused=" + sendsRefused + ", queueDepth=" + queueDepth
+                    + ", acceptLatencyUs=" + (acceptLatencyNanos < 0 ? -1 : acceptLatencyNanos / 1000) + "}";
+        }
+    }
+
+    private static final AtomicLongFieldUpdater<ConnectionMetrics> BYTES_IN =
+            AtomicLongFieldUpdater.newUpdater(ConnectionMetrics.class, "mBytesIn");
+    private static final AtomicLongFieldUpdater<ConnectionMetrics> FRAMES_IN =
+            AtomicLongFieldUpdater.newUpdater(ConnectionMetrics.class, "mFramesIn");
+    private static final AtomicLongFieldUpdater<ConnectionMetrics> READS =
+            AtomicLongFieldUpdater.newUpdater(ConnectionMetrics.class, "mReads");
+    private static final AtomicLongFieldUpdater<ConnectionMetrics> BYTES_OUT =
+            AtomicLongFieldUpdater.newUpdater(ConnectionMetrics.class, "mBytesOut");
+    private static final AtomicLongFieldUpdater<ConnectionMetrics> WRITES =
+            AtomicLongFieldUpdater.newUpdater(ConnectionMetrics.class, "mWrites");
+
+    private final long mCreatedNanos = System.nanoTime();
+    //Solo los escribe el hilo del bucle del par
+    private volatile long mBytesIn = 0;
+    private volatile long mFramesIn = 0;
+    private volatile long mReads = 0;
+    private volatile long mBytesOut = 0;
+    private volatile long mWrites = 0;
+    private volatile long mAcceptLatencyNanos = -1;
+    private final LongAdder mFramesSent = new LongAdder();
+    private final LongAdder mSendsRefused = new LongAdder();
+
+    /**
+     * A read call on one of the peer's channels, bytes is 0 when it found nothing.
+     */
+    void onRead(int bytes){
+        READS.lazySet(this, mReads + 1);
+        if(bytes > 0) BYTES_IN.lazySet(this, mBytesIn + bytes);
+    }
+
+    void onFrame(){
+        FRAMES_IN.lazySet(this, mFramesIn + 1);
+    }
+
+    void onWrite(long bytes, long writes){
+        if(writes == 0) return;
+        WRITES.lazySet(this, mWrites + writes);
+        BYTES_OUT.lazySet(this, mBytesOut + bytes);
+    }
+
+    /**
+     * The first data channel was accepted, the latency counts from the creation of these metrics.
+     */
+    void onAccept(){
+        if(mAcceptLatencyNanos < 0) mAcceptLatencyNanos = System.nanoTime() - mCreatedNanos;
+    }
+
+    void onSend(boolean queued){
+        if(queued) mFramesSent.increment();
+        else mSendsRefused.increment();
+    }
+
+    public long getBytesIn(){
+        return mBytesIn;
+    }
+
+    public long getFramesIn(){
+        return mFramesIn;
+    }
+
+    public long getReads(){
+        return mReads;
+    }
+
+    public long getBytesOut(){
+        return mBytesOut;
+    }
+
+    public long getWrites(){
+        return mWrites;
+    }
+
+    /**
+     * @return nanoseconds from the creation of the connection to its first accepted channel, -1 if none yet
+     */
+    public long getAcceptLatencyNanos(){
+        return mAcceptLatencyNanos;
+    }
+
+    public Snapshot snapshot(Object peer, int channels, long queueDepth){
+        return new Snapshot(peer, System.nanoTime(), channels, mBytesIn, mFramesIn, mReads, mBytesOut, mWrites,
+                mFramesSent.sum(), mSendsRefused.sum(), queueDepth, mAcceptLatencyNanos);
+    }
+}
@@ -0,0 +1,391 @@
+package com.example.wifiawarecom;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Small stream-tagged messages over the discovery session (sendMessage / onMessageReceived), for
+ * control traffic that cannot wait for a data path. Messages are cut into fragments that fit a
+ * discovery message and put together again on the other side. The platform reports every
+ * fragment as sent or failed by messageId, at most window fragments are in flight and a failed
+ * one is sent again up to MAX_ATTEMPTS times. Messages over the size threshold, beyond the
+ * rate of the token bucket or while the fragment queue is full go through the fallback instead,
+ * the socket of the data path.
+ * Order is kept per path only, a retransmitted message can overtake the one before it.
+ */
+public class DiscoveryMessenger {
+
+    public interface Sender {
+        /**
+         * The result of every call has to come back through {@link #onSendResult(int, boolean)}.
+         */
+        void sendMessage(Object peer, int messageId, byte[] message);
+    }
+
+    public interface Fallback {
+        boolean send(Object peer, int streamId, ByteBuffer payload);
+    }
+
+    /**
+     * Longest message that sendMessage takes on every Wi-Fi Aware device.
+     */
+    public static final int MAX_MESSAGE_SIZE = 255;
+    static final byte FRAGMENT = 1;
+    //Tipo, secuencia (2), indice y numero de fragmentos
+    static final int HEADER_SIZE = 5;
+    static final int MAX_FRAGMENT_DATA = MAX_MESSAGE_SIZE - HEADER_SIZE;
+    public static final int MAX_FRAGMENTS = 255;
+    static final int MAX_ATTEMPTS = 3;
+    private static final int MAX_QUEUED_FRAGMENTS = 64;
+    //Por peer: mensajes a medio recibir y secuencias ya entregadas que se recuerdan
+    private static final int MAX_PARTIAL = 8;
+    private static final int RECENT = 64;
+
+    public static final int DEFAULT_THRESHOLD = 1024;
+    public static final double DEFAULT_RATE = 20;
+    public static final int DEFAULT_BURST = 10;
+    public static final int DEFAULT_WINDOW = 4;
+
+    private final Sender mSender;
+    private final StreamRouter mRouter;
+    private final Fallback mFallback;
+    private final int mThreshold;
+    private final double mTokensPerNano;
+    private final int mBurst;
+    private final int mWindow;
+
+    //Todo el estado bajo el lock de this
+    private int mNextMessageId = 0;
+    private final HashMap<Integer, Fragment> mInFlight = new HashMap<>();
+    private final ArrayDeque<Fragment> mWaiting = new ArrayDeque<>();
+    private final HashMap<Object, PeerState> mPeers = new HashMap<>();
+    private double mTokens;
+    private long mRefillNanos;
+
+    private long mMessagesSent = 0;
+    private long mMessagesFailed = 0;
+    private long mFragmentsSent = 0;
+    private long mRetransmits = 0;
+    private long mMessagesReceived = 0;
+    private long mDuplicates = 0;
+    private long mMalformed = 0;
+    private long mFallbacks = 0;
+
+    public DiscoveryMessenger(Sender sender, StreamRouter router, Fallback fallback){
+        this(sender, router, fallback, DEFAULT_THRESHOLD, DEFAULT_RATE, DEFAULT_BURST, DEFAULT_WINDOW);
+    }
+
+    /**
+     * @param router receives the messages of every peer
+     * @param threshold largest message, stream id included, sent as discovery messages
+     * @param messagesPerSecond sustained rate of discovery messages, with bursts of up to burst
+     * @param window fragments waiting for their result at once
+     */
+    public DiscoveryMessenger(Sender sender, StreamRouter router, Fallback fallback, int threshold,
+                              double messagesPerSecond, int burst, int window){
+        if(threshold > MAX_FRAGMENTS * MAX_FRAGMENT_DATA){
+            throw new IllegalArgumentException("Threshold of " + threshold + " bytes needs more than "
+                    + MAX_FRAGMENTS + " fragments");
+        }
+        if(window <= 0 || burst <= 0) throw new IllegalArgumentException("Window and burst must be positive");
+        mSender = sender;
+        mRouter = router;
+        mFallback = fallback;
+        mThreshold = threshold;
+        mTokensPerNano = messagesPerSecond / TimeUnit.SECONDS.toNanos(1);
+        mBurst = burst;
+        mWindow = window;
+        mTokens = burst;
+        mRefillNanos = System.nanoTime();
+    }
+
+    public StreamRouter getRouter(){
+        return mRouter;
+    }
+
+    /**
+     * Sends the remaining bytes of payload as a discovery message if it is small and the rate
+     * allows it, through the fallback otherwise. payload is consumed only if accepted.
+     * @return false if the path taken refused it
+     */
+    public boolean send(Object peer, int streamId, ByteBuffer payload){
+        return send(peer, streamId, payload, System.nanoTime());
+    }
+
+    boolean send(Object peer, int streamId, ByteBuffer payload, long nowNanos){
+        StreamRouter.checkStreamId(streamId);
+        int size = SampleCodec.varintSize(streamId) + payload.remaining();
+        int fragments = (size + MAX_FRAGMENT_DATA - 1) / MAX_FRAGMENT_DATA;
+        synchronized (this){
+            //Con la cola llena no se gasta un token, el mensaje va por el fallback
+            if(size <= mThreshold && mWaiting.size() + fragments <= MAX_QUEUED_FRAGMENTS && takeToken(nowNanos)){
+                queue(peer, streamId, payload, size, fragments);
+                pump();
+                return true;
+            }
+            ++mFallbacks;
+        }
+        //El fallback va fuera del lock, puede tomar los suyos
+        return mFallback.send(peer, streamId, payload);
+    }
+
+    private boolean takeToken(long nowNanos){
+        long elapsed = nowNanos - mRefillNanos;
+        if(elapsed > 0) mTokens = Math.min(mBurst, mTokens + elapsed * mTokensPerNano);
+        mRefillNanos = nowNanos;
+        if(mTokens < 1) return false;
+        --mTokens;
+        return true;
+    }
+
+    private void queue(Object peer, int streamId, ByteBuffer payload, int size, int fragments){
+        ByteBuffer whole = ByteBuffer.allocate(size);
+        SampleCodec.putVarint(whole, streamId);
+        whole.put(payload);
+        whole.flip();
+        PeerState state = peerState(peer);
+        int seq = state.mNextSeq;
+        state.mNextSeq = (seq + 1) & 0xFFFF;
+        Message message = new Message(fragments);
+        for(int i = 0; i < fragments; ++i){
+            int length = Math.min(MAX_FRAGMENT_DATA, whole.remaining());
+            byte[] bytes = new byte[HEADER_SIZE + length];
+            bytes[0] = FRAGMENT;
+            bytes[1] = (byte) (seq >>> 8);
+            bytes[2] = (byte) seq;
+            bytes[3] = (byte) i;
+            bytes[4] = (byte) fragments;
+            whole.get(bytes, HEADER_SIZE, length);
+            mWaiting.addLast(new Fragment(peer, bytes, message));
+        }
+    }
+
+    private void pump(){
+        while(mInFlight.size() < mWindow && !mWaiting.isEmpty()){
+            Fragment fragment = mWaiting.pollFirst();
+            int messageId = nextMessageId();
+            mInFlight.put(messageId, fragment);
+            ++fragment.mAttempts;
+            ++mFragmentsSent;
+            mSender.sendMessage(fragment.mPeer, messageId, fragment.mBytes);
+        }
+    }
+
+    /**
+     * Ids from 1 up, 0 is left to the other messages of the session.
+     */
+    private int nextMessageId(){
+        do {
+            mNextMessageId = mNextMessageId == Integer.MAX_VALUE ? 1 : mNextMessageId + 1;
+        } while(mInFlight.containsKey(mNextMessageId));
+        return mNextMessageId;
+    }
+
+    /**
+     * Result of a sendMessage reported by the platform.
+     * @return false if messageId is not one of the fragments of this messenger
+     */
+    public synchronized boolean onSendResult(int messageId, boolean sent){
+        Fragment fragment = mInFlight.remove(messageId);
+        if(fragment == null) return false;
+        Message message = fragment.mMessage;
+        if(sent){
+            if(--message.mRemaining == 0 && !message.mFailed) ++mMessagesSent;
+        }
+        else if(!message.mFailed && fragment.mAttempts < MAX_ATTEMPTS){
+            ++mRetransmits;
+            mWaiting.addFirst(fragment);
+        }
+        else if(!message.mFailed){
+            //Sin este fragmento el mensaje no se puede reconstruir, el resto sobra
+            message.mFailed = true;
+            ++mMessagesFailed;
+            Iterator<Fragment> it = mWaiting.iterator();
+            while(it.hasNext()) if(it.next().mMessage == message) it.remove();
+        }
+        pump();
+        return true;
+    }
+
+    /**
+     * A discovery message from peer. Complete messages go to the router, on the calling thread.
+     * @return false if it is not a fragment, the caller handles it
+     */
+    public boolean onMessage(Object peer, byte[] bytes){
+        if(bytes == null || bytes.length < HEADER_SIZE || bytes[0] != FRAGMENT) return false;
+        ByteBuffer whole;
+        synchronized (this){
+            whole = reassemble(peer, bytes);
+            if(whole == null) return true;
+            ++mMessagesReceived;
+        }
+        mRouter.dispatch(peer, whole);
+        return true;
+    }
+
+    private ByteBuffer reassemble(Object peer, byte[] bytes){
+        int seq = (bytes[1] & 0xFF) << 8 | bytes[2] & 0xFF;
+        int index = bytes[3] & 0xFF;
+        int count = bytes[4] & 0xFF;
+        if(count == 0 || index >= count){
+            ++mMalformed;
+            return null;
+        }
+        PeerState state = peerState(peer);
+        if(state.wasDelivered(seq)){
+            ++mDuplicates;
+            return null;
+        }
+        ByteBuffer whole;
+        if(count == 1){
+            whole = ByteBuffer.wrap(bytes, HEADER_SIZE, bytes.length - HEADER_SIZE);
+        }
+        else {
+            Partial partial = state.mPartial.get(seq);
+            if(partial == null){
+                partial = new Partial(count);
+                state.mPartial.put(seq, partial);
+            }
+            else if(partial.mFragments.length != count){
+                ++mMalformed;
+                return null;
+            }
+            if(partial.mFragments[index] != null){
+                ++mDuplicates;
+                return null;
+            }
+            partial.mFragments[index] = bytes;
+            partial.mSize += bytes.length - HEADER_SIZE;
+            if(--partial.mMissing > 0) return null;
+            state.mPartial.remove(seq);
+            whole = ByteBuffer.allocate(partial.mSize);
+            for(byte[] fragment : partial.mFragments) whole.put(fragment, HEADER_SIZE, fragment.length - HEADER_SIZE);
+            whole.flip();
+        }
+        state.delivered(seq);
+        return whole;
+    }
+
+    private PeerState peerState(Object peer){
+        PeerState state = mPeers.get(peer);
+        if(state == null){
+            state = new PeerState();
+            mPeers.put(peer, state);
+        }
+        return state;
+    }
+
+    /**
+     * Drops what is known of peer, fragments still to be sent included.
+     */
+    public synchronized void forget(Object peer){
+        mPeers.remove(peer);
+        Iterator<Fragment> it = mWaiting.iterator();
+        while(it.hasNext()) if(it.next().mPeer.equals(peer)) it.remove();
+    }
+
+    public synchronized int getInFlight(){
+        return mInFlight.size();
+    }
+
+    public synchronized long getMessagesSent(){
+        return mMessagesSent;
+    }
+
+    public synchronized long getMessagesFailed(){
+        return mMessagesFailed;
+    }
+
+    public synchronized long getFragmentsSent(){
+        return mFragmentsSent;
+    }
+
+    public synchronized long getRetransmits(){
+        return mRetransmits;
+    }
+
+    public synchronized long getMessagesReceived(){
+        return mMessagesReceived;
+    }
+
+    public synchronized long getDuplicates(){
+        return mDuplicates;
+    }
+
+    public synchronized long getMalformed(){
+        return mMalformed;
+    }
+
+    /**
+     * Messages handed to the fallback, over the size threshold or the rate.
+     */
+    public synchronized long getFallbacks(){
+        return mFallbacks;
+    }
+
+    private static class Message {
+        int mRemaining;
+        boolean mFailed = false;
+
+        Message(int fragments){
+            mRemaining = fragments;
+        }
+    }
+
+    private static class Fragment {
+        final Object mPeer;
+        final byte[] mBytes;
+        final Message mMessage;
+        int mAttempts = 0;
+
+        Fragment(Object peer, byte[] bytes, Message message){
+            mPeer = peer;
+            mBytes = bytes;
+            mMessage = message;
+        }
+    }
+
+    private static class Partial {
+        final byte[][] mFragments;
+        int mMissing;
+        int mSize = 0;
+
+        Partial(int count){
+            mFragments = new byte[count][];
+            mMissing = count;
+        }
+    }
+
+    private static class PeerState {
+        int mNextSeq = 0;
+        //Los mas viejos se descartan si el emisor abandona mensajes a medias
+        final LinkedHashMap<Integer, Partial> mPartial = new LinkedHashMap<Integer, Partial>(){
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Partial> eldest) {
+                return size() > MAX_PARTIAL;
+            }
+        };
+        private final int[] mRecent = new int[RECENT];
+        private int mRecentNext = 0;
+
+        PeerState(){
+            Arrays.fill(mRecent, -1);
+        }
+
+        boolean wasDelivered(int seq){
+            for(int recent : mRecent) if(recent == seq) return true;
+            return false;
+        }
+
+        void delivered(int seq){
+            mRecent[mRecentNext] = seq;
+            mRecentNext = (mRecentNext + 1) % RECENT;
+        }
+    }
+}
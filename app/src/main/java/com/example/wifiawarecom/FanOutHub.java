@@ -0,0 +1,244 @@
+package com.example.wifiawarecom;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Relays frames from one peer to every other subscribed peer. Each frame is encoded once into a
+ * pooled buffer and queued to the subscribers as read-only views of it ({@link SharedFrame}), the
+ * buffer is recycled after the last subscriber wrote it. A subscriber that does not keep up is
+ * handled by the policy of its subscription. publish() can be called from any thread.
+ */
+public class FanOutHub {
+
+    public enum Policy {
+        /**
+         * The frame is not queued to a backpressured subscriber.
+         */
+        DROP_NEWEST,
+        /**
+         * The oldest relayed frames still queued to the subscriber make room for the new one.
+         */
+        DROP_OLDEST,
+        /**
+         * A backpressured subscriber is disconnected, it gets the frames again once it reconnects.
+         */
+        DISCONNECT
+    }
+
+    /**
+     * Where the subscribers are, kept by the owner of the connections.
+     */
+    public interface Peers {
+        /**
+         * @return outbound queue of the peer, null while it has no connection
+         */
+        FrameWriter getWriter(Object peer);
+
+        /**
+         * Closes the connection of writer, the subscription stays for the next one.
+         */
+        void disconnect(Object peer, FrameWriter writer);
+    }
+
+    public static class Subscription {
+        private final Object mPeer;
+        private final Policy mPolicy;
+        private final AtomicLong mDelivered = new AtomicLong();
+        private final AtomicLong mDropped = new AtomicLong();
+        private final AtomicLong mDisconnects = new AtomicLong();
+        //Ultimo writer desconectado, para no pedirlo otra vez por cada frame
+        private volatile FrameWriter mDisconnected = null;
+
+        Subscription(Object peer, Policy policy){
+            mPeer = peer;
+            mPolicy = policy;
+        }
+
+        public Object getPeer(){
+            return mPeer;
+        }
+
+        public Policy getPolicy(){
+            return mPolicy;
+        }
+
+        /**
+         * Frames queued to the subscriber.
+         */
+        public long getDelivered(){
+            return mDelivered.get();
+        }
+
+        /**
+         * Frames refused (DROP_NEWEST) or dropped from its queue (DROP_OLDEST).
+         */
+        public long getDropped(){
+            return mDropped.get();
+        }
+
+        public long getDisconnects(){
+            return mDisconnects.get();
+        }
+
+        @Override
+        public String toString() {
+            return mPeer + "{" + mPolicy + ", delivered=" + mDelivered.get() + ", dropped=" + mDropped.get()
+                    + ", disconnects=" + mDisconnects.get() + "}";
+        }
+    }
+
+    private static final Subscription[] NONE = new Subscription[0];
+
+    private final BufferPool mPool;
+    private final Peers mPeers;
+    //Copia al escribir: publish() recorre el array sin lock ni reservas
+    private volatile Subscription[] mSubscriptions = NONE;
+    private final AtomicLong mPublished = new AtomicLong();
+    private final AtomicLong mExhausted = new AtomicLong();
+    private final AtomicLong mOversized = new AtomicLong();
+
+    /**
+     * @param pool buffers of the relayed frames, the same the writers of the peers use
+     */
+    public FanOutHub(BufferPool pool, Peers peers){
+        mPool = pool;
+        mPeers = peers;
+    }
+
+    /**
+     * Subscribes peer to every frame published from now on by the others, replacing its policy if
+     * it was already subscribed (counters start again).
+     */
+    public synchronized void subscribe(Object peer, Policy policy){
+        Subscription[] current = mSubscriptions;
+        int index = indexOf(current, peer);
+        Subscription[] next;
+        if(index >= 0) next = current.clone();
+        else {
+            next = new Subscription[current.length + 1];
+            System.arraycopy(current, 0, next, 0, current.length);
+            index = current.length;
+        }
+        next[index] = new Subscription(peer, policy);
+        mSubscriptions = next;
+    }
+
+    /**
+     * @return false if peer was not subscribed
+     */
+    public synchronized boolean unsubscribe(Object peer){
+        Subscription[] current = mSubscriptions;
+        int index = indexOf(current, peer);
+        if(index < 0) return false;
+        Subscription[] next = new Subscription[current.length - 1];
+        System.arraycopy(current, 0, next, 0, index);
+        System.arraycopy(current, index + 1, next, index, next.length - index);
+        mSubscriptions = next;
+        return true;
+    }
+
+    private static int indexOf(Subscription[] subscriptions, Object peer){
+        for(int i = 0; i < subscriptions.length; ++i){
+            if(subscriptions[i].mPeer.equals(peer)) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * @return null if peer is not subscribed
+     */
+    public Subscription getSubscription(Object peer){
+        Subscription[] current = mSubscriptions;
+        int index = indexOf(current, peer);
+        return index < 0 ? null : current[index];
+    }
+
+    public int getSubscriberCount(){
+        return mSubscriptions.length;
+    }
+
+    /**
+     * Queues the remaining bytes of payload as a frame of streamId to every subscriber but from,
+     * payload is consumed. A frame that does not fit in one pooled buffer is not relayed.
+     * @return subscribers that queued it
+     */
+    public int publish(Object from, int streamId, ByteBuffer payload){
+        Subscription[] subscriptions = mSubscriptions;
+        if(SharedFrame.frameSize(streamId, payload) > mPool.getBufferSize()){
+            mOversized.incrementAndGet();
+            payload.position(payload.limit());
+            return 0;
+        }
+        SharedFrame frame = SharedFrame.encode(mPool, streamId, payload);
+        if(frame == null){
+            mExhausted.incrementAndGet();
+            payload.position(payload.limit());
+            return 0;
+        }
+        mPublished.incrementAndGet();
+        int queued = 0;
+        try {
+            for(Subscription subscription : subscriptions){
+                if(subscription.mPeer.equals(from)) continue;
+                FrameWriter writer = mPeers.getWriter(subscription.mPeer);
+                if(writer != null && deliver(subscription, writer, frame)) ++queued;
+            }
+        } finally {
+            frame.release();
+        }
+        return queued;
+    }
+
+    private boolean deliver(Subscription subscription, FrameWriter writer, SharedFrame frame){
+        switch (subscription.mPolicy){
+            case DROP_OLDEST:
+                int dropped = writer.sendDroppingOldest(frame);
+                if(dropped < 0){
+                    //Los que se tiraron para hacer sitio y el rechazado
+                    subscription.mDropped.addAndGet(~dropped + 1);
+                    return false;
+                }
+                if(dropped > 0) subscription.mDropped.addAndGet(dropped);
+                break;
+            case DISCONNECT:
+                if(!writer.send(frame)){
+                    if(writer.isBackpressured() && subscription.mDisconnected != writer){
+                        subscription.mDisconnected = writer;
+                        subscription.mDisconnects.incrementAndGet();
+                        mPeers.disconnect(subscription.mPeer, writer);
+                    }
+                    return false;
+                }
+                break;
+            default:
+                if(!writer.send(frame)){
+                    subscription.mDropped.incrementAndGet();
+                    return false;
+                }
+        }
+        subscription.mDelivered.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Frames encoded and relayed, each one once whatever the number of subscribers.
+     */
+    public long getPublished(){
+        return mPublished.get();
+    }
+
+    /**
+     * Frames lost because the pool had no buffer to encode them.
+     */
+    public long getExhaustedCount(){
+        return mExhausted.get();
+    }
+
+    /**
+     * Frames not relayed because they do not fit in a pooled buffer.
+     */
+    public long getOversizedCount(){
+        return mOversized.get();
+    }
+}
@@ -0,0 +1,218 @@
+package com.example.wifiawarecom;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Subscriber side of the file transfers with one publisher. Each transfer gets a connection of its
+ * own to the port of the data path, opened through the transport like the data channel and named
+ * with the same handshake token, so the chunks never queue with the frames of the streams. The
+ * publisher takes the connection off its loop and answers FILE_READY, then FileSender or
+ * FileReceiver runs on it, blocking, on a thread of the link. See {@link Handshake}.
+ */
+class FileLink {
+    private static final String TAG = "FileLink";
+
+    interface Path {
+        /**
+         * Current address of the data path to the publisher, null while there is none.
+         */
+        InetSocketAddress getAddress();
+    }
+
+    static final int MAX_ATTEMPTS = 5;
+    private static final long RETRY_BASE_MS = 200;
+    private static final long RETRY_MAX_MS = 5000;
+    private static final int CONNECT_TIMEOUT_MS = 3000;
+    //Antes de FILE_READY solo puede llegar un WELCOME, de un puerto que no es el compartido
+    private static final int MAX_ANSWER_SIZE = 16;
+
+    private final Transport mTransport;
+    private final Object mPeer;
+    private final Path mPath;
+    private final String mThreadName;
+    private volatile FileReceiver mReceiver = null;
+    private volatile FileReceiver.Listener mListener = null;
+    private volatile boolean mClosed = false;
+    //Conexiones de las transferencias en curso, close() las corta
+    private final Set<SocketChannel> mChannels = ConcurrentHashMap.newKeySet();
+    //Hay un FILES_WAITING sin atender
+    private volatile boolean mPullRequested = false;
+    private final AtomicBoolean mPulling = new AtomicBoolean();
+
+    FileLink(Transport transport, Object peer, Path path, String threadName){
+        mTransport = transport;
+        mPeer = peer;
+        mPath = path;
+        mThreadName = threadName;
+    }
+
+    /**
+     * Sends file on a thread of its own, a dropped connection is resumed up to MAX_ATTEMPTS times.
+     * @return bytes of the file sent over every attempt, or the error of the last one
+     */
+    CompletableFuture<Long> send(final File file, final long transferId){
+        final CompletableFuture<Long> result = new CompletableFuture<>();
+        if(mClosed){
+            result.completeExceptionally(new IOException("File link to " + mPeer + " closed"));
+            return result;
+        }
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    result.complete(new FileSender().send(new FileSender.ChannelOpener() {
+                        @Override
+                        public SocketChannel open() throws IOException {
+                            return FileLink.this.open(Handshake.FILE_PUSH);
+                        }
+                    }, file, transferId, new Backoff(RETRY_BASE_MS, RETRY_MAX_MS), MAX_ATTEMPTS));
+                } catch (IOException | InterruptedException | RuntimeException e) {
+                    result.completeExceptionally(e);
+                }
+            }
+        }, mThreadName).start();
+        return result;
+    }
+
+    /**
+     * Where the files queued by the publisher go, null stops taking them. Files announced before
+     * are pulled now.
+     */
+    void setInbox(FileReceiver receiver, FileReceiver.Listener listener){
+        mListener = listener;
+        mReceiver = receiver;
+        if(receiver != null && mPullRequested) startPulling();
+    }
+
+    /**
+     * FILES_WAITING from the publisher, called on an I/O thread.
+     */
+    void onFilesWaiting(){
+        mPullRequested = true;
+        startPulling();
+    }
+
+    /**
+     * Cuts the transfers running, they fail with an IOException, and refuses new ones.
+     */
+    void close(){
+        mClosed = true;
+        for(SocketChannel channel : mChannels) close(channel);
+    }
+
+    private void startPulling(){
+        if(mReceiver == null || mClosed || !mPulling.compareAndSet(false, true)) return;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                do {
+                    mPullRequested = false;
+                    pullAll();
+                    mPulling.set(false);
+                    //Un aviso que llego despues de ver la cola vacia
+                } while(mPullRequested && mReceiver != null && !mClosed && mPulling.compareAndSet(false, true));
+            }
+        }, mThreadName).start();
+    }
+
+    /**
+     * One FILE_PULL connection per file until the publisher closes one without FILE_READY, its
+     * queue is empty. A transfer cut half way is pulled again and resumes.
+     */
+    private void pullAll(){
+        Backoff backoff = new Backoff(RETRY_BASE_MS, RETRY_MAX_MS);
+        int failures = 0;
+        while(!mClosed){
+            FileReceiver receiver = mReceiver;
+            if(receiver == null) return;
+            SocketChannel channel;
+            try {
+                channel = open(Handshake.FILE_PULL);
+            } catch (IOException e) {
+                return;
+            }
+            try {
+                File file = receiver.receive(channel);
+                failures = 0;
+                backoff.reset();
+                FileReceiver.Listener listener = mListener;
+                if(listener != null) listener.onFileReceived(mPeer, file);
+            } catch (IOException e) {
+                Log.d(TAG, mPeer + ": pull failed " + e);
+                if(++failures >= MAX_ATTEMPTS) return;
+                try {
+                    Thread.sleep(backoff.nextDelayMillis());
+                } catch (InterruptedException ex) {
+                    return;
+                }
+            } finally {
+                close(channel);
+            }
+        }
+    }
+
+    /**
+     * Connects to the publisher and names the connection, blocking until FILE_READY.
+     * @param kind FILE_PUSH or FILE_PULL
+     * @throws IOException if there is no data path or token, or the publisher closed the connection
+     */
+    SocketChannel open(byte kind) throws IOException {
+        byte[] token = mTransport.getHandshakeToken(mPeer);
+        if(token == null) throw new IOException("File transfers need a handshake token");
+        InetSocketAddress address = mPath.getAddress();
+        if(address == null) throw new IOException("No data path to " + mPeer);
+        for(SocketChannel old : mChannels) if(!old.isOpen()) mChannels.remove(old);
+        SocketChannel channel = mTransport.openChannel(mPeer);
+        mChannels.add(channel);
+        try {
+            if(mClosed) throw new IOException("File link to " + mPeer + " closed");
+            channel.socket().connect(address, CONNECT_TIMEOUT_MS);
+            ByteBuffer payload = ByteBuffer.allocate(1 + token.length);
+            Handshake.writeHello(payload, kind, token);
+            payload.flip();
+            ByteBuffer hello = ByteBuffer.allocate(FrameEncoder.HEADER_SIZE + 3 + payload.remaining());
+            FrameEncoder.encode(hello, Handshake.STREAM, payload);
+            hello.flip();
+            FileTransfer.writeFully(channel, hello);
+            awaitReady(channel, address);
+        } catch (IOException | RuntimeException e) {
+            close(channel);
+            throw e;
+        }
+        return channel;
+    }
+
+    private static void awaitReady(SocketChannel channel, InetSocketAddress address) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(FrameEncoder.HEADER_SIZE);
+        FileTransfer.readFully(channel, header);
+        int length = header.getInt(0);
+        if(length <= 0 || length > MAX_ANSWER_SIZE) throw new IOException("Invalid handshake answer from " + address);
+        ByteBuffer answer = ByteBuffer.allocate(length);
+        FileTransfer.readFully(channel, answer);
+        answer.flip();
+        boolean ready;
+        try {
+            ready = StreamRouter.readStreamId(answer) == Handshake.STREAM && Handshake.isFileReady(answer);
+        } catch (RuntimeException e) {
+            ready = false;
+        }
+        if(!ready) throw new IOException(address + " takes no file transfers");
+    }
+
+    private void close(SocketChannel channel){
+        mChannels.remove(channel);
+        try {
+            channel.close();
+        } catch (IOException e) {}
+    }
+}
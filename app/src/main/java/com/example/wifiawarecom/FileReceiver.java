@@ -0,0 +1,154 @@
+package com.example.wifiawarecom;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Receiving side of a {@link FileTransfer}. Chunks go from the socket to the file through one
+ * direct buffer, checksummed on the way, and count once their checksum matches. The last
+ * verified offset is kept next to the file in name.resume, so a transfer cut by a disconnect
+ * continues from there when the sender comes back with the same transferId. Each chunk is forced
+ * to disk before its offset is, a crash never leaves name.resume past data that is not there.
+ * Blocking, one thread per connection, concurrent transfers need different names.
+ */
+public class FileReceiver {
+
+    /**
+     * Complete files, called on the thread of the transfer.
+     */
+    public interface Listener {
+        void onFileReceived(Object peer, File file);
+    }
+
+    static final String RESUME_SUFFIX = ".resume";
+    private static final int RECEIVE_BUFFER_SIZE = 1024 * 1024;
+
+    private final File mDirectory;
+
+    private final AtomicLong mBytesReceived = new AtomicLong();
+    private final AtomicLong mChunksRejected = new AtomicLong();
+    private final AtomicLong mTransfersCompleted = new AtomicLong();
+
+    public FileReceiver(File directory){
+        mDirectory = directory;
+    }
+
+    /**
+     * Handles the transfer offered on channel until it completes or the connection drops.
+     * @return the complete file
+     * @throws IOException if the transfer was cut or a chunk failed its checksum, what was verified is kept
+     */
+    public File receive(SocketChannel channel) throws IOException {
+        channel.configureBlocking(true);
+        ByteBuffer header = ByteBuffer.allocate(FileTransfer.MAX_OFFER_SIZE);
+        header.limit(4 + 8 + 8 + 4 + 2);
+        FileTransfer.readFully(channel, header);
+        if(header.getInt(0) != FileTransfer.MAGIC) throw new IOException("Not a file transfer");
+        long transferId = header.getLong(4);
+        long length = header.getLong(12);
+        int chunkSize = header.getInt(20);
+        int nameLength = header.getShort(24) & 0xFFFF;
+        if(length < 0 || chunkSize <= 0 || chunkSize > FileTransfer.MAX_CHUNK_SIZE
+                || nameLength > FileTransfer.MAX_NAME_SIZE * 3){
+            throw new IOException("Invalid transfer offer");
+        }
+        header.limit(header.position() + nameLength);
+        FileTransfer.readFully(channel, header);
+        String name = new String(header.array(), 26, nameLength, StandardCharsets.UTF_8);
+        try {
+            FileTransfer.checkName(name);
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage());
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(Math.min(chunkSize, RECEIVE_BUFFER_SIZE));
+        File target = new File(mDirectory, name);
+        File resume = new File(mDirectory, name + RESUME_SUFFIX);
+        try (RandomAccessFile raf = new RandomAccessFile(target, "rw");
+             RandomAccessFile state = new RandomAccessFile(resume, "rw")) {
+            FileChannel file = raf.getChannel();
+            FileChannel stateChannel = state.getChannel();
+            long verified = readVerified(stateChannel, transferId, chunkSize);
+            //Lo escrito despues del ultimo chunk verificado no vale
+            file.truncate(verified);
+            writeVerified(stateChannel, transferId, chunkSize, verified);
+            FileTransfer.writeLong(channel, verified);
+
+            while(verified < length){
+                header.clear();
+                header.limit(FileTransfer.CHUNK_HEADER_SIZE);
+                FileTransfer.readFully(channel, header);
+                long offset = header.getLong(0);
+                int chunk = header.getInt(8);
+                int crc = header.getInt(12);
+                if(offset != verified || chunk <= 0 || chunk > chunkSize || chunk > length - offset){
+                    throw new IOException("Unexpected chunk of " + chunk + " bytes at " + offset);
+                }
+                //transferFrom desde un socket copia en trozos de 8 KB, y mapear cada chunk sale caro
+                CRC32 check = new CRC32();
+                long position = offset;
+                long end = offset + chunk;
+                while(position < end){
+                    buffer.clear();
+                    if(buffer.remaining() > end - position) buffer.limit((int) (end - position));
+                    FileTransfer.readFully(channel, buffer);
+                    buffer.flip();
+                    check.update(buffer.duplicate());
+                    while(buffer.hasRemaining()) position += file.write(buffer, position);
+                }
+                mBytesReceived.addAndGet(chunk);
+                if((int) check.getValue() != crc){
+                    mChunksRejected.incrementAndGet();
+                    file.truncate(offset);
+                    throw new IOException("Chunk at " + offset + " failed its checksum");
+                }
+                verified = end;
+                //El chunk tiene que estar en disco antes de que el .resume diga que esta verificado
+                file.force(false);
+                writeVerified(stateChannel, transferId, chunkSize, verified);
+            }
+        }
+        //DONE cuando ya no queda estado de la transferencia
+        resume.delete();
+        mTransfersCompleted.incrementAndGet();
+        FileTransfer.writeLong(channel, length);
+        return target;
+    }
+
+    /**
+     * @return the verified offset of the transfer, 0 if the state belongs to another one
+     */
+    private static long readVerified(FileChannel state, long transferId, int chunkSize) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(20);
+        while(buffer.hasRemaining() && state.read(buffer, buffer.position()) > 0);
+        if(buffer.hasRemaining() || buffer.getLong(0) != transferId || buffer.getInt(8) != chunkSize) return 0;
+        return buffer.getLong(12);
+    }
+
+    private static void writeVerified(FileChannel state, long transferId, int chunkSize, long verified)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(20);
+        buffer.putLong(transferId).putInt(chunkSize).putLong(verified).flip();
+        while(buffer.hasRemaining()) state.write(buffer, buffer.position());
+        state.force(false);
+    }
+
+    public long getBytesReceived(){
+        return mBytesReceived.get();
+    }
+
+    public long getChunksRejected(){
+        return mChunksRejected.get();
+    }
+
+    public long getTransfersCompleted(){
+        return mTransfersCompleted.get();
+    }
+}
@@ -0,0 +1,158 @@
+package com.example.wifiawarecom;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Sending side of a {@link FileTransfer}. Chunk data goes from the page cache to the socket with
+ * FileChannel.transferTo without passing through the heap, the checksum reads the same region
+ * back from the page cache. Blocking, one transfer at a time on a thread of its own.
+ */
+public class FileSender {
+
+    public interface ChannelOpener {
+        /**
+         * A new connection to the receiver, for each attempt.
+         */
+        SocketChannel open() throws IOException;
+    }
+
+    //Clase de trafico de fondo (CS1), la cola del enlace deja pasar antes a los streams
+    private static final int BULK_TOS = 0x20;
+
+    private final int mChunkSize;
+    private final ByteBuffer mScratch = ByteBuffer.allocateDirect(FileTransfer.CRC_SCRATCH_SIZE);
+    private volatile long mMaxBytesPerSecond = 0;
+
+    private volatile long mBytesSent = 0;
+    private volatile long mResumedFrom = 0;
+    private volatile int mAttempts = 0;
+
+    public FileSender(){
+        this(FileTransfer.DEFAULT_CHUNK_SIZE);
+    }
+
+    public FileSender(int chunkSize){
+        if(chunkSize <= 0 || chunkSize > FileTransfer.MAX_CHUNK_SIZE){
+            throw new IllegalArgumentException("Chunk size must be in (0, " + FileTransfer.MAX_CHUNK_SIZE + "]");
+        }
+        mChunkSize = chunkSize;
+    }
+
+    /**
+     * Paces the chunks so the transfer leaves room on the link for the data streams.
+     * @param bytesPerSecond 0 for no limit
+     */
+    public void setMaxBytesPerSecond(long bytesPerSecond){
+        mMaxBytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * Sends file until the receiver has verified all of it, a new connection and a resume per
+     * failed attempt.
+     * @return bytes of the file sent over every attempt
+     * @throws IOException from the last attempt once maxAttempts failed
+     */
+    public long send(ChannelOpener opener, File file, long transferId, Backoff backoff, int maxAttempts)
+            throws IOException, InterruptedException {
+        long sent = 0;
+        for(int attempt = 1; ; ++attempt){
+            try (SocketChannel channel = opener.open()) {
+                sent += send(channel, file, transferId);
+                return sent;
+            } catch (IOException e) {
+                if(attempt >= maxAttempts) throw e;
+            }
+            Thread.sleep(backoff.nextDelayMillis());
+        }
+    }
+
+    /**
+     * One attempt over a connected channel, from wherever the receiver resumes.
+     * @return bytes of the file sent in this attempt
+     * @throws IOException if the connection drops or the receiver rejects a chunk
+     */
+    public long send(SocketChannel channel, File file, long transferId) throws IOException {
+        ++mAttempts;
+        channel.configureBlocking(true);
+        try {
+            channel.setOption(StandardSocketOptions.IP_TOS, BULK_TOS);
+        } catch (IOException | UnsupportedOperationException e) {
+            //Solo una pista para la cola del enlace
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel source = raf.getChannel();
+            long length = source.size();
+            ByteBuffer header = ByteBuffer.allocate(Math.max(FileTransfer.MAX_OFFER_SIZE, FileTransfer.CHUNK_HEADER_SIZE));
+            FileTransfer.writeOffer(header, transferId, length, mChunkSize, file.getName());
+            header.flip();
+            FileTransfer.writeFully(channel, header);
+
+            long offset = FileTransfer.readLong(channel);
+            if(offset < 0 || offset > length){
+                throw new IOException("Receiver resumes at " + offset + " of " + length + " bytes");
+            }
+            mResumedFrom = offset;
+            long start = offset;
+            long startNanos = System.nanoTime();
+            while(offset < length){
+                int chunk = (int) Math.min(mChunkSize, length - offset);
+                header.clear();
+                header.putLong(offset);
+                header.putInt(chunk);
+                header.putInt((int) FileTransfer.crc(source, offset, chunk, mScratch));
+                header.flip();
+                FileTransfer.writeFully(channel, header);
+                long position = offset;
+                long end = offset + chunk;
+                while(position < end) position += source.transferTo(position, end - position, channel);
+                offset = end;
+                mBytesSent += chunk;
+                pace(offset - start, startNanos);
+            }
+            long verified = FileTransfer.readLong(channel);
+            if(verified != length) throw new IOException("Receiver verified " + verified + " of " + length + " bytes");
+            return length - start;
+        }
+    }
+
+    private void pace(long sent, long startNanos) throws IOException {
+        long limit = mMaxBytesPerSecond;
+        if(limit <= 0) return;
+        long aheadNanos = sent * 1000000000L / limit - (System.nanoTime() - startNanos);
+        if(aheadNanos <= 0) return;
+        try {
+            Thread.sleep(aheadNanos / 1000000, (int) (aheadNanos % 1000000));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Transfer interrupted");
+        }
+    }
+
+    public int getChunkSize(){
+        return mChunkSize;
+    }
+
+    /**
+     * File bytes put on the wire, chunks sent again after a resume included.
+     */
+    public long getBytesSent(){
+        return mBytesSent;
+    }
+
+    /**
+     * Offset the receiver asked for in the last attempt.
+     */
+    public long getResumedFrom(){
+        return mResumedFrom;
+    }
+
+    public int getAttempts(){
+        return mAttempts;
+    }
+}
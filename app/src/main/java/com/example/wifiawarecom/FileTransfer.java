@@ -0,0 +1,97 @@
+package com.example.wifiawarecom;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/**
+ * Wire format of the bulk file transfer, on a connection of its own so the chunks never queue
+ * behind or in front of the frames of the data streams. All integers are big endian.
+ * <pre>
+ * sender   OFFER   magic(4) transferId(8) length(8) chunkSize(4) nameLength(2) name
+ * receiver RESUME  offset(8)     first byte the receiver does not have verified yet
+ * sender   CHUNK   offset(8) length(4) crc32(4) data, from offset up to length
+ * receiver DONE    offset(8)     equal to length once every chunk was verified
+ * </pre>
+ * A chunk that fails its checksum, or a dropped connection, ends the attempt: the next one
+ * resumes from the last verified chunk.
+ */
+public final class FileTransfer {
+
+    static final int MAGIC = 0x57414654;
+    public static final int MAX_NAME_SIZE = 255;
+    static final int MAX_OFFER_SIZE = 4 + 8 + 8 + 4 + 2 + MAX_NAME_SIZE * 3;
+    static final int CHUNK_HEADER_SIZE = 8 + 4 + 4;
+    public static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+    public static final int MAX_CHUNK_SIZE = 16 * 1024 * 1024;
+    static final int CRC_SCRATCH_SIZE = 64 * 1024;
+
+    private FileTransfer(){}
+
+    static void writeOffer(ByteBuffer dst, long transferId, long length, int chunkSize, String name){
+        byte[] bytes = checkName(name).getBytes(StandardCharsets.UTF_8);
+        dst.putInt(MAGIC);
+        dst.putLong(transferId);
+        dst.putLong(length);
+        dst.putInt(chunkSize);
+        dst.putShort((short) bytes.length);
+        dst.put(bytes);
+    }
+
+    /**
+     * Plain file names only, the receiver writes in its own directory.
+     */
+    static String checkName(String name){
+        if(name.isEmpty() || name.length() > MAX_NAME_SIZE || name.indexOf('/') >= 0 || name.indexOf('\\') >= 0
+                || name.equals(".") || name.equals("..")){
+            throw new IllegalArgumentException("Invalid transfer name: " + name);
+        }
+        return name;
+    }
+
+    /**
+     * CRC32 of a region of file, read back from the page cache through scratch, a direct buffer.
+     * Mapping every chunk costs more than the copy for the chunk sizes used here.
+     */
+    static long crc(FileChannel file, long offset, int length, ByteBuffer scratch) throws IOException {
+        CRC32 crc = new CRC32();
+        long end = offset + length;
+        while(offset < end){
+            scratch.clear();
+            if(scratch.remaining() > end - offset) scratch.limit((int) (end - offset));
+            int n = file.read(scratch, offset);
+            if(n < 0) throw new EOFException("File shorter than the transfer");
+            scratch.flip();
+            crc.update(scratch);
+            offset += n;
+        }
+        return crc.getValue();
+    }
+
+    static void readFully(ReadableByteChannel channel, ByteBuffer dst) throws IOException {
+        while(dst.hasRemaining()){
+            if(channel.read(dst) < 0) throw new EOFException("Transfer connection closed");
+        }
+    }
+
+    static void writeFully(WritableByteChannel channel, ByteBuffer src) throws IOException {
+        while(src.hasRemaining()) channel.write(src);
+    }
+
+    static long readLong(ReadableByteChannel channel) throws IOException {
+        ByteBuffer value = ByteBuffer.allocate(8);
+        readFully(channel, value);
+        return value.getLong(0);
+    }
+
+    static void writeLong(WritableByteChannel channel, long value) throws IOException {
+        ByteBuffer dst = ByteBuffer.allocate(8);
+        dst.putLong(0, value);
+        writeFully(channel, dst);
+    }
+}
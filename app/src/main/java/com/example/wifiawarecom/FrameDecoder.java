@@ -0,0 +1,152 @@
+package com.example.wifiawarecom;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Reassembles length-prefixed frames (see {@link FrameEncoder}) from a stream channel.
+ * One instance per connection: bytes are accumulated across reads, so a single read can
+ * yield several frames and a frame can be split across any number of reads.
+ */
+public class FrameDecoder {
+
+    public interface FrameListener {
+        /**
+         * The buffer is only valid during the call, position/limit delimit the payload.
+         */
+        void onFrame(ByteBuffer frame);
+    }
+
+    private final ByteBuffer mBuffer;
+    private final int mMaxFrameSize;
+
+    public FrameDecoder(int maxFrameSize){
+        this(ByteBuffer.allocate(FrameEncoder.HEADER_SIZE + maxFrameSize));
+    }
+
+    public FrameDecoder(ByteBuffer buffer){
+        mBuffer = buffer;
+        mBuffer.clear();
+        mMaxFrameSize = buffer.capacity() - FrameEncoder.HEADER_SIZE;
+    }
+
+    public int getMaxFrameSize(){
+        return mMaxFrameSize;
+    }
+
+    ByteBuffer getBuffer(){
+        return mBuffer;
+    }
+
+    /**
+     * Does a single read on the channel and delivers every complete frame accumulated so far.
+     * @return the result of the read, -1 on end of stream
+     */
+    public int read(ReadableByteChannel channel, FrameListener listener) throws IOException {
+        int numRead = channel.read(mBuffer);
+        if(numRead > 0){
+            decode(listener);
+        }
+        return numRead;
+    }
+
+    /**
+     * Like {@link #read(ReadableByteChannel, FrameListener)} within a budget: reads at most maxBytes and
+     * delivers at most maxFrames, complete frames left over stay buffered (see {@link #hasFrame()}).
+     */
+    public int read(ReadableByteChannel channel, FrameListener listener, int maxBytes, int maxFrames) throws IOException {
+        int limit = mBuffer.limit();
+        if(maxBytes < mBuffer.remaining()) mBuffer.limit(mBuffer.position() + maxBytes);
+        int numRead;
+        try {
+            numRead = channel.read(mBuffer);
+        } finally {
+            mBuffer.limit(limit);
+        }
+        if(numRead > 0){
+            decode(listener, maxFrames);
+        }
+        return numRead;
+    }
+
+    /**
+     * Appends the bytes of src and delivers every complete frame.
+     * Bytes that do not fit in the accumulation buffer are left in src.
+     */
+    public int feed(ByteBuffer src, FrameListener listener) throws IOException {
+        int frames = 0;
+        while(src.hasRemaining()){
+            int n = Math.min(src.remaining(), mBuffer.remaining());
+            int oldLimit = src.limit();
+            src.limit(src.position() + n);
+            mBuffer.put(src);
+            src.limit(oldLimit);
+            int decoded = decode(listener);
+            if(decoded == 0 && !mBuffer.hasRemaining()) break;
+            frames += decoded;
+        }
+        return frames;
+    }
+
+    /**
+     * @return number of frames delivered
+     * @throws IOException if a header announces a frame bigger than the accumulation buffer
+     */
+    public int decode(FrameListener listener) throws IOException {
+        return decode(listener, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Delivers at most maxFrames of the complete frames buffered.
+     * @return number of frames delivered
+     * @throws IOException if a header announces a frame bigger than the accumulation buffer
+     */
+    public int decode(FrameListener listener, int maxFrames) throws IOException {
+        int frames = 0;
+        mBuffer.flip();
+        try {
+            while(frames < maxFrames && mBuffer.remaining() >= FrameEncoder.HEADER_SIZE){
+                int start = mBuffer.position();
+                int length = mBuffer.getInt(start);
+                if(length < 0 || length > mMaxFrameSize){
+                    throw new IOException("Invalid frame length: " + length);
+                }
+                int end = start + FrameEncoder.HEADER_SIZE + length;
+                if(end > mBuffer.limit()) break;
+                int limit = mBuffer.limit();
+                mBuffer.limit(end).position(start + FrameEncoder.HEADER_SIZE);
+                try{
+                    listener.onFrame(mBuffer);
+                } finally {
+                    mBuffer.limit(limit).position(end);
+                }
+                ++frames;
+            }
+        } finally {
+            mBuffer.compact();
+        }
+        return frames;
+    }
+
+    /**
+     * @return true if a complete frame (or an invalid header) is waiting for {@link #decode(FrameListener)}
+     */
+    public boolean hasFrame(){
+        int buffered = mBuffer.position();
+        if(buffered < FrameEncoder.HEADER_SIZE) return false;
+        int length = mBuffer.getInt(0);
+        return length < 0 || length > mMaxFrameSize || buffered >= FrameEncoder.HEADER_SIZE + length;
+    }
+
+    /**
+     * Bytes that can be read before the accumulation buffer is full.
+     */
+    int getFreeSpace(){
+        return mBuffer.remaining();
+    }
+
+    public void reset(){
+        mBuffer.clear();
+    }
+}
@@ -0,0 +1,64 @@
+package com.example.wifiawarecom;
+
+import java.nio.ByteBuffer;
+import java.nio.BufferOverflowException;
+
+/**
+ * Wire format: a 4 byte big endian payload length followed by the payload.
+ * Multiplexed frames start their payload with the stream id as a varint, see {@link StreamRouter}.
+ */
+public final class FrameEncoder {
+
+    public static final int HEADER_SIZE = 4;
+
+    private FrameEncoder(){}
+
+    /**
+     * Writes a whole frame (header + payload) at the position of dst.
+     * @throws BufferOverflowException if the frame does not fit, dst is left untouched
+     */
+    public static void encode(ByteBuffer dst, ByteBuffer payload){
+        if(dst.remaining() < HEADER_SIZE + payload.remaining()){
+            throw new BufferOverflowException();
+        }
+        dst.putInt(payload.remaining());
+        dst.put(payload);
+    }
+
+    /**
+     * Writes a frame of the given stream, the payload is prefixed with the stream id.
+     * @throws BufferOverflowException if the frame does not fit, dst is left untouched
+     */
+    public static void encode(ByteBuffer dst, int streamId, ByteBuffer payload){
+        int length = SampleCodec.varintSize(streamId) + payload.remaining();
+        if(dst.remaining() < HEADER_SIZE + length){
+            throw new BufferOverflowException();
+        }
+        dst.putInt(length);
+        SampleCodec.putVarint(dst, streamId);
+        dst.put(payload);
+    }
+
+    public static void encode(ByteBuffer dst, byte[] payload, int offset, int length){
+        if(dst.remaining() < HEADER_SIZE + length){
+            throw new BufferOverflowException();
+        }
+        dst.putInt(length);
+        dst.put(payload, offset, length);
+    }
+
+    /**
+     * Reserves the header of a frame whose payload will be written afterwards with
+     * relative puts, it must be closed with {@link #endFrame(ByteBuffer, int)}.
+     * @return the position of the header
+     */
+    public static int beginFrame(ByteBuffer dst){
+        int start = dst.position();
+        dst.putInt(0);
+        return start;
+    }
+
+    public static void endFrame(ByteBuffer dst, int frameStart){
+        dst.putInt(frameStart, dst.position() - frameStart - HEADER_SIZE);
+    }
+}
@@ -0,0 +1,432 @@
+package com.example.wifiawarecom;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Outbound frame queue of one channel. Producers append frames from any thread, they are packed
+ * back to back into pooled buffers and the I/O thread sends several buffers per gathering write.
+ * Once the queued bytes reach the high watermark send() refuses frames until the I/O thread
+ * drains the queue below the low watermark.
+ * A {@link SharedFrame} is queued as a read-only view of its buffer instead of being copied, the
+ * writer holds a reference until the frame is written or dropped.
+ */
+public class FrameWriter {
+
+    public interface Listener {
+        /**
+         * Data was queued while the writer was idle, the I/O thread must call flush().
+         * Called on the producer thread.
+         */
+        void onWriteRequested(FrameWriter writer);
+
+        /**
+         * Backpressure engaged (high watermark reached, on the producer thread) or released
+         * (low watermark reached, on the I/O thread).
+         */
+        void onBackpressure(FrameWriter writer, boolean engaged);
+    }
+
+    //Los frames compartidos van cada uno en su buffer, hacen falta mas por escritura
+    private static final int MAX_GATHER = 64;
+
+    private final BufferPool mPool;
+    private final int mHighWatermark;
+    private final int mLowWatermark;
+    private final Listener mListener;
+
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mWritable = mLock.newCondition();
+    private final ArrayDeque<ByteBuffer> mQueued = new ArrayDeque<>();
+    //Duenos de las vistas de solo lectura de mQueued, en el mismo orden
+    private final ArrayDeque<SharedFrame> mShared = new ArrayDeque<>();
+    //Entradas de mQueued en la escritura en curso, no se pueden descartar
+    private int mInFlight = 0;
+    private ByteBuffer mOpen = null;
+    private long mPendingBytes = 0;
+    private boolean mBackpressure = false;
+    private boolean mWriteRequested = false;
+    private boolean mClosed = false;
+
+    //Solo desde el hilo de I/O
+    private final ByteBuffer[] mGather = new ByteBuffer[MAX_GATHER];
+
+    private volatile long mFramesQueued = 0;
+    private volatile long mFramesRefused = 0;
+    private volatile long mFramesDropped = 0;
+    private volatile long mWriteCalls = 0;
+    private volatile long mBytesWritten = 0;
+
+    public FrameWriter(BufferPool pool, int highWatermark, int lowWatermark, Listener listener){
+        if(lowWatermark < 0 || lowWatermark > highWatermark){
+            throw new IllegalArgumentException("Watermarks must satisfy 0 <= low <= high");
+        }
+        mPool = pool;
+        mHighWatermark = highWatermark;
+        mLowWatermark = lowWatermark;
+        mListener = listener;
+    }
+
+    /**
+     * Largest payload of an untagged frame, tagged frames lose up to 3 more bytes to the stream id.
+     */
+    public int getMaxPayloadSize(){
+        return mPool.getBufferSize() - FrameEncoder.HEADER_SIZE;
+    }
+
+    /**
+     * Queues the remaining bytes of payload as one frame, payload is consumed only if accepted.
+     * A frame must fit in one pooled buffer, see {@link #getMaxPayloadSize()}.
+     * @return false if the writer is closed, over the high watermark, out of pooled buffers or the
+     * payload is too large, counted as refused
+     */
+    public boolean send(ByteBuffer payload){
+        return queue(-1, payload);
+    }
+
+    /**
+     * Like {@link #send(ByteBuffer)} but the frame is tagged with a stream id, see {@link StreamRouter}.
+     */
+    public boolean send(int streamId, ByteBuffer payload){
+        StreamRouter.checkStreamId(streamId);
+        return queue(streamId, payload);
+    }
+
+    private boolean queue(int streamId, ByteBuffer payload){
+        int frameSize = FrameEncoder.HEADER_SIZE + payload.remaining();
+        if(streamId >= 0) frameSize += SampleCodec.varintSize(streamId);
+        boolean requestWrite = false;
+        boolean engaged = false;
+        mLock.lock();
+        try {
+            if(mClosed || mBackpressure || frameSize > mPool.getBufferSize()){
+                ++mFramesRefused;
+                return false;
+            }
+            if(mOpen == null || mOpen.remaining() < frameSize){
+                ByteBuffer next = mPool.lease();
+                if(next == null){
+                    ++mFramesRefused;
+                    return false;
+                }
+                if(mOpen != null){
+                    mOpen.flip();
+                    mQueued.addLast(mOpen);
+                }
+                mOpen = next;
+            }
+            if(streamId >= 0) FrameEncoder.encode(mOpen, streamId, payload);
+            else FrameEncoder.encode(mOpen, payload);
+            mPendingBytes += frameSize;
+            ++mFramesQueued;
+            if(mPendingBytes >= mHighWatermark){
+                mBackpressure = true;
+                engaged = true;
+            }
+            if(!mWriteRequested){
+                mWriteRequested = true;
+                requestWrite = true;
+            }
+        } finally {
+            mLock.unlock();
+        }
+        if(engaged) mListener.onBackpressure(this, true);
+        if(requestWrite) mListener.onWriteRequested(this);
+        return true;
+    }
+
+    /**
+     * Queues a view of frame without copying it, the writer retains it until written.
+     * @return false if the writer is closed or over the high watermark
+     */
+    public boolean send(SharedFrame frame){
+        return queueShared(frame, false) >= 0;
+    }
+
+    /**
+     * Like {@link #send(SharedFrame)} but over the high watermark the oldest shared frames not
+     * being written are dropped to make room; frames queued by copy are never dropped.
+     * @return frames dropped; if the frame is refused (writer closed or not enough to drop) the
+     * negative ~dropped, so the frames dropped before refusing it are still accounted for
+     */
+    public int sendDroppingOldest(SharedFrame frame){
+        return queueShared(frame, true);
+    }
+
+    private int queueShared(SharedFrame frame, boolean dropOldest){
+        int size = frame.size();
+        int dropped = 0;
+        boolean requestWrite = false;
+        boolean engaged = false;
+        mLock.lock();
+        try {
+            if(mClosed){
+                ++mFramesRefused;
+                return -1;
+            }
+            if(mBackpressure){
+                if(dropOldest) dropped = dropOldest(size);
+                if(!dropOldest || mPendingBytes + size > mHighWatermark){
+                    ++mFramesRefused;
+                    return ~dropped;
+                }
+            }
+            //Lo empaquetado hasta ahora sale antes
+            if(mOpen != null && mOpen.position() > 0){
+                mOpen.flip();
+                mQueued.addLast(mOpen);
+                mOpen = null;
+            }
+            frame.retain();
+            mQueued.addLast(frame.view());
+            mShared.addLast(frame);
+            mPendingBytes += size;
+            ++mFramesQueued;
+            if(!mBackpressure && mPendingBytes >= mHighWatermark){
+                mBackpressure = true;
+                engaged = true;
+            }
+            if(!mWriteRequested){
+                mWriteRequested = true;
+                requestWrite = true;
+            }
+        } finally {
+            mLock.unlock();
+        }
+        if(engaged) mListener.onBackpressure(this, true);
+        if(requestWrite) mListener.onWriteRequested(this);
+        return dropped;
+    }
+
+    /**
+     * Under the lock. Drops shared frames from the oldest until size more bytes fit under the
+     * high watermark, skipping those of the write in progress and one already partly written.
+     */
+    private int dropOldest(int size){
+        int dropped = 0;
+        int index = 0;
+        Iterator<ByteBuffer> queued = mQueued.iterator();
+        Iterator<SharedFrame> owners = mShared.iterator();
+        while(queued.hasNext() && mPendingBytes + size > mHighWatermark){
+            ByteBuffer buffer = queued.next();
+            if(!buffer.isReadOnly()){
+                ++index;
+                continue;
+            }
+            SharedFrame owner = owners.next();
+            if(index++ < mInFlight || buffer.position() > 0) continue;
+            queued.remove();
+            owners.remove();
+            mPendingBytes -= buffer.remaining();
+            owner.release();
+            ++dropped;
+        }
+        mFramesDropped += dropped;
+        return dropped;
+    }
+
+    /**
+     * Blocks a producer until the writer accepts frames again.
+     * @return false on timeout or if the writer is closed
+     */
+    public boolean awaitWritable(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        mLock.lock();
+        try {
+            while(mBackpressure && !mClosed){
+                if(nanos <= 0) return false;
+                nanos = mWritable.awaitNanos(nanos);
+            }
+            return !mClosed;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * I/O thread only. Sends as much as the channel takes without blocking.
+     * @return true if everything queued was written, false if the caller has to wait for OP_WRITE
+     */
+    public boolean flush(GatheringByteChannel channel) throws IOException {
+        int n = 0;
+        mLock.lock();
+        try {
+            mWriteRequested = false;
+            if(mOpen != null && mOpen.position() > 0){
+                mOpen.flip();
+                mQueued.addLast(mOpen);
+                mOpen = null;
+            }
+            for(ByteBuffer buffer : mQueued){
+                if(n == MAX_GATHER) break;
+                mGather[n++] = buffer;
+            }
+            mInFlight = n;
+        } finally {
+            mLock.unlock();
+        }
+        if(n == 0) return true;
+
+        long written;
+        try {
+            written = channel.write(mGather, 0, n);
+        } finally {
+            for(int i = 0; i < n; ++i) mGather[i] = null;
+        }
+        ++mWriteCalls;
+        mBytesWritten += written;
+
+        boolean released = false;
+        boolean drained;
+        mLock.lock();
+        try {
+            mInFlight = 0;
+            while(!mQueued.isEmpty() && !mQueued.peekFirst().hasRemaining()){
+                releaseQueued(mQueued.pollFirst());
+            }
+            mPendingBytes -= written;
+            if(mBackpressure && mPendingBytes <= mLowWatermark){
+                mBackpressure = false;
+                released = true;
+                mWritable.signalAll();
+            }
+            drained = mQueued.isEmpty() && (mOpen == null || mOpen.position() == 0);
+            //Mientras quede algo el hilo de I/O ya lo sabe, los productores no tienen que avisar
+            if(!drained) mWriteRequested = true;
+        } finally {
+            mLock.unlock();
+        }
+        if(released) mListener.onBackpressure(this, false);
+        return drained;
+    }
+
+    public boolean hasPending(){
+        mLock.lock();
+        try {
+            return mPendingBytes > 0;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    public long getPendingBytes(){
+        mLock.lock();
+        try {
+            return mPendingBytes;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    public boolean isBackpressured(){
+        mLock.lock();
+        try {
+            return mBackpressure;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Drops everything queued and returns the buffers to the pool, for instance after a partial
+     * write on a dead connection. Only from the I/O thread or once it has stopped flushing.
+     */
+    public void reset(){
+        boolean released;
+        mLock.lock();
+        try {
+            released = discard();
+        } finally {
+            mLock.unlock();
+        }
+        if(released) mListener.onBackpressure(this, false);
+    }
+
+    /**
+     * Keeps the queue for a new connection after the previous one died in the middle of a write:
+     * a frame that was only partly written is queued again from its start, the frames before it
+     * are considered sent. Only from the I/O thread or once it has stopped flushing.
+     * @return bytes queued again
+     */
+    public int rewindPartialFrame(){
+        mLock.lock();
+        try {
+            ByteBuffer head = mQueued.peekFirst();
+            if(head == null) return 0;
+            int written = head.position();
+            //Los frames van seguidos desde el principio de cada buffer
+            int start = 0;
+            while(start < written){
+                int end = start + FrameEncoder.HEADER_SIZE + head.getInt(start);
+                if(end > written) break;
+                start = end;
+            }
+            if(start == written) return 0;
+            head.position(start);
+            mPendingBytes += written - start;
+            return written - start;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Like {@link #reset()} but send() refuses frames afterwards.
+     */
+    public void close(){
+        mLock.lock();
+        try {
+            mClosed = true;
+            discard();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private void releaseQueued(ByteBuffer buffer){
+        if(buffer.isReadOnly()) mShared.pollFirst().release();
+        else mPool.release(buffer);
+    }
+
+    private boolean discard(){
+        while(!mQueued.isEmpty()) releaseQueued(mQueued.pollFirst());
+        mInFlight = 0;
+        mPool.release(mOpen);
+        mOpen = null;
+        mPendingBytes = 0;
+        mWriteRequested = false;
+        boolean released = mBackpressure;
+        mBackpressure = false;
+        mWritable.signalAll();
+        return released;
+    }
+
+    public long getFramesQueued(){
+        return mFramesQueued;
+    }
+
+    public long getFramesRefused(){
+        return mFramesRefused;
+    }
+
+    /**
+     * Shared frames dropped by {@link #sendDroppingOldest(SharedFrame)}.
+     */
+    public long getFramesDropped(){
+        return mFramesDropped;
+    }
+
+    public long getWriteCalls(){
+        return mWriteCalls;
+    }
+
+    public long getBytesWritten(){
+        return mBytesWritten;
+    }
+}
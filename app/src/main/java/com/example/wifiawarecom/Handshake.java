@@ -0,0 +1,91 @@
+package com.example.wifiawarecom;
+
+import java.nio.ByteBuffer;
+
+/**
+ * First frames of a connection to a shared listening port. The client sends HELLO with the
+ * transport's handshake token and holds everything else back until the server answers WELCOME,
+ * so the server can move the channel to the loop of the peer without losing bytes.
+ * <p>
+ * A connection can also carry one {@link FileTransfer} instead of frames: the client names it with
+ * FILE_PUSH (it sends a file) or FILE_PULL (it takes one the server queued for it) and the same
+ * token, and waits for FILE_READY. The server tells a connected client that files are queued for
+ * it with FILES_WAITING on its data channel.
+ */
+public final class Handshake {
+
+    /**
+     * Reserved stream id of the handshake frames.
+     */
+    public static final int STREAM = StreamRouter.MAX_STREAM_ID - 1;
+
+    static final byte HELLO = 1;
+    static final byte WELCOME = 2;
+    static final byte FILE_PUSH = 3;
+    static final byte FILE_PULL = 4;
+    static final byte FILE_READY = 5;
+    static final byte FILES_WAITING = 6;
+    public static final int MAX_TOKEN_SIZE = 255;
+
+    private Handshake(){}
+
+    public static void writeHello(ByteBuffer dst, byte[] token){
+        writeHello(dst, HELLO, token);
+    }
+
+    /**
+     * @param kind HELLO, FILE_PUSH or FILE_PULL
+     */
+    static void writeHello(ByteBuffer dst, byte kind, byte[] token){
+        if(token.length > MAX_TOKEN_SIZE){
+            throw new IllegalArgumentException("Handshake token of " + token.length + " bytes");
+        }
+        dst.put(kind);
+        dst.put(token);
+    }
+
+    /**
+     * @return the token of a HELLO payload, null if it is something else
+     */
+    public static ByteBuffer readHello(ByteBuffer payload){
+        return readKind(payload) == HELLO ? readToken(payload) : null;
+    }
+
+    /**
+     * @return HELLO, FILE_PUSH or FILE_PULL, 0 if the payload is none of them
+     */
+    static byte readKind(ByteBuffer payload){
+        if(!payload.hasRemaining()) return 0;
+        byte kind = payload.get(payload.position());
+        return kind == HELLO || kind == FILE_PUSH || kind == FILE_PULL ? kind : 0;
+    }
+
+    /**
+     * Token of a payload whose kind was checked with {@link #readKind(ByteBuffer)}.
+     */
+    static ByteBuffer readToken(ByteBuffer payload){
+        ByteBuffer token = payload.duplicate();
+        token.position(token.position() + 1);
+        return token;
+    }
+
+    public static void writeWelcome(ByteBuffer dst){
+        dst.put(WELCOME);
+    }
+
+    public static boolean isWelcome(ByteBuffer payload){
+        return is(payload, WELCOME);
+    }
+
+    static boolean isFileReady(ByteBuffer payload){
+        return is(payload, FILE_READY);
+    }
+
+    static boolean isFilesWaiting(ByteBuffer payload){
+        return is(payload, FILES_WAITING);
+    }
+
+    private static boolean is(ByteBuffer payload, byte kind){
+        return payload.remaining() == 1 && payload.get(payload.position()) == kind;
+    }
+}
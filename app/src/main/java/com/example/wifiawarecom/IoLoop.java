@@ -0,0 +1,819 @@
+package com.example.wifiawarecom;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Selector thread that accepts on listening channels, reads frames from data channels and writes
+ * their outbound queues. Channels are registered, deregistered and closed from any thread by posting
+ * commands to a lock-free queue drained by the loop thread; at most one selector wakeup is pending at a time.
+ * <p>
+ * Reads are scheduled in rounds, one per select: a readable channel gets a budget of bytes read and
+ * frames delivered of a quantum times the weight of its peer, so a peer that floods the link takes its
+ * share of the round and not the whole loop. Frames over the budget stay in the channel's buffer and
+ * the channel is served again in the next round, before the loop blocks on select.
+ * <p>
+ * Timers ({@link #schedule(TimerWheel.Timeout, long)}) run on the loop thread from a {@link TimerWheel},
+ * select waits until the next deadline at most. Channels that read nothing for the idle timeout are closed.
+ */
+public class IoLoop implements Runnable {
+
+    /**
+     * Every callback runs on the loop thread.
+     */
+    public interface Listener {
+        /**
+         * A listening channel registered on this loop accepted a connection. The listener decides
+         * on which loop the new channel is registered.
+         */
+        void onAccept(IoLoop loop, Object peer, SocketChannel channel);
+
+        void onFrame(Object peer, SocketChannel channel, ByteBuffer frame);
+
+        void onClosed(Object peer, SelectableChannel channel);
+    }
+
+    public static class Load {
+        public final String name;
+        public final int channels;
+        public final long bytesRead;
+        public final long framesRead;
+        public final long bytesWritten;
+        public final long busyNanos;
+        public final long uptimeNanos;
+        public final long commands;
+        public final long wakeups;
+        public final long selects;
+        public final long emptySelects;
+        /**
+         * Times a channel used up its budget and was left with work for the next round.
+         */
+        public final long deferrals;
+        public final long timersFired;
+        /**
+         * Channels closed by the idle timeout.
+         */
+        public final long idleClosed;
+
+        Load(String name, int channels, long bytesRead, long framesRead, long bytesWritten, long busyNanos,
+             long uptimeNanos, long commands, long wakeups, long selects, long emptySelects, long deferrals,
+             long timersFired, long idleClosed){
+            this.name = name;
+            this.channels = channels;
+            this.bytesRead = bytesRead;
+            this.framesRead = framesRead;
+            this.bytesWritten = bytesWritten;
+            this.busyNanos = busyNanos;
+            this.uptimeNanos = uptimeNanos;
+            this.commands = commands;
+            this.wakeups = wakeups;
+            this.selects = selects;
+            this.emptySelects = emptySelects;
+            this.deferrals = deferrals;
+            this.timersFired = timersFired;
+            this.idleClosed = idleClosed;
+        }
+
+        /**
+         * Fraction of the uptime spent outside select().
+         */
+        public double getUtilization(){
+            return uptimeNanos == 0 ? 0 : (double) busyNanos / uptimeNanos;
+        }
+
+        @Override
+        public String toString() {
+            return name + "{channels=" + channels + ", bytesRead=" + bytesRead + ", framesRead=" + framesRead
+                    + ", bytesWritten=" + bytesWritten + ", utilization=" + String.format("%.2f", getUtilization())
+                    + ", commands=" + commands + ", wakeups=" + wakeups + ", selects=" + selects
+                    + ", emptySelects=" + emptySelects + ", deferrals=" + deferrals + ", timersFired=" + timersFired
+                    + ", idleClosed=" + idleClosed + "}";
+        }
+    }
+
+    private static final int OP_REGISTER = 0;
+    private static final int OP_ACCEPTOR = 1;
+    private static final int OP_DEREGISTER = 2;
+    private static final int OP_CLOSE = 3;
+    private static final int OP_FLUSH = 4;
+    private static final int OP_WEIGHT = 5;
+    private static final int OP_SCHEDULE = 6;
+    private static final int OP_CANCEL = 7;
+    private static final int OP_EXECUTE = 8;
+
+    public static final int DEFAULT_HIGH_WATERMARK = 64 * 1024;
+    public static final int DEFAULT_LOW_WATERMARK = 16 * 1024;
+    public static final int DEFAULT_WEIGHT = 1;
+    public static final int MAX_WEIGHT = 64;
+    //Por ronda y unidad de peso: un buffer de lectura y unas decenas de frames pequenos
+    public static final int DEFAULT_READ_QUANTUM = 8 * 1024;
+    public static final int DEFAULT_FRAME_QUANTUM = 64;
+    //Resolucion de los timers: la de select(timeout)
+    private static final long TIMER_TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final int TIMER_SLOTS = 1024;
+
+    private final String mName;
+    private final Selector mSelector;
+    private final BufferPool mBufferPool;
+    private final BufferPool mWritePool;
+    private final int mHighWatermark;
+    private final int mLowWatermark;
+    private final Listener mListener;
+    private final MpscQueue<Command> mCommands = new MpscQueue<>();
+    //true mientras el bucle esta despierto o ya hay un wakeup en camino
+    private final AtomicBoolean mWakeupPending = new AtomicBoolean(true);
+
+    private Thread mThread;
+    private volatile boolean mEnabled = false;
+
+    private volatile int mChannelCount = 0;
+    private volatile long mBytesRead = 0;
+    private volatile long mFramesRead = 0;
+    private volatile long mBytesWritten = 0;
+    private volatile long mBusyNanos = 0;
+    private volatile long mStartNanos = 0;
+    private volatile long mCommandsRun = 0;
+    private volatile long mSelects = 0;
+    //Vueltas sin canales listos ni comandos
+    private volatile long mEmptySelects = 0;
+    private final AtomicLong mWakeups = new AtomicLong();
+    private volatile long mDeferrals = 0;
+    private volatile int mReadQuantum = DEFAULT_READ_QUANTUM;
+    private volatile int mFrameQuantum = DEFAULT_FRAME_QUANTUM;
+    private final ConcurrentMap<Object, Integer> mWeights = new ConcurrentHashMap<>();
+    //Canal que se esta leyendo, solo desde el hilo del bucle
+    private ChannelContext mReading = null;
+    //Canales con frames que no cupieron en su cuota, solo desde el hilo del bucle
+    private final ArrayDeque<ChannelContext> mBacklog = new ArrayDeque<>();
+    private long mRound = 0;
+    //Solo desde el hilo del bucle, se crea al arrancar
+    private TimerWheel mTimers;
+    private volatile long mTimersFired = 0;
+    private volatile long mIdleTimeoutNanos = 0;
+    private volatile long mIdleClosed = 0;
+
+    public IoLoop(String name, BufferPool pool, Listener listener) throws IOException {
+        this(name, pool, pool, DEFAULT_HIGH_WATERMARK, DEFAULT_LOW_WATERMARK, listener);
+    }
+
+    /**
+     * @param readPool one buffer per channel for frame reassembly
+     * @param writePool buffers of the outbound queues
+     * @param highWatermark queued bytes per channel at which sends are refused
+     * @param lowWatermark queued bytes per channel at which sends are accepted again
+     */
+    public IoLoop(String name, BufferPool readPool, BufferPool writePool, int highWatermark, int lowWatermark,
+                  Listener listener) throws IOException {
+        mName = name;
+        mBufferPool = readPool;
+        mWritePool = writePool;
+        mHighWatermark = highWatermark;
+        mLowWatermark = lowWatermark;
+        mListener = listener;
+        mSelector = Selector.open();
+    }
+
+    public String getName(){
+        return mName;
+    }
+
+    public synchronized void start(){
+        if(!mEnabled){
+            mEnabled = true;
+            mStartNanos = System.nanoTime();
+            mTimers = new TimerWheel(TIMER_TICK_NANOS, TIMER_SLOTS, mStartNanos);
+            mThread = new Thread(this, mName);
+            mThread.start();
+        }
+    }
+
+    public void stop(){
+        Thread thread;
+        synchronized (this){
+            if(!mEnabled) return;
+            mEnabled = false;
+            thread = mThread;
+            mThread = null;
+        }
+        mSelector.wakeup();
+        if(thread != Thread.currentThread()){
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public boolean isLoopThread(){
+        return Thread.currentThread() == mThread;
+    }
+
+    public void registerAcceptor(ServerSocketChannel channel, Object peer){
+        enqueue(new Command(OP_ACCEPTOR, channel, peer, null));
+    }
+
+    /**
+     * @return outbound queue of the channel, frames can be queued before the registration completes
+     */
+    public FrameWriter register(SocketChannel channel, Object peer){
+        return register(channel, peer, new ConnectionMetrics());
+    }
+
+    /**
+     * @param metrics counters of the peer, updated from this loop only: every channel of a peer
+     *                must be registered on the same loop
+     */
+    public FrameWriter register(SocketChannel channel, Object peer, ConnectionMetrics metrics){
+        ChannelContext ctx = new ChannelContext(peer, channel, metrics);
+        enqueue(new Command(OP_REGISTER, channel, peer, ctx));
+        return ctx.mWriter;
+    }
+
+    /**
+     * Like {@link #register(SocketChannel, Object, ConnectionMetrics)} for an unconnected channel:
+     * the loop connects it to address without blocking. Frames queued meanwhile go out once it is
+     * connected, a failed connect is reported to onClosed.
+     */
+    public FrameWriter connect(SocketChannel channel, SocketAddress address, Object peer, ConnectionMetrics metrics){
+        ChannelContext ctx = new ChannelContext(peer, channel, metrics);
+        ctx.mConnectAddress = address;
+        enqueue(new Command(OP_REGISTER, channel, peer, ctx));
+        return ctx.mWriter;
+    }
+
+    /**
+     * Removes the channel from this loop without closing it, bytes of an incomplete frame are dropped.
+     * From a callback of this loop it takes effect at once: the channel can be handed to another
+     * loop and this one will not close it even if it sees the end of the stream.
+     */
+    public void deregister(SelectableChannel channel){
+        if(isLoopThread()) doDeregister(channel);
+        else enqueue(new Command(OP_DEREGISTER, channel, null, null));
+    }
+
+    public void close(SelectableChannel channel){
+        enqueue(new Command(OP_CLOSE, channel, null, null));
+    }
+
+    /**
+     * Budget per round and unit of weight, Integer.MAX_VALUE for no limit. Takes effect in the next round.
+     * @param bytes bytes read from a channel
+     * @param frames frames delivered from a channel
+     */
+    public void setReadQuantum(int bytes, int frames){
+        if(bytes <= 0 || frames <= 0) throw new IllegalArgumentException("Quantum must be positive");
+        mReadQuantum = bytes;
+        mFrameQuantum = frames;
+    }
+
+    /**
+     * Share of the rounds the channels of peer get against the other peers of this loop, from
+     * {@link #DEFAULT_WEIGHT} to {@link #MAX_WEIGHT}. Kept for channels registered later: set
+     * the default weight again to forget the peer.
+     */
+    public void setReadWeight(Object peer, int weight){
+        if(weight < DEFAULT_WEIGHT || weight > MAX_WEIGHT){
+            throw new IllegalArgumentException("Weight " + weight + " out of range");
+        }
+        if(weight == DEFAULT_WEIGHT) mWeights.remove(peer);
+        else mWeights.put(peer, weight);
+        enqueue(new Command(OP_WEIGHT, null, peer, null));
+    }
+
+    public int getReadWeight(Object peer){
+        Integer weight = mWeights.get(peer);
+        return weight == null ? DEFAULT_WEIGHT : weight;
+    }
+
+    /**
+     * Runs the task of timeout on the loop thread after delayNanos, moving it if it was already
+     * scheduled. From the loop thread it is scheduled at once, from others through the command queue.
+     * A timeout belongs to one loop: use it only with this one. Dropped when the loop stops.
+     */
+    public void schedule(TimerWheel.Timeout timeout, long delayNanos){
+        long deadline = System.nanoTime() + delayNanos;
+        if(isLoopThread()) mTimers.schedule(timeout, deadline);
+        else enqueue(new Command(OP_SCHEDULE, timeout, deadline));
+    }
+
+    /**
+     * Cancels a timeout scheduled on this loop, nothing if it already ran. From another thread the
+     * task can still run while the cancellation waits in the command queue.
+     */
+    public void cancel(TimerWheel.Timeout timeout){
+        if(isLoopThread()) mTimers.cancel(timeout);
+        else enqueue(new Command(OP_CANCEL, timeout, 0));
+    }
+
+    /**
+     * Runs task on the loop thread, after the commands queued before it. Dropped if the loop is
+     * not running.
+     */
+    public void execute(Runnable task){
+        enqueue(new Command(task));
+    }
+
+    /**
+     * Closes data channels that read nothing for millis, 0 (the default) keeps them forever. Applies
+     * to channels registered from now on; peers send heartbeats (probes) to stay above it.
+     */
+    public void setIdleTimeout(long millis){
+        if(millis < 0) throw new IllegalArgumentException("Negative idle timeout");
+        mIdleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    private void enqueue(Command command){
+        mCommands.offer(command);
+        if(mWakeupPending.compareAndSet(false, true)){
+            mWakeups.incrementAndGet();
+            mSelector.wakeup();
+        }
+    }
+
+    public Load getLoad(){
+        long start = mStartNanos;
+        return new Load(mName, mChannelCount, mBytesRead, mFramesRead, mBytesWritten, mBusyNanos,
+                start == 0 ? 0 : System.nanoTime() - start, mCommandsRun, mWakeups.get(), mSelects, mEmptySelects,
+                mDeferrals, mTimersFired, mIdleClosed);
+    }
+
+    @Override
+    public void run() {
+        while(mEnabled){
+            try {
+                mWakeupPending.set(false);
+                //Un comando encolado antes del set(false) no ha despertado al selector
+                int ready;
+                long timeout = mTimers.nanosUntilNext(System.nanoTime());
+                if(!mCommands.isEmpty() || !mBacklog.isEmpty() || timeout == 0) ready = mSelector.selectNow();
+                else if(timeout > 0) ready = mSelector.select(toSelectMillis(timeout));
+                else ready = mSelector.select();
+                mWakeupPending.set(true);
+                long busyStart = System.nanoTime();
+                ++mSelects;
+                ++mRound;
+                int fired = mTimers.advance(busyStart);
+                if(fired > 0) mTimersFired += fired;
+                if(runCommands() == 0 && ready == 0 && mBacklog.isEmpty() && fired == 0) ++mEmptySelects;
+                //Primero lo que quedo de la ronda anterior, esos canales ya no se leen otra vez en esta
+                for(int i = mBacklog.size(); i > 0; --i){
+                    ChannelContext ctx = mBacklog.poll();
+                    ctx.mDeferred = false;
+                    if(!ctx.mClosed) read(ctx);
+                }
+                Iterator<SelectionKey> itKeys = mSelector.selectedKeys().iterator();
+                while (itKeys.hasNext()) {
+                    SelectionKey myKey = itKeys.next();
+                    itKeys.remove();
+
+                    if (!myKey.isValid()) {
+                        continue;
+                    }
+
+                    if (myKey.isAcceptable()) {
+                        accept(myKey);
+                        continue;
+                    }
+                    if (myKey.isConnectable()) {
+                        finishConnect(myKey);
+                        continue;
+                    }
+                    if (myKey.isReadable()) {
+                        ChannelContext ctx = (ChannelContext) myKey.attachment();
+                        if(ctx.mRound != mRound) read(ctx);
+                    }
+                    if (myKey.isValid() && myKey.isWritable()) {
+                        flush(myKey);
+                    }
+                }
+                mBusyNanos += System.nanoTime() - busyStart;
+            } catch (IOException e) {
+                mEnabled = false;
+            }
+        }
+        runCommands();
+        mBacklog.clear();
+        for(SelectionKey key : mSelector.keys()){
+            closeKey(key);
+        }
+        mTimers.clear();
+        try {
+            mSelector.close();
+        } catch (IOException e) {}
+    }
+
+    /**
+     * Rounded up, select(0) would block for ever.
+     */
+    static long toSelectMillis(long nanos){
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(nanos + TimeUnit.MILLISECONDS.toNanos(1) - 1));
+    }
+
+    /**
+     * @return number of commands run
+     */
+    private int runCommands(){
+        int run = 0;
+        Command cmd;
+        while((cmd = mCommands.poll()) != null){
+            switch (cmd.mOp){
+                case OP_REGISTER:
+                    doRegister(cmd.mContext);
+                    break;
+                case OP_ACCEPTOR:
+                    doRegisterAcceptor((ServerSocketChannel) cmd.mChannel, cmd.mPeer);
+                    break;
+                case OP_DEREGISTER:
+                    doDeregister(cmd.mChannel);
+                    break;
+                case OP_CLOSE:
+                    doClose(cmd.mChannel);
+                    break;
+                case OP_FLUSH:
+                    doFlush(cmd.mContext);
+                    break;
+                case OP_WEIGHT:
+                    doWeight(cmd.mPeer);
+                    break;
+                case OP_SCHEDULE:
+                    mTimers.schedule(cmd.mTimeout, cmd.mDeadline);
+                    break;
+                case OP_CANCEL:
+                    mTimers.cancel(cmd.mTimeout);
+                    break;
+                case OP_EXECUTE:
+                    cmd.mTask.run();
+                    break;
+            }
+            ++run;
+        }
+        if(run > 0) mCommandsRun += run;
+        return run;
+    }
+
+    private void doRegister(ChannelContext ctx){
+        SocketChannel channel = ctx.mChannel;
+        if(!mEnabled){
+            ctx.mWriter.close();
+            closeQuietly(channel);
+            return;
+        }
+        ByteBuffer readBuffer = mBufferPool.lease();
+        if(readBuffer == null){
+            ctx.mWriter.close();
+            closeQuietly(channel);
+            mListener.onClosed(ctx.mPeer, channel);
+            return;
+        }
+        ctx.mDecoder = new FrameDecoder(readBuffer);
+        ctx.mWeight = getReadWeight(ctx.mPeer);
+        SelectionKey key;
+        try {
+            channel.configureBlocking(false);
+            int ops = SelectionKey.OP_READ;
+            if(ctx.mConnectAddress != null && !channel.connect(ctx.mConnectAddress)){
+                ctx.mConnecting = true;
+                ops = SelectionKey.OP_CONNECT;
+            }
+            try {
+                key = channel.register(mSelector, ops, ctx);
+            } catch (CancelledKeyException e) {
+                //Sigue la clave de un deregister anterior en este mismo bucle, se purga
+                mSelector.selectNow();
+                key = channel.register(mSelector, ops, ctx);
+            }
+            ctx.mKey = key;
+            ++mChannelCount;
+            long idle = mIdleTimeoutNanos;
+            if(idle > 0){
+                ctx.mIdleNanos = idle;
+                ctx.mLastRead = System.nanoTime();
+                mTimers.schedule(ctx.mIdle, ctx.mLastRead + idle);
+            }
+        } catch (IOException e) {
+            mBufferPool.release(readBuffer);
+            ctx.mWriter.close();
+            closeQuietly(channel);
+            mListener.onClosed(ctx.mPeer, channel);
+            return;
+        }
+        //Frames encolados antes de completar el registro
+        if(!ctx.mConnecting && ctx.mWriter.hasPending()) flush(key);
+    }
+
+    private void finishConnect(SelectionKey key){
+        ChannelContext ctx = (ChannelContext) key.attachment();
+        try {
+            if(!ctx.mChannel.finishConnect()) return;
+            ctx.mConnecting = false;
+            key.interestOps(SelectionKey.OP_READ);
+            if(ctx.mWriter.hasPending()) flush(key);
+        } catch (IOException e) {
+            closeKey(key);
+        }
+    }
+
+    private void doFlush(ChannelContext ctx){
+        SelectionKey key = ctx.mChannel.keyFor(mSelector);
+        //Mientras conecta se espera a finishConnect
+        if(key != null && key.isValid() && key.attachment() == ctx && !ctx.mConnecting) flush(key);
+    }
+
+    private void doWeight(Object peer){
+        int weight = getReadWeight(peer);
+        for(SelectionKey key : mSelector.keys()){
+            Object attachment = key.attachment();
+            if(attachment instanceof ChannelContext && ((ChannelContext) attachment).mPeer.equals(peer)){
+                ((ChannelContext) attachment).mWeight = weight;
+            }
+        }
+    }
+
+    private void doRegisterAcceptor(ServerSocketChannel channel, Object peer){
+        if(!mEnabled){
+            closeQuietly(channel);
+            return;
+        }
+        try {
+            channel.configureBlocking(false);
+            channel.register(mSelector, SelectionKey.OP_ACCEPT, new AcceptorContext(peer));
+        } catch (IOException e) {
+            closeQuietly(channel);
+            mListener.onClosed(peer, channel);
+        }
+    }
+
+    private void doDeregister(SelectableChannel channel){
+        SelectionKey key = channel.keyFor(mSelector);
+        if(key == null) return;
+        Object attachment = key.attachment();
+        key.cancel();
+        if(attachment instanceof ChannelContext){
+            ChannelContext ctx = (ChannelContext) attachment;
+            //El decoder sigue usando su buffer hasta que termine la lectura en curso
+            if(ctx == mReading) ctx.mDetached = true;
+            else ctx.release();
+        }
+        else if(attachment instanceof AcceptorContext){
+            ((AcceptorContext) attachment).mClosed = true;
+        }
+    }
+
+    private void doClose(SelectableChannel channel){
+        SelectionKey key = channel.keyFor(mSelector);
+        if(key != null) closeKey(key);
+        else closeQuietly(channel);
+    }
+
+    private void accept(SelectionKey key){
+        AcceptorContext ctx = (AcceptorContext) key.attachment();
+        ServerSocketChannel serverChan = (ServerSocketChannel) key.channel();
+        try {
+            SocketChannel socketChannel = serverChan.accept();
+            if(socketChannel != null){
+                mListener.onAccept(this, ctx.mPeer, socketChannel);
+            }
+        } catch (IOException e) {
+            closeKey(key);
+        }
+    }
+
+    /**
+     * Serves one channel for this round: the frames left from the last one first, then a read, both
+     * within the channel's budget.
+     */
+    private void read(ChannelContext ctx){
+        ctx.mRound = mRound;
+        FrameDecoder decoder = ctx.mDecoder;
+        long bytes = (long) mReadQuantum * ctx.mWeight;
+        long frames = (long) mFrameQuantum * ctx.mWeight;
+        ctx.mFramesLeft = (int) Math.min(frames, Integer.MAX_VALUE);
+        mReading = ctx;
+        try {
+            if(decoder.hasFrame()) decoder.decode(ctx, ctx.mFramesLeft);
+            int numRead = 0;
+            int asked = 0;
+            if(!ctx.mDetached && ctx.mFramesLeft > 0){
+                asked = (int) Math.min(bytes, decoder.getFreeSpace());
+                numRead = decoder.read(ctx.mChannel, ctx, asked, ctx.mFramesLeft);
+            }
+            if(ctx.mDetached){
+                //Deregistrado durante la lectura, el canal ya es de otro bucle y no se cierra
+                ctx.release();
+                return;
+            }
+            if(numRead == -1){
+                //Lo que ya llego se entrega aunque pase de la cuota
+                decoder.decode(ctx);
+                if(ctx.mDetached) ctx.release();
+                else closeKey(ctx.mKey);
+                return;
+            }
+            if(numRead > 0){
+                mBytesRead += numRead;
+                ctx.mMetrics.onRead(numRead);
+                //El timer no se mueve en cada lectura, al saltar mira cuando fue la ultima
+                if(ctx.mIdleNanos > 0) ctx.mLastRead = System.nanoTime();
+            }
+            if(decoder.hasFrame()){
+                //El socket puede estar vacio, sin la cola no se volveria a mirar
+                ++mDeferrals;
+                if(!ctx.mDeferred){
+                    ctx.mDeferred = true;
+                    mBacklog.offer(ctx);
+                }
+            }
+            else if(numRead == asked && asked > 0){
+                //Sin cuota de bytes, el selector lo vuelve a dar como listo
+                ++mDeferrals;
+            }
+        } catch (IOException e) {
+            if(ctx.mDetached) ctx.release();
+            else closeKey(ctx.mKey);
+        } finally {
+            mReading = null;
+        }
+    }
+
+    /**
+     * Writes the outbound queue of the key's channel, OP_WRITE stays on while the socket is full.
+     */
+    private void flush(SelectionKey key){
+        ChannelContext ctx = (ChannelContext) key.attachment();
+        try {
+            FrameWriter writer = ctx.mWriter;
+            long before = writer.getBytesWritten();
+            long writesBefore = writer.getWriteCalls();
+            boolean drained = writer.flush(ctx.mChannel);
+            long written = writer.getBytesWritten() - before;
+            mBytesWritten += written;
+            ctx.mMetrics.onWrite(written, writer.getWriteCalls() - writesBefore);
+            key.interestOps(drained ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        } catch (IOException e) {
+            closeKey(key);
+        }
+    }
+
+    private void closeKey(SelectionKey key){
+        Object attachment = key.attachment();
+        key.cancel();
+        closeQuietly(key.channel());
+        if(attachment instanceof ChannelContext){
+            ChannelContext ctx = (ChannelContext) attachment;
+            if(ctx.release()) mListener.onClosed(ctx.mPeer, ctx.mChannel);
+        }
+        else if(attachment instanceof AcceptorContext){
+            AcceptorContext ctx = (AcceptorContext) attachment;
+            if(ctx.mClosed) return;
+            ctx.mClosed = true;
+            mListener.onClosed(ctx.mPeer, key.channel());
+        }
+    }
+
+    private static void closeQuietly(SelectableChannel channel){
+        try {
+            channel.close();
+        } catch (IOException e) {}
+    }
+
+    private static class Command {
+        final int mOp;
+        final SelectableChannel mChannel;
+        final Object mPeer;
+        final ChannelContext mContext;
+        final TimerWheel.Timeout mTimeout;
+        final long mDeadline;
+        final Runnable mTask;
+
+        Command(int op, SelectableChannel channel, Object peer, ChannelContext context){
+            mOp = op;
+            mChannel = channel;
+            mPeer = peer;
+            mContext = context;
+            mTimeout = null;
+            mDeadline = 0;
+            mTask = null;
+        }
+
+        Command(int op, TimerWheel.Timeout timeout, long deadline){
+            mOp = op;
+            mChannel = null;
+            mPeer = null;
+            mContext = null;
+            mTimeout = timeout;
+            mDeadline = deadline;
+            mTask = null;
+        }
+
+        Command(Runnable task){
+            mOp = OP_EXECUTE;
+            mChannel = null;
+            mPeer = null;
+            mContext = null;
+            mTimeout = null;
+            mDeadline = 0;
+            mTask = task;
+        }
+    }
+
+    private static class AcceptorContext {
+        final Object mPeer;
+        boolean mClosed = false;
+
+        AcceptorContext(Object peer){
+            mPeer = peer;
+        }
+    }
+
+    private class ChannelContext implements FrameDecoder.FrameListener, FrameWriter.Listener {
+        final Object mPeer;
+        final SocketChannel mChannel;
+        final FrameWriter mWriter;
+        final ConnectionMetrics mMetrics;
+        FrameDecoder mDecoder; //Se asigna en el hilo del bucle al registrar
+        SelectionKey mKey;
+        boolean mClosed = false;
+        boolean mDetached = false;
+        //Conexion saliente, ver connect()
+        SocketAddress mConnectAddress;
+        boolean mConnecting = false;
+        //Planificacion de lecturas, solo desde el hilo del bucle
+        int mWeight = DEFAULT_WEIGHT;
+        int mFramesLeft = Integer.MAX_VALUE;
+        long mRound = -1;
+        boolean mDeferred = false;
+        //Cierre por inactividad, 0 sin limite
+        long mIdleNanos = 0;
+        long mLastRead = 0;
+        final TimerWheel.Timeout mIdle = new TimerWheel.Timeout(new Runnable() {
+            @Override
+            public void run() {
+                onIdleCheck();
+            }
+        });
+
+        ChannelContext(Object peer, SocketChannel channel, ConnectionMetrics metrics){
+            mPeer = peer;
+            mChannel = channel;
+            mMetrics = metrics;
+            mWriter = new FrameWriter(mWritePool, mHighWatermark, mLowWatermark, this);
+        }
+
+        /**
+         * @return false if it was already released
+         */
+        boolean release(){
+            if(mClosed) return false;
+            mClosed = true;
+            mTimers.cancel(mIdle);
+            mBufferPool.release(mDecoder.getBuffer());
+            mWriter.close();
+            --mChannelCount;
+            return true;
+        }
+
+        void onIdleCheck(){
+            if(mClosed) return;
+            long deadline = mLastRead + mIdleNanos;
+            if(deadline - System.nanoTime() > 0){
+                mTimers.schedule(mIdle, deadline);
+                return;
+            }
+            ++mIdleClosed;
+            closeKey(mKey);
+        }
+
+        @Override
+        public void onFrame(ByteBuffer frame) {
+            --mFramesLeft;
+            ++mFramesRead;
+            mMetrics.onFrame();
+            mListener.onFrame(mPeer, mChannel, frame);
+        }
+
+        @Override
+        public void onWriteRequested(FrameWriter writer) {
+            enqueue(new Command(OP_FLUSH, mChannel, mPeer, this));
+        }
+
+        @Override
+        public void onBackpressure(FrameWriter writer, boolean engaged) {
+            //Quien envia ve el rechazo en send() y la profundidad en getPendingBytes()
+        }
+    }
+}
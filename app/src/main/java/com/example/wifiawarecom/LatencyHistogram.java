@@ -0,0 +1,94 @@
+package com.example.wifiawarecom;
+
+import java.util.Arrays;
+
+/**
+ * Log-linear histogram of non-negative values (microseconds for latencies). Values below 64 are
+ * exact, above that each power of two is split in 32 buckets, so percentiles are within about 3%.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = bucketIndex(Long.MAX_VALUE) + 1;
+
+    private final long[] mCounts = new long[BUCKETS];
+    private long mCount = 0;
+    private long mMin = Long.MAX_VALUE;
+    private long mMax = 0;
+    private long mSum = 0;
+
+    static int bucketIndex(long value){
+        if(value < 2 * SUB_BUCKETS) return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return shift * SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    /**
+     * @return the highest value that falls in the bucket
+     */
+    static long bucketValue(int index){
+        if(index < 2 * SUB_BUCKETS) return index;
+        int shift = index / SUB_BUCKETS - 1;
+        long sub = index % SUB_BUCKETS + SUB_BUCKETS;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    /**
+     * Negative values are recorded as 0.
+     */
+    public synchronized void record(long value){
+        if(value < 0) value = 0;
+        ++mCounts[bucketIndex(value)];
+        ++mCount;
+        mSum += value;
+        if(value < mMin) mMin = value;
+        if(value > mMax) mMax = value;
+    }
+
+    public synchronized long getCount(){
+        return mCount;
+    }
+
+    public synchronized long getMin(){
+        return mCount == 0 ? 0 : mMin;
+    }
+
+    public synchronized long getMax(){
+        return mMax;
+    }
+
+    public synchronized double getMean(){
+        return mCount == 0 ? 0 : (double) mSum / mCount;
+    }
+
+    /**
+     * @param quantile between 0 and 1, 0.999 for p999
+     * @return upper bound of the bucket holding that quantile, never above the maximum recorded; 0 if empty
+     */
+    public synchronized long getPercentile(double quantile){
+        if(mCount == 0) return 0;
+        long rank = (long) Math.ceil(quantile * mCount);
+        if(rank < 1) rank = 1;
+        long seen = 0;
+        for(int i = 0; i < BUCKETS; ++i){
+            seen += mCounts[i];
+            if(seen >= rank) return Math.min(bucketValue(i), mMax);
+        }
+        return mMax;
+    }
+
+    public synchronized void reset(){
+        Arrays.fill(mCounts, 0);
+        mCount = 0;
+        mMin = Long.MAX_VALUE;
+        mMax = 0;
+        mSum = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "{count=" + mCount + ", p50=" + getPercentile(0.5) + ", p99=" + getPercentile(0.99)
+                + ", p999=" + getPercentile(0.999) + ", max=" + mMax + "}";
+    }
+}
@@ -0,0 +1,181 @@
+package com.example.wifiawarecom;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Ping/pong round trip measurement and NTP style clock offset estimation over the data channel.
+ * Probes travel on their own stream next to the data, so they see the same queues.
+ * <p>
+ * The client sends PING(seq, t1). The server answers PONG(seq, t1, t2, t3) with its receive and
+ * send times, and the client takes t4 on arrival. The next PING carries that t4 back, so the server
+ * also gets all four times, one exchange later. Both sides then compute:
+ * rtt = (t4 - t1) - (t3 - t2) and the offset of the remote clock from the average of both legs.
+ * The offset is taken from the fastest exchange of the last few, the one least skewed by queueing.
+ * <p>
+ * Times are {@link #nowMicros()}: monotonic, with an origin that is different on each device.
+ * A sample timestamped by the remote side with that clock converts with {@link #toLocalMicros(long)}.
+ */
+public class LatencyProbe {
+
+    /**
+     * Reserved stream id of the probes.
+     */
+    public static final int STREAM = StreamRouter.MAX_STREAM_ID;
+
+    static final byte PING = 1;
+    static final byte PONG = 2;
+    public static final int MAX_PROBE_SIZE = 1 + 4 + 3 * 8;
+
+    //Numero de intercambios de los que se elige el de menor retardo
+    private static final int OFFSET_WINDOW = 8;
+    private static final long NO_TIME = Long.MIN_VALUE;
+
+    private final LatencyHistogram mRtt = new LatencyHistogram();
+    private final long[] mDelays = new long[OFFSET_WINDOW];
+    private final long[] mOffsets = new long[OFFSET_WINDOW];
+    private int mSamples = 0;
+    private volatile long mOffsetMicros = 0;
+    private volatile boolean mSynchronized = false;
+    private volatile long mLost = 0;
+
+    //Lado que hace ping, solo desde un hilo
+    private int mNextSeq = 0;
+    private int mPendingSeq = -1;
+    private long mPendingT1 = NO_TIME;
+    private int mAnsweredSeq = -1;
+    private long mAnsweredT4 = NO_TIME;
+
+    //Lado que responde, solo desde el hilo del bucle del par
+    private int mEchoSeq = -1;
+    private long mEchoT1;
+    private long mEchoT2;
+    private long mEchoT3;
+
+    public static long nowMicros(){
+        return System.nanoTime() / 1000;
+    }
+
+    /**
+     * Writes a new ping at the position of dst, a ping still unanswered counts as lost.
+     */
+    public void writePing(ByteBuffer dst){
+        writePing(dst, nowMicros());
+    }
+
+    void writePing(ByteBuffer dst, long t1){
+        if(mPendingSeq >= 0) ++mLost;
+        int seq = mNextSeq++ & 0x7fffffff;
+        mPendingSeq = seq;
+        mPendingT1 = t1;
+        dst.put(PING);
+        dst.putInt(seq);
+        dst.putLong(t1);
+        //t4 del intercambio anterior para que el otro lado tambien pueda medir
+        dst.putInt(mAnsweredSeq);
+        dst.putLong(mAnsweredT4);
+    }
+
+    /**
+     * Handles a probe from the other side.
+     * @param reply where a PONG is written when probe is a PING, reply is left untouched otherwise
+     * @return true if a PONG was written
+     * @throws java.nio.BufferUnderflowException if probe is truncated
+     */
+    public boolean onProbe(ByteBuffer probe, ByteBuffer reply){
+        long now = nowMicros();
+        return onProbe(probe, reply, now, now);
+    }
+
+    boolean onProbe(ByteBuffer probe, ByteBuffer reply, long received, long replied){
+        byte kind = probe.get();
+        if(kind == PING){
+            int seq = probe.getInt();
+            long t1 = probe.getLong();
+            int answeredSeq = probe.getInt();
+            long t4 = probe.getLong();
+            if(answeredSeq >= 0 && answeredSeq == mEchoSeq && t4 != NO_TIME){
+                //Desde este lado el reloj remoto es el del que hace ping
+                long rtt = (t4 - mEchoT1) - (mEchoT3 - mEchoT2);
+                long offset = ((mEchoT1 - mEchoT2) + (t4 - mEchoT3)) / 2;
+                record(rtt, offset);
+            }
+            mEchoSeq = seq;
+            mEchoT1 = t1;
+            mEchoT2 = received;
+            mEchoT3 = replied;
+            reply.put(PONG);
+            reply.putInt(seq);
+            reply.putLong(t1);
+            reply.putLong(received);
+            reply.putLong(replied);
+            return true;
+        }
+        if(kind == PONG){
+            int seq = probe.getInt();
+            long t1 = probe.getLong();
+            long t2 = probe.getLong();
+            long t3 = probe.getLong();
+            //Un pong que llega tarde ya se conto como perdido
+            if(seq != mPendingSeq || t1 != mPendingT1) return false;
+            mPendingSeq = -1;
+            long t4 = received;
+            record((t4 - t1) - (t3 - t2), ((t2 - t1) + (t3 - t4)) / 2);
+            mAnsweredSeq = seq;
+            mAnsweredT4 = t4;
+            return false;
+        }
+        throw new IllegalArgumentException("Unknown probe kind " + kind);
+    }
+
+    private synchronized void record(long rtt, long offset){
+        if(rtt < 0) rtt = 0;
+        mRtt.record(rtt);
+        mDelays[mSamples % OFFSET_WINDOW] = rtt;
+        mOffsets[mSamples % OFFSET_WINDOW] = offset;
+        ++mSamples;
+        int best = 0;
+        int n = Math.min(mSamples, OFFSET_WINDOW);
+        for(int i = 1; i < n; ++i){
+            if(mDelays[i] < mDelays[best]) best = i;
+        }
+        mOffsetMicros = mOffsets[best];
+        mSynchronized = true;
+    }
+
+    /**
+     * Round trip times in microseconds, without the time the other side took to answer.
+     */
+    public LatencyHistogram getRttHistogram(){
+        return mRtt;
+    }
+
+    /**
+     * @return remote clock minus local clock in microseconds, 0 until the first exchange
+     */
+    public long getOffsetMicros(){
+        return mOffsetMicros;
+    }
+
+    public boolean isSynchronized(){
+        return mSynchronized;
+    }
+
+    /**
+     * Pings that got no pong before the next one was sent.
+     */
+    public long getLostCount(){
+        return mLost;
+    }
+
+    /**
+     * Converts a {@link #nowMicros()} time of the remote side to the local clock.
+     */
+    public long toLocalMicros(long remoteMicros){
+        return remoteMicros - mOffsetMicros;
+    }
+
+    @Override
+    public String toString() {
+        return "{rtt=" + mRtt + ", offsetUs=" + mOffsetMicros + ", lost=" + mLost + "}";
+    }
+}
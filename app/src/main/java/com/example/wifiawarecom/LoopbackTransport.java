@@ -0,0 +1,146 @@
+package com.example.wifiawarecom;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Data paths over the loopback interface, for running publisher and subscriber in one JVM.
+ * Both sides share the instance and use the same key for a link: publish(peer) makes the port
+ * known and subscribe(peer) gets it, in whatever order they happen. release() on either side
+ * reports the link as lost to the other one. drop() and restore() simulate the data path going
+ * away and coming back while both requests stay up.
+ */
+public class LoopbackTransport implements Transport {
+
+    private final ConcurrentMap<Object, Link> mLinks = new ConcurrentHashMap<>();
+
+    private static class Link {
+        int mPort = -1;
+        boolean mUp = true;
+        Callback mPublisher;
+        Callback mSubscriber;
+    }
+
+    @Override
+    public InetSocketAddress getBindAddress() {
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+    }
+
+    @Override
+    public void publish(Object peer, int port, Callback callback) {
+        boolean connect;
+        Callback subscriber;
+        Link link = linkFor(peer);
+        synchronized (link){
+            link.mPort = port;
+            link.mPublisher = callback;
+            subscriber = link.mSubscriber;
+            connect = subscriber != null && link.mUp;
+        }
+        callback.onAvailable(peer, null);
+        if(connect) subscriber.onAvailable(peer, address(port));
+    }
+
+    @Override
+    public void subscribe(Object peer, Callback callback) {
+        int port;
+        Link link = linkFor(peer);
+        synchronized (link){
+            link.mSubscriber = callback;
+            port = link.mUp ? link.mPort : -1;
+        }
+        if(port >= 0) callback.onAvailable(peer, address(port));
+    }
+
+    @Override
+    public SocketChannel openChannel(Object peer) throws IOException {
+        return SocketChannel.open();
+    }
+
+    /**
+     * Every connection comes from the loopback address, only the handshake tells peers apart.
+     */
+    @Override
+    public InetAddress getPeerAddress(Object peer) {
+        return null;
+    }
+
+    @Override
+    public byte[] getHandshakeToken(Object peer) {
+        return peer.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void release(Object peer) {
+        Link link = mLinks.remove(peer);
+        if(link == null) return;
+        Callback publisher;
+        Callback subscriber;
+        synchronized (link){
+            publisher = link.mPublisher;
+            subscriber = link.mSubscriber;
+        }
+        //No se sabe que extremo llama, se avisa a los dos
+        if(publisher != null && subscriber != null){
+            publisher.onLost(peer);
+            subscriber.onLost(peer);
+        }
+    }
+
+    /**
+     * Reports the link as lost to both sides, as when the peers go out of range.
+     */
+    public void drop(Object peer){
+        Link link = mLinks.get(peer);
+        if(link == null) return;
+        Callback publisher;
+        Callback subscriber;
+        synchronized (link){
+            if(!link.mUp) return;
+            link.mUp = false;
+            publisher = link.mPublisher;
+            subscriber = link.mSubscriber;
+        }
+        if(publisher != null) publisher.onLost(peer);
+        if(subscriber != null) subscriber.onLost(peer);
+    }
+
+    /**
+     * Brings a dropped link back, both sides see onAvailable() again.
+     */
+    public void restore(Object peer){
+        Link link = mLinks.get(peer);
+        if(link == null) return;
+        Callback publisher;
+        Callback subscriber;
+        int port;
+        synchronized (link){
+            if(link.mUp) return;
+            link.mUp = true;
+            publisher = link.mPublisher;
+            subscriber = link.mSubscriber;
+            port = link.mPort;
+        }
+        if(publisher != null) publisher.onAvailable(peer, null);
+        if(subscriber != null && port >= 0) subscriber.onAvailable(peer, address(port));
+    }
+
+    private Link linkFor(Object peer){
+        Link link = mLinks.get(peer);
+        if(link == null){
+            Link created = new Link();
+            link = mLinks.putIfAbsent(peer, created);
+            if(link == null) link = created;
+        }
+        return link;
+    }
+
+    private static InetSocketAddress address(int port){
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+    }
+}
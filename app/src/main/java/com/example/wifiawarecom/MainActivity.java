@@ -18,6 +18,8 @@ import android.widget.Button;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import java.util.function.BiConsumer;
+
 public class MainActivity extends AppCompatActivity {
 
     private Button mPublisherButton, mSubscriberButton;
@@ -99,38 +101,39 @@ public class MainActivity extends AppCompatActivity {
 
     private void publishService(){
         setControlsEnabled(false);
-        try {
-            if(mAwareModel.createSession()){
-                if(mAwareModel.publishService("Server")){
-                    Toast.makeText(this, "Se publico un nuevo servicio con WifiAware", Toast.LENGTH_SHORT).show();
+        //Sin bloquear el hilo principal, el resultado vuelve a el
+        mAwareModel.publishService("Server").whenCompleteAsync(new BiConsumer<Server, Throwable>() {
+            @Override
+            public void accept(Server server, Throwable error) {
+                if(error == null){
+                    Toast.makeText(MainActivity.this, "Se publico un nuevo servicio con WifiAware", Toast.LENGTH_SHORT).show();
+                }
+                else{
+                    Toast.makeText(MainActivity.this, mAwareModel.sessionCreated()
+                            ? "No se pudo publicar un servicio de WifiAware"
+                            : "No se pudo crear la sesion de WifiAware", Toast.LENGTH_SHORT).show();
+                    setControlsEnabled(true);
+                }
+            }
+        }, getMainExecutor());
+    }
+
+    private void subscribeToService(){
+        setControlsEnabled(false);
+        mAwareModel.subscribeToService("Server").whenCompleteAsync(new BiConsumer<Void, Throwable>() {
+            @Override
+            public void accept(Void ignored, Throwable error) {
+                if(error == null){
+                    Toast.makeText(MainActivity.this, "Se creo una sesion de subscripcion con WifiAware", Toast.LENGTH_SHORT).show();
                 }
                 else{
-                    Toast.makeText(this, "No se pudo publicar un servicio de WifiAware", Toast.LENGTH_SHORT).show();
+                    Toast.makeText(MainActivity.this, mAwareModel.sessionCreated()
+                            ? "No se pudo crear una sesion de subscripcion de WifiAware"
+                            : "No se pudo crear la sesion de WifiAware", Toast.LENGTH_SHORT).show();
                     setControlsEnabled(true);
                 }
-            }else {
-                Toast.makeText(this, "No se pudo crear la sesion de WifiAware", Toast.LENGTH_SHORT).show();
-                setControlsEnabled(true);
             }
-        } catch (InterruptedException e) {}
+        }, getMainExecutor());
     }
 
-   private void subscribeToService(){
-       setControlsEnabled(false);
-       try {
-           if(mAwareModel.createSession()){
-               if(mAwareModel.subscribeToService("Server")){
-                   Toast.makeText(this, "Se creo una sesion de subscripcion con WifiAware", Toast.LENGTH_SHORT).show();
-               }
-               else{
-                   Toast.makeText(this, "No se pudo crear una sesion de subscripcion de WifiAware", Toast.LENGTH_SHORT).show();
-                   setControlsEnabled(true);
-               }
-           }else {
-               Toast.makeText(this, "No se pudo crear la sesion de WifiAware", Toast.LENGTH_SHORT).show();
-               setControlsEnabled(true);
-           }
-       } catch (InterruptedException e) {}
-   }
-
-}
\ No newline at end of file
+}
@@ -0,0 +1,91 @@
+package com.example.wifiawarecom;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Point in time view of the Server counters: one Load per selector loop and one entry per connection.
+ * Rates come from comparing two snapshots.
+ */
+public class MetricsSnapshot {
+    public final long nanos;
+    public final List<IoLoop.Load> loops;
+    public final List<ConnectionMetrics.Snapshot> connections;
+    public final long unroutedFrames;
+    public final long malformedFrames;
+    public final int readBuffersInUse;
+    public final int writeBuffersInUse;
+
+    MetricsSnapshot(long nanos, List<IoLoop.Load> loops, List<ConnectionMetrics.Snapshot> connections,
+                    long unroutedFrames, long malformedFrames, int readBuffersInUse, int writeBuffersInUse){
+        this.nanos = nanos;
+        this.loops = Collections.unmodifiableList(loops);
+        this.connections = Collections.unmodifiableList(connections);
+        this.unroutedFrames = unroutedFrames;
+        this.malformedFrames = malformedFrames;
+        this.readBuffersInUse = readBuffersInUse;
+        this.writeBuffersInUse = writeBuffersInUse;
+    }
+
+    /**
+     * @return the entry of peer, null if it had no connection when the snapshot was taken
+     */
+    public ConnectionMetrics.Snapshot getConnection(Object peer){
+        for(ConnectionMetrics.Snapshot conn : connections){
+            if(conn.peer.equals(peer)) return conn;
+        }
+        return null;
+    }
+
+    public long getBytesIn(){
+        long total = 0;
+        for(IoLoop.Load load : loops) total += load.bytesRead;
+        return total;
+    }
+
+    public long getFramesIn(){
+        long total = 0;
+        for(IoLoop.Load load : loops) total += load.framesRead;
+        return total;
+    }
+
+    public long getBytesOut(){
+        long total = 0;
+        for(IoLoop.Load load : loops) total += load.bytesWritten;
+        return total;
+    }
+
+    public long getWakeups(){
+        long total = 0;
+        for(IoLoop.Load load : loops) total += load.wakeups;
+        return total;
+    }
+
+    public long getEmptySelects(){
+        long total = 0;
+        for(IoLoop.Load load : loops) total += load.emptySelects;
+        return total;
+    }
+
+    public double getFramesInPerSecond(MetricsSnapshot previous){
+        long elapsed = nanos - previous.nanos;
+        return elapsed <= 0 ? 0 : (getFramesIn() - previous.getFramesIn()) * 1e9 / elapsed;
+    }
+
+    public double getBytesInPerSecond(MetricsSnapshot previous){
+        long elapsed = nanos - previous.nanos;
+        return elapsed <= 0 ? 0 : (getBytesIn() - previous.getBytesIn()) * 1e9 / elapsed;
+    }
+
+    public double getBytesOutPerSecond(MetricsSnapshot previous){
+        long elapsed = nanos - previous.nanos;
+        return elapsed <= 0 ? 0 : (getBytesOut() - previous.getBytesOut()) * 1e9 / elapsed;
+    }
+
+    @Override
+    public String toString() {
+        return "MetricsSnapshot{loops=" + loops + ", connections=" + connections + ", unroutedFrames="
+                + unroutedFrames + ", malformedFrames=" + malformedFrames + ", readBuffersInUse=" + readBuffersInUse
+                + ", writeBuffersInUse=" + writeBuffersInUse + "}";
+    }
+}
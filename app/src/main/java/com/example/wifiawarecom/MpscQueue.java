@@ -0,0 +1,54 @@
+package com.example.wifiawarecom;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * Unbounded lock-free queue for many producers and a single consumer (linked list with a stub node).
+ * offer() can be called from any thread, poll() and isEmpty() only from the consumer thread.
+ */
+public class MpscQueue<E> {
+
+    private static final class Node<E> {
+        E mValue;
+        volatile Node<E> mNext;
+
+        Node(E value){
+            mValue = value;
+        }
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<Node, Node> NEXT =
+            AtomicReferenceFieldUpdater.newUpdater(Node.class, Node.class, "mNext");
+
+    private final AtomicReference<Node<E>> mTail;
+    private Node<E> mHead;
+
+    public MpscQueue(){
+        Node<E> stub = new Node<>(null);
+        mHead = stub;
+        mTail = new AtomicReference<>(stub);
+    }
+
+    public void offer(E value){
+        if(value == null) throw new NullPointerException();
+        Node<E> node = new Node<>(value);
+        Node<E> prev = mTail.getAndSet(node);
+        //Entre el getAndSet y el enlace el consumidor ve la cola vacia, el productor todavia no ha terminado el offer
+        NEXT.lazySet(prev, node);
+    }
+
+    public E poll(){
+        Node<E> next = mHead.mNext;
+        if(next == null) return null;
+        E value = next.mValue;
+        next.mValue = null;
+        mHead = next;
+        return value;
+    }
+
+    public boolean isEmpty(){
+        return mHead.mNext == null;
+    }
+}
@@ -0,0 +1,152 @@
+package com.example.wifiawarecom;
+
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Table of peers by handle with the lifecycle state of each one. Lookups and registration go to a
+ * ConcurrentHashMap and take no shared lock; state changes are a compare and set on the peer, so
+ * of several threads racing for the same transition (two removals, a removal and an accept) only
+ * one wins and does the work that goes with it.
+ */
+public class PeerRegistry<P extends PeerRegistry.Peer> {
+
+    public enum State {
+        /**
+         * Known, nothing asked to the transport yet.
+         */
+        DISCOVERED,
+        /**
+         * Data path requested, or lost and waiting for the peer to come back.
+         */
+        REQUESTING,
+        /**
+         * At least one data channel accepted.
+         */
+        CONNECTED,
+        /**
+         * Being removed, its channels are closing. No way back.
+         */
+        DRAINING,
+        CLOSED
+    }
+
+    /**
+     * Base of the per-peer objects kept in the registry.
+     */
+    public static class Peer {
+
+        private final Object mHandle;
+        private final AtomicReference<State> mState = new AtomicReference<>(State.DISCOVERED);
+
+        public Peer(Object handle){
+            mHandle = handle;
+        }
+
+        public Object getHandle(){
+            return mHandle;
+        }
+
+        public State getState(){
+            return mState.get();
+        }
+
+        /**
+         * DISCOVERED, REQUESTING or CONNECTED.
+         */
+        public boolean isOpen(){
+            return mState.get().compareTo(State.DRAINING) < 0;
+        }
+
+        /**
+         * Moves from to to atomically.
+         * @return false if the peer was not in from
+         * @throws IllegalArgumentException if the lifecycle does not allow the transition
+         */
+        public boolean transition(State from, State to){
+            if(!isAllowed(from, to)) throw new IllegalArgumentException("Transition " + from + " -> " + to);
+            return mState.compareAndSet(from, to);
+        }
+
+        /**
+         * Moves to to from whatever state the peer is in, if the lifecycle allows it.
+         * @return the state it came from, null if the transition is not allowed from the current state
+         */
+        public State moveTo(State to){
+            while(true){
+                State from = mState.get();
+                if(!isAllowed(from, to)) return null;
+                if(mState.compareAndSet(from, to)) return from;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return mHandle + "{" + mState.get() + "}";
+        }
+    }
+
+    /**
+     * Forward only once draining: nothing goes back to DISCOVERED, DRAINING only to CLOSED, nothing
+     * leaves CLOSED. Between the open states a peer can go back and forth (a lost data path).
+     */
+    public static boolean isAllowed(State from, State to){
+        if(from == to || to == State.DISCOVERED || from == State.CLOSED) return false;
+        return from != State.DRAINING || to == State.CLOSED;
+    }
+
+    private final ConcurrentMap<Object, P> mPeers = new ConcurrentHashMap<>();
+
+    /**
+     * @return the peer already registered with the same handle, null if peer was added
+     */
+    public P putIfAbsent(P peer){
+        return mPeers.putIfAbsent(peer.getHandle(), peer);
+    }
+
+    /**
+     * @return null if no peer has the handle
+     */
+    public P get(Object handle){
+        return mPeers.get(handle);
+    }
+
+    public boolean contains(Object handle){
+        return mPeers.containsKey(handle);
+    }
+
+    /**
+     * Removes peer only if it is still the one registered under its handle.
+     */
+    public boolean remove(P peer){
+        return mPeers.remove(peer.getHandle(), peer);
+    }
+
+    /**
+     * Weakly consistent view, for iterating while other threads add and remove peers.
+     */
+    public Collection<P> values(){
+        return mPeers.values();
+    }
+
+    public int size(){
+        return mPeers.size();
+    }
+
+    /**
+     * Peers per state, one pass over the table.
+     */
+    public Map<State, Integer> getStateCounts(){
+        Map<State, Integer> counts = new EnumMap<>(State.class);
+        for(State state : State.values()) counts.put(state, 0);
+        for(P peer : mPeers.values()){
+            State state = peer.getState();
+            counts.put(state, counts.get(state) + 1);
+        }
+        return counts;
+    }
+}
@@ -0,0 +1,158 @@
+package com.example.wifiawarecom;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Binary encoding of typed samples, one sample per frame payload:
+ * <pre>
+ *   type (1 byte) | [timestamp in ms (varint)] | value
+ * </pre>
+ * The timestamp is optional, FLAG_TIMESTAMP in the type byte says whether it is present.
+ * Ints and longs go as zigzag varints (small magnitudes take one or two bytes), floats and doubles
+ * as fixed width big-endian. Everything works in place on ByteBuffers, nothing is boxed or allocated.
+ */
+public final class SampleCodec {
+
+    public static final byte TYPE_INT = 1;
+    public static final byte TYPE_LONG = 2;
+    public static final byte TYPE_FLOAT = 3;
+    public static final byte TYPE_DOUBLE = 4;
+    public static final int FLAG_TIMESTAMP = 0x80;
+    private static final int TYPE_MASK = 0x7F;
+
+    /** Pass as timestamp to leave it out of the sample, decoded samples without one report it too */
+    public static final long NO_TIMESTAMP = -1;
+
+    public static final int MAX_VARINT_SIZE = 10;
+    public static final int MAX_SAMPLE_SIZE = 1 + MAX_VARINT_SIZE + MAX_VARINT_SIZE;
+
+    /**
+     * Decoded sample, meant to be reused by the caller between decode() calls.
+     */
+    public static final class Sample {
+        public byte type;
+        /** NO_TIMESTAMP if the sample did not carry one */
+        public long timestamp;
+        /** TYPE_INT and TYPE_LONG */
+        public long longValue;
+        /** TYPE_FLOAT and TYPE_DOUBLE */
+        public double doubleValue;
+
+        public boolean isIntegral(){
+            return type == TYPE_INT || type == TYPE_LONG;
+        }
+
+        public String valueToString(){
+            return isIntegral() ? Long.toString(longValue) : Double.toString(doubleValue);
+        }
+
+        @Override
+        public String toString() {
+            return "Sample{type=" + type + ", timestamp=" + timestamp + ", value=" + valueToString() + "}";
+        }
+    }
+
+    private SampleCodec(){}
+
+    public static long zigzag(long value){
+        return (value << 1) ^ (value >> 63);
+    }
+
+    public static long unzigzag(long value){
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Writes value as an unsigned LEB128 varint, 1 to 10 bytes.
+     */
+    public static void putVarint(ByteBuffer dst, long value){
+        while((value & ~0x7FL) != 0){
+            dst.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        dst.put((byte) value);
+    }
+
+    /**
+     * @throws IllegalArgumentException if the varint is longer than 10 bytes
+     * @throws BufferUnderflowException if src ends in the middle of the varint
+     */
+    public static long getVarint(ByteBuffer src){
+        long value = 0;
+        for(int shift = 0; shift < 64; shift += 7){
+            byte b = src.get();
+            value |= (long) (b & 0x7F) << shift;
+            if(b >= 0) return value;
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    public static int varintSize(long value){
+        int size = 1;
+        while((value & ~0x7FL) != 0){
+            value >>>= 7;
+            ++size;
+        }
+        return size;
+    }
+
+    private static void putHeader(ByteBuffer dst, byte type, long timestamp){
+        if(timestamp < 0){
+            dst.put(type);
+        }
+        else {
+            dst.put((byte) (type | FLAG_TIMESTAMP));
+            putVarint(dst, timestamp);
+        }
+    }
+
+    public static void putInt(ByteBuffer dst, long timestamp, int value){
+        putHeader(dst, TYPE_INT, timestamp);
+        putVarint(dst, zigzag(value));
+    }
+
+    public static void putLong(ByteBuffer dst, long timestamp, long value){
+        putHeader(dst, TYPE_LONG, timestamp);
+        putVarint(dst, zigzag(value));
+    }
+
+    public static void putFloat(ByteBuffer dst, long timestamp, float value){
+        putHeader(dst, TYPE_FLOAT, timestamp);
+        dst.putFloat(value);
+    }
+
+    public static void putDouble(ByteBuffer dst, long timestamp, double value){
+        putHeader(dst, TYPE_DOUBLE, timestamp);
+        dst.putDouble(value);
+    }
+
+    /**
+     * Reads one sample from src into out.
+     * @throws IllegalArgumentException on an unknown type or a malformed varint
+     * @throws BufferUnderflowException if the sample is truncated
+     */
+    public static void decode(ByteBuffer src, Sample out){
+        int header = src.get();
+        byte type = (byte) (header & TYPE_MASK);
+        out.timestamp = (header & FLAG_TIMESTAMP) != 0 ? getVarint(src) : NO_TIMESTAMP;
+        switch (type){
+            case TYPE_INT:
+            case TYPE_LONG:
+                out.longValue = unzigzag(getVarint(src));
+                out.doubleValue = out.longValue;
+                break;
+            case TYPE_FLOAT:
+                out.doubleValue = src.getFloat();
+                out.longValue = (long) out.doubleValue;
+                break;
+            case TYPE_DOUBLE:
+                out.doubleValue = src.getDouble();
+                out.longValue = (long) out.doubleValue;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown sample type: " + type);
+        }
+        out.type = type;
+    }
+}
@@ -1,292 +1,973 @@
 package com.example.wifiawarecom;
 
-import android.net.ConnectivityManager;
-import android.net.Network;
-import android.net.NetworkCapabilities;
-import android.net.NetworkRequest;
-import android.net.NetworkSpecifier;
-import android.net.wifi.aware.DiscoverySession;
-import android.net.wifi.aware.PeerHandle;
-import android.net.wifi.aware.WifiAwareNetworkSpecifier;
 import android.util.Log;
 
-import androidx.annotation.NonNull;
-
+import java.io.File;
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
-import java.nio.channels.ByteChannel;
 import java.nio.channels.SelectableChannel;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.Charset;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
-
-public class Server implements Runnable{
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class Server implements IoLoop.Listener{
     private static final String TAG = "Server";
 
+    /**
+     * Where the samples of streams 0 and 1 are shown, the ViewModel in the app.
+     */
+    public interface ClientViews {
+        void setClientData1(String value);
+        void setClientData2(String value);
+    }
+
     private static final int BUFFER_SIZE = 8192;
+    private static final int BUFFERS_PER_SLAB = 16;
+    private static final long BUFFER_POOL_BUDGET = 2 * 1024 * 1024;
+    private static final long WRITE_POOL_BUDGET = 4 * 1024 * 1024;
+    //Limite de memoria encolada por canal, un suscriptor lento no puede acaparar el pool de escritura
+    private static final int HIGH_WATERMARK = 64 * 1024;
+    private static final int LOW_WATERMARK = 16 * 1024;
+    //Tiempo que puede estar un canal del puerto compartido sin identificarse
+    private static final long HANDSHAKE_TIMEOUT_MS = 5000;
+    //Clave del canal de escucha compartido en el bucle de accept
+    private static final Object SHARED_LISTENER = new Object();
+    //Intentos de un fichero encolado para un cliente, cada uno reanuda el anterior
+    private static final int MAX_FILE_ATTEMPTS = 5;
+
+    private final ClientViews mModel;
+    private final BufferPool mBufferPool = new BufferPool(BUFFER_SIZE, BUFFERS_PER_SLAB, BUFFER_POOL_BUDGET);
+    private final BufferPool mWritePool = new BufferPool(BUFFER_SIZE, BUFFERS_PER_SLAB, WRITE_POOL_BUDGET);
+    private final IoLoop mAcceptLoop;
+    private final IoLoop[] mIoLoops; //Vacio: el bucle de accept tambien lee (un solo hilo)
+    private volatile boolean mEnabled = false;
+    private final PeerRegistry<Connection> mPeers = new PeerRegistry<>();
+    private final ConcurrentMap<ServerSocketChannel, Connection> mServerChannelsMap;
+    private final Transport mTransport;
+
+    private final boolean mSharedListener;
+    private ServerSocketChannel mSharedChannel = null;
+    private volatile int mSharedPort = -1;
+    private final ConcurrentMap<ByteBuffer, Object> mPeersByToken = new ConcurrentHashMap<>();
+    //Canales del puerto compartido esperando el handshake, solo desde el bucle de accept
+    private final Map<SocketChannel, PendingChannel> mPending = new HashMap<>();
+    private final AtomicLong mHandshakesRejected = new AtomicLong();
+    private volatile FileReceiver mFileReceiver = null;
+    private volatile FileReceiver.Listener mFileListener = null;
+    //Conexiones de transferencias en curso, fuera de los bucles
+    private final Set<SocketChannel> mFileChannels = ConcurrentHashMap.newKeySet();
+
+    private final Transport.Callback mTransportCallback = new Transport.Callback() {
+        @Override
+        public void onAvailable(Object peer, InetSocketAddress address) {
+            Connection conn = mPeers.get(peer);
+            if(conn != null) conn.mAvailable = true;
+        }
 
-    private final WifiAwareViewModel mModel;
-    private final Selector mSelector;
-    private Thread mServerThread;
-    private boolean mEnabled = false;
-    private final ByteBuffer mReadBuffer = ByteBuffer.allocate(BUFFER_SIZE);
-    private Map<PeerHandle, Connection> mConnectionsMap;
-    private Map<ServerSocketChannel, Connection> mServerChannelsMap;
-    private ConnectivityManager mConManager;
-    private final Lock mSelectorLock = new ReentrantLock();
+        /**
+         * The data channels are dead, but the listening channel stays open for the client to
+         * reconnect when the path comes back. removeConnection() gives the peer up.
+         */
+        @Override
+        public void onLost(Object peer) {
+            Connection conn = mPeers.get(peer);
+            if(conn == null) return;
+            conn.closeChannels();
+            conn.moveTo(PeerRegistry.State.REQUESTING);
+        }
+    };
 
-    private ByteChannel mCanalTextView1 = null; //El primer canal escribe en 1 textview y el segundo en el otro
-    private ByteChannel mCanalTextView2 = null;
+    private final StreamRouter mRouter = new StreamRouter();
+    private final StreamCompressor mCompressor = new StreamCompressor();
+    private final FanOutHub mHub = new FanOutHub(mWritePool, new FanOutHub.Peers() {
+        @Override
+        public FrameWriter getWriter(Object peer) {
+            Connection conn = mPeers.get(peer);
+            return conn == null ? null : conn.mWriter;
+        }
 
-    public Server(ConnectivityManager manager, WifiAwareViewModel model) throws IOException {
+        @Override
+        public void disconnect(Object peer, FrameWriter writer) {
+            Connection conn = mPeers.get(peer);
+            if(conn != null) conn.closeChannel(writer);
+        }
+    });
+    private volatile CaptureLog mCapture = null;
+    //Un Sample reutilizable por hilo de I/O
+    private final ThreadLocal<SampleCodec.Sample> mSamples = new ThreadLocal<SampleCodec.Sample>(){
+        @Override
+        protected SampleCodec.Sample initialValue() {
+            return new SampleCodec.Sample();
+        }
+    };
+    private final ThreadLocal<ByteBuffer> mProbeReplies = new ThreadLocal<ByteBuffer>(){
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocate(LatencyProbe.MAX_PROBE_SIZE);
+        }
+    };
+
+    public Server(Transport transport, ClientViews model) throws IOException {
+        this(transport, model, 0);
+    }
+
+    /**
+     * @param model receives streams 0 and 1, can be null (then the router starts empty)
+     * @param ioLoops number of selector threads reading from accepted channels, sharded by peer.
+     *                With 0 the accept loop also does every read.
+     */
+    public Server(Transport transport, ClientViews model, int ioLoops) throws IOException {
+        this(transport, model, ioLoops, false);
+    }
+
+    /**
+     * @param sharedListener one listening port advertised to every peer instead of one per peer.
+     *                       Accepted connections are matched to their peer by address or by a
+     *                       handshake, see {@link Transport#getHandshakeToken(Object)}.
+     */
+    public Server(Transport transport, ClientViews model, int ioLoops, boolean sharedListener) throws IOException {
         mModel = model;
-        mSelector = Selector.open();
-        mConnectionsMap = new HashMap<>();
-        mServerChannelsMap = new HashMap<>();
-        mConManager = manager;
+        mSharedListener = sharedListener;
+        mServerChannelsMap = new ConcurrentHashMap<>();
+        mTransport = transport;
+        mRouter.setCompressor(mCompressor);
+        mRouter.register(LatencyProbe.STREAM, new ProbeConsumer());
+        mRouter.register(Handshake.STREAM, new HandshakeConsumer());
+        if(model != null){
+            mRouter.register(Client.STREAM_1, new ViewModelConsumer(1));
+            mRouter.register(Client.STREAM_2, new ViewModelConsumer(2));
+        }
+        mAcceptLoop = new IoLoop("Server-accept", mBufferPool, mWritePool, HIGH_WATERMARK, LOW_WATERMARK, this);
+        mIoLoops = new IoLoop[ioLoops];
+        for(int i = 0; i < ioLoops; ++i){
+            mIoLoops[i] = new IoLoop("Server-io-" + i, mBufferPool, mWritePool, HIGH_WATERMARK, LOW_WATERMARK, this);
+        }
     }
 
-    public void start(){
+    /**
+     * @throws IOException if the shared listening port cannot be opened, the server stays stopped
+     */
+    public synchronized void start() throws IOException {
         if(!mEnabled) {
+            if(mSharedListener){
+                ServerSocketChannel channel = ServerSocketChannel.open();
+                try {
+                    channel.configureBlocking(false);
+                    channel.socket().bind(mTransport.getBindAddress());
+                } catch (IOException e) {
+                    channel.close();
+                    throw e;
+                }
+                mSharedChannel = channel;
+                mSharedPort = channel.socket().getLocalPort();
+                mAcceptLoop.registerAcceptor(channel, SHARED_LISTENER);
+            }
             mEnabled = true;
-            mServerThread = new Thread(this);
-            mServerThread.start();
+            for(IoLoop loop : mIoLoops) loop.start();
+            mAcceptLoop.start();
         }
     }
 
     public void stop(){
-        if(mEnabled){
+        synchronized (this){
+            if(!mEnabled) return;
             mEnabled = false;
-            mServerThread.interrupt();
-            closeAllConnections();
-            try {
-                mSelector.close();
-            } catch (IOException e) {}
         }
-    }
-
-    @Override
-    public void run() {
-
-        mSelectorLock.lock();
-        while(mEnabled){
-            try {
-                mSelectorLock.unlock();
-                mSelector.select();
-                mSelectorLock.lock();
-                Iterator<SelectionKey> itKeys = mSelector.selectedKeys().iterator();
-                while (itKeys.hasNext()) {
-                    SelectionKey myKey = itKeys.next();
-                    itKeys.remove();
-
-                    if (!myKey.isValid()) {
-                        continue;
-                    }
-
-                    if (myKey.isAcceptable()) {
-                        accept(myKey);
-                    } else if (myKey.isReadable()) {
-                        this.read(myKey);
-                    }
-                }
-            } catch (IOException e) {
-                mEnabled = false;
-            }
+        closeAllConnections();
+        mAcceptLoop.stop();
+        for(IoLoop loop : mIoLoops) loop.stop();
+        for(SocketChannel channel : mFileChannels) closeQuietly(channel);
+        mSharedChannel = null;
+        mSharedPort = -1;
+        try {
+            stopCapture();
+        } catch (IOException e) {
+            Log.d(TAG, "stop: capture incomplete " + e);
         }
-        mSelectorLock.unlock();
-
     }
 
-    public synchronized boolean addNewConnection(DiscoverySession discoverySession, PeerHandle handle){
-        if(mConnectionsMap.get(handle) != null){
+    /**
+     * Opens a listening channel for the peer, or uses the shared one, and asks the transport for a
+     * data path to it.
+     */
+    public boolean addNewConnection(Object peer){
+        if(mPeers.contains(peer)){
             return true;
         }
         if(!mEnabled) return false;
+        if(mSharedListener) return addSharedConnection(peer);
         ServerSocketChannel serverSocketChannel = null;
         int mServerPort;
         try {
             serverSocketChannel = ServerSocketChannel.open();
             serverSocketChannel.configureBlocking(false);
-            serverSocketChannel.socket().bind(new InetSocketAddress(0));
+            serverSocketChannel.socket().bind(mTransport.getBindAddress());
             mServerPort = serverSocketChannel.socket().getLocalPort();
-            NetworkSpecifier networkSpecifier = new WifiAwareNetworkSpecifier.Builder(discoverySession, handle)
-                    .setPskPassphrase("wifiawaretest")
-                    .setPort(mServerPort)
-                    .build();
-            NetworkRequest networkRequest = new NetworkRequest.Builder()
-                    .addTransportType(NetworkCapabilities.TRANSPORT_WIFI_AWARE)
-                    .setNetworkSpecifier(networkSpecifier)
-                    .build();
-            mSelectorLock.lock();
-            mSelector.wakeup();
-            try{
-                SelectionKey serverKey = serverSocketChannel.register(mSelector, SelectionKey.OP_ACCEPT);
-            }catch (IOException ex){
-                mSelectorLock.unlock();
+            Connection conn = new Connection(serverSocketChannel, peer);
+            if(mPeers.putIfAbsent(conn) != null){
                 serverSocketChannel.close();
-                throw ex;
+                return true;
             }
-            mSelectorLock.unlock();
-            Connection conn = new Connection(serverSocketChannel, handle);
-            mConnectionsMap.put(handle, conn);
             mServerChannelsMap.put(serverSocketChannel, conn);
-            mConManager.requestNetwork(networkRequest, new WifiAwareNetworkCallback(handle));
+            mAcceptLoop.registerAcceptor(serverSocketChannel, peer);
+            conn.transition(PeerRegistry.State.DISCOVERED, PeerRegistry.State.REQUESTING);
+            mTransport.publish(peer, mServerPort, mTransportCallback);
+        } catch (IOException e) {
+            removeConnection(peer);
+            if(serverSocketChannel != null){
+                try {
+                    serverSocketChannel.close();
+                } catch (IOException ex) {}
+            }
+            return false;
+        }
+        return true;
+    }
+
+    private boolean addSharedConnection(Object peer){
+        Connection conn = new Connection(null, peer);
+        if(mPeers.putIfAbsent(conn) != null) return true;
+        byte[] token = mTransport.getHandshakeToken(peer);
+        if(token != null){
+            conn.mToken = ByteBuffer.wrap(token);
+            mPeersByToken.put(conn.mToken, peer);
+        }
+        conn.transition(PeerRegistry.State.DISCOVERED, PeerRegistry.State.REQUESTING);
+        try {
+            mTransport.publish(peer, mSharedPort, mTransportCallback);
         } catch (IOException e) {
+            removeConnection(peer);
             return false;
         }
         return true;
     }
 
-    public synchronized void removeConnection(PeerHandle handle) {
-        Connection conn =  mConnectionsMap.get(handle);
-        ServerSocketChannel serverChan = null;
-        if(conn == null){
-            return;
+    public void removeConnection(Object peer) {
+        Connection conn = mPeers.get(peer);
+        if(conn != null) drain(conn);
+    }
+
+    private void closeAllConnections(){
+        for(Connection conn : mPeers.values()) drain(conn);
+    }
+
+    /**
+     * Only the thread that moves the peer to DRAINING closes it, the others find it gone.
+     */
+    private void drain(Connection conn){
+        if(conn.moveTo(PeerRegistry.State.DRAINING) == null) return;
+        mPeers.remove(conn);
+        mHub.unsubscribe(conn.getHandle());
+        IoLoop loop = loopFor(conn.getHandle());
+        if(loop.getReadWeight(conn.getHandle()) != IoLoop.DEFAULT_WEIGHT){
+            loop.setReadWeight(conn.getHandle(), IoLoop.DEFAULT_WEIGHT);
         }
-        serverChan = conn.mServerSocketChannel;
-        mSelectorLock.lock();
-        mSelector.wakeup();
-        conn.closeConnection(mSelector);
-        mSelectorLock.unlock();
-        mConnectionsMap.remove(handle);
-        mServerChannelsMap.remove(serverChan);
+        forget(conn);
+        mTransport.release(conn.getHandle());
+        conn.closeConnection();
+        failOutgoing(conn);
+    }
+
+    private void forget(Connection conn){
+        if(conn.mServerSocketChannel != null) mServerChannelsMap.remove(conn.mServerSocketChannel);
+        if(conn.mToken != null) mPeersByToken.remove(conn.mToken, conn.getHandle());
+    }
+
+    /**
+     * @return port advertised to every peer, -1 if each peer has its own or the server is stopped
+     */
+    public int getSharedPort(){
+        return mSharedPort;
+    }
+
+    /**
+     * @return number of listening channels open
+     */
+    public int getListenerCount(){
+        return mSharedListener ? (mSharedPort >= 0 ? 1 : 0) : mServerChannelsMap.size();
+    }
+
+    /**
+     * Connections to the shared port closed because their handshake was invalid, unknown or too late.
+     */
+    public long getHandshakesRejected(){
+        return mHandshakesRejected.get();
+    }
+
+    /**
+     * Loop that owns the data channels of a peer, every channel of the same peer lands on the same loop.
+     */
+    private IoLoop loopFor(Object peer){
+        if(mIoLoops.length == 0) return mAcceptLoop;
+        return mIoLoops[(peer.hashCode() & 0x7fffffff) % mIoLoops.length];
+    }
+
+    public List<IoLoop.Load> getLoopLoads(){
+        List<IoLoop.Load> loads = new ArrayList<>(mIoLoops.length + 1);
+        loads.add(mAcceptLoop.getLoad());
+        for(IoLoop loop : mIoLoops) loads.add(loop.getLoad());
+        return loads;
+    }
+
+    /**
+     * Closes data channels that read nothing for millis, see {@link IoLoop#setIdleTimeout(long)}.
+     * The peer goes back to REQUESTING and its client reconnects; clients keep an idle link open
+     * with their probes ({@link Client#setProbeInterval(long)}). Set it before start().
+     */
+    public void setIdleTimeout(long millis){
+        mAcceptLoop.setIdleTimeout(millis);
+        for(IoLoop loop : mIoLoops) loop.setIdleTimeout(millis);
+    }
+
+    /**
+     * Read budget per round of every loop, see {@link IoLoop#setReadQuantum(int, int)}.
+     */
+    public void setReadQuantum(int bytes, int frames){
+        mAcceptLoop.setReadQuantum(bytes, frames);
+        for(IoLoop loop : mIoLoops) loop.setReadQuantum(bytes, frames);
+    }
+
+    /**
+     * Share of its io loop the peer gets when the loop is saturated, relative to the other peers of
+     * the same loop, see {@link IoLoop#setReadWeight(Object, int)}.
+     * @return false if the peer is not registered
+     */
+    public boolean setReadWeight(Object handle, int weight){
+        Connection conn = mPeers.get(handle);
+        if(conn == null || !conn.isOpen()) return false;
+        IoLoop loop = loopFor(handle);
+        loop.setReadWeight(handle, weight);
+        //Quitado mientras tanto: el peso no se queda en el bucle
+        if(!conn.isOpen()) loop.setReadWeight(handle, IoLoop.DEFAULT_WEIGHT);
+        return true;
+    }
+
+    public BufferPool getBufferPool(){
+        return mBufferPool;
+    }
+
+    public BufferPool getWritePool(){
+        return mWritePool;
+    }
+
+    /**
+     * Stream id to consumer table for incoming frames, streams 0 and 1 feed the two client views
+     * and {@link LatencyProbe#STREAM} is taken by the probes.
+     */
+    public StreamRouter getRouter(){
+        return mRouter;
+    }
+
+    /**
+     * Records every frame received from the peers from now on, see {@link CaptureReplay} to feed
+     * them back through {@link #getRouter()}. A capture already running is stopped first, stop()
+     * stops it too.
+     * @throws IOException if the directory cannot be created
+     */
+    public synchronized CaptureLog startCapture(File directory) throws IOException {
+        stopCapture();
+        CaptureLog capture = new CaptureLog(directory);
+        mCapture = capture;
+        return capture;
+    }
+
+    /**
+     * Stops the capture and waits for its queued frames to be written.
+     * @throws IOException if part of the capture could not be written
+     */
+    public synchronized void stopCapture() throws IOException {
+        CaptureLog capture = mCapture;
+        mCapture = null;
+        if(capture != null) capture.close();
+    }
+
+    /**
+     * Takes the files clients send with {@link Client#sendFile(File, long)} into directory, each on a
+     * connection of its own to the shared port, see {@link Handshake}. null refuses new ones.
+     * @param listener called on the thread of the transfer once a file is complete, can be null
+     */
+    public void setFileDirectory(File directory, FileReceiver.Listener listener){
+        mFileListener = listener;
+        mFileReceiver = directory == null ? null : new FileReceiver(directory);
+    }
+
+    /**
+     * Queues file for the client of the peer, told with FILES_WAITING on its data channel now or
+     * when it connects. The client fetches it on a connection of its own to the shared port, see
+     * {@link Client#setFileDirectory(File, FileReceiver.Listener)}; a transfer cut half way resumes
+     * when it comes back for it, up to MAX_FILE_ATTEMPTS.
+     * @return bytes of the file sent over every attempt; fails if the peer is removed first or the
+     * server has no shared listener
+     */
+    public CompletableFuture<Long> sendFile(Object handle, File file, long transferId){
+        OutgoingFile outgoing = new OutgoingFile(file, transferId);
+        Connection conn = mPeers.get(handle);
+        if(!mSharedListener || conn == null || !conn.isOpen()){
+            outgoing.mResult.completeExceptionally(new IOException(mSharedListener
+                    ? "Peer " + handle + " not registered" : "File transfers need the shared listener"));
+            return outgoing.mResult;
+        }
+        conn.mOutgoing.add(outgoing);
+        //Quitado mientras tanto: no queda nadie que lo pida
+        if(!conn.isOpen()) failOutgoing(conn);
+        else notifyFilesWaiting(conn, conn.mWriter);
+        return outgoing.mResult;
+    }
+
+    /**
+     * Streams whose payloads go through the compression stage, in both directions. The clients
+     * must enable the same ones, see {@link Client#getCompressor()}.
+     */
+    public StreamCompressor getCompressor(){
+        return mCompressor;
+    }
+
+    /**
+     * Relays the frames of streamId received from any peer to the other peers subscribed to the hub,
+     * see {@link #subscribe(Object, FanOutHub.Policy)}. Each frame is encoded once and shared by
+     * every subscriber queue.
+     * @throws IllegalStateException if the stream already has a consumer
+     */
+    public void enableFanOut(int streamId){
+        mRouter.register(streamId, new FanOutConsumer());
+    }
+
+    /**
+     * Subscribes the peer to the relayed streams, across its reconnections until removed.
+     * @param policy what to do when the peer does not keep up
+     * @return false if the peer is not registered
+     */
+    public boolean subscribe(Object handle, FanOutHub.Policy policy){
+        Connection conn = mPeers.get(handle);
+        if(conn == null || !conn.isOpen()) return false;
+        mHub.subscribe(handle, policy);
+        //Quitado mientras tanto: la suscripcion no se queda en el hub
+        if(!conn.isOpen()) mHub.unsubscribe(handle);
+        return true;
+    }
+
+    public void unsubscribe(Object handle){
+        mHub.unsubscribe(handle);
+    }
+
+    public FanOutHub getHub(){
+        return mHub;
+    }
+
+    /**
+     * Queues payload as one frame of the given stream on the data channel of the peer, written by its I/O loop.
+     * The frame must fit in one pooled buffer, see {@link FrameWriter#getMaxPayloadSize()}.
+     * @return false if the peer has no data channel, its queue is over the high watermark or the
+     * payload is too large
+     */
+    public boolean send(Object handle, int streamId, ByteBuffer payload){
+        Connection conn = mPeers.get(handle);
+        if(conn == null) return false;
+        FrameWriter writer = conn.mWriter;
+        boolean queued = writer != null && send(writer, streamId, payload);
+        conn.mMetrics.onSend(queued);
+        return queued;
+    }
+
+    private boolean send(FrameWriter writer, int streamId, ByteBuffer payload){
+        if(!mCompressor.isEnabled(streamId)) return writer.send(streamId, payload);
+        if(payload.remaining() > mCompressor.getMaxBlockSize()) return false;
+        if(!writer.send(streamId, mCompressor.compress(streamId, payload))) return false;
+        payload.position(payload.limit());
+        return true;
+    }
+
+    /**
+     * @return bytes queued and not yet written to the data channels of the peer
+     */
+    public long getQueueDepth(Object handle){
+        Connection conn = mPeers.get(handle);
+        return conn == null ? 0 : conn.getQueueDepth();
     }
 
-    private synchronized void closeAllConnections(){
-        mSelectorLock.lock();
-        for(Connection conn : mConnectionsMap.values()){
-            conn.closeConnection(mSelector);
+    /**
+     * Counters of every selector loop and connection, cheap enough to poll once a second.
+     */
+    public MetricsSnapshot getMetrics(){
+        List<ConnectionMetrics.Snapshot> connections = new ArrayList<>(mPeers.size());
+        for(Connection conn : mPeers.values()){
+            connections.add(conn.mMetrics.snapshot(conn.getHandle(), conn.mChannels.size(), conn.getQueueDepth()));
         }
-        mConnectionsMap.clear();
-        mServerChannelsMap.clear();
-        mSelectorLock.unlock();
+        return new MetricsSnapshot(System.nanoTime(), getLoopLoads(), connections, mRouter.getUnroutedCount(),
+                mRouter.getMalformedCount(), mBufferPool.getInUse(), mWritePool.getInUse());
     }
 
-    private synchronized void accept(@NonNull SelectionKey key){
-        ServerSocketChannel serverChan = (ServerSocketChannel) key.channel();
-        Connection conn = mServerChannelsMap.get(serverChan);
+    /**
+     * Round trip histogram and clock offset of the peer, measured from the pings its client sends.
+     * @return null if the peer has no connection
+     */
+    public LatencyProbe getProbe(Object handle){
+        Connection conn = mPeers.get(handle);
+        return conn == null ? null : conn.mProbe;
+    }
+
+    /**
+     * @return null if the peer has no connection
+     */
+    public ConnectionMetrics getConnectionMetrics(Object handle){
+        Connection conn = mPeers.get(handle);
+        return conn == null ? null : conn.mMetrics;
+    }
+
+    /**
+     * @return null if the peer is not registered (never added, or already removed)
+     */
+    public PeerRegistry.State getPeerState(Object handle){
+        Connection conn = mPeers.get(handle);
+        return conn == null ? null : conn.getState();
+    }
+
+    /**
+     * Registered peers per lifecycle state.
+     */
+    public Map<PeerRegistry.State, Integer> getPeerStateCounts(){
+        return mPeers.getStateCounts();
+    }
+
+    public Map<Object, Long> getQueueDepths(){
+        Map<Object, Long> depths = new HashMap<>();
+        for(Connection conn : mPeers.values()){
+            depths.put(conn.getHandle(), conn.getQueueDepth());
+        }
+        return depths;
+    }
+
+    @Override
+    public void onAccept(IoLoop loop, Object peer, SocketChannel channel) {
+        if(peer == SHARED_LISTENER){
+            onSharedAccept(channel);
+            return;
+        }
+        Connection conn = mPeers.get(peer);
         if(conn == null){
+            closeQuietly(channel);
             return;
         }
-        SocketChannel socketChannel = null;
+        attach(conn, channel);
+    }
+
+    /**
+     * Registers an accepted channel on the loop of its peer. WELCOME is its first frame, clients
+     * that do the handshake wait for it before sending.
+     */
+    private void attach(Connection conn, SocketChannel channel){
+        IoLoop target = loopFor(conn.getHandle());
+        conn.mMetrics.onAccept();
+        FrameWriter writer = target.register(channel, conn.getHandle(), conn.mMetrics);
+        sendWelcome(conn, writer);
+        if(!conn.mOutgoing.isEmpty()) notifyFilesWaiting(conn, writer);
+        conn.mChannels.put(channel, writer);
+        //Si el par se reconecta los envios van al canal mas reciente
+        conn.mWriter = writer;
+        //Si la conexion se cerro mientras tanto puede que no haya visto este canal, los comandos van en orden
+        if(conn.isOpen()) conn.moveTo(PeerRegistry.State.CONNECTED);
+        else target.close(channel);
+    }
+
+    /**
+     * Accept loop only. A connection whose address belongs to a single peer without handshake token
+     * is attached right away, any other one waits on the accept loop for its handshake: with a token
+     * it may be a file transfer instead of a data channel.
+     */
+    private void onSharedAccept(SocketChannel channel){
+        Connection conn = null;
         try {
-            socketChannel = serverChan.accept();
-            socketChannel.configureBlocking(false);// Accept the connection and make it non-blocking
-            socketChannel.register(mSelector, SelectionKey.OP_READ);
-            conn.mComChannels.add(socketChannel);
+            InetAddress remote = ((InetSocketAddress) channel.getRemoteAddress()).getAddress();
+            for(Connection candidate : mPeers.values()){
+                if(candidate.mToken == null && remote.equals(mTransport.getPeerAddress(candidate.getHandle()))){
+                    conn = candidate;
+                    break;
+                }
+            }
         } catch (IOException e) {
-            mConnectionsMap.remove(conn.handle);
-            mServerChannelsMap.remove(serverChan);
-            conn.closeConnection(mSelector);
+            closeQuietly(channel);
+            return;
         }
+        if(conn != null){
+            attach(conn, channel);
+            return;
+        }
+        PendingChannel pending = new PendingChannel(channel);
+        mPending.put(channel, pending);
+        mAcceptLoop.register(channel, pending);
+        mAcceptLoop.schedule(pending.mTimeout, TimeUnit.MILLISECONDS.toNanos(HANDSHAKE_TIMEOUT_MS));
+    }
+
+    /**
+     * Accept loop only, the handshake timer of a channel that never identified itself.
+     */
+    private void expirePending(SocketChannel channel){
+        if(mPending.remove(channel) == null) return;
+        mHandshakesRejected.incrementAndGet();
+        mAcceptLoop.close(channel);
     }
 
-    private void read(@NonNull SelectionKey key){
-        int numRead;
-        SelectableChannel socketChannel = key.channel();
-        mReadBuffer.clear();
+    /**
+     * First frame of a channel accepted on the shared port, on the accept loop. The client sends
+     * nothing else until WELCOME or FILE_READY, so the channel can move to the loop of its peer or
+     * to the thread of a file transfer.
+     */
+    private void onHandshake(SocketChannel channel, ByteBuffer frame){
+        PendingChannel pending = mPending.remove(channel);
+        if(pending == null) return;
+        mAcceptLoop.cancel(pending.mTimeout);
+        Connection conn = null;
+        byte kind = 0;
         try {
-            ByteChannel bChan = (ByteChannel) socketChannel;
-            if(mCanalTextView1 == null){
-                mCanalTextView1 = bChan;
-            }else if(mCanalTextView2 == null) mCanalTextView2 = bChan;
-            numRead = bChan.read(mReadBuffer);
-            if(numRead != -1){
-                byte[] bytes = mReadBuffer.array();
-                String v = new String(bytes, 0, numRead, StandardCharsets.UTF_8);
-                Log.d(TAG, "read: " + v);
-                if(bChan.equals(mCanalTextView1)){
-                    mModel.setClientData1(v);
-                }
-                else if(bChan.equals(mCanalTextView2)){
-                    mModel.setClientData2(v);
-                }
+            if(StreamRouter.readStreamId(frame) == Handshake.STREAM){
+                kind = Handshake.readKind(frame);
+                Object peer = kind == 0 ? null : mPeersByToken.get(Handshake.readToken(frame));
+                if(peer != null) conn = mPeers.get(peer);
+            }
+        } catch (RuntimeException e) {
+            Log.d(TAG, "handshake: invalid frame " + e);
+        }
+        FileReceiver receiver = mFileReceiver;
+        if(conn == null || (kind == Handshake.FILE_PUSH && receiver == null)){
+            mHandshakesRejected.incrementAndGet();
+            mAcceptLoop.close(channel);
+            return;
+        }
+        if(kind == Handshake.HELLO){
+            mAcceptLoop.deregister(channel);
+            attach(conn, channel);
+            return;
+        }
+        OutgoingFile outgoing = null;
+        if(kind == Handshake.FILE_PULL){
+            outgoing = conn.mOutgoing.poll();
+            //Cola vacia: el cliente ve la conexion cerrada sin FILE_READY
+            if(outgoing == null){
+                mAcceptLoop.close(channel);
+                return;
+            }
+        }
+        startFileTransfer(conn, channel, receiver, outgoing);
+    }
+
+    /**
+     * Accept loop. The channel leaves the loop for a thread of its own where the transfer blocks;
+     * the cancelled key is only gone after the next select, so the thread starts from a task that
+     * runs after it.
+     * @param outgoing the file the client pulls, null if it pushes one to receiver
+     */
+    private void startFileTransfer(final Connection conn, final SocketChannel channel, final FileReceiver receiver,
+                                   final OutgoingFile outgoing){
+        mAcceptLoop.deregister(channel);
+        mFileChannels.add(channel);
+        mAcceptLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        runFileTransfer(conn, channel, receiver, outgoing);
+                    }
+                }, "Server-file").start();
+            }
+        });
+    }
 
+    /**
+     * Thread of the transfer: FILE_READY, then the file in the direction the client asked for.
+     */
+    private void runFileTransfer(Connection conn, SocketChannel channel, FileReceiver receiver, OutgoingFile outgoing){
+        try {
+            channel.configureBlocking(true);
+            ByteBuffer ready = ByteBuffer.allocate(FrameEncoder.HEADER_SIZE + 4);
+            int start = FrameEncoder.beginFrame(ready);
+            SampleCodec.putVarint(ready, Handshake.STREAM);
+            ready.put(Handshake.FILE_READY);
+            FrameEncoder.endFrame(ready, start);
+            ready.flip();
+            FileTransfer.writeFully(channel, ready);
+            if(outgoing == null){
+                File file = receiver.receive(channel);
+                FileReceiver.Listener listener = mFileListener;
+                if(listener != null) listener.onFileReceived(conn.getHandle(), file);
+            }
+            else {
+                outgoing.mSender.send(channel, outgoing.mFile, outgoing.mTransferId);
+                outgoing.mResult.complete(outgoing.mSender.getBytesSent());
             }
         } catch (IOException e) {
-            socketChannel.keyFor(mSelector).cancel();
+            Log.d(TAG, "file transfer with " + conn.getHandle() + ": " + e);
+            if(outgoing != null) retry(conn, outgoing, e);
+        } catch (RuntimeException e) {
+            Log.d(TAG, "file transfer with " + conn.getHandle() + ": " + e);
+            if(outgoing != null) outgoing.mResult.completeExceptionally(e);
+        } finally {
+            mFileChannels.remove(channel);
+            closeQuietly(channel);
         }
     }
 
-    public static String bb_to_str(ByteBuffer buffer, Charset charset){
-        byte[] bytes;
-        if(buffer.hasArray()) {
-            bytes = buffer.array();
-        } else {
-            bytes = new byte[buffer.remaining()];
-            buffer.get(bytes);
+    /**
+     * Back to the head of the queue, the client pulls it again and the receiver resumes it.
+     */
+    private void retry(Connection conn, OutgoingFile outgoing, IOException error){
+        if(outgoing.mSender.getAttempts() >= MAX_FILE_ATTEMPTS){
+            outgoing.mResult.completeExceptionally(error);
+            return;
         }
-        return new String(bytes, charset);
+        conn.mOutgoing.addFirst(outgoing);
+        if(!conn.isOpen()) failOutgoing(conn);
     }
 
-    private class Connection{
+    private static void failOutgoing(Connection conn){
+        for(OutgoingFile outgoing = conn.mOutgoing.poll(); outgoing != null; outgoing = conn.mOutgoing.poll()){
+            outgoing.mResult.completeExceptionally(new IOException("Peer " + conn.getHandle() + " removed"));
+        }
+    }
 
-        public Connection(ServerSocketChannel serverChan, PeerHandle handle){
-            mServerSocketChannel = serverChan;
-            this.handle = handle;
-            mComChannels = new ArrayList<>();
+    private void notifyFilesWaiting(Connection conn, FrameWriter writer){
+        if(writer == null) return;
+        ByteBuffer notice = mProbeReplies.get();
+        notice.clear();
+        notice.put(Handshake.FILES_WAITING);
+        notice.flip();
+        conn.mMetrics.onSend(writer.send(Handshake.STREAM, notice));
+    }
+
+    private void sendWelcome(Connection conn, FrameWriter writer){
+        ByteBuffer welcome = mProbeReplies.get();
+        welcome.clear();
+        Handshake.writeWelcome(welcome);
+        welcome.flip();
+        conn.mMetrics.onSend(writer.send(Handshake.STREAM, welcome));
+    }
+
+    @Override
+    public void onFrame(Object peer, SocketChannel channel, ByteBuffer frame) {
+        if(peer instanceof PendingChannel){
+            onHandshake(channel, frame);
+            return;
         }
-        public ServerSocketChannel mServerSocketChannel;
-        public PeerHandle handle;
-        public Network net;
-        public List<SocketChannel> mComChannels;
+        CaptureLog capture = mCapture;
+        if(capture != null) capture.append(peer, frame);
+        if(!mRouter.dispatch(peer, frame)) Log.d(TAG, "read: frame without consumer dropped");
+    }
 
-        public void closeConnection(Selector selector){
-            try {
-                SelectionKey selKey = this.mServerSocketChannel.keyFor(selector);
-                if(selKey != null) selKey.cancel();
-                this.mServerSocketChannel.close();
-                for(SocketChannel chan : this.mComChannels){
-                    selKey = chan.keyFor(selector);
-                    if(selKey != null) selKey.cancel();
-                    chan.close();
+    @Override
+    public void onClosed(Object peer, SelectableChannel channel) {
+        if(peer instanceof PendingChannel){
+            if(mPending.remove(channel) != null) mAcceptLoop.cancel(((PendingChannel) peer).mTimeout);
+            return;
+        }
+        if(peer == SHARED_LISTENER){
+            if(mEnabled) Log.d(TAG, "shared listening channel closed");
+            return;
+        }
+        Connection conn = mPeers.get(peer);
+        if(conn == null) return;
+        if(channel == conn.mServerSocketChannel){
+            if(conn.moveTo(PeerRegistry.State.DRAINING) != null){
+                mPeers.remove(conn);
+                mServerChannelsMap.remove(channel);
+                conn.closeConnection();
+            }
+        }
+        else conn.removeChannel(channel);
+    }
+
+    private static void closeQuietly(SocketChannel channel){
+        try {
+            channel.close();
+        } catch (IOException e) {}
+    }
+
+    public static String bb_to_str(ByteBuffer buffer, Charset charset){
+        return BufferStrings.decode(buffer, charset);
+    }
+
+    /**
+     * HELLO on a channel whose peer was already known, by its own port or its address:
+     * the WELCOME went out on accept, there is nothing left to do. A file transfer asked for there
+     * gets nothing either, its client takes the WELCOME as a refusal.
+     */
+    private class HandshakeConsumer implements StreamRouter.StreamConsumer{
+
+        @Override
+        public void onFrame(Object peer, int streamId, ByteBuffer payload) {}
+    }
+
+    /**
+     * A file queued for the client of a peer until it pulls it.
+     */
+    private static class OutgoingFile{
+        final File mFile;
+        final long mTransferId;
+        //Uno para todos los intentos, cuenta los bytes y los intentos
+        final FileSender mSender = new FileSender();
+        final CompletableFuture<Long> mResult = new CompletableFuture<>();
+
+        OutgoingFile(File file, long transferId){
+            mFile = file;
+            mTransferId = transferId;
+        }
+    }
+
+    /**
+     * Peer key of a channel of the shared port until its handshake.
+     */
+    private class PendingChannel{
+        final TimerWheel.Timeout mTimeout;
+
+        PendingChannel(final SocketChannel channel){
+            mTimeout = new TimerWheel.Timeout(new Runnable() {
+                @Override
+                public void run() {
+                    expirePending(channel);
                 }
-            } catch (IOException e) {}
-            finally {
-                this.mServerSocketChannel = null;
-                this.handle = null;
-                this.net = null;
-                this.mComChannels.clear();
+            });
+        }
+    }
 
+    /**
+     * Answers the pings of the clients, the pong goes back through the outbound queue of the peer.
+     */
+    private class ProbeConsumer implements StreamRouter.StreamConsumer{
+
+        @Override
+        public void onFrame(Object peer, int streamId, ByteBuffer payload) {
+            Connection conn = mPeers.get(peer);
+            if(conn == null) return;
+            ByteBuffer reply = mProbeReplies.get();
+            reply.clear();
+            try {
+                if(!conn.mProbe.onProbe(payload, reply)) return;
+            } catch (RuntimeException e) {
+                Log.d(TAG, "read: invalid probe " + e);
+                return;
             }
+            reply.flip();
+            send(peer, LatencyProbe.STREAM, reply);
         }
     }
 
-    private class WifiAwareNetworkCallback extends ConnectivityManager.NetworkCallback{
+    /**
+     * Hands the frames of a relayed stream to the hub, compressed again if the stream is.
+     */
+    private class FanOutConsumer implements StreamRouter.StreamConsumer{
+
+        @Override
+        public void onFrame(Object peer, int streamId, ByteBuffer payload) {
+            if(mCompressor.isEnabled(streamId)) payload = mCompressor.compress(streamId, payload);
+            mHub.publish(peer, streamId, payload);
+        }
+    }
 
-        PeerHandle mConnectionHandle;
+    /**
+     * Decodes samples of a stream and shows them in one of the client views.
+     */
+    private class ViewModelConsumer implements StreamRouter.StreamConsumer{
 
-        public WifiAwareNetworkCallback(PeerHandle connectionHandle){
-            this.mConnectionHandle = connectionHandle;
+        private final int mView;
+
+        public ViewModelConsumer(int view){
+            mView = view;
         }
 
         @Override
-        public void onAvailable(@NonNull Network network) {
-            synchronized (Server.this){
-                Connection conn = mConnectionsMap.get(mConnectionHandle);
-                if(conn == null){
-                    return;
-                }
-                conn.net = network;
+        public void onFrame(Object peer, int streamId, ByteBuffer payload) {
+            SampleCodec.Sample sample = mSamples.get();
+            try {
+                SampleCodec.decode(payload, sample);
+            } catch (RuntimeException e) {
+                Log.d(TAG, "read: invalid sample " + e);
+                return;
             }
+            //Solo se crea el String para la vista
+            String v = sample.valueToString();
+            if(mView == 1) mModel.setClientData1(v);
+            else mModel.setClientData2(v);
         }
+    }
 
+    private class Connection extends PeerRegistry.Peer{
 
-        @Override
-        public void onLost(@NonNull Network network) {
-            mConManager.unregisterNetworkCallback(this);
-            removeConnection(mConnectionHandle);
+        public Connection(ServerSocketChannel serverChan, Object handle){
+            super(handle);
+            mServerSocketChannel = serverChan;
+            mChannels = new ConcurrentHashMap<>();
+        }
+        public final ServerSocketChannel mServerSocketChannel;
+        public volatile boolean mAvailable = false;
+        //Todos los streams van multiplexados en un canal, puede haber mas de uno durante una reconexion
+        public final ConcurrentMap<SocketChannel, FrameWriter> mChannels;
+        public volatile FrameWriter mWriter = null;
+        public final ConnectionMetrics mMetrics = new ConnectionMetrics();
+        public final LatencyProbe mProbe = new LatencyProbe();
+        //Token del handshake en el puerto compartido, null si no hay
+        public volatile ByteBuffer mToken = null;
+        //Ficheros que el cliente tiene que venir a buscar
+        public final Deque<OutgoingFile> mOutgoing = new ConcurrentLinkedDeque<>();
+
+        public long getQueueDepth(){
+            long depth = 0;
+            for(FrameWriter writer : mChannels.values()){
+                depth += writer.getPendingBytes();
+            }
+            return depth;
+        }
+
+        public void removeChannel(SelectableChannel channel){
+            FrameWriter writer = mChannels.remove(channel);
+            if(writer != null && writer == mWriter){
+                //Los envios vuelven al canal que quede, si el que se cierra era el mas reciente
+                Iterator<FrameWriter> rest = mChannels.values().iterator();
+                mWriter = rest.hasNext() ? rest.next() : null;
+            }
+            //El cliente vuelve a conectar por su cuenta
+            if(writer != null && mChannels.isEmpty()) transition(PeerRegistry.State.CONNECTED, PeerRegistry.State.REQUESTING);
+        }
+
+        /**
+         * Called by the thread that moved the peer to DRAINING.
+         */
+        public void closeConnection(){
+            if(this.mServerSocketChannel != null) mAcceptLoop.close(this.mServerSocketChannel);
+            closeChannels();
+            moveTo(PeerRegistry.State.CLOSED);
+        }
+
+        /**
+         * Closes the data channel of writer, onClosed() updates the peer.
+         */
+        public void closeChannel(FrameWriter writer){
+            for(Map.Entry<SocketChannel, FrameWriter> entry : this.mChannels.entrySet()){
+                if(entry.getValue() == writer) loopFor(getHandle()).close(entry.getKey());
+            }
+        }
+
+        public void closeChannels(){
+            IoLoop loop = loopFor(getHandle());
+            this.mAvailable = false;
+            this.mWriter = null;
+            //Solo se quitan los canales que se cierran, uno aceptado mientras tanto sigue en el mapa
+            for(SocketChannel chan : this.mChannels.keySet()){
+                if(this.mChannels.remove(chan) != null) loop.close(chan);
+            }
         }
     }
 }
@@ -0,0 +1,77 @@
+package com.example.wifiawarecom;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One frame encoded once into a pooled buffer and queued to many writers, each one gets a read-only
+ * view of the same bytes (see {@link FrameWriter#send(SharedFrame)}). Reference counted: the creator
+ * holds the first reference, every writer takes one while the frame is queued, and the buffer goes
+ * back to the pool with the last release.
+ */
+public final class SharedFrame {
+
+    private final BufferPool mPool;
+    private final ByteBuffer mFrame;
+    private final AtomicInteger mRefs = new AtomicInteger(1);
+
+    private SharedFrame(BufferPool pool, ByteBuffer frame){
+        mPool = pool;
+        mFrame = frame;
+    }
+
+    /**
+     * Encodes the remaining bytes of payload as a frame of streamId, payload is consumed on success.
+     * @return null if the pool is exhausted
+     * @throws IllegalArgumentException if the frame does not fit in a pooled buffer
+     */
+    public static SharedFrame encode(BufferPool pool, int streamId, ByteBuffer payload){
+        StreamRouter.checkStreamId(streamId);
+        int size = frameSize(streamId, payload);
+        if(size > pool.getBufferSize()){
+            throw new IllegalArgumentException("Frame of " + size + " bytes does not fit in a pooled buffer");
+        }
+        ByteBuffer buffer = pool.lease();
+        if(buffer == null) return null;
+        FrameEncoder.encode(buffer, streamId, payload);
+        buffer.flip();
+        return new SharedFrame(pool, buffer);
+    }
+
+    /**
+     * Bytes the remaining bytes of payload take as a frame of streamId, header included.
+     */
+    public static int frameSize(int streamId, ByteBuffer payload){
+        return FrameEncoder.HEADER_SIZE + SampleCodec.varintSize(streamId) + payload.remaining();
+    }
+
+    /**
+     * Bytes of the whole frame, header included.
+     */
+    public int size(){
+        return mFrame.limit();
+    }
+
+    /**
+     * Read-only view of the frame from its first byte, positions are shared with no one.
+     */
+    ByteBuffer view(){
+        return mFrame.asReadOnlyBuffer();
+    }
+
+    public int getRefCount(){
+        return mRefs.get();
+    }
+
+    public void retain(){
+        if(mRefs.getAndIncrement() <= 0){
+            throw new IllegalStateException("Frame already released");
+        }
+    }
+
+    public void release(){
+        int left = mRefs.decrementAndGet();
+        if(left == 0) mPool.release(mFrame);
+        else if(left < 0) throw new IllegalStateException("Frame released more times than retained");
+    }
+}
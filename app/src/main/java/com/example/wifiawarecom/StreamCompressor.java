@@ -0,0 +1,304 @@
+package com.example.wifiawarecom;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Optional compression stage for the payloads of selected streams, both ends must enable the same
+ * streams. Each payload of a compressed stream starts with a flag byte: {@link #RAW} and the payload
+ * as is, or {@link #DEFLATE}, the raw length as a varint and the payload deflated as a block of its
+ * own, so every frame can be inflated without the ones before it.
+ * The ratio is measured per stream: when deflating stops paying the stream is bypassed and sends
+ * RAW, deflating one frame in {@link #PROBE_INTERVAL} to notice when the data changes.
+ * Deflater and Inflater instances are kept per thread and reused, any thread can compress.
+ */
+public class StreamCompressor {
+
+    public static final byte RAW = 0;
+    public static final byte DEFLATE = 1;
+    public static final int DEFAULT_MAX_BLOCK_SIZE = 64 * 1024;
+    public static final double DEFAULT_MAX_RATIO = 0.9;
+    //Por debajo la cabecera de deflate se come lo que se ahorra
+    static final int MIN_COMPRESS_SIZE = 64;
+    static final int PROBE_INTERVAL = 32;
+    private static final double RATIO_WEIGHT = 0.25;
+    private static final int INITIAL_TABLE_SIZE = 16;
+
+    /**
+     * Counters of the frames one stream sent.
+     */
+    public static final class Stats {
+        private final AtomicLong mRawBytes = new AtomicLong();
+        private final AtomicLong mWireBytes = new AtomicLong();
+        private final AtomicLong mFramesDeflated = new AtomicLong();
+        private final AtomicLong mFramesRaw = new AtomicLong();
+        private final AtomicLong mDeflateNanos = new AtomicLong();
+        private final AtomicLong mSinceProbe = new AtomicLong();
+        //Media aproximada, varios productores pueden pisarse una muestra
+        private volatile double mRatio = -1;
+        private volatile boolean mBypassed = false;
+
+        private void onDeflated(int length, int deflated, long nanos, double maxRatio){
+            double ratio = deflated < 0 ? 1.0 : (double) deflated / length;
+            double average = mRatio;
+            average = average < 0 ? ratio : average + RATIO_WEIGHT * (ratio - average);
+            mRatio = average;
+            mBypassed = average > maxRatio;
+            mDeflateNanos.addAndGet(nanos);
+        }
+
+        private void onSent(int length, int wire, boolean deflated){
+            mRawBytes.addAndGet(length);
+            mWireBytes.addAndGet(wire);
+            (deflated ? mFramesDeflated : mFramesRaw).incrementAndGet();
+        }
+
+        public long getRawBytes(){
+            return mRawBytes.get();
+        }
+
+        /**
+         * Payload bytes after the stage, flag and length included.
+         */
+        public long getWireBytes(){
+            return mWireBytes.get();
+        }
+
+        public long getFramesDeflated(){
+            return mFramesDeflated.get();
+        }
+
+        public long getFramesRaw(){
+            return mFramesRaw.get();
+        }
+
+        /**
+         * Time spent deflating, frames that were sent raw in the end included.
+         */
+        public long getDeflateNanos(){
+            return mDeflateNanos.get();
+        }
+
+        /**
+         * Moving average of deflated / raw size, -1 before the first measure.
+         */
+        public double getRatio(){
+            return mRatio;
+        }
+
+        public boolean isBypassed(){
+            return mBypassed;
+        }
+    }
+
+    private static final class Codec {
+        final Deflater mDeflater = new Deflater(Deflater.BEST_SPEED, true);
+        final Inflater mInflater = new Inflater(true);
+        byte[] mInput = new byte[0];
+        //Separados: lo que se recibe inflado se puede reenviar comprimido desde el mismo hilo
+        byte[] mDeflated = new byte[0];
+        byte[] mInflated = new byte[0];
+
+        byte[] deflated(int size){
+            if(mDeflated.length < size) mDeflated = new byte[size];
+            return mDeflated;
+        }
+
+        byte[] inflated(int size){
+            if(mInflated.length < size) mInflated = new byte[size];
+            return mInflated;
+        }
+    }
+
+    private final int mMaxBlockSize;
+    private final double mMaxRatio;
+    private volatile Stats[] mTable = new Stats[INITIAL_TABLE_SIZE];
+    private final AtomicLong mCorrupted = new AtomicLong();
+    private final ThreadLocal<Codec> mCodecs = new ThreadLocal<Codec>(){
+        @Override
+        protected Codec initialValue() {
+            return new Codec();
+        }
+    };
+
+    public StreamCompressor(){
+        this(DEFAULT_MAX_BLOCK_SIZE, DEFAULT_MAX_RATIO);
+    }
+
+    /**
+     * @param maxBlockSize largest raw payload, bigger ones are refused on both ends
+     * @param maxRatio average deflated / raw size above which a stream is bypassed
+     */
+    public StreamCompressor(int maxBlockSize, double maxRatio){
+        if(maxBlockSize <= 0 || maxRatio <= 0){
+            throw new IllegalArgumentException("maxBlockSize and maxRatio must be positive");
+        }
+        mMaxBlockSize = maxBlockSize;
+        mMaxRatio = maxRatio;
+    }
+
+    /**
+     * Compresses the payloads of streamId from now on, in both directions.
+     */
+    public synchronized void enable(int streamId){
+        StreamRouter.checkStreamId(streamId);
+        Stats[] table = mTable;
+        if(streamId < table.length && table[streamId] != null) return;
+        int size = table.length;
+        while(size <= streamId) size *= 2;
+        Stats[] copy = Arrays.copyOf(table, Math.min(size, StreamRouter.MAX_STREAM_ID + 1));
+        copy[streamId] = new Stats();
+        mTable = copy;
+    }
+
+    public synchronized void disable(int streamId){
+        Stats[] table = mTable;
+        if(streamId < 0 || streamId >= table.length || table[streamId] == null) return;
+        Stats[] copy = table.clone();
+        copy[streamId] = null;
+        mTable = copy;
+    }
+
+    public boolean isEnabled(int streamId){
+        return getStats(streamId) != null;
+    }
+
+    /**
+     * @return null if the stream is not compressed
+     */
+    public Stats getStats(int streamId){
+        Stats[] table = mTable;
+        return streamId >= 0 && streamId < table.length ? table[streamId] : null;
+    }
+
+    /**
+     * Frames of compressed streams that could not be inflated.
+     */
+    public long getCorruptedCount(){
+        return mCorrupted.get();
+    }
+
+    /**
+     * Largest payload compress() and decompress() accept.
+     */
+    public int getMaxBlockSize(){
+        return mMaxBlockSize;
+    }
+
+    /**
+     * Runs the remaining bytes of payload through the stage, payload is not consumed.
+     * @return the payload to send, owned by the calling thread until its next call
+     * @throws IllegalArgumentException if the stream is not compressed or payload is over the max block size
+     */
+    public ByteBuffer compress(int streamId, ByteBuffer payload){
+        Stats stats = getStats(streamId);
+        if(stats == null) throw new IllegalArgumentException("Stream " + streamId + " is not compressed");
+        int length = payload.remaining();
+        if(length > mMaxBlockSize){
+            throw new IllegalArgumentException("Payload of " + length + " bytes over the max block size");
+        }
+        Codec codec = mCodecs.get();
+        byte[] out = codec.deflated(1 + SampleCodec.MAX_VARINT_SIZE + length);
+        boolean attempt = length >= MIN_COMPRESS_SIZE
+                && (!stats.mBypassed || stats.mSinceProbe.incrementAndGet() % PROBE_INTERVAL == 0);
+        if(attempt){
+            ByteBuffer header = ByteBuffer.wrap(out);
+            header.put(DEFLATE);
+            SampleCodec.putVarint(header, length);
+            int start = header.position();
+            long begin = System.nanoTime();
+            int deflated = deflate(codec, payload, out, start, length - start);
+            stats.onDeflated(length, deflated, System.nanoTime() - begin, mMaxRatio);
+            if(deflated >= 0){
+                stats.onSent(length, start + deflated, true);
+                return ByteBuffer.wrap(out, 0, start + deflated);
+            }
+        }
+        out[0] = RAW;
+        payload.duplicate().get(out, 1, length);
+        stats.onSent(length, 1 + length, false);
+        return ByteBuffer.wrap(out, 0, 1 + length);
+    }
+
+    /**
+     * @return bytes written at offset, -1 if they do not fit in capacity (deflating does not pay)
+     */
+    private static int deflate(Codec codec, ByteBuffer payload, byte[] out, int offset, int capacity){
+        if(capacity <= 0) return -1;
+        Deflater deflater = codec.mDeflater;
+        int length = payload.remaining();
+        if(payload.hasArray()){
+            deflater.setInput(payload.array(), payload.arrayOffset() + payload.position(), length);
+        } else {
+            if(codec.mInput.length < length) codec.mInput = new byte[length];
+            payload.duplicate().get(codec.mInput, 0, length);
+            deflater.setInput(codec.mInput, 0, length);
+        }
+        deflater.finish();
+        int written = 0;
+        while(!deflater.finished() && written < capacity){
+            written += deflater.deflate(out, offset + written, capacity - written);
+        }
+        boolean finished = deflater.finished();
+        deflater.reset();
+        return finished ? written : -1;
+    }
+
+    /**
+     * Undoes {@link #compress(int, ByteBuffer)} on the payload of a received frame, consuming it.
+     * @return the raw payload, a view of payload or owned by the calling thread until its next call
+     * @throws IllegalArgumentException if the frame is malformed or cannot be inflated
+     */
+    public ByteBuffer decompress(int streamId, ByteBuffer payload){
+        try {
+            return inflate(payload);
+        } catch (RuntimeException e) {
+            mCorrupted.incrementAndGet();
+            throw new IllegalArgumentException("Invalid frame on compressed stream " + streamId, e);
+        }
+    }
+
+    private ByteBuffer inflate(ByteBuffer payload){
+        byte flag = payload.get();
+        if(flag == RAW){
+            if(payload.remaining() > mMaxBlockSize) throw new IllegalArgumentException("Block too large");
+            return payload.slice();
+        }
+        if(flag != DEFLATE) throw new IllegalArgumentException("Unknown flag " + flag);
+        long length = SampleCodec.getVarint(payload);
+        if(length > mMaxBlockSize) throw new IllegalArgumentException("Block of " + length + " bytes");
+        Codec codec = mCodecs.get();
+        Inflater inflater = codec.mInflater;
+        int size = payload.remaining();
+        if(payload.hasArray()){
+            inflater.setInput(payload.array(), payload.arrayOffset() + payload.position(), size);
+        } else {
+            if(codec.mInput.length < size) codec.mInput = new byte[size];
+            payload.get(codec.mInput, 0, size);
+            inflater.setInput(codec.mInput, 0, size);
+        }
+        payload.position(payload.limit());
+        byte[] out = codec.inflated((int) length);
+        int inflated = 0;
+        try {
+            while(inflated < length){
+                int n = inflater.inflate(out, inflated, (int) length - inflated);
+                if(n == 0 && (inflater.needsInput() || inflater.finished() || inflater.needsDictionary())) break;
+                inflated += n;
+            }
+            //Ni mas ni menos de lo anunciado
+            if(inflated != length || (!inflater.finished() && inflater.getRemaining() > 0)){
+                throw new IllegalArgumentException("Block does not inflate to " + length + " bytes");
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        } finally {
+            inflater.reset();
+        }
+        return ByteBuffer.wrap(out, 0, inflated);
+    }
+}
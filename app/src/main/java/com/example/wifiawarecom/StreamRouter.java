@@ -0,0 +1,126 @@
+package com.example.wifiawarecom;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Routing table from stream id to consumer for frames multiplexed over one socket. Each frame payload
+ * starts with its stream id as a varint (1 to 3 bytes for ids up to {@link #MAX_STREAM_ID}).
+ * The table is a copy-on-write array indexed by id: lookups from the I/O threads take no lock,
+ * registration copies the array and is meant to be rare.
+ */
+public class StreamRouter {
+
+    public static final int MAX_STREAM_ID = 0xFFFF;
+    private static final int INITIAL_TABLE_SIZE = 16;
+
+    public interface StreamConsumer {
+        /**
+         * Called on the I/O thread that read the frame. The payload is only valid during the call.
+         */
+        void onFrame(Object peer, int streamId, ByteBuffer payload);
+    }
+
+    private volatile StreamConsumer[] mTable = new StreamConsumer[INITIAL_TABLE_SIZE];
+    private volatile StreamConsumer mDefaultConsumer = null;
+    private volatile StreamCompressor mCompressor = null;
+    private final AtomicLong mUnrouted = new AtomicLong();
+    private final AtomicLong mMalformed = new AtomicLong();
+
+    /**
+     * @throws IllegalArgumentException if streamId is out of range
+     * @throws IllegalStateException if the stream already has a consumer
+     */
+    public synchronized void register(int streamId, StreamConsumer consumer){
+        checkStreamId(streamId);
+        StreamConsumer[] table = mTable;
+        if(streamId < table.length && table[streamId] != null){
+            throw new IllegalStateException("Stream " + streamId + " already registered");
+        }
+        int size = table.length;
+        while(size <= streamId) size *= 2;
+        StreamConsumer[] copy = Arrays.copyOf(table, Math.min(size, MAX_STREAM_ID + 1));
+        copy[streamId] = consumer;
+        mTable = copy;
+    }
+
+    public synchronized void unregister(int streamId){
+        StreamConsumer[] table = mTable;
+        if(streamId < 0 || streamId >= table.length || table[streamId] == null) return;
+        StreamConsumer[] copy = table.clone();
+        copy[streamId] = null;
+        mTable = copy;
+    }
+
+    /**
+     * Receives frames of streams without a consumer, by default they are counted and dropped.
+     */
+    public void setDefaultConsumer(StreamConsumer consumer){
+        mDefaultConsumer = consumer;
+    }
+
+    /**
+     * Frames of the streams compressor has enabled are decompressed before reaching their consumer,
+     * the ones that cannot be count as malformed. null to stop.
+     */
+    public void setCompressor(StreamCompressor compressor){
+        mCompressor = compressor;
+    }
+
+    /**
+     * Reads the stream id of frame and hands the rest of the payload to its consumer.
+     * @return false if the frame was malformed or nobody consumed it
+     */
+    public boolean dispatch(Object peer, ByteBuffer frame){
+        int streamId;
+        try {
+            streamId = readStreamId(frame);
+        } catch (RuntimeException e) {
+            mMalformed.incrementAndGet();
+            return false;
+        }
+        StreamCompressor compressor = mCompressor;
+        if(compressor != null && compressor.isEnabled(streamId)){
+            try {
+                frame = compressor.decompress(streamId, frame);
+            } catch (IllegalArgumentException e) {
+                mMalformed.incrementAndGet();
+                return false;
+            }
+        }
+        StreamConsumer[] table = mTable;
+        StreamConsumer consumer = streamId < table.length ? table[streamId] : null;
+        if(consumer == null) consumer = mDefaultConsumer;
+        if(consumer == null){
+            mUnrouted.incrementAndGet();
+            return false;
+        }
+        consumer.onFrame(peer, streamId, frame);
+        return true;
+    }
+
+    /**
+     * Consumes the stream id at the position of frame.
+     * @throws IllegalArgumentException if it is malformed or out of range
+     */
+    public static int readStreamId(ByteBuffer frame){
+        long id = SampleCodec.getVarint(frame);
+        if(id > MAX_STREAM_ID) throw new IllegalArgumentException("Invalid stream id: " + id);
+        return (int) id;
+    }
+
+    public static void checkStreamId(int streamId){
+        if(streamId < 0 || streamId > MAX_STREAM_ID){
+            throw new IllegalArgumentException("Invalid stream id: " + streamId);
+        }
+    }
+
+    public long getUnroutedCount(){
+        return mUnrouted.get();
+    }
+
+    public long getMalformedCount(){
+        return mMalformed.get();
+    }
+}
@@ -0,0 +1,199 @@
+package com.example.wifiawarecom;
+
+/**
+ * Hashed timing wheel for the timers of a single thread, usually a selector loop that sizes its
+ * select timeout with {@link #nanosUntilNext(long)} and calls {@link #advance(long)} after it.
+ * Scheduling and cancelling are O(1): a timer is linked into the slot of its deadline tick, timers
+ * further away than one turn share the slot and wait for their turn. Timers never fire early and
+ * fire at most one tick late, counted from the call to advance.
+ * A {@link Timeout} can be scheduled again and again, a periodic timer allocates nothing.
+ * Not thread safe.
+ */
+public class TimerWheel {
+
+    /**
+     * A task and its place in the wheel.
+     */
+    public static class Timeout {
+
+        private final Runnable mTask;
+        private Timeout mPrev;
+        private Timeout mNext;
+        //Indice de la lista en la que esta, NONE si no esta programado
+        private int mList = NONE;
+        private long mTick;
+
+        public Timeout(Runnable task){
+            mTask = task;
+        }
+
+        public boolean isPending(){
+            return mList != NONE;
+        }
+    }
+
+    private static final int NONE = -1;
+
+    private final long mTickNanos;
+    private final long mOrigin;
+    private final int mMask;
+    //Una lista por hueco y al final la de los que van a saltar en este advance
+    private final Timeout[] mHeads;
+    private final int mExpired;
+    //Huecos no vacios, para buscar el siguiente sin recorrer la rueda
+    private final long[] mOccupied;
+    private long mTick = 0;
+    private int mPending = 0;
+
+    /**
+     * @param tickNanos resolution of the deadlines
+     * @param slots slots in the wheel, a power of two; timers within slots ticks cost no extra walks
+     * @param startNanos time of tick 0, in the clock later passed to schedule and advance
+     */
+    public TimerWheel(long tickNanos, int slots, long startNanos){
+        if(tickNanos <= 0 || slots < 64 || Integer.bitCount(slots) != 1){
+            throw new IllegalArgumentException("Tick must be positive and slots a power of two of at least 64");
+        }
+        mTickNanos = tickNanos;
+        mOrigin = startNanos;
+        mMask = slots - 1;
+        mHeads = new Timeout[slots + 1];
+        mExpired = slots;
+        mOccupied = new long[slots / 64];
+    }
+
+    public long getTickNanos(){
+        return mTickNanos;
+    }
+
+    /**
+     * Timers scheduled and not fired or cancelled yet.
+     */
+    public int size(){
+        return mPending;
+    }
+
+    /**
+     * Schedules timeout to fire in the first advance at or after deadlineNanos, moving it if it was
+     * already pending. A deadline in the past fires in the next advance.
+     */
+    public void schedule(Timeout timeout, long deadlineNanos){
+        if(timeout.mList != NONE) unlink(timeout);
+        long offset = deadlineNanos - mOrigin;
+        //Redondeo hacia arriba, nunca antes de tiempo
+        long tick = offset <= 0 ? 0 : (offset + mTickNanos - 1) / mTickNanos;
+        if(tick <= mTick) tick = mTick + 1;
+        timeout.mTick = tick;
+        link(timeout, (int) (tick & mMask));
+        ++mPending;
+    }
+
+    /**
+     * @return false if timeout was not pending
+     */
+    public boolean cancel(Timeout timeout){
+        if(timeout.mList == NONE) return false;
+        unlink(timeout);
+        return true;
+    }
+
+    /**
+     * @return nanos from nowNanos to the next slot with timers, 0 if it is due, -1 if there are none.
+     *         The timers of that slot can belong to a later turn, then advance fires nothing.
+     */
+    public long nanosUntilNext(long nowNanos){
+        if(mPending == 0) return -1;
+        if(mHeads[mExpired] != null) return 0;
+        int slots = mMask + 1;
+        int start = (int) ((mTick + 1) & mMask);
+        //Desde start hasta el final y luego desde el principio
+        int found = nextOccupied(start, slots);
+        long distance;
+        if(found >= 0) distance = found - start;
+        else {
+            found = nextOccupied(0, start);
+            distance = slots - start + found;
+        }
+        long deadline = mOrigin + (mTick + 1 + distance) * mTickNanos;
+        return Math.max(0, deadline - nowNanos);
+    }
+
+    private int nextOccupied(int from, int to){
+        int word = from >>> 6;
+        long bits = mOccupied[word] & (-1L << (from & 63));
+        while(true){
+            if(bits != 0){
+                int slot = (word << 6) + Long.numberOfTrailingZeros(bits);
+                return slot < to ? slot : -1;
+            }
+            if(++word << 6 >= to) return -1;
+            bits = mOccupied[word];
+        }
+    }
+
+    /**
+     * Fires every timer whose deadline tick has passed at nowNanos, in the calling thread. A task
+     * can schedule or cancel any timer, itself included; what it schedules fires in a later advance.
+     * @return timers fired
+     */
+    public int advance(long nowNanos){
+        long now = (nowNanos - mOrigin) / mTickNanos;
+        if(now > mTick){
+            //Una vuelta como mucho, cada hueco se mira una vez aunque se hayan saltado varias
+            long from = Math.max(mTick + 1, now - mMask);
+            mTick = now;
+            for(long tick = from; tick <= now; ++tick){
+                int slot = (int) (tick & mMask);
+                Timeout timeout = mHeads[slot];
+                while(timeout != null){
+                    Timeout next = timeout.mNext;
+                    if(timeout.mTick <= now){
+                        unlink(timeout);
+                        link(timeout, mExpired);
+                        ++mPending;
+                    }
+                    timeout = next;
+                }
+            }
+        }
+        int fired = 0;
+        Timeout timeout;
+        while((timeout = mHeads[mExpired]) != null){
+            unlink(timeout);
+            timeout.mTask.run();
+            ++fired;
+        }
+        return fired;
+    }
+
+    /**
+     * Cancels every pending timer.
+     */
+    public void clear(){
+        for(int list = 0; list < mHeads.length; ++list){
+            while(mHeads[list] != null) unlink(mHeads[list]);
+        }
+    }
+
+    private void link(Timeout timeout, int list){
+        Timeout head = mHeads[list];
+        timeout.mList = list;
+        timeout.mPrev = null;
+        timeout.mNext = head;
+        if(head != null) head.mPrev = timeout;
+        mHeads[list] = timeout;
+        if(list != mExpired) mOccupied[list >>> 6] |= 1L << (list & 63);
+    }
+
+    private void unlink(Timeout timeout){
+        int list = timeout.mList;
+        if(timeout.mPrev != null) timeout.mPrev.mNext = timeout.mNext;
+        else mHeads[list] = timeout.mNext;
+        if(timeout.mNext != null) timeout.mNext.mPrev = timeout.mPrev;
+        timeout.mPrev = null;
+        timeout.mNext = null;
+        timeout.mList = NONE;
+        --mPending;
+        if(list != mExpired && mHeads[list] == null) mOccupied[list >>> 6] &= ~(1L << (list & 63));
+    }
+}
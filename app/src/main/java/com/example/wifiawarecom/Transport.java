@@ -0,0 +1,66 @@
+package com.example.wifiawarecom;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+
+/**
+ * How a data path to a peer is obtained, kept apart from the NIO code that runs over it.
+ * A peer is an opaque key (a PeerHandle with Wi-Fi Aware) naming the link on each side.
+ */
+public interface Transport {
+
+    interface Callback {
+        /**
+         * The data path to peer is up. On the subscriber side address is where the publisher
+         * accepts connections, on the publisher side it is null.
+         */
+        void onAvailable(Object peer, InetSocketAddress address);
+
+        /**
+         * The data path to peer went away. The request stays up: onAvailable() is reported again
+         * if the path comes back, until release().
+         */
+        void onLost(Object peer);
+    }
+
+    /**
+     * Local address for the listening channels of the publisher, port 0 picks one.
+     */
+    InetSocketAddress getBindAddress();
+
+    /**
+     * Publisher side: requests a data path to peer, which will connect to the given port.
+     */
+    void publish(Object peer, int port, Callback callback) throws IOException;
+
+    /**
+     * Subscriber side: requests a data path to the publisher peer.
+     */
+    void subscribe(Object peer, Callback callback) throws IOException;
+
+    /**
+     * Subscriber side: opens an unconnected channel whose traffic goes through the data path to peer.
+     */
+    SocketChannel openChannel(Object peer) throws IOException;
+
+    /**
+     * Publisher side: address the connections of peer come from, to tell them apart on a shared
+     * listening port. Null if it is not known (yet), or not unique to the peer.
+     */
+    InetAddress getPeerAddress(Object peer);
+
+    /**
+     * Bytes naming the link to peer that are the same on both sides. The client sends them in a
+     * handshake frame so a shared listening port can match the connection to peer, null if the
+     * transport has no such token (matching then relies on {@link #getPeerAddress(Object)}).
+     */
+    byte[] getHandshakeToken(Object peer);
+
+    /**
+     * Gives up the data path requested for peer, on either side. onLost() may still be reported
+     * for it afterwards, handling it has to be idempotent.
+     */
+    void release(Object peer);
+}
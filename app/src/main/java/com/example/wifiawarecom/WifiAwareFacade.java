@@ -0,0 +1,126 @@
+package com.example.wifiawarecom;
+
+import android.net.ConnectivityManager;
+import android.net.wifi.aware.AttachCallback;
+import android.net.wifi.aware.DiscoverySession;
+import android.net.wifi.aware.DiscoverySessionCallback;
+import android.net.wifi.aware.PeerHandle;
+import android.net.wifi.aware.PublishConfig;
+import android.net.wifi.aware.PublishDiscoverySession;
+import android.net.wifi.aware.SubscribeConfig;
+import android.net.wifi.aware.SubscribeDiscoverySession;
+import android.net.wifi.aware.WifiAwareManager;
+import android.net.wifi.aware.WifiAwareSession;
+import android.os.Handler;
+
+import androidx.annotation.NonNull;
+
+import java.util.List;
+
+/**
+ * AwareFacade over the platform managers, every callback runs on the given Handler.
+ */
+public class WifiAwareFacade implements AwareFacade {
+
+    private final WifiAwareManager mManager;
+    private final ConnectivityManager mConManager;
+    private final Handler mHandler;
+
+    public WifiAwareFacade(WifiAwareManager manager, ConnectivityManager conManager, Handler handler){
+        mManager = manager;
+        mConManager = conManager;
+        mHandler = handler;
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return mManager.isAvailable();
+    }
+
+    @Override
+    public void attach(final AttachListener listener) {
+        mManager.attach(new AttachCallback(){
+            @Override
+            public void onAttached(WifiAwareSession session) {
+                listener.onAttached(session);
+            }
+
+            @Override
+            public void onAttachFailed() {
+                listener.onAttachFailed();
+            }
+        }, mHandler);
+    }
+
+    @Override
+    public void publish(Object session, String serviceName, final DiscoveryListener listener) {
+        PublishConfig config = new PublishConfig.Builder().setServiceName(serviceName).build();
+        ((WifiAwareSession) session).publish(config, new Callback(listener){
+            @Override
+            public void onPublishStarted(@NonNull PublishDiscoverySession session) {
+                listener.onStarted(session);
+            }
+        }, mHandler);
+    }
+
+    @Override
+    public void subscribe(Object session, String serviceName, final DiscoveryListener listener) {
+        SubscribeConfig config = new SubscribeConfig.Builder().setServiceName(serviceName).build();
+        ((WifiAwareSession) session).subscribe(config, new Callback(listener){
+            @Override
+            public void onSubscribeStarted(@NonNull SubscribeDiscoverySession session) {
+                listener.onStarted(session);
+            }
+        }, mHandler);
+    }
+
+    @Override
+    public void sendMessage(Object discoverySession, Object peer, int messageId, byte[] message) {
+        ((DiscoverySession) discoverySession).sendMessage((PeerHandle) peer, messageId, message);
+    }
+
+    @Override
+    public void close(Object handle) {
+        if(handle instanceof WifiAwareSession) ((WifiAwareSession) handle).close();
+        else ((DiscoverySession) handle).close();
+    }
+
+    @Override
+    public Transport newTransport(Object discoverySession) {
+        return new WifiAwareTransport(mConManager, (DiscoverySession) discoverySession);
+    }
+
+    private static class Callback extends DiscoverySessionCallback {
+
+        private final DiscoveryListener mListener;
+
+        Callback(DiscoveryListener listener){
+            mListener = listener;
+        }
+
+        @Override
+        public void onSessionConfigFailed() {
+            mListener.onFailed();
+        }
+
+        @Override
+        public void onServiceDiscovered(PeerHandle peerHandle, byte[] serviceSpecificInfo, List<byte[]> matchFilter) {
+            mListener.onDiscovered(peerHandle);
+        }
+
+        @Override
+        public void onMessageReceived(PeerHandle peerHandle, byte[] message) {
+            mListener.onMessageReceived(peerHandle, message);
+        }
+
+        @Override
+        public void onMessageSendSucceeded(int messageId) {
+            mListener.onMessageSent(messageId);
+        }
+
+        @Override
+        public void onMessageSendFailed(int messageId) {
+            mListener.onMessageSendFailed(messageId);
+        }
+    }
+}
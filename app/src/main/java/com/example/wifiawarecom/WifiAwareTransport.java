@@ -0,0 +1,187 @@
+package com.example.wifiawarecom;
+
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
+import android.net.NetworkSpecifier;
+import android.net.wifi.aware.DiscoverySession;
+import android.net.wifi.aware.PeerHandle;
+import android.net.wifi.aware.WifiAwareNetworkInfo;
+import android.net.wifi.aware.WifiAwareNetworkSpecifier;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Data paths over Wi-Fi Aware NDP, requested through ConnectivityManager for peers of one discovery session.
+ * Peers are the PeerHandles of that session.
+ */
+public class WifiAwareTransport implements Transport {
+    private static final String TAG = "WifiAwareTransport";
+    private static final String PSK_PASSPHRASE = "wifiawaretest";
+
+    private final ConnectivityManager mConManager;
+    private final DiscoverySession mSession;
+    private final ConcurrentMap<Object, PeerCallback> mCallbacks = new ConcurrentHashMap<>();
+
+    public WifiAwareTransport(ConnectivityManager manager, DiscoverySession session){
+        mConManager = manager;
+        mSession = session;
+    }
+
+    @Override
+    public InetSocketAddress getBindAddress() {
+        return new InetSocketAddress(0);
+    }
+
+    @Override
+    public void publish(Object peer, int port, Callback callback) {
+        NetworkSpecifier networkSpecifier = new WifiAwareNetworkSpecifier.Builder(mSession, (PeerHandle) peer)
+                .setPskPassphrase(PSK_PASSPHRASE)
+                .setPort(port)
+                .build();
+        request(peer, networkSpecifier, new PeerCallback(peer, callback, false));
+    }
+
+    @Override
+    public void subscribe(Object peer, Callback callback) {
+        NetworkSpecifier networkSpecifier = new WifiAwareNetworkSpecifier.Builder(mSession, (PeerHandle) peer)
+                .setPskPassphrase(PSK_PASSPHRASE)
+                .build();
+        request(peer, networkSpecifier, new PeerCallback(peer, callback, true));
+    }
+
+    private void request(Object peer, NetworkSpecifier networkSpecifier, PeerCallback networkCallback){
+        NetworkRequest networkRequest = new NetworkRequest.Builder()
+                .addTransportType(NetworkCapabilities.TRANSPORT_WIFI_AWARE)
+                .setNetworkSpecifier(networkSpecifier)
+                .build();
+        PeerCallback old = mCallbacks.put(peer, networkCallback);
+        if(old != null) mConManager.unregisterNetworkCallback(old);
+        mConManager.requestNetwork(networkRequest, networkCallback);
+    }
+
+    /**
+     * Only the new channel is bound to the network of peer: with data paths to several publishers
+     * binding the whole process would send every later socket through the last one.
+     */
+    @Override
+    public SocketChannel openChannel(Object peer) throws IOException {
+        PeerCallback networkCallback = mCallbacks.get(peer);
+        Network net = networkCallback == null ? null : networkCallback.mNetwork;
+        if(net == null) throw new IOException("No Wi-Fi Aware network to " + peer);
+        SocketChannel channel = SocketChannel.open();
+        try {
+            net.bindSocket(channel.socket());
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    @Override
+    public InetAddress getPeerAddress(Object peer) {
+        PeerCallback networkCallback = mCallbacks.get(peer);
+        return networkCallback == null ? null : networkCallback.mPeerAddress;
+    }
+
+    /**
+     * PeerHandles are different on each side, there is no token common to both. AwareSessions
+     * exchanges one in the connect message, without it the publisher matches connections by address.
+     */
+    @Override
+    public byte[] getHandshakeToken(Object peer) {
+        return null;
+    }
+
+    @Override
+    public void release(Object peer) {
+        PeerCallback networkCallback = mCallbacks.remove(peer);
+        if(networkCallback != null) mConManager.unregisterNetworkCallback(networkCallback);
+    }
+
+    /**
+     * A link-local IPv6 address is only usable with its scope (%aware_data0), without it connect()
+     * fails with an invalid argument.
+     */
+    static boolean isUsable(InetAddress address){
+        if(!(address instanceof Inet6Address) || !address.isLinkLocalAddress()) return address != null;
+        Inet6Address inet6 = (Inet6Address) address;
+        return inet6.getScopedInterface() != null || inet6.getScopeId() != 0;
+    }
+
+    /**
+     * Stays registered until release(), so after onLost the framework brings the same request up again.
+     */
+    private class PeerCallback extends ConnectivityManager.NetworkCallback{
+
+        private final Object mPeer;
+        private final Callback mCallback;
+        private final boolean mSubscriber;
+        private volatile Network mNetwork = null;
+        private boolean mReported = false;
+        private InetSocketAddress mAddress = null;
+        //Direccion del par vista desde el publicador
+        private volatile InetAddress mPeerAddress = null;
+
+        public PeerCallback(Object peer, Callback callback, boolean subscriber){
+            mPeer = peer;
+            mCallback = callback;
+            mSubscriber = subscriber;
+        }
+
+        @Override
+        public void onAvailable(@NonNull Network network) {
+            mNetwork = network;
+            if(!mSubscriber && !mReported){
+                mReported = true;
+                mCallback.onAvailable(mPeer, null);
+            }
+        }
+
+        //Debugeando he visto que se llama dos veces a este callback al conectarse
+        //Lo que cambia entre las llamadas es la direccion IPv6: solo cuando tiene el prefijo %aware_data0 se puede conectar,
+        //si no al intentar conectar salta excepcion de argumento invalido.
+        //Por eso se ignoran las capabilities sin direccion utilizable y se avisa cada vez que la direccion cambia
+        @Override
+        public void onCapabilitiesChanged(@NonNull Network network, @NonNull NetworkCapabilities networkCapabilities) {
+            WifiAwareNetworkInfo peerAwareInfo = (WifiAwareNetworkInfo) networkCapabilities.getTransportInfo();
+            if(!mSubscriber){
+                if(peerAwareInfo != null) mPeerAddress = peerAwareInfo.getPeerIpv6Addr();
+                return;
+            }
+            if(peerAwareInfo == null || !isUsable(peerAwareInfo.getPeerIpv6Addr())){
+                Log.d(TAG, "onCapabilitiesChanged: sin direccion utilizable todavia");
+                return;
+            }
+            InetSocketAddress address = new InetSocketAddress(peerAwareInfo.getPeerIpv6Addr(), peerAwareInfo.getPort());
+            if(mReported && address.equals(mAddress)){
+                Log.d(TAG, "onCapabilitiesChanged: Red distinta o nueva capability");
+                return;
+            }
+            mReported = true;
+            mNetwork = network;
+            mAddress = address;
+            mCallback.onAvailable(mPeer, address);
+        }
+
+        @Override
+        public void onLost(@NonNull Network network) {
+            mNetwork = null;
+            mReported = false;
+            mAddress = null;
+            mPeerAddress = null;
+            mCallback.onLost(mPeer);
+        }
+    }
+}
@@ -7,17 +7,10 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.pm.PackageManager;
 import android.net.ConnectivityManager;
-import android.net.wifi.aware.AttachCallback;
-import android.net.wifi.aware.DiscoverySessionCallback;
-import android.net.wifi.aware.PeerHandle;
-import android.net.wifi.aware.PublishConfig;
-import android.net.wifi.aware.PublishDiscoverySession;
-import android.net.wifi.aware.SubscribeConfig;
-import android.net.wifi.aware.SubscribeDiscoverySession;
 import android.net.wifi.aware.WifiAwareManager;
-import android.net.wifi.aware.WifiAwareSession;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.Looper;
 
 import androidx.annotation.NonNull;
 import androidx.lifecycle.AndroidViewModel;
@@ -25,37 +18,71 @@ import androidx.lifecycle.LiveData;
 import androidx.lifecycle.MutableLiveData;
 
 import java.io.IOException;
-import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
-public class WifiAwareViewModel extends AndroidViewModel {
+public class WifiAwareViewModel extends AndroidViewModel implements Server.ClientViews {
 
-    private ConnectivityManager connectivityManager;
-    private WifiAwareManager manager;
-    private WifiAwareSession session;
-    private PublishDiscoverySession publishSession;
-    private SubscribeDiscoverySession subscribeSession;
-    private Server publishServer;
-    private Client subscriberClient;
+    private AwareFacade facade;
+    private AwareSessions sessions;
+    //Limite de cada paso: attach, publish o subscribe
+    private static final long SESSION_TIMEOUT_MS = 10000;
     private MutableLiveData<Boolean> available;
     private HandlerThread worker;
     private Handler workerHandle;
 
     private MutableLiveData<String> clientData1;
     private MutableLiveData<String> clientData2;
+    //Como mucho una actualizacion de la vista por frame, los valores intermedios se descartan
+    private static final long UI_FRAME_INTERVAL_MS = 16;
+    private final CoalescingDispatcher<String> clientDataDispatcher;
+    //Solo se consulta al servidor mientras alguien observa las metricas
+    private static final long METRICS_INTERVAL_MS = 1000;
+    private final Runnable metricsPoller;
+    private final MutableLiveData<MetricsSnapshot> metrics;
 
     public WifiAwareViewModel(@NonNull Application app) {
         super(app);
         available = new MutableLiveData<Boolean>(Boolean.FALSE);
         clientData1 = new MutableLiveData<String>("");
         clientData2 = new MutableLiveData<String>("");
-        session = null;
-        publishSession = null;
-        subscribeSession = null;
-        subscriberClient = null;
-        publishServer = null;
+        final Handler mainHandler = new Handler(Looper.getMainLooper());
+        clientDataDispatcher = new CoalescingDispatcher<>(2, UI_FRAME_INTERVAL_MS,
+                new CoalescingDispatcher.Scheduler() {
+                    @Override
+                    public void schedule(Runnable task, long delayMillis) {
+                        mainHandler.postDelayed(task, delayMillis);
+                    }
+                },
+                new CoalescingDispatcher.Sink<String>() {
+                    @Override
+                    public void publish(int stream, String value) {
+                        //Ya estamos en el hilo principal
+                        if(stream == 0) clientData1.setValue(value);
+                        else clientData2.setValue(value);
+                    }
+                });
+        metricsPoller = new Runnable() {
+            @Override
+            public void run() {
+                Server server = sessions == null ? null : sessions.getServer();
+                if(server != null) metrics.setValue(server.getMetrics());
+                mainHandler.postDelayed(this, METRICS_INTERVAL_MS);
+            }
+        };
+        metrics = new MutableLiveData<MetricsSnapshot>(){
+            @Override
+            protected void onActive() {
+                mainHandler.post(metricsPoller);
+            }
 
+            @Override
+            protected void onInactive() {
+                mainHandler.removeCallbacks(metricsPoller);
+            }
+        };
         if(!app.getPackageManager().hasSystemFeature(PackageManager.FEATURE_WIFI_AWARE)){
-            manager = null;
+            facade = null;
+            sessions = null;
             worker = null;
             return;
         }
@@ -63,8 +90,21 @@ public class WifiAwareViewModel extends AndroidViewModel {
         worker.start();
         workerHandle = new Handler(worker.getLooper());
 
-        connectivityManager = (ConnectivityManager) app.getSystemService(app.CONNECTIVITY_SERVICE);
-        manager = (WifiAwareManager)app.getSystemService(app.WIFI_AWARE_SERVICE);
+        ConnectivityManager connectivityManager = (ConnectivityManager) app.getSystemService(app.CONNECTIVITY_SERVICE);
+        WifiAwareManager manager = (WifiAwareManager)app.getSystemService(app.WIFI_AWARE_SERVICE);
+        facade = new WifiAwareFacade(manager, connectivityManager, workerHandle);
+        sessions = new AwareSessions(facade, new AwareSessions.Scheduler() {
+            @Override
+            public AwareSessions.Cancellable schedule(final Runnable task, long delayMillis) {
+                workerHandle.postDelayed(task, delayMillis);
+                return new AwareSessions.Cancellable() {
+                    @Override
+                    public void cancel() {
+                        workerHandle.removeCallbacks(task);
+                    }
+                };
+            }
+        }, this, SESSION_TIMEOUT_MS);
         IntentFilter filter = new IntentFilter(WifiAwareManager.ACTION_WIFI_AWARE_STATE_CHANGED);
         BroadcastReceiver myReceiver = new BroadcastReceiver() {
             @Override
@@ -82,12 +122,12 @@ public class WifiAwareViewModel extends AndroidViewModel {
     }
 
     public boolean isWifiAwareSupported(){
-        return manager != null;
+        return facade != null;
     }
 
     private void checkWifiAwareAvailability(){
         closeSessions();
-        if(manager.isAvailable()){
+        if(facade.isAvailable()){
             available.postValue(Boolean.TRUE);
         }
         else{
@@ -101,150 +141,77 @@ public class WifiAwareViewModel extends AndroidViewModel {
 
     public  LiveData<String> getClientData1(){return clientData1;}
 
+    @Override
     public void setClientData1(String clientData) {
-        this.clientData1.postValue(clientData);
+        clientDataDispatcher.offer(0, clientData);
     }
 
     public  LiveData<String> getClientData2(){return clientData2;}
 
+    @Override
     public void setClientData2(String clientData) {
-        this.clientData2.postValue(clientData);
+        clientDataDispatcher.offer(1, clientData);
     }
 
-    public boolean publishSessionCreated(){
-        return publishSession != null;
+    /**
+     * Offered, coalesced and published counts of the client data updates.
+     */
+    public CoalescingDispatcher<String> getClientDataDispatcher(){
+        return clientDataDispatcher;
     }
 
-    public boolean subscribeSessionCreated(){
-        return subscribeSession != null;
-    }
-
-    public boolean createSession() throws InterruptedException {
-        if(manager == null) return false;
-        if(session != null) return true;
-        synchronized (this){
-            manager.attach(new AttachCallback(){
-                @Override
-                public void onAttached(WifiAwareSession session) {
-                    synchronized (WifiAwareViewModel.this){
-                        WifiAwareViewModel.this.session = session;
-                        WifiAwareViewModel.this.notify();
-                    }
-                }
-
-                @Override
-                public void onAttachFailed() {
-                    synchronized (WifiAwareViewModel.this){
-                        session = null;
-                        WifiAwareViewModel.this.notify();
-                    }
-                }
-            }, workerHandle);
-            this.wait();
-            return session != null;
-        }
+    /**
+     * Server metrics refreshed every second while observed, nothing is posted while no server is running.
+     */
+    public LiveData<MetricsSnapshot> getMetrics(){
+        return metrics;
     }
 
-    public boolean publishService(String serviceName) throws InterruptedException {
-        if(session == null) return false;
-        synchronized (WifiAwareViewModel.this){
-            PublishConfig config = new PublishConfig.Builder().setServiceName(serviceName).build();
-
-            session.publish(config, new DiscoverySessionCallback(){
-                @Override
-                public void onPublishStarted(@NonNull PublishDiscoverySession session) {
-                    synchronized (WifiAwareViewModel.this){
-                        publishSession = session;
-                        try {
-                            publishServer = new Server(connectivityManager, WifiAwareViewModel.this);
-                            publishServer.start();
-                        } catch (IOException e) {
-                            session.close();
-                            publishSession = null;
-                        }
-                        WifiAwareViewModel.this.notify();
-                    }
-                }
-
-                @Override
-                public void onSessionConfigFailed() {
-                    synchronized (WifiAwareViewModel.this){
-                        publishSession = null;
-                        WifiAwareViewModel.this.notify();
-                    }
-                }
-
-                @Override
-                public void onMessageReceived(PeerHandle peerHandle, byte[] message) {
-                    publishServer.addNewConnection(publishSession, peerHandle);
-                }
-
-            }, workerHandle);
-
-            this.wait();
-            return publishSession != null;
-        }
+    public boolean sessionCreated(){
+        return sessions != null && sessions.isAttached();
     }
 
-    public boolean subscribeToService(String serviceName) throws InterruptedException {
-        if(session == null) return false;
-        synchronized (WifiAwareViewModel.this){
-            SubscribeConfig config = new SubscribeConfig.Builder().setServiceName(serviceName).build();
-            session.subscribe(config, new DiscoverySessionCallback(){
-
-                private PeerHandle lastPeerHandle;
-                @Override
-                public void onSubscribeStarted(@NonNull SubscribeDiscoverySession session) {
-                    synchronized (WifiAwareViewModel.this){
-                        subscribeSession = session;
-                        WifiAwareViewModel.this.notify();
-                    }
-                }
-
-                @Override
-                public void onSessionConfigFailed() {
-                    synchronized (WifiAwareViewModel.this){
-                        subscribeSession = null;
-                        WifiAwareViewModel.this.notify();
-                    }
-                }
+    public boolean publishSessionCreated(){
+        return sessions != null && sessions.isPublishing();
+    }
 
-                @Override
-                public void onServiceDiscovered(PeerHandle peerHandle, byte[] serviceSpecificInfo, List<byte[]> matchFilter) {
-                    lastPeerHandle = peerHandle;
-                    subscribeSession.sendMessage(peerHandle, 0, (new String("connect")).getBytes());
-                }
+    public boolean subscribeSessionCreated(){
+        return sessions != null && sessions.isSubscribed();
+    }
 
-                @Override
-                public void onMessageSendSucceeded(int messageId) {
-                    subscriberClient = new Client(connectivityManager, subscribeSession, lastPeerHandle);
-                }
+    /**
+     * Attaches to Wi-Fi Aware without blocking, the future completes on the worker thread.
+     */
+    public CompletableFuture<Void> createSession(){
+        if(sessions == null) return unsupported();
+        return sessions.attach();
+    }
 
+    /**
+     * Attaches if needed and publishes serviceName, the future completes on the worker thread.
+     */
+    public CompletableFuture<Server> publishService(String serviceName){
+        if(sessions == null) return unsupported();
+        return sessions.publish(serviceName);
+    }
 
-            }, workerHandle);
+    /**
+     * Attaches if needed and subscribes to serviceName, the data path to the publisher is
+     * opened once it is found.
+     */
+    public CompletableFuture<Void> subscribeToService(String serviceName){
+        if(sessions == null) return unsupported();
+        return sessions.subscribe(serviceName);
+    }
 
-            this.wait();
-            return subscribeSession != null;
-        }
+    private static <T> CompletableFuture<T> unsupported(){
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(new IOException("Wi-Fi Aware is not supported"));
+        return future;
     }
 
     public void closeSessions(){
-        if(publishSession != null){
-            publishSession.close();
-            publishServer.stop();
-            publishServer = null;
-            publishSession = null;
-        }
-        if(subscribeSession != null){
-            subscribeSession.close();
-            subscriberClient.stop();
-            subscriberClient = null;
-            subscribeSession = null;
-        }
-        if(session != null){
-            session.close();
-            session = null;
-        }
+        if(sessions != null) sessions.close();
     }
 
 }
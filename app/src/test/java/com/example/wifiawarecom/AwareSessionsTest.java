@@ -0,0 +1,343 @@
+package com.example.wifiawarecom;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Session lifecycle against a fake facade whose callbacks the test fires by hand.
+ */
+public class AwareSessionsTest {
+
+    private static final long TIMEOUT_MS = 1000;
+
+    private final FakeFacade mFacade = new FakeFacade();
+    private final List<Runnable> mTimeouts = new ArrayList<>();
+    private final List<Runnable> mCancelled = new ArrayList<>();
+    private final AwareSessions mSessions = new AwareSessions(mFacade, new AwareSessions.Scheduler() {
+        @Override
+        public AwareSessions.Cancellable schedule(final Runnable task, long delayMillis) {
+            assertEquals(TIMEOUT_MS, delayMillis);
+            mTimeouts.add(task);
+            return new AwareSessions.Cancellable() {
+                @Override
+                public void cancel() {
+                    mCancelled.add(task);
+                }
+            };
+        }
+    }, null, TIMEOUT_MS);
+
+    @After
+    public void tearDown() {
+        mSessions.close();
+    }
+
+    private static Throwable failure(CompletableFuture<?> future) throws InterruptedException {
+        assertTrue(future.isCompletedExceptionally());
+        try {
+            future.get();
+        } catch (ExecutionException e) {
+            return e.getCause();
+        }
+        throw new AssertionError();
+    }
+
+    @Test
+    public void publishAndSubscribeShareOneAttach() throws Exception {
+        CompletableFuture<Server> publish = mSessions.publish("svc");
+        CompletableFuture<Void> subscribe = mSessions.subscribe("svc");
+        assertFalse(publish.isDone());
+        assertEquals(1, mFacade.mAttaches.size());
+        assertTrue(mFacade.mPublishes.isEmpty());
+
+        mFacade.mAttaches.get(0).onAttached("session");
+        //Los dos pasos salen a la vez, ninguno espera al otro
+        assertEquals(1, mFacade.mPublishes.size());
+        assertEquals(1, mFacade.mSubscribes.size());
+        assertTrue(mSessions.isAttached());
+
+        mFacade.mSubscribes.get(0).onStarted("subscribe");
+        assertTrue(subscribe.isDone());
+        assertFalse(publish.isDone());
+        mFacade.mPublishes.get(0).onStarted("publish");
+        Server server = publish.get();
+        assertSame(server, mSessions.getServer());
+        assertEquals(1, server.getListenerCount());
+        assertTrue(mSessions.isPublishing() && mSessions.isSubscribed());
+        //Mientras dure, otra llamada devuelve el mismo paso
+        assertSame(publish, mSessions.publish("svc"));
+        assertEquals(1, mFacade.mAttaches.size());
+
+        mSessions.close();
+        assertFalse(mSessions.isPublishing());
+        assertTrue(mFacade.mClosed.contains("publish"));
+        assertTrue(mFacade.mClosed.contains("subscribe"));
+        assertTrue(mFacade.mClosed.contains("session"));
+        assertEquals(0, server.getBufferPool().getInUse());
+    }
+
+    @Test
+    public void failedAttachFailsEveryStepAndIsRetried() throws Exception {
+        CompletableFuture<Server> publish = mSessions.publish("svc");
+        CompletableFuture<Void> subscribe = mSessions.subscribe("svc");
+        mFacade.mAttaches.get(0).onAttachFailed();
+        assertTrue(failure(publish) instanceof IOException);
+        assertTrue(failure(subscribe) instanceof IOException);
+        assertTrue(failure(mSessions.getDataPath()) instanceof IOException);
+        assertFalse(mSessions.isAttached());
+
+        CompletableFuture<Void> attach = mSessions.attach();
+        assertEquals(2, mFacade.mAttaches.size());
+        mFacade.mAttaches.get(1).onAttached("session");
+        assertTrue(attach.isDone() && !attach.isCompletedExceptionally());
+    }
+
+    @Test
+    public void finishedStepsCancelTheirTimeouts() throws Exception {
+        CompletableFuture<Server> publish = mSessions.publish("svc");
+        CompletableFuture<Void> subscribe = mSessions.subscribe("svc");
+        assertEquals(3, mTimeouts.size());
+        assertTrue(mCancelled.isEmpty());
+        mFacade.mAttaches.get(0).onAttached("session");
+        assertEquals(1, mCancelled.size());
+        mFacade.mPublishes.get(0).onStarted("publish");
+        assertTrue(publish.isDone());
+        subscribe.cancel(false);
+        //Ninguno queda pendiente hasta que venza
+        assertEquals(new HashSet<>(mTimeouts), new HashSet<>(mCancelled));
+    }
+
+    @Test
+    public void timedOutStepClosesWhatArrivesLate() throws Exception {
+        mSessions.attach();
+        mFacade.mAttaches.get(0).onAttached("session");
+        CompletableFuture<Server> publish = mSessions.publish("svc");
+        for(Runnable timeout : mTimeouts) timeout.run();
+        assertTrue(failure(publish) instanceof TimeoutException);
+
+        mFacade.mPublishes.get(0).onStarted("publish");
+        assertTrue(mFacade.mClosed.contains("publish"));
+        assertFalse(mSessions.isPublishing());
+        //La sesion ya estaba, el timeout de su attach no la toca
+        assertTrue(mSessions.isAttached());
+        assertFalse(mFacade.mClosed.contains("session"));
+    }
+
+    @Test
+    public void cancelledStepsAreGivenUp() throws Exception {
+        CompletableFuture<Server> publish = mSessions.publish("svc");
+        publish.cancel(false);
+        mFacade.mAttaches.get(0).onAttached("session");
+        //Cancelado antes de tener sesion: no se llega a publicar
+        assertTrue(mFacade.mPublishes.isEmpty());
+
+        CompletableFuture<Void> subscribe = mSessions.subscribe("svc");
+        assertEquals(1, mFacade.mSubscribes.size());
+        subscribe.cancel(false);
+        mFacade.mSubscribes.get(0).onStarted("subscribe");
+        assertTrue(mFacade.mClosed.contains("subscribe"));
+        assertFalse(mSessions.isSubscribed());
+        assertTrue(mSessions.getDataPath().isCancelled());
+    }
+
+    @Test
+    public void closeCancelsStepsInProgress() throws Exception {
+        CompletableFuture<Void> attach = mSessions.attach();
+        CompletableFuture<Server> publish = mSessions.publish("svc");
+        mSessions.close();
+        assertTrue(publish.isCancelled());
+        assertTrue(attach.isCompletedExceptionally());
+        mFacade.mAttaches.get(0).onAttached("late");
+        assertTrue(mFacade.mClosed.contains("late"));
+        assertFalse(mSessions.isAttached());
+        assertTrue(mFacade.mPublishes.isEmpty());
+    }
+
+    @Test
+    public void dataPathOpensOnceThePublisherGotTheMessage() throws Exception {
+        mSessions.subscribe("svc");
+        mFacade.mAttaches.get(0).onAttached("session");
+        AwareFacade.DiscoveryListener listener = mFacade.mSubscribes.get(0);
+        listener.onStarted("subscribe");
+        CompletableFuture<ClientGroup> dataPath = mSessions.getDataPath();
+        assertFalse(dataPath.isDone());
+
+        listener.onDiscovered("publisher");
+        assertEquals(1, mFacade.mMessages.size());
+        listener.onMessageSent(mFacade.mMessages.get(0));
+        ClientGroup clients = dataPath.get();
+        assertEquals(PeerRegistry.State.REQUESTING, clients.getPeerState("publisher"));
+        //Un segundo descubrimiento no abre otro camino
+        listener.onDiscovered("publisher");
+        assertEquals(1, mFacade.mMessages.size());
+    }
+
+    @Test
+    public void everyPublisherFoundJoinsTheGroup() throws Exception {
+        mSessions.subscribe("svc");
+        mFacade.mAttaches.get(0).onAttached("session");
+        AwareFacade.DiscoveryListener listener = mFacade.mSubscribes.get(0);
+        listener.onStarted("subscribe");
+        listener.onDiscovered("a");
+        listener.onDiscovered("b");
+        listener.onDiscovered("c");
+        assertEquals(3, mFacade.mMessages.size());
+        assertEquals(3, new HashSet<>(mFacade.mMessages).size());
+        assertEquals("[a, b, c]", mSessions.getPublishers().toString());
+
+        listener.onMessageSent(mFacade.mMessages.get(1));
+        ClientGroup clients = mSessions.getDataPath().get();
+        assertEquals("[b]", clients.getPeers().toString());
+        //El mensaje de c no salio: se vuelve a intentar al descubrirlo otra vez
+        listener.onMessageSendFailed(mFacade.mMessages.get(2));
+        listener.onMessageSent(mFacade.mMessages.get(0));
+        assertEquals(2, clients.getPeers().size());
+        assertNull(clients.getPeerState("c"));
+        listener.onDiscovered("c");
+        assertEquals(4, mFacade.mMessages.size());
+        listener.onMessageSent(mFacade.mMessages.get(3));
+        assertEquals(3, clients.getPeers().size());
+
+        mSessions.close();
+        assertTrue(clients.getPeers().isEmpty());
+        assertEquals(0, clients.getBufferPool().getInUse());
+    }
+
+    @Test
+    public void publisherMessagesReachTheSubscriberRouter() throws Exception {
+        mSessions.publish("svc");
+        mSessions.subscribe("svc");
+        mFacade.mAttaches.get(0).onAttached("session");
+        AwareFacade.DiscoveryListener publisher = mFacade.mPublishes.get(0);
+        AwareFacade.DiscoveryListener subscriber = mFacade.mSubscribes.get(0);
+        publisher.onStarted("publish");
+        subscriber.onStarted("subscribe");
+        final List<String> received = new ArrayList<>();
+        StreamRouter router = mSessions.getSubscribeMessenger().getRouter();
+        router.register(7, new StreamRouter.StreamConsumer() {
+            @Override
+            public void onFrame(Object peer, int streamId, ByteBuffer payload) {
+                received.add(peer + ":" + StandardCharsets.UTF_8.decode(payload));
+            }
+        });
+
+        //Mas largo que un mensaje de descubrimiento: va en varios fragmentos
+        StringBuilder text = new StringBuilder();
+        for(int i = 0; i < 100; ++i) text.append(i % 10);
+        String big = text.append(text).append(text).toString();
+        assertTrue(mSessions.getPublishMessenger().send("subscriber", 7, StandardCharsets.UTF_8.encode(big)));
+        assertTrue(mFacade.mPublishMessages.size() > 1);
+        for(int i = 0; i < mFacade.mPublishMessages.size(); ++i){
+            subscriber.onMessageReceived("publisher", mFacade.mPublishMessages.get(i));
+            publisher.onMessageSent(mFacade.mPublishIds.get(i));
+        }
+        assertEquals("[publisher:" + big + "]", received.toString());
+        assertEquals(0, router.getUnroutedCount());
+
+        //El camino de datos entrega en el mismo router
+        subscriber.onDiscovered("publisher");
+        subscriber.onMessageSent(mFacade.mMessages.get(0));
+        assertSame(router, mSessions.getDataPath().get().getRouter());
+    }
+
+    @Test
+    public void connectMessageCarriesTheHandshakeToken() throws Exception {
+        mSessions.publish("svc");
+        mSessions.subscribe("svc");
+        mFacade.mAttaches.get(0).onAttached("session");
+        AwareFacade.DiscoveryListener publisher = mFacade.mPublishes.get(0);
+        AwareFacade.DiscoveryListener subscriber = mFacade.mSubscribes.get(0);
+        publisher.onStarted("publish");
+        subscriber.onStarted("subscribe");
+
+        //Loopback usa la misma clave para el enlace en los dos lados
+        subscriber.onDiscovered("peer");
+        byte[] connect = mFacade.mMessageBytes.get(0);
+        assertNotNull(AwareSessions.readConnectToken(connect));
+        publisher.onMessageReceived("peer", connect);
+        subscriber.onMessageSent(mFacade.mMessages.get(0));
+        ClientGroup clients = mSessions.getDataPath().get();
+        Server server = mSessions.getServer();
+        long deadline = System.currentTimeMillis() + 5000;
+        while(!clients.isConnected("peer") && System.currentTimeMillis() < deadline) Thread.sleep(1);
+        assertTrue(clients.isConnected("peer"));
+        assertEquals(PeerRegistry.State.CONNECTED, server.getPeerState("peer"));
+        assertNull(AwareSessions.readConnectToken("connect".getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static class FakeFacade implements AwareFacade {
+
+        final List<AttachListener> mAttaches = new ArrayList<>();
+        final List<DiscoveryListener> mPublishes = new ArrayList<>();
+        final List<DiscoveryListener> mSubscribes = new ArrayList<>();
+        final List<Object> mClosed = new ArrayList<>();
+        //Como Wi-Fi Aware: sin token propio y sin la direccion del par
+        final LoopbackTransport mTransport = new LoopbackTransport(){
+            @Override
+            public byte[] getHandshakeToken(Object peer) {
+                return null;
+            }
+        };
+        final List<Integer> mMessages = new ArrayList<>();
+        final List<byte[]> mMessageBytes = new ArrayList<>();
+        //Lo que sale por la sesion de publicacion, para entregarlo al suscriptor
+        final List<Integer> mPublishIds = new ArrayList<>();
+        final List<byte[]> mPublishMessages = new ArrayList<>();
+
+        @Override
+        public boolean isAvailable() {
+            return true;
+        }
+
+        @Override
+        public void attach(AttachListener listener) {
+            mAttaches.add(listener);
+        }
+
+        @Override
+        public void publish(Object session, String serviceName, DiscoveryListener listener) {
+            assertEquals("session", session);
+            mPublishes.add(listener);
+        }
+
+        @Override
+        public void subscribe(Object session, String serviceName, DiscoveryListener listener) {
+            assertEquals("session", session);
+            mSubscribes.add(listener);
+        }
+
+        @Override
+        public void sendMessage(Object discoverySession, Object peer, int messageId, byte[] message) {
+            if("publish".equals(discoverySession)){
+                mPublishIds.add(messageId);
+                mPublishMessages.add(message);
+                return;
+            }
+            assertEquals("subscribe", discoverySession);
+            mMessages.add(messageId);
+            mMessageBytes.add(message);
+        }
+
+        @Override
+        public void close(Object handle) {
+            mClosed.add(handle);
+        }
+
+        @Override
+        public Transport newTransport(Object discoverySession) {
+            return mTransport;
+        }
+    }
+}
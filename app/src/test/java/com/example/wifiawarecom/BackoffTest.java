@@ -0,0 +1,36 @@
+package com.example.wifiawarecom;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class BackoffTest {
+
+    @Test
+    public void growsWithJitterUpToTheMaximum() {
+        Backoff backoff = new Backoff(50, 5000, new Random(7));
+        long ceiling = 50;
+        for(int i = 0; i < 100; ++i){
+            long delay = backoff.nextDelayMillis();
+            assertTrue(delay + " above " + ceiling, delay <= ceiling);
+            assertTrue(delay + " below " + ceiling / 2, delay >= ceiling / 2);
+            ceiling = Math.min(5000, ceiling * 2);
+        }
+        backoff.reset();
+        assertTrue(backoff.nextDelayMillis() <= 50);
+    }
+
+    @Test
+    public void delaysAreSpread() {
+        //Dos clientes que pierden el enlace a la vez no reintentan juntos
+        Backoff a = new Backoff(1000, 1000, new Random(1));
+        Backoff b = new Backoff(1000, 1000, new Random(2));
+        int equal = 0;
+        for(int i = 0; i < 100; ++i){
+            if(a.nextDelayMillis() == b.nextDelayMillis()) ++equal;
+        }
+        assertTrue(equal < 10);
+    }
+}
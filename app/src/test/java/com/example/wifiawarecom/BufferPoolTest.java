@@ -0,0 +1,78 @@
+package com.example.wifiawarecom;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BufferPoolTest {
+
+    @Test
+    public void leasesDirectBuffersUpToBudget() {
+        BufferPool pool = new BufferPool(1024, 4, 8 * 1024);
+        assertEquals(8, pool.getCapacity());
+        assertEquals(0, pool.getAllocatedBytes());
+
+        List<ByteBuffer> leased = new ArrayList<>();
+        for(int i = 0; i < 8; ++i){
+            ByteBuffer b = pool.lease();
+            assertNotNull(b);
+            assertTrue(b.isDirect());
+            assertEquals(1024, b.capacity());
+            assertEquals(1024, b.remaining());
+            leased.add(b);
+        }
+        assertEquals(8 * 1024, pool.getAllocatedBytes());
+        assertNull(pool.lease());
+        assertNull(pool.lease());
+        assertEquals(2, pool.getExhaustedCount());
+        assertEquals(8, pool.getInUse());
+        assertEquals(8, pool.getHighWater());
+
+        for(ByteBuffer b : leased) pool.release(b);
+        assertEquals(0, pool.getInUse());
+        assertEquals(8, pool.getHighWater());
+    }
+
+    @Test
+    public void slicesDoNotOverlap() {
+        BufferPool pool = new BufferPool(16, 4, 64);
+        ByteBuffer[] buffers = new ByteBuffer[4];
+        for(int i = 0; i < buffers.length; ++i){
+            buffers[i] = pool.lease();
+            while(buffers[i].hasRemaining()) buffers[i].put((byte) i);
+        }
+        for(int i = 0; i < buffers.length; ++i){
+            for(int k = 0; k < 16; ++k) assertEquals(i, buffers[i].get(k));
+        }
+    }
+
+    @Test
+    public void reusesReleasedBuffersWithoutNewSlabs() {
+        BufferPool pool = new BufferPool(256, 2, 4 * 256);
+        for(int i = 0; i < 1000; ++i){
+            ByteBuffer b = pool.lease();
+            b.putInt(i);
+            pool.release(b);
+        }
+        assertEquals(2 * 256, pool.getAllocatedBytes());
+        assertEquals(1, pool.getHighWater());
+        assertEquals(0, pool.getExhaustedCount());
+        assertEquals(0, pool.lease().position());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsForeignBuffers() {
+        BufferPool pool = new BufferPool(256, 2, 512);
+        pool.lease();
+        pool.release(ByteBuffer.allocate(256));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsBudgetSmallerThanSlab() {
+        new BufferPool(1024, 4, 1024);
+    }
+}
@@ -0,0 +1,197 @@
+package com.example.wifiawarecom;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Captures written by CaptureLog, directly and from a running Server, and read back by CaptureReplay.
+ */
+public class CaptureLogTest {
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static ByteBuffer frame(int streamId, int size, int seed){
+        ByteBuffer frame = ByteBuffer.allocate(3 + size);
+        SampleCodec.putVarint(frame, streamId);
+        for(int i = 0; i < size; ++i) frame.put((byte) (seed + i));
+        frame.flip();
+        return frame;
+    }
+
+    private static class Captured {
+        final long nanos;
+        final Object peer;
+        final int streamId;
+        final byte[] payload;
+
+        Captured(long nanos, Object peer, int streamId, ByteBuffer payload){
+            this.nanos = nanos;
+            this.peer = peer;
+            this.streamId = streamId;
+            this.payload = new byte[payload.remaining()];
+            payload.get(this.payload);
+        }
+    }
+
+    private static List<Captured> readAll(File directory) throws Exception {
+        final List<Captured> captured = new ArrayList<>();
+        new CaptureReplay(directory).read(new CaptureReplay.FrameVisitor() {
+            @Override
+            public void onFrame(long nanos, Object peer, int streamId, ByteBuffer payload) {
+                captured.add(new Captured(nanos, peer, streamId, payload));
+            }
+        });
+        return captured;
+    }
+
+    @Test
+    public void framesComeBackInOrderAcrossSegments() throws Exception {
+        File directory = mFolder.newFolder("capture");
+        CaptureLog log = new CaptureLog(directory, 4096, 1024 * 1024);
+        for(int i = 0; i < 200; ++i){
+            ByteBuffer frame = frame(i % 3, i % 50, i);
+            assertTrue(log.append(i % 2 == 0 ? "peer-a" : "peer-b", frame));
+            assertEquals(0, frame.position());
+        }
+        //Sin stream id legible se guarda el frame entero
+        ByteBuffer malformed = ByteBuffer.wrap(new byte[]{(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF});
+        assertTrue(log.append("peer-a", malformed));
+        log.close();
+        assertFalse(log.append("peer-a", frame(0, 1, 0)));
+
+        assertEquals(201, log.getFramesCaptured());
+        assertEquals(1, log.getFramesDropped());
+        assertTrue(log.getSegmentCount() > 1);
+        assertEquals(log.getSegmentCount(), new CaptureReplay(directory).getSegmentCount());
+
+        List<Captured> captured = readAll(directory);
+        assertEquals(201, captured.size());
+        long last = Long.MIN_VALUE;
+        for(int i = 0; i < 200; ++i){
+            Captured c = captured.get(i);
+            assertEquals(i % 2 == 0 ? "peer-a" : "peer-b", c.peer);
+            assertEquals(i % 3, c.streamId);
+            ByteBuffer expected = frame(i % 3, i % 50, i);
+            StreamRouter.readStreamId(expected);
+            assertEquals(expected, ByteBuffer.wrap(c.payload));
+            assertTrue(c.nanos >= last);
+            last = c.nanos;
+        }
+        //El mismo objeto peer en todos los segmentos
+        assertSame(captured.get(0).peer, captured.get(198).peer);
+        assertEquals(-1, captured.get(200).streamId);
+        assertEquals(4, captured.get(200).payload.length);
+    }
+
+    @Test
+    public void appendNeverWaitsForTheWriter() throws Exception {
+        File directory = mFolder.newFolder("capture");
+        CaptureLog log = new CaptureLog(directory, 4096, 100);
+        assertFalse(log.append("peer", frame(1, 101, 0)));
+        //Mas grande de lo que cabe en un segmento
+        CaptureLog small = new CaptureLog(mFolder.newFolder("small"), 4096, 1024 * 1024);
+        assertFalse(small.append("peer", frame(1, 4096, 0)));
+        assertEquals(1, small.getFramesDropped());
+        small.close();
+        assertTrue(log.append("peer", frame(1, 100, 0)));
+        log.close();
+        assertEquals(1, log.getFramesCaptured());
+        assertEquals(1, log.getFramesDropped());
+        assertEquals(1, readAll(directory).size());
+    }
+
+    @Test
+    public void corruptSegmentIsRejected() throws Exception {
+        File directory = mFolder.newFolder("capture");
+        CaptureLog log = new CaptureLog(directory, 4096, 1024 * 1024);
+        log.append("peer", frame(1, 10, 0));
+        log.close();
+        try (RandomAccessFile raf = new RandomAccessFile(CaptureLog.segmentFile(directory, 0), "rw")) {
+            //Longitud del primer registro mas alla del segmento
+            raf.seek(CaptureLog.SEGMENT_HEADER_SIZE);
+            raf.writeInt(1 << 20);
+        }
+        try {
+            readAll(directory);
+            fail();
+        } catch (IOException e) {}
+    }
+
+    @Test
+    public void serverCaptureReplaysThroughTheRouter() throws Exception {
+        LoopbackTransport transport = new LoopbackTransport();
+        Server server = new Server(transport, null, 1);
+        server.getRouter().register(Client.STREAM_1, new StreamRouter.StreamConsumer() {
+            @Override
+            public void onFrame(Object peer, int streamId, ByteBuffer payload) {}
+        });
+        server.start();
+        File directory = mFolder.newFolder("capture");
+        CaptureLog log = server.startCapture(directory);
+        assertTrue(server.addNewConnection("peer-0"));
+        Client client = new Client(transport, "peer-0", 64 * 1024, 16 * 1024, false);
+        final int samples = 2000;
+        try {
+            long deadline = System.currentTimeMillis() + 5000;
+            while(!client.isConnected() && System.currentTimeMillis() < deadline) Thread.sleep(5);
+            assertTrue(client.isConnected());
+            ByteBuffer scratch = ByteBuffer.allocate(SampleCodec.MAX_SAMPLE_SIZE);
+            for(int i = 0; i < samples; ++i){
+                scratch.clear();
+                SampleCodec.putInt(scratch, SampleCodec.NO_TIMESTAMP, i);
+                scratch.flip();
+                while(!client.send(Client.STREAM_1, scratch)) client.awaitWritable(1, TimeUnit.SECONDS);
+                if(i % 500 == 0) Thread.sleep(20);
+            }
+            deadline = System.currentTimeMillis() + 5000;
+            while(server.getMetrics().getFramesIn() < samples + 1 && System.currentTimeMillis() < deadline) Thread.sleep(5);
+        } finally {
+            client.stop();
+            server.stop();
+        }
+        //Mas el HELLO del handshake
+        assertEquals(0, log.getFramesDropped());
+        assertEquals(samples + 1, log.getFramesCaptured());
+
+        final AtomicLong next = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        StreamRouter router = new StreamRouter();
+        router.register(Client.STREAM_1, new StreamRouter.StreamConsumer() {
+            private final SampleCodec.Sample mSample = new SampleCodec.Sample();
+
+            @Override
+            public void onFrame(Object peer, int streamId, ByteBuffer payload) {
+                SampleCodec.decode(payload, mSample);
+                if(!"peer-0".equals(peer) || mSample.longValue != next.getAndIncrement()) errors.incrementAndGet();
+            }
+        });
+        CaptureReplay replay = new CaptureReplay(directory);
+        assertEquals(samples + 1, replay.replay(router, false));
+        assertEquals(samples, next.get());
+        assertEquals(1, router.getUnroutedCount());
+        assertEquals(0, errors.get());
+
+        //Al ritmo original dura lo que duro la captura
+        List<Captured> captured = readAll(directory);
+        long span = captured.get(captured.size() - 1).nanos - captured.get(0).nanos;
+        next.set(0);
+        long start = System.nanoTime();
+        assertEquals(samples + 1, replay.replay(router, true));
+        assertEquals(samples, next.get());
+        assertTrue(System.nanoTime() - start >= span);
+        assertEquals(0, errors.get());
+    }
+}
@@ -0,0 +1,171 @@
+package com.example.wifiawarecom;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * One ClientGroup connected to many publishers over LoopbackTransport. The publishers are the peers
+ * of a shared Server, each one matched to its channel by the handshake token.
+ */
+public class ClientGroupTest {
+
+    private static final int PEERS = 50;
+    private static final int SAMPLES_PER_PEER = 50;
+
+    private final LoopbackTransport mTransport = new LoopbackTransport();
+    private Server mServer;
+    private ClientGroup mGroup;
+
+    private final ConcurrentMap<Object, AtomicLong> mToServer = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Object, AtomicLong> mToGroup = new ConcurrentHashMap<>();
+    private final AtomicLong mErrors = new AtomicLong();
+
+    /**
+     * Counts the samples of each peer, the value carries the peer number: a frame routed to the
+     * wrong peer shows up here.
+     */
+    private StreamRouter.StreamConsumer counter(final ConcurrentMap<Object, AtomicLong> counts){
+        return new StreamRouter.StreamConsumer() {
+            private final SampleCodec.Sample mSample = new SampleCodec.Sample();
+
+            @Override
+            public synchronized void onFrame(Object peer, int streamId, ByteBuffer payload) {
+                SampleCodec.decode(payload, mSample);
+                if(!peer.equals(peer(mSample.longValue))) mErrors.incrementAndGet();
+                counts.get(peer).incrementAndGet();
+            }
+        };
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new Server(mTransport, null, 2, true);
+        mServer.getRouter().register(Client.STREAM_1, counter(mToServer));
+        mServer.start();
+        mGroup = new ClientGroup(mTransport, 2);
+        mGroup.getRouter().register(Client.STREAM_2, counter(mToGroup));
+        mGroup.start();
+    }
+
+    @After
+    public void tearDown() {
+        mGroup.stop();
+        mServer.stop();
+        assertEquals(0, mGroup.getBufferPool().getInUse());
+        assertEquals(0, mGroup.getWritePool().getInUse());
+        assertEquals(0, mServer.getBufferPool().getInUse());
+    }
+
+    private static String peer(long i){
+        return "publisher-" + i;
+    }
+
+    private void connect(int peers) throws Exception {
+        for(int i = 0; i < peers; ++i){
+            mToServer.put(peer(i), new AtomicLong());
+            mToGroup.put(peer(i), new AtomicLong());
+            assertTrue(mServer.addNewConnection(peer(i)));
+            assertTrue(mGroup.addPeer(peer(i)));
+        }
+        long deadline = System.currentTimeMillis() + 10000;
+        while(connected() < peers && System.currentTimeMillis() < deadline) Thread.sleep(5);
+        assertEquals(peers, connected());
+    }
+
+    private int connected(){
+        Integer count = mGroup.getPeerStateCounts().get(PeerRegistry.State.CONNECTED);
+        return count == null ? 0 : count;
+    }
+
+    private static ByteBuffer sample(long value){
+        ByteBuffer payload = ByteBuffer.allocate(SampleCodec.MAX_SAMPLE_SIZE);
+        SampleCodec.putLong(payload, SampleCodec.NO_TIMESTAMP, value);
+        payload.flip();
+        return payload;
+    }
+
+    private static long total(ConcurrentMap<Object, AtomicLong> counts){
+        long total = 0;
+        for(AtomicLong count : counts.values()) total += count.get();
+        return total;
+    }
+
+    @Test
+    public void framesAreRoutedByPeerBothWays() throws Exception {
+        connect(PEERS);
+        assertEquals(PEERS, mGroup.getPeers().size());
+        for(int round = 0; round < SAMPLES_PER_PEER; ++round){
+            for(int i = 0; i < PEERS; ++i){
+                assertTrue(mGroup.send(peer(i), Client.STREAM_1, sample(i)));
+                assertTrue(mServer.send(peer(i), Client.STREAM_2, sample(i)));
+            }
+        }
+        long expected = (long) PEERS * SAMPLES_PER_PEER;
+        long deadline = System.currentTimeMillis() + 10000;
+        while((total(mToServer) < expected || total(mToGroup) < expected) && System.currentTimeMillis() < deadline){
+            Thread.sleep(5);
+        }
+        assertEquals(expected, total(mToServer));
+        assertEquals(expected, total(mToGroup));
+        assertEquals(0, mErrors.get());
+        for(int i = 0; i < PEERS; ++i) assertEquals(SAMPLES_PER_PEER, mToServer.get(peer(i)).get());
+        //Un solo envio llega a todos
+        assertEquals(PEERS, mGroup.sendToAll(Client.STREAM_1, sample(0)));
+    }
+
+    @Test
+    public void lostPeerReconnectsAlone() throws Exception {
+        connect(3);
+        String lost = peer(1);
+        mTransport.drop(lost);
+        long deadline = System.currentTimeMillis() + 5000;
+        while(mGroup.isConnected(lost) && System.currentTimeMillis() < deadline) Thread.sleep(1);
+        assertFalse(mGroup.isConnected(lost));
+        assertFalse(mGroup.send(lost, Client.STREAM_1, sample(1)));
+        assertTrue(mGroup.isConnected(peer(0)) && mGroup.isConnected(peer(2)));
+
+        mTransport.restore(lost);
+        deadline = System.currentTimeMillis() + 5000;
+        while(connected() < 3 && System.currentTimeMillis() < deadline) Thread.sleep(1);
+        assertEquals(3, connected());
+        assertEquals(1, mGroup.getRecoveryHistogram().getCount());
+        assertTrue(mGroup.send(lost, Client.STREAM_1, sample(1)));
+        deadline = System.currentTimeMillis() + 5000;
+        while(mToServer.get(lost).get() < 1 && System.currentTimeMillis() < deadline) Thread.sleep(1);
+        assertEquals(1, mToServer.get(lost).get());
+    }
+
+    @Test
+    public void removedPeerIsClosedOnBothSides() throws Exception {
+        connect(2);
+        mGroup.removePeer(peer(0));
+        assertNull(mGroup.getPeerState(peer(0)));
+        assertFalse(mGroup.send(peer(0), Client.STREAM_1, sample(0)));
+        long deadline = System.currentTimeMillis() + 5000;
+        while(mServer.getPeerState(peer(0)) == PeerRegistry.State.CONNECTED && System.currentTimeMillis() < deadline){
+            Thread.sleep(1);
+        }
+        assertNotEquals(PeerRegistry.State.CONNECTED, mServer.getPeerState(peer(0)));
+        assertTrue(mGroup.isConnected(peer(1)));
+    }
+
+    @Test
+    public void heartbeatsProbeEveryPeer() throws Exception {
+        connect(4);
+        mGroup.setProbeInterval(10);
+        long deadline = System.currentTimeMillis() + 5000;
+        for(int i = 0; i < 4; ++i){
+            LatencyProbe probe = mGroup.getProbe(peer(i));
+            while(probe.getRttHistogram().getCount() < 3 && System.currentTimeMillis() < deadline) Thread.sleep(5);
+            assertTrue(probe.getRttHistogram().getCount() >= 3);
+        }
+    }
+}
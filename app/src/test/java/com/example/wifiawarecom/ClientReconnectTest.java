@@ -0,0 +1,98 @@
+package com.example.wifiawarecom;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Client reconnection over LoopbackTransport: the data path is dropped and restored while samples
+ * keep being sent.
+ */
+public class ClientReconnectTest {
+
+    private static final String PEER = "peer";
+    private static final long OUTAGE_MS = 200;
+
+    private final LoopbackTransport mTransport = new LoopbackTransport();
+    private Server mServer;
+    private Client mClient;
+
+    private final AtomicLong mLast = new AtomicLong(-1);
+    private final AtomicLong mErrors = new AtomicLong();
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new Server(mTransport, null, 1);
+        mServer.getRouter().register(Client.STREAM_1, new StreamRouter.StreamConsumer() {
+            private final SampleCodec.Sample mSample = new SampleCodec.Sample();
+
+            @Override
+            public void onFrame(Object peer, int streamId, ByteBuffer payload) {
+                SampleCodec.decode(payload, mSample);
+                //Puede faltar lo que estaba en vuelo al caer, pero nunca repetido ni desordenado
+                if(mSample.longValue <= mLast.get()) mErrors.incrementAndGet();
+                mLast.set(mSample.longValue);
+            }
+        });
+        mServer.start();
+        assertTrue(mServer.addNewConnection(PEER));
+        mClient = new Client(mTransport, PEER, 64 * 1024, 16 * 1024, false);
+        awaitConnected(true, 5000);
+    }
+
+    @After
+    public void tearDown() {
+        mClient.stop();
+        mServer.stop();
+        assertEquals(0, mServer.getBufferPool().getInUse());
+        assertEquals(0, mServer.getWritePool().getInUse());
+        assertEquals(0, mClient.getBufferPool().getInUse());
+    }
+
+    private void awaitConnected(boolean connected, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while(mClient.isConnected() != connected && System.currentTimeMillis() < deadline) Thread.sleep(1);
+        assertEquals(connected, mClient.isConnected());
+    }
+
+    @Test
+    public void reconnectsAndDeliversWhatWasQueuedWhileDown() throws Exception {
+        ByteBuffer scratch = ByteBuffer.allocate(SampleCodec.MAX_SAMPLE_SIZE);
+        long value = 0;
+        for(int round = 0; round < 3; ++round){
+            for(int i = 0; i < 1000; ++i) value = sendSample(scratch, value);
+            mTransport.drop(PEER);
+            awaitConnected(false, 2000);
+            long firstWhileDown = value;
+            //Se encola sin conexion, hasta la marca alta
+            for(int i = 0; i < 1000; ++i) value = sendSample(scratch, value);
+            assertTrue(value > firstWhileDown);
+            Thread.sleep(OUTAGE_MS);
+            assertFalse(mClient.isConnected());
+            mTransport.restore(PEER);
+            awaitConnected(true, 5000);
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while(mLast.get() < value - 1 && System.currentTimeMillis() < deadline) Thread.sleep(2);
+            assertEquals(value - 1, mLast.get());
+        }
+        assertEquals(0, mErrors.get());
+        assertEquals(0, mServer.getRouter().getMalformedCount());
+        LatencyHistogram recovery = mClient.getRecoveryHistogram();
+        assertEquals(3, recovery.getCount());
+        //El tiempo de recuperacion incluye la caida
+        assertTrue(recovery.getMin() >= OUTAGE_MS * 1000);
+    }
+
+    private long sendSample(ByteBuffer scratch, long value){
+        scratch.clear();
+        SampleCodec.putLong(scratch, SampleCodec.NO_TIMESTAMP, value);
+        scratch.flip();
+        return mClient.send(Client.STREAM_1, scratch) ? value + 1 : value;
+    }
+}
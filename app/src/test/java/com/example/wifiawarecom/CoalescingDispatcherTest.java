@@ -0,0 +1,123 @@
+package com.example.wifiawarecom;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class CoalescingDispatcherTest {
+
+    private static final long INTERVAL_MS = 16;
+
+    //Hace de hilo principal
+    private ScheduledExecutorService mUi;
+    private CoalescingDispatcher.Scheduler mScheduler;
+
+    private final long[] mLatest = new long[2];
+    private final List<Long> mDrainTimes = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        mUi = Executors.newSingleThreadScheduledExecutor();
+        mScheduler = new CoalescingDispatcher.Scheduler() {
+            @Override
+            public void schedule(Runnable task, long delayMillis) {
+                mUi.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+            }
+        };
+    }
+
+    @After
+    public void tearDown() {
+        mUi.shutdownNow();
+    }
+
+    private CoalescingDispatcher<Long> newDispatcher(){
+        final AtomicReference<CoalescingDispatcher<Long>> dispatcher = new AtomicReference<>();
+        dispatcher.set(new CoalescingDispatcher<>(2, INTERVAL_MS, mScheduler, new CoalescingDispatcher.Sink<Long>() {
+            private long mLastDrain = -1;
+
+            @Override
+            public void publish(int stream, Long value) {
+                mLatest[stream] = value;
+                //Varios streams en el mismo drain cuentan una vez
+                long drain = dispatcher.get().getDrainCount();
+                if(drain != mLastDrain) mDrainTimes.add(System.nanoTime());
+                mLastDrain = drain;
+            }
+        }));
+        return dispatcher.get();
+    }
+
+    @Test
+    public void floodIsCoalescedToOnePublicationPerInterval() throws Exception {
+        final CoalescingDispatcher<Long> dispatcher = newDispatcher();
+        final int threads = 4;
+        final int offers = 200000;
+        Thread[] producers = new Thread[threads];
+        long start = System.nanoTime();
+        for(int t = 0; t < threads; ++t){
+            final int stream = t % 2;
+            final boolean last = t >= threads - 2;
+            producers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for(long i = 0; i < offers; ++i){
+                        //Solo los ultimos productores de cada stream mandan el valor final
+                        dispatcher.offer(stream, last ? i : -1L);
+                    }
+                }
+            });
+        }
+        for(Thread t : producers) t.start();
+        for(Thread t : producers) t.join();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        //Espera a que se publique lo ultimo
+        Thread.sleep(INTERVAL_MS * 4);
+        mUi.submit(new Runnable() {
+            @Override
+            public void run() {}
+        }).get();
+
+        long offered = (long) threads * offers;
+        assertEquals(offered, dispatcher.getOfferedCount());
+        assertEquals(offered, dispatcher.getPublishedCount() + dispatcher.getCoalescedCount());
+        assertTrue(dispatcher.getCoalescedCount() > offered / 2);
+        //Como mucho un drain por intervalo mas los de los bordes
+        long maxDrains = (long) (seconds * 1000 / INTERVAL_MS) + 8;
+        assertTrue(dispatcher.getDrainCount() <= maxDrains);
+    }
+
+    @Test
+    public void publicationsAreSpacedByTheInterval() throws Exception {
+        CoalescingDispatcher<Long> dispatcher = newDispatcher();
+        long end = System.currentTimeMillis() + 300;
+        long i = 0;
+        while(System.currentTimeMillis() < end){
+            dispatcher.offer((int) (i & 1), i);
+            ++i;
+        }
+        Thread.sleep(INTERVAL_MS * 4);
+        mUi.submit(new Runnable() {
+            @Override
+            public void run() {}
+        }).get();
+
+        //El ultimo valor de cada stream llega siempre
+        assertEquals(i - 1, Math.max(mLatest[0], mLatest[1]));
+        assertTrue(mDrainTimes.size() > 1);
+        for(int d = 1; d < mDrainTimes.size(); ++d){
+            long gap = mDrainTimes.get(d) - mDrainTimes.get(d - 1);
+            assertTrue("drains " + TimeUnit.NANOSECONDS.toMillis(gap) + " ms apart",
+                    gap >= TimeUnit.MILLISECONDS.toNanos(INTERVAL_MS - 2));
+        }
+    }
+}
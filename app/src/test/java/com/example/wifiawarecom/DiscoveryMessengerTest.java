@@ -0,0 +1,214 @@
+package com.example.wifiawarecom;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * DiscoveryMessenger between two peers over a stand-in for the discovery session: the test
+ * decides which sendMessage calls arrive and what the platform reports for each one.
+ */
+public class DiscoveryMessengerTest {
+
+    private static final int STREAM = 3;
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final List<Sent> mAir = new ArrayList<>();
+    private final List<byte[]> mReceived = new ArrayList<>();
+    private final List<Integer> mFallback = new ArrayList<>();
+
+    private final StreamRouter mRouter = new StreamRouter();
+    private final DiscoveryMessenger mSender = newMessenger(new StreamRouter(), 2);
+    private final DiscoveryMessenger mReceiver = newMessenger(mRouter, 4);
+
+    {
+        mRouter.register(STREAM, new StreamRouter.StreamConsumer() {
+            @Override
+            public void onFrame(Object peer, int streamId, ByteBuffer payload) {
+                assertEquals("sender", peer);
+                byte[] bytes = new byte[payload.remaining()];
+                payload.get(bytes);
+                mReceived.add(bytes);
+            }
+        });
+    }
+
+    private static class Sent {
+        final int messageId;
+        final byte[] message;
+
+        Sent(int messageId, byte[] message){
+            this.messageId = messageId;
+            this.message = message;
+        }
+    }
+
+    private DiscoveryMessenger newMessenger(StreamRouter router, int burst){
+        return new DiscoveryMessenger(new DiscoveryMessenger.Sender() {
+            @Override
+            public void sendMessage(Object peer, int messageId, byte[] message) {
+                assertTrue(message.length <= DiscoveryMessenger.MAX_MESSAGE_SIZE);
+                assertNotEquals(0, messageId);
+                mAir.add(new Sent(messageId, message));
+            }
+        }, router, new DiscoveryMessenger.Fallback() {
+            @Override
+            public boolean send(Object peer, int streamId, ByteBuffer payload) {
+                mFallback.add(payload.remaining());
+                payload.position(payload.limit());
+                return true;
+            }
+        }, 1024, 1, burst, 4);
+    }
+
+    private static ByteBuffer payload(int size){
+        ByteBuffer payload = ByteBuffer.allocate(size);
+        for(int i = 0; i < size; ++i) payload.put((byte) i);
+        payload.flip();
+        return payload;
+    }
+
+    /**
+     * Delivers the oldest fragment on the air and reports it as sent.
+     */
+    private void deliver(){
+        Sent sent = mAir.remove(0);
+        mReceiver.onMessage("sender", sent.message);
+        assertTrue(mSender.onSendResult(sent.messageId, true));
+    }
+
+    @Test
+    public void smallMessageIsOneDiscoveryMessage() {
+        assertTrue(mSender.send("receiver", STREAM, payload(10), 0));
+        assertEquals(1, mAir.size());
+        deliver();
+        assertEquals(1, mReceived.size());
+        assertEquals(payload(10), ByteBuffer.wrap(mReceived.get(0)));
+        assertEquals(1, mSender.getMessagesSent());
+        assertEquals(0, mSender.getInFlight());
+        assertTrue(mFallback.isEmpty());
+        //Un mensaje que no es un fragmento es cosa del que llama
+        assertFalse(mReceiver.onMessage("sender", "connect".getBytes()));
+    }
+
+    @Test
+    public void largeMessageIsFragmentedWithinTheWindow() {
+        assertTrue(mSender.send("receiver", STREAM, payload(1000), 0));
+        //1001 bytes con el stream id son 5 fragmentos, solo 4 en vuelo
+        assertEquals(4, mAir.size());
+        assertEquals(4, mSender.getInFlight());
+        //Llegan en otro orden
+        Sent last = mAir.remove(3);
+        mReceiver.onMessage("sender", last.message);
+        mSender.onSendResult(last.messageId, true);
+        assertEquals(4, mAir.size());
+        while(!mAir.isEmpty()) deliver();
+        assertEquals(1, mReceived.size());
+        assertEquals(payload(1000), ByteBuffer.wrap(mReceived.get(0)));
+        assertEquals(5, mSender.getFragmentsSent());
+        assertEquals(1, mSender.getMessagesSent());
+        assertEquals(1, mReceiver.getMessagesReceived());
+    }
+
+    @Test
+    public void failedFragmentsAreSentAgainAndDuplicatesDropped() {
+        assertTrue(mSender.send("receiver", STREAM, payload(300), 0));
+        assertEquals(2, mAir.size());
+        //Llega pero el aviso dice que fallo: se repite y el duplicado no se entrega
+        Sent first = mAir.remove(0);
+        mReceiver.onMessage("sender", first.message);
+        mSender.onSendResult(first.messageId, false);
+        assertEquals(1, mSender.getRetransmits());
+        assertEquals(2, mAir.size());
+        while(!mAir.isEmpty()) deliver();
+        assertEquals(1, mReceived.size());
+        assertEquals(1, mReceiver.getDuplicates());
+        assertEquals(1, mSender.getMessagesSent());
+
+        //Reenviado un mensaje entero ya entregado
+        mReceiver.onMessage("sender", first.message);
+        assertEquals(1, mReceived.size());
+    }
+
+    @Test
+    public void messageFailsAfterMaxAttempts() {
+        assertTrue(mSender.send("receiver", STREAM, payload(1000), 0));
+        for(int i = 0; i < DiscoveryMessenger.MAX_ATTEMPTS; ++i){
+            //El primero y luego cada repeticion, que sale la ultima
+            Sent sent = mAir.remove(i == 0 ? 0 : mAir.size() - 1);
+            mSender.onSendResult(sent.messageId, false);
+        }
+        assertEquals(1, mSender.getMessagesFailed());
+        //El quinto fragmento ya no sale, los que estaban en vuelo terminan sin efecto
+        while(!mAir.isEmpty()) deliver();
+        assertEquals(0, mSender.getInFlight());
+        assertEquals(0, mSender.getMessagesSent());
+        assertTrue(mReceived.isEmpty());
+        assertFalse(mSender.onSendResult(12345, true));
+    }
+
+    @Test
+    public void largeOrFrequentMessagesTakeTheFallback() {
+        assertTrue(mSender.send("receiver", STREAM, payload(2000), 0));
+        assertEquals(Integer.valueOf(2000), mFallback.get(0));
+        assertTrue(mAir.isEmpty());
+
+        //Rafaga de 2 y luego 1 por segundo
+        assertTrue(mSender.send("receiver", STREAM, payload(10), 0));
+        assertTrue(mSender.send("receiver", STREAM, payload(10), 0));
+        assertTrue(mSender.send("receiver", STREAM, payload(10), SECOND / 2));
+        assertEquals(2, mFallback.size());
+        assertTrue(mSender.send("receiver", STREAM, payload(10), SECOND + SECOND / 2));
+        assertEquals(2, mFallback.size());
+        assertEquals(3, mAir.size());
+        assertEquals(2, mSender.getFallbacks());
+    }
+
+    @Test
+    public void fullQueueTakesTheFallbackWithoutSpendingAToken() {
+        DiscoveryMessenger sender = newMessenger(new StreamRouter(), 14);
+        //5 fragmentos por mensaje: 4 en vuelo y 60 esperando con 13 mensajes
+        for(int i = 0; i < 13; ++i) assertTrue(sender.send("receiver", STREAM, payload(1000), 0));
+        assertTrue(mFallback.isEmpty());
+        assertTrue(sender.send("receiver", STREAM, payload(1000), 0));
+        assertEquals(Integer.valueOf(1000), mFallback.get(0));
+        assertEquals(1, sender.getFallbacks());
+        while(!mAir.isEmpty()){
+            Sent sent = mAir.remove(0);
+            assertTrue(sender.onSendResult(sent.messageId, true));
+        }
+        //Queda el token que no se gasto
+        assertTrue(sender.send("receiver", STREAM, payload(10), 0));
+        assertEquals(1, mFallback.size());
+        assertEquals(1, mAir.size());
+    }
+
+    @Test
+    public void abandonedPartialsAreEvicted() {
+        //Solo llega el primer fragmento de cada mensaje
+        List<byte[]> seconds = new ArrayList<>();
+        for(int i = 0; i < 20; ++i){
+            assertTrue(mSender.send("receiver", STREAM, payload(400), i * SECOND));
+            while(!mAir.isEmpty()){
+                Sent sent = mAir.remove(0);
+                if(sent.message[3] == 0) mReceiver.onMessage("sender", sent.message);
+                else seconds.add(sent.message);
+                mSender.onSendResult(sent.messageId, true);
+            }
+        }
+        assertEquals(20, seconds.size());
+        //Los mas recientes se completan, los primeros ya se descartaron
+        mReceiver.onMessage("sender", seconds.get(19));
+        assertEquals(1, mReceived.size());
+        mReceiver.onMessage("sender", seconds.get(0));
+        assertEquals(1, mReceived.size());
+        assertEquals(0, mReceiver.getMalformed());
+        mReceiver.onMessage("sender", new byte[]{1, 0, 0, 3, 2});
+        assertEquals(1, mReceiver.getMalformed());
+    }
+}
@@ -0,0 +1,197 @@
+package com.example.wifiawarecom;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Read rounds of an IoLoop saturated by peers that flood it, every frame costs the listener a few
+ * microseconds so the loop and not the sockets is the bottleneck.
+ */
+public class FairReadSchedulingTest {
+
+    private static final long FRAME_COST_NANOS = 2000;
+    private static final int LIGHT_PEERS = 16;
+    private static final int LIGHT_ROUNDS = 500;
+    private static final int FLOOD_PAYLOAD = 8;
+
+    private BufferPool mReadPool;
+    private BufferPool mWritePool;
+    private IoLoop mLoop;
+    private ServerSocketChannel mListener;
+    private final ConcurrentMap<Object, PeerStats> mStats = new ConcurrentHashMap<>();
+    private final List<SocketChannel> mClients = new ArrayList<>();
+    private final List<Thread> mFlooders = new ArrayList<>();
+    private volatile boolean mFlooding = true;
+    private final AtomicLong mClosed = new AtomicLong();
+
+    /**
+     * Written from the loop thread only.
+     */
+    private static class PeerStats {
+        volatile long frames = 0;
+        final long[] latencies = new long[LIGHT_ROUNDS];
+        volatile int samples = 0;
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        mReadPool = new BufferPool(8192, 32, 8192 * 32);
+        mWritePool = new BufferPool(4096, 16, 4096 * 16);
+        mLoop = new IoLoop("io", mReadPool, mWritePool, IoLoop.DEFAULT_HIGH_WATERMARK, IoLoop.DEFAULT_LOW_WATERMARK,
+                new IoLoop.Listener() {
+            @Override
+            public void onAccept(IoLoop loop, Object peer, SocketChannel channel) {}
+
+            @Override
+            public void onFrame(Object peer, SocketChannel channel, ByteBuffer frame) {
+                PeerStats stats = mStats.get(peer);
+                ++stats.frames;
+                if(frame.remaining() == 8 && stats.samples < LIGHT_ROUNDS){
+                    long sent = frame.getLong();
+                    if(sent != 0) stats.latencies[stats.samples++] = System.nanoTime() - sent;
+                }
+                long end = System.nanoTime() + FRAME_COST_NANOS;
+                while(System.nanoTime() < end);
+            }
+
+            @Override
+            public void onClosed(Object peer, SelectableChannel channel) {
+                mClosed.incrementAndGet();
+            }
+        });
+        mLoop.start();
+        mListener = ServerSocketChannel.open();
+        mListener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mFlooding = false;
+        for(SocketChannel client : mClients) client.close();
+        for(Thread flooder : mFlooders) flooder.join();
+        long deadline = System.currentTimeMillis() + 5000;
+        while(mClosed.get() < mClients.size() && System.currentTimeMillis() < deadline) Thread.sleep(5);
+        assertEquals(mClients.size(), mClosed.get());
+        mLoop.stop();
+        mListener.close();
+        assertEquals(0, mReadPool.getInUse());
+        assertEquals(0, mWritePool.getInUse());
+    }
+
+    private SocketChannel connect(Object peer) throws IOException {
+        SocketChannel client = SocketChannel.open(mListener.getLocalAddress());
+        SocketChannel server = mListener.accept();
+        mStats.put(peer, new PeerStats());
+        mLoop.register(server, peer);
+        mClients.add(client);
+        return client;
+    }
+
+    /**
+     * Writes frames of a zero timestamp as fast as the socket takes them.
+     */
+    private void flood(final SocketChannel client){
+        final ByteBuffer burst = ByteBuffer.allocate(64 * 1024);
+        while(burst.remaining() >= FrameEncoder.HEADER_SIZE + FLOOD_PAYLOAD){
+            burst.putInt(FLOOD_PAYLOAD).putLong(0);
+        }
+        burst.flip();
+        Thread flooder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while(mFlooding){
+                        ByteBuffer out = burst.duplicate();
+                        while(out.hasRemaining()) client.write(out);
+                    }
+                } catch (IOException e) {
+                    //Cerrado al terminar
+                }
+            }
+        });
+        mFlooders.add(flooder);
+        flooder.start();
+    }
+
+    private long framesOf(Object peer){
+        return mStats.get(peer).frames;
+    }
+
+    @Test
+    public void lightPeersKeepLowLatencyNextToAFloodingPeer() throws Exception {
+        flood(connect("flood"));
+        SocketChannel[] light = new SocketChannel[LIGHT_PEERS];
+        for(int i = 0; i < LIGHT_PEERS; ++i) light[i] = connect("light-" + i);
+        Thread.sleep(100);
+
+        ByteBuffer frame = ByteBuffer.allocate(FrameEncoder.HEADER_SIZE + 8);
+        for(int round = 0; round < LIGHT_ROUNDS; ++round){
+            for(SocketChannel client : light){
+                frame.clear();
+                frame.putInt(8).putLong(System.nanoTime()).flip();
+                while(frame.hasRemaining()) client.write(frame);
+            }
+            Thread.sleep(1);
+        }
+        long deadline = System.currentTimeMillis() + 10000;
+        for(int i = 0; i < LIGHT_PEERS; ++i){
+            PeerStats stats = mStats.get("light-" + i);
+            while(stats.samples < LIGHT_ROUNDS && System.currentTimeMillis() < deadline) Thread.sleep(5);
+            assertEquals(LIGHT_ROUNDS, stats.samples);
+        }
+        long flooded = framesOf("flood");
+
+        long[] all = new long[LIGHT_PEERS * LIGHT_ROUNDS];
+        for(int i = 0; i < LIGHT_PEERS; ++i){
+            System.arraycopy(mStats.get("light-" + i).latencies, 0, all, i * LIGHT_ROUNDS, LIGHT_ROUNDS);
+        }
+        Arrays.sort(all);
+        long p99 = all[all.length * 99 / 100];
+        IoLoop.Load load = mLoop.getLoad();
+        //El que inunda sigue avanzando, solo se le limita la parte de cada ronda
+        assertTrue(flooded > LIGHT_PEERS * LIGHT_ROUNDS);
+        assertTrue(load.deferrals > 0);
+        assertTrue("p99 " + p99, p99 < TimeUnit.MILLISECONDS.toNanos(15));
+    }
+
+    @Test
+    public void weightsSplitASaturatedLoop() throws Exception {
+        flood(connect("a"));
+        flood(connect("b"));
+        mLoop.setReadWeight("b", 3);
+        assertEquals(3, mLoop.getReadWeight("b"));
+        assertEquals(IoLoop.DEFAULT_WEIGHT, mLoop.getReadWeight("a"));
+        Thread.sleep(200);
+
+        long a = framesOf("a");
+        long b = framesOf("b");
+        Thread.sleep(500);
+        a = framesOf("a") - a;
+        b = framesOf("b") - b;
+        double ratio = (double) b / a;
+        assertTrue("ratio " + ratio, ratio > 2.0 && ratio < 4.5);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsWeightOutOfRange(){
+        mLoop.setReadWeight("a", IoLoop.MAX_WEIGHT + 1);
+    }
+}
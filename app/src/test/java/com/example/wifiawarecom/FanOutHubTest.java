@@ -0,0 +1,297 @@
+package com.example.wifiawarecom;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class FanOutHubTest {
+
+    private static final int STREAM = 7;
+    private static final int PAYLOAD = 100;
+    private static final int FRAME = FrameEncoder.HEADER_SIZE + 1 + PAYLOAD;
+
+    private final BufferPool mPool = new BufferPool(4096, 8, 4096 * 64);
+    private final Map<Object, FrameWriter> mWriters = new HashMap<>();
+    private final List<Object> mDisconnected = new ArrayList<>();
+    private final FanOutHub mHub = new FanOutHub(mPool, new FanOutHub.Peers() {
+        @Override
+        public FrameWriter getWriter(Object peer) {
+            return mWriters.get(peer);
+        }
+
+        @Override
+        public void disconnect(Object peer, FrameWriter writer) {
+            mDisconnected.add(peer);
+        }
+    });
+
+    private static final FrameWriter.Listener IGNORE = new FrameWriter.Listener() {
+        @Override
+        public void onWriteRequested(FrameWriter writer) {}
+
+        @Override
+        public void onBackpressure(FrameWriter writer, boolean engaged) {}
+    };
+
+    private FrameWriter subscribe(String peer, FanOutHub.Policy policy, int highWatermark){
+        FrameWriter writer = new FrameWriter(mPool, highWatermark, 0, IGNORE);
+        mWriters.put(peer, writer);
+        mHub.subscribe(peer, policy);
+        return writer;
+    }
+
+    private static ByteBuffer payload(int value){
+        ByteBuffer payload = ByteBuffer.allocate(PAYLOAD);
+        payload.putInt(0, value);
+        return payload;
+    }
+
+    /**
+     * First int of the payload of every frame written to sink.
+     */
+    private static List<Integer> values(SinkChannel sink) throws IOException {
+        final List<Integer> values = new ArrayList<>();
+        sink.mData.flip();
+        new FrameDecoder(4096).feed(sink.mData, new FrameDecoder.FrameListener() {
+            @Override
+            public void onFrame(ByteBuffer frame) {
+                assertEquals(STREAM, StreamRouter.readStreamId(frame));
+                assertEquals(PAYLOAD, frame.remaining());
+                values.add(frame.getInt(frame.position()));
+            }
+        });
+        return values;
+    }
+
+    @Test
+    public void frameIsEncodedOnceAndRecycledAfterTheLastWrite() throws Exception {
+        subscribe("a", FanOutHub.Policy.DROP_NEWEST, 64 * 1024);
+        FrameWriter b = subscribe("b", FanOutHub.Policy.DROP_NEWEST, 64 * 1024);
+        FrameWriter c = subscribe("c", FanOutHub.Policy.DROP_NEWEST, 64 * 1024);
+        ByteBuffer payload = payload(42);
+        //Quien publica no lo recibe
+        assertEquals(2, mHub.publish("a", STREAM, payload));
+        assertFalse(payload.hasRemaining());
+        assertEquals(1, mHub.getPublished());
+        assertEquals(1, mPool.getInUse());
+        assertFalse(mWriters.get("a").hasPending());
+
+        SinkChannel toB = new SinkChannel(Integer.MAX_VALUE);
+        assertTrue(b.flush(toB));
+        assertEquals(1, mPool.getInUse());
+        SinkChannel toC = new SinkChannel(Integer.MAX_VALUE);
+        assertTrue(c.flush(toC));
+        assertEquals(0, mPool.getInUse());
+        assertEquals("[42]", values(toB).toString());
+        assertEquals("[42]", values(toC).toString());
+        assertEquals(1, mHub.getSubscription("b").getDelivered());
+    }
+
+    @Test
+    public void sharedAndCopiedFramesKeepTheirOrder() throws Exception {
+        FrameWriter b = subscribe("b", FanOutHub.Policy.DROP_NEWEST, 64 * 1024);
+        assertTrue(b.send(STREAM, payload(1)));
+        mHub.publish("a", STREAM, payload(2));
+        assertTrue(b.send(STREAM, payload(3)));
+        mHub.publish("a", STREAM, payload(4));
+        SinkChannel sink = new SinkChannel(Integer.MAX_VALUE);
+        assertTrue(b.flush(sink));
+        assertEquals("[1, 2, 3, 4]", values(sink).toString());
+        assertEquals(0, mPool.getInUse());
+    }
+
+    @Test
+    public void dropNewestRefusesWhileBackpressured() throws Exception {
+        FrameWriter b = subscribe("b", FanOutHub.Policy.DROP_NEWEST, 3 * FRAME);
+        for(int i = 0; i < 10; ++i) mHub.publish("a", STREAM, payload(i));
+        SinkChannel sink = new SinkChannel(Integer.MAX_VALUE);
+        assertTrue(b.flush(sink));
+        assertEquals("[0, 1, 2]", values(sink).toString());
+        assertEquals(7, mHub.getSubscription("b").getDropped());
+        assertEquals(0, mPool.getInUse());
+    }
+
+    @Test
+    public void dropOldestKeepsTheLatestFrames() throws Exception {
+        FrameWriter b = subscribe("b", FanOutHub.Policy.DROP_OLDEST, 3 * FRAME);
+        for(int i = 0; i < 10; ++i) assertEquals(1, mHub.publish("a", STREAM, payload(i)));
+        SinkChannel sink = new SinkChannel(Integer.MAX_VALUE);
+        assertTrue(b.flush(sink));
+        assertEquals("[7, 8, 9]", values(sink).toString());
+        assertEquals(7, mHub.getSubscription("b").getDropped());
+        assertEquals(7, b.getFramesDropped());
+        assertEquals(0, mPool.getInUse());
+    }
+
+    @Test
+    public void dropOldestSparesAFramePartlyWritten() throws Exception {
+        FrameWriter b = subscribe("b", FanOutHub.Policy.DROP_OLDEST, 3 * FRAME);
+        for(int i = 0; i < 3; ++i) mHub.publish("a", STREAM, payload(i));
+        //El socket solo acepta medio frame
+        SinkChannel sink = new SinkChannel(FRAME / 2);
+        assertFalse(b.flush(sink));
+        for(int i = 3; i < 10; ++i) mHub.publish("a", STREAM, payload(i));
+        sink.mLimit = Integer.MAX_VALUE;
+        assertTrue(b.flush(sink));
+        //El que estaba a medias sale entero, el resto son los ultimos
+        assertEquals("[0, 8, 9]", values(sink).toString());
+        assertEquals(0, mPool.getInUse());
+    }
+
+    @Test
+    public void dropOldestCountsWhatItDroppedBeforeRefusing() throws Exception {
+        FrameWriter b = subscribe("b", FanOutHub.Policy.DROP_OLDEST, 3 * FRAME);
+        mHub.publish("a", STREAM, payload(0));
+        //Lo copiado no se puede tirar y no deja sitio aunque se tire el compartido
+        assertTrue(b.send(STREAM, ByteBuffer.allocate(2 * FRAME)));
+        assertEquals(0, mHub.publish("a", STREAM, payload(1)));
+        assertEquals(2, mHub.getSubscription("b").getDropped());
+        assertEquals(1, b.getFramesDropped());
+        assertEquals(1, b.getFramesRefused());
+        b.close();
+        assertEquals(0, mPool.getInUse());
+    }
+
+    @Test
+    public void disconnectsASlowSubscriberOnce() throws Exception {
+        FrameWriter b = subscribe("b", FanOutHub.Policy.DISCONNECT, 3 * FRAME);
+        FrameWriter c = subscribe("c", FanOutHub.Policy.DISCONNECT, 64 * 1024);
+        for(int i = 0; i < 10; ++i) mHub.publish("a", STREAM, payload(i));
+        assertEquals("[b]", mDisconnected.toString());
+        assertEquals(1, mHub.getSubscription("b").getDisconnects());
+        assertEquals(10, mHub.getSubscription("c").getDelivered());
+        //El mismo par con otra conexion puede volver a desconectarse
+        b.close();
+        mWriters.put("b", new FrameWriter(mPool, 3 * FRAME, 0, IGNORE));
+        for(int i = 0; i < 10; ++i) mHub.publish("a", STREAM, payload(i));
+        assertEquals("[b, b]", mDisconnected.toString());
+        b = mWriters.get("b");
+        b.close();
+        c.close();
+        assertEquals(0, mPool.getInUse());
+    }
+
+    @Test
+    public void frameLargerThanAPooledBufferIsNotRelayed() {
+        FrameWriter b = subscribe("b", FanOutHub.Policy.DROP_NEWEST, 64 * 1024);
+        ByteBuffer payload = ByteBuffer.allocate(mPool.getBufferSize());
+        assertEquals(0, mHub.publish("a", STREAM, payload));
+        assertFalse(payload.hasRemaining());
+        assertEquals(1, mHub.getOversizedCount());
+        assertEquals(0, mHub.getPublished());
+        assertFalse(b.hasPending());
+        assertEquals(0, mPool.getInUse());
+    }
+
+    @Test
+    public void unsubscribedPeerGetsNothing() {
+        FrameWriter b = subscribe("b", FanOutHub.Policy.DROP_NEWEST, 64 * 1024);
+        subscribe("c", FanOutHub.Policy.DROP_NEWEST, 64 * 1024);
+        assertTrue(mHub.unsubscribe("b"));
+        assertFalse(mHub.unsubscribe("b"));
+        assertEquals(1, mHub.publish("a", STREAM, payload(0)));
+        assertFalse(b.hasPending());
+        assertNull(mHub.getSubscription("b"));
+        assertEquals(1, mHub.getSubscriberCount());
+        mWriters.get("c").close();
+        assertEquals(0, mPool.getInUse());
+    }
+
+    @Test
+    public void serverRelaysBetweenLoopbackClients() throws Exception {
+        final int clients = 20;
+        final int frames = 50;
+        LoopbackTransport transport = new LoopbackTransport();
+        Server server = new Server(transport, null, 2, true);
+        server.enableFanOut(STREAM);
+        server.start();
+        Client[] peers = new Client[clients];
+        final AtomicLong[] received = new AtomicLong[clients];
+        try {
+            for(int i = 0; i < clients; ++i){
+                String peer = "peer-" + i;
+                assertTrue(server.addNewConnection(peer));
+                assertTrue(server.subscribe(peer, FanOutHub.Policy.DROP_OLDEST));
+                peers[i] = new Client(transport, peer, 64 * 1024, 16 * 1024, false);
+                final AtomicLong count = received[i] = new AtomicLong();
+                peers[i].setReceiveListener(new Client.ReceiveListener() {
+                    @Override
+                    public void onFrame(int stream, ByteBuffer frame) {
+                        if(stream == STREAM && frame.remaining() == PAYLOAD) count.incrementAndGet();
+                    }
+                });
+            }
+            long deadline = System.currentTimeMillis() + 10000;
+            for(Client client : peers){
+                while(!client.isConnected() && System.currentTimeMillis() < deadline) Thread.sleep(1);
+                assertTrue(client.isConnected());
+            }
+            while(server.getPeerStateCounts().get(PeerRegistry.State.CONNECTED) < clients
+                    && System.currentTimeMillis() < deadline) Thread.sleep(1);
+            for(int i = 0; i < frames; ++i) assertTrue(peers[0].send(STREAM, payload(i)));
+            for(int i = 1; i < clients; ++i){
+                while(received[i].get() < frames && System.currentTimeMillis() < deadline) Thread.sleep(5);
+                assertEquals(frames, received[i].get());
+            }
+            assertEquals(0, received[0].get());
+            assertEquals(frames, server.getHub().getPublished());
+        } finally {
+            for(Client client : peers) if(client != null) client.stop();
+            server.stop();
+        }
+        assertEquals(0, server.getWritePool().getInUse());
+        assertEquals(0, server.getBufferPool().getInUse());
+    }
+
+    /**
+     * Takes up to limit bytes in total, then writes nothing.
+     */
+    private static class SinkChannel implements GatheringByteChannel {
+        final ByteBuffer mData = ByteBuffer.allocate(64 * 1024);
+        int mLimit;
+
+        SinkChannel(int limit){
+            mLimit = limit;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            long total = 0;
+            for(int i = offset; i < offset + length; ++i) total += write(srcs[i]);
+            return total;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) {
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            int n = Math.min(src.remaining(), Math.min(mLimit, mData.remaining()));
+            ByteBuffer slice = src.duplicate();
+            slice.limit(slice.position() + n);
+            mData.put(slice);
+            src.position(src.position() + n);
+            mLimit -= n;
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {}
+    }
+}
@@ -0,0 +1,153 @@
+package com.example.wifiawarecom;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Files between a shared Server and its Client over LoopbackTransport, on connections of their own
+ * to the shared port next to the data channel, which keeps carrying frames.
+ */
+public class FileLinkTest {
+
+    private static final String PEER = "peer";
+    private static final int LENGTH = 3 * FileTransfer.DEFAULT_CHUNK_SIZE + 1234;
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final LoopbackTransport mTransport = new LoopbackTransport();
+    private Server mServer;
+    private Client mClient;
+    private File mSource;
+    private final AtomicLong mSamples = new AtomicLong();
+    private final LinkedBlockingQueue<File> mReceived = new LinkedBlockingQueue<>();
+
+    private final FileReceiver.Listener mListener = new FileReceiver.Listener() {
+        @Override
+        public void onFileReceived(Object peer, File file) {
+            assertEquals(PEER, peer);
+            mReceived.add(file);
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        mSource = new File(mFolder.newFolder("outbox"), "log.bin");
+        byte[] data = new byte[LENGTH];
+        new Random(7).nextBytes(data);
+        try (FileOutputStream out = new FileOutputStream(mSource)) {
+            out.write(data);
+        }
+        mServer = new Server(mTransport, null, 1, true);
+        mServer.getRouter().register(Client.STREAM_1, new StreamRouter.StreamConsumer() {
+            @Override
+            public void onFrame(Object peer, int streamId, ByteBuffer payload) {
+                mSamples.incrementAndGet();
+            }
+        });
+        mServer.start();
+        assertTrue(mServer.addNewConnection(PEER));
+        mClient = new Client(mTransport, PEER, 16 * 1024, 4 * 1024, false);
+        long deadline = System.currentTimeMillis() + 5000;
+        while(!mClient.isConnected() && System.currentTimeMillis() < deadline) Thread.sleep(5);
+        assertTrue(mClient.isConnected());
+    }
+
+    @After
+    public void tearDown() {
+        mClient.stop();
+        mServer.stop();
+        assertEquals(0, mServer.getBufferPool().getInUse());
+        assertEquals(0, mServer.getWritePool().getInUse());
+    }
+
+    private void assertIntact(File file) throws Exception {
+        assertNotNull(file);
+        assertEquals(mSource.getName(), file.getName());
+        assertArrayEquals(Files.readAllBytes(mSource.toPath()), Files.readAllBytes(file.toPath()));
+        assertFalse(new File(file.getParentFile(), file.getName() + FileReceiver.RESUME_SUFFIX).exists());
+    }
+
+    /**
+     * Frames still reach the server over the data channel.
+     */
+    private void assertDataChannelUp() throws Exception {
+        ByteBuffer sample = ByteBuffer.allocate(SampleCodec.MAX_SAMPLE_SIZE);
+        SampleCodec.putInt(sample, SampleCodec.NO_TIMESTAMP, 1);
+        sample.flip();
+        assertTrue(mClient.send(Client.STREAM_1, sample));
+        long deadline = System.currentTimeMillis() + 5000;
+        while(mSamples.get() == 0 && System.currentTimeMillis() < deadline) Thread.sleep(5);
+        assertEquals(1, mSamples.get());
+        assertEquals(PeerRegistry.State.CONNECTED, mServer.getPeerState(PEER));
+    }
+
+    @Test
+    public void clientSendsAFileToTheServer() throws Exception {
+        mServer.setFileDirectory(mFolder.newFolder("server"), mListener);
+        assertEquals(Long.valueOf(LENGTH), mClient.sendFile(mSource, 1).get(10, TimeUnit.SECONDS));
+        assertIntact(mReceived.poll(5, TimeUnit.SECONDS));
+        assertEquals(0, mServer.getHandshakesRejected());
+        assertDataChannelUp();
+    }
+
+    @Test
+    public void clientPullsTheFilesQueuedByTheServer() throws Exception {
+        //Encolado antes de que el cliente acepte ficheros, sale cuando lo hace
+        File other = new File(mSource.getParentFile(), "other.bin");
+        Files.copy(mSource.toPath(), other.toPath());
+        mServer.sendFile(PEER, mSource, 1);
+        mServer.sendFile(PEER, other, 2);
+        Thread.sleep(100);
+        assertTrue(mReceived.isEmpty());
+        File inbox = mFolder.newFolder("client");
+        mClient.setFileDirectory(inbox, mListener);
+        assertIntact(mReceived.poll(10, TimeUnit.SECONDS));
+        assertEquals("other.bin", mReceived.poll(10, TimeUnit.SECONDS).getName());
+
+        //Con el cliente ya escuchando llega sin mas
+        assertTrue(new File(inbox, mSource.getName()).delete());
+        assertEquals(Long.valueOf(LENGTH), mServer.sendFile(PEER, mSource, 3).get(10, TimeUnit.SECONDS));
+        assertIntact(mReceived.poll(5, TimeUnit.SECONDS));
+        assertDataChannelUp();
+    }
+
+    @Test
+    public void serverWithoutDirectoryRefusesFiles() throws Exception {
+        try {
+            mClient.sendFile(mSource, 1).get(15, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        assertEquals(FileLink.MAX_ATTEMPTS, mServer.getHandshakesRejected());
+        assertDataChannelUp();
+    }
+
+    @Test
+    public void fileForARemovedPeerFails() throws Exception {
+        mServer.removeConnection(PEER);
+        try {
+            mServer.sendFile(PEER, mSource, 1).get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package com.example.wifiawarecom;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * File transfers over loopback, cut or corrupted on the way by a relay between the two sides.
+ */
+public class FileTransferTest {
+
+    private static final int CHUNK = 64 * 1024;
+    private static final int LENGTH = 10 * CHUNK + 1234;
+    private static final int OFFER_SIZE = 4 + 8 + 8 + 4 + 2 + "log.bin".length();
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mSource;
+    private File mInbox;
+    private FileReceiver mReceiver;
+    private ServerSocketChannel mListener;
+    private Thread mAcceptor;
+    private final AtomicInteger mFailedAttempts = new AtomicInteger();
+
+    @Before
+    public void setUp() throws Exception {
+        mSource = new File(mFolder.newFolder("outbox"), "log.bin");
+        byte[] data = new byte[LENGTH];
+        new Random(7).nextBytes(data);
+        try (FileOutputStream out = new FileOutputStream(mSource)) {
+            out.write(data);
+        }
+        mInbox = mFolder.newFolder("inbox");
+        mReceiver = new FileReceiver(mInbox);
+        mListener = ServerSocketChannel.open();
+        mListener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        mAcceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while(true){
+                    try (SocketChannel channel = mListener.accept()) {
+                        mReceiver.receive(channel);
+                    } catch (IOException e) {
+                        if(!mListener.isOpen()) return;
+                        mFailedAttempts.incrementAndGet();
+                    }
+                }
+            }
+        });
+        mAcceptor.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mListener.close();
+        mAcceptor.join(5000);
+    }
+
+    private SocketChannel connect() throws IOException {
+        return SocketChannel.open(mListener.getLocalAddress());
+    }
+
+    private void assertReceivedIntact() throws IOException {
+        File received = new File(mInbox, "log.bin");
+        assertArrayEquals(Files.readAllBytes(mSource.toPath()), Files.readAllBytes(received.toPath()));
+        assertFalse(new File(mInbox, "log.bin" + FileReceiver.RESUME_SUFFIX).exists());
+    }
+
+    @Test
+    public void fileArrivesIntact() throws Exception {
+        FileSender sender = new FileSender(CHUNK);
+        try (SocketChannel channel = connect()) {
+            assertEquals(LENGTH, sender.send(channel, mSource, 1));
+        }
+        assertReceivedIntact();
+        assertEquals(1, mReceiver.getTransfersCompleted());
+        assertEquals(0, sender.getResumedFrom());
+    }
+
+    @Test
+    public void cutTransferResumesFromTheLastVerifiedChunk() throws Exception {
+        //Corta en mitad del cuarto chunk
+        final long cut = OFFER_SIZE + 3 * (FileTransfer.CHUNK_HEADER_SIZE + CHUNK) + FileTransfer.CHUNK_HEADER_SIZE + 100;
+        FileSender sender = new FileSender(CHUNK);
+        final AtomicInteger opened = new AtomicInteger();
+        long sent = sender.send(new FileSender.ChannelOpener() {
+            @Override
+            public SocketChannel open() throws IOException {
+                return opened.incrementAndGet() == 1 ? relay(cut, -1) : connect();
+            }
+        }, mSource, 2, new Backoff(1, 10), 3);
+
+        assertReceivedIntact();
+        assertEquals(2, sender.getAttempts());
+        assertEquals(3 * CHUNK, sender.getResumedFrom());
+        //Solo el primer intento manda lo que se perdio, el segundo empieza en el chunk cortado
+        assertEquals(LENGTH - 3 * CHUNK, sent);
+        assertEquals(1, mFailedAttempts.get());
+    }
+
+    @Test
+    public void corruptedChunkIsSentAgain() throws Exception {
+        final long flip = OFFER_SIZE + 5 * (FileTransfer.CHUNK_HEADER_SIZE + CHUNK) + FileTransfer.CHUNK_HEADER_SIZE + 10;
+        FileSender sender = new FileSender(CHUNK);
+        final AtomicInteger opened = new AtomicInteger();
+        sender.send(new FileSender.ChannelOpener() {
+            @Override
+            public SocketChannel open() throws IOException {
+                return opened.incrementAndGet() == 1 ? relay(Long.MAX_VALUE, flip) : connect();
+            }
+        }, mSource, 3, new Backoff(1, 10), 3);
+
+        assertReceivedIntact();
+        assertEquals(1, mReceiver.getChunksRejected());
+        assertEquals(5 * CHUNK, sender.getResumedFrom());
+    }
+
+    @Test
+    public void anotherTransferStartsOver() throws Exception {
+        final long cut = OFFER_SIZE + 2 * (FileTransfer.CHUNK_HEADER_SIZE + CHUNK) + 50;
+        FileSender sender = new FileSender(CHUNK);
+        try (SocketChannel channel = relay(cut, -1)) {
+            sender.send(channel, mSource, 4);
+            fail();
+        } catch (IOException e) {}
+        //Otro transferId con el mismo nombre no aprovecha lo verificado
+        try (SocketChannel channel = connect()) {
+            assertEquals(LENGTH, sender.send(channel, mSource, 5));
+        }
+        assertEquals(0, sender.getResumedFrom());
+        assertReceivedIntact();
+    }
+
+    /**
+     * Connection to the receiver through a relay that forwards limit bytes of the sender and then
+     * drops both sides, and flips the byte at flipAt if it is not negative.
+     */
+    private SocketChannel relay(final long limit, final long flipAt) throws IOException {
+        final ServerSocketChannel front = ServerSocketChannel.open();
+        front.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        SocketChannel client = SocketChannel.open(front.getLocalAddress());
+        final SocketChannel near = front.accept();
+        front.close();
+        final SocketChannel far = connect();
+        startCopy(far, near, Long.MAX_VALUE, -1);
+        startCopy(near, far, limit, flipAt);
+        return client;
+    }
+
+    private static void startCopy(final SocketChannel from, final SocketChannel to, final long limit,
+                                  final long flipAt){
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                copy(from, to, limit, flipAt);
+            }
+        }).start();
+    }
+
+    private static void copy(SocketChannel from, SocketChannel to, long limit, long flipAt){
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        long copied = 0;
+        try {
+            while(copied < limit){
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), limit - copied));
+                if(from.read(buffer) < 0) break;
+                buffer.flip();
+                if(flipAt >= copied && flipAt < copied + buffer.remaining()){
+                    int i = (int) (flipAt - copied);
+                    buffer.put(i, (byte) ~buffer.get(i));
+                }
+                copied += buffer.remaining();
+                while(buffer.hasRemaining()) to.write(buffer);
+            }
+        } catch (IOException e) {}
+        //Cae la conexion entera
+        closeQuietly(from);
+        closeQuietly(to);
+    }
+
+    private static void closeQuietly(SocketChannel channel){
+        try {
+            channel.close();
+        } catch (IOException e) {}
+    }
+}
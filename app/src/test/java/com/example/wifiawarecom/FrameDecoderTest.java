@@ -0,0 +1,172 @@
+package com.example.wifiawarecom;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class FrameDecoderTest {
+
+    private ServerSocketChannel mListener;
+    private SocketChannel mWriter;
+    private SocketChannel mReader;
+
+    @Before
+    public void setUp() throws IOException {
+        mListener = ServerSocketChannel.open();
+        mListener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        mWriter = SocketChannel.open(mListener.getLocalAddress());
+        mReader = mListener.accept();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mWriter.close();
+        mReader.close();
+        mListener.close();
+    }
+
+    @Test
+    public void decodesSeveralFramesFromOneRead() throws IOException {
+        ByteBuffer out = ByteBuffer.allocate(1024);
+        for(int i = 0; i < 10; ++i){
+            byte[] payload = String.valueOf(i).getBytes(StandardCharsets.UTF_8);
+            FrameEncoder.encode(out, payload, 0, payload.length);
+        }
+        out.flip();
+        int total = out.remaining();
+        while(out.hasRemaining()) mWriter.write(out);
+
+        Collector collector = new Collector();
+        FrameDecoder decoder = new FrameDecoder(64);
+        int read = 0;
+        while(read < total){
+            read += decoder.read(mReader, collector);
+        }
+        assertEquals(10, collector.frames.size());
+        for(int i = 0; i < 10; ++i){
+            assertEquals(String.valueOf(i), collector.frames.get(i));
+        }
+    }
+
+    @Test
+    public void reassemblesFramesSplitAcrossWrites() throws Exception {
+        final int count = 5000;
+        final Random random = new Random(42);
+        final ByteBuffer stream = ByteBuffer.allocate(count * 64);
+        List<String> expected = new ArrayList<>();
+        for(int i = 0; i < count; ++i){
+            StringBuilder sb = new StringBuilder();
+            int len = random.nextInt(40);
+            for(int k = 0; k < len; ++k) sb.append((char)('a' + random.nextInt(26)));
+            sb.append(i);
+            expected.add(sb.toString());
+            byte[] payload = sb.toString().getBytes(StandardCharsets.UTF_8);
+            FrameEncoder.encode(stream, payload, 0, payload.length);
+        }
+        stream.flip();
+
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    //Trozos de tamano aleatorio para partir cabeceras y payloads
+                    while(stream.hasRemaining()){
+                        int chunk = Math.min(stream.remaining(), 1 + random.nextInt(97));
+                        ByteBuffer slice = stream.duplicate();
+                        slice.limit(slice.position() + chunk);
+                        while(slice.hasRemaining()) mWriter.write(slice);
+                        stream.position(stream.position() + chunk);
+                    }
+                } catch (IOException e) {
+                    fail(e.toString());
+                }
+            }
+        });
+        writer.start();
+
+        Collector collector = new Collector();
+        FrameDecoder decoder = new FrameDecoder(128);
+        while(collector.frames.size() < count){
+            assertNotEquals(-1, decoder.read(mReader, collector));
+        }
+        writer.join();
+        assertEquals(expected, collector.frames);
+    }
+
+    @Test
+    public void feedHandlesPartialHeader() throws IOException {
+        ByteBuffer out = ByteBuffer.allocate(64);
+        byte[] payload = "hola".getBytes(StandardCharsets.UTF_8);
+        FrameEncoder.encode(out, payload, 0, payload.length);
+        out.flip();
+
+        Collector collector = new Collector();
+        FrameDecoder decoder = new FrameDecoder(64);
+        for(int i = 0; i < out.limit(); ++i){
+            ByteBuffer one = ByteBuffer.wrap(new byte[]{out.get(i)});
+            decoder.feed(one, collector);
+        }
+        assertEquals(1, collector.frames.size());
+        assertEquals("hola", collector.frames.get(0));
+    }
+
+    @Test
+    public void budgetedReadLeavesFramesBuffered() throws IOException {
+        ByteBuffer out = ByteBuffer.allocate(1024);
+        for(int i = 0; i < 10; ++i){
+            byte[] payload = String.valueOf(i).getBytes(StandardCharsets.UTF_8);
+            FrameEncoder.encode(out, payload, 0, payload.length);
+        }
+        out.flip();
+        int total = out.remaining();
+        while(out.hasRemaining()) mWriter.write(out);
+
+        Collector collector = new Collector();
+        FrameDecoder decoder = new FrameDecoder(64);
+        //Cabecera y medio frame: nada que entregar
+        assertEquals(FrameEncoder.HEADER_SIZE, decoder.read(mReader, collector, FrameEncoder.HEADER_SIZE, 100));
+        assertFalse(decoder.hasFrame());
+        int read = FrameEncoder.HEADER_SIZE;
+        while(read < total){
+            read += decoder.read(mReader, collector, total - read, 0);
+        }
+        assertTrue(collector.frames.isEmpty());
+        assertTrue(decoder.hasFrame());
+        assertEquals(3, decoder.decode(collector, 3));
+        assertEquals(3, decoder.decode(collector, 3));
+        assertEquals(4, decoder.decode(collector));
+        assertFalse(decoder.hasFrame());
+        for(int i = 0; i < 10; ++i){
+            assertEquals(String.valueOf(i), collector.frames.get(i));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOversizedFrame() throws IOException {
+        ByteBuffer out = ByteBuffer.allocate(8);
+        out.putInt(1000).flip();
+        new FrameDecoder(16).feed(out, new Collector());
+    }
+
+    private static class Collector implements FrameDecoder.FrameListener {
+        final List<String> frames = new ArrayList<>();
+
+        @Override
+        public void onFrame(ByteBuffer frame) {
+            frames.add(Server.bb_to_str(frame, StandardCharsets.UTF_8));
+        }
+    }
+}
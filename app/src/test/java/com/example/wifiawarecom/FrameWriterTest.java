@@ -0,0 +1,254 @@
+package com.example.wifiawarecom;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class FrameWriterTest {
+
+    private static final int PAYLOAD = 60;
+
+    private ServerSocketChannel mListener;
+    private SocketChannel mWriterChannel;
+    private SocketChannel mReaderChannel;
+    private BufferPool mPool;
+
+    private final AtomicInteger mWriteRequests = new AtomicInteger();
+    private final AtomicInteger mEngaged = new AtomicInteger();
+    private final AtomicInteger mReleased = new AtomicInteger();
+    private volatile Selector mSelector;
+
+    private final FrameWriter.Listener mListenerCallbacks = new FrameWriter.Listener() {
+        @Override
+        public void onWriteRequested(FrameWriter writer) {
+            mWriteRequests.incrementAndGet();
+            Selector selector = mSelector;
+            if(selector != null) selector.wakeup();
+        }
+
+        @Override
+        public void onBackpressure(FrameWriter writer, boolean engaged) {
+            if(engaged) mEngaged.incrementAndGet();
+            else mReleased.incrementAndGet();
+        }
+    };
+
+    @Before
+    public void setUp() throws IOException {
+        mListener = ServerSocketChannel.open();
+        mListener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        mWriterChannel = SocketChannel.open(mListener.getLocalAddress());
+        mReaderChannel = mListener.accept();
+        mWriterChannel.setOption(StandardSocketOptions.SO_SNDBUF, 8 * 1024);
+        mPool = new BufferPool(4096, 8, 4096 * 64);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mWriterChannel.close();
+        mReaderChannel.close();
+        mListener.close();
+    }
+
+    @Test
+    public void coalescesQueuedFramesIntoOneGatheringWrite() throws IOException {
+        FrameWriter writer = new FrameWriter(mPool, 1024 * 1024, 0, mListenerCallbacks);
+        ByteBuffer payload = ByteBuffer.allocate(PAYLOAD);
+        for(int i = 0; i < 500; ++i){
+            payload.clear();
+            payload.putInt(i).position(PAYLOAD).flip();
+            assertTrue(writer.send(payload));
+        }
+        //Solo el primer frame avisa al hilo de I/O
+        assertEquals(1, mWriteRequests.get());
+        while(!writer.flush(mWriterChannel)){
+            assertTrue(writer.hasPending());
+        }
+        assertTrue(writer.getWriteCalls() < 50);
+        assertEquals(500L * (FrameEncoder.HEADER_SIZE + PAYLOAD), writer.getBytesWritten());
+        assertEquals(0, mPool.getInUse());
+    }
+
+    @Test
+    public void appliesBackpressureAndDeliversInOrder() throws Exception {
+        final int frames = 50000;
+        final FrameWriter writer = new FrameWriter(mPool, 32 * 1024, 8 * 1024, mListenerCallbacks);
+        mWriterChannel.configureBlocking(false);
+        final Selector selector = Selector.open();
+        final SelectionKey key = mWriterChannel.register(selector, 0, writer);
+        mSelector = selector;
+        final AtomicLong ioErrors = new AtomicLong();
+        final Thread io = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while(!Thread.currentThread().isInterrupted()){
+                        selector.select(50);
+                        Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                        while(it.hasNext()){
+                            it.next();
+                            it.remove();
+                        }
+                        key.interestOps(writer.flush(mWriterChannel) ? 0 : SelectionKey.OP_WRITE);
+                    }
+                } catch (IOException e) {
+                    ioErrors.incrementAndGet();
+                }
+            }
+        });
+        io.start();
+
+        final AtomicLong refused = new AtomicLong();
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ByteBuffer payload = ByteBuffer.allocate(PAYLOAD);
+                try {
+                    for(int i = 0; i < frames; ++i){
+                        payload.clear();
+                        payload.putInt(i).position(PAYLOAD).flip();
+                        while(!writer.send(payload)){
+                            refused.incrementAndGet();
+                            writer.awaitWritable(1, TimeUnit.SECONDS);
+                        }
+                    }
+                } catch (InterruptedException e) {}
+            }
+        });
+        producer.start();
+
+        //El lector arranca tarde para que se llenen los buffers del socket
+        Thread.sleep(300);
+        final int[] expected = {0};
+        final AtomicLong orderErrors = new AtomicLong();
+        FrameDecoder decoder = new FrameDecoder(PAYLOAD);
+        FrameDecoder.FrameListener check = new FrameDecoder.FrameListener() {
+            @Override
+            public void onFrame(ByteBuffer frame) {
+                if(frame.getInt() != expected[0]) orderErrors.incrementAndGet();
+                ++expected[0];
+            }
+        };
+        while(expected[0] < frames){
+            assertNotEquals(-1, decoder.read(mReaderChannel, check));
+        }
+        producer.join();
+        io.interrupt();
+        io.join();
+        selector.close();
+
+        assertEquals(0, ioErrors.get());
+        assertEquals(0, orderErrors.get());
+        assertTrue(mEngaged.get() > 0);
+        assertEquals(mEngaged.get(), mReleased.get());
+        assertTrue(refused.get() > 0);
+        assertTrue("frames should be coalesced", writer.getWriteCalls() < frames / 4);
+        assertEquals(0, mPool.getInUse());
+    }
+
+    @Test
+    public void refusesAFrameLargerThanAPooledBuffer() {
+        FrameWriter writer = new FrameWriter(mPool, 64 * 1024, 0, mListenerCallbacks);
+        ByteBuffer payload = ByteBuffer.allocate(writer.getMaxPayloadSize() + 1);
+        assertFalse(writer.send(payload));
+        assertEquals(writer.getMaxPayloadSize() + 1, payload.remaining());
+        assertEquals(1, writer.getFramesRefused());
+        //El limite justo cabe
+        payload.limit(writer.getMaxPayloadSize());
+        assertTrue(writer.send(payload));
+        writer.close();
+        assertEquals(0, mPool.getInUse());
+    }
+
+    @Test
+    public void rewindsAFrameCutByALostConnection() throws IOException {
+        FrameWriter writer = new FrameWriter(mPool, 64 * 1024, 0, mListenerCallbacks);
+        ByteBuffer payload = ByteBuffer.allocate(PAYLOAD);
+        for(int i = 0; i < 10; ++i){
+            payload.clear();
+            payload.put(0, (byte) i);
+            assertTrue(writer.send(payload));
+        }
+        int frame = FrameEncoder.HEADER_SIZE + PAYLOAD;
+        //La conexion muere a mitad del cuarto frame
+        final int cut = 3 * frame + 10;
+        writer.flush(new SinkChannel(cut));
+        assertEquals(10 * frame - cut, writer.getPendingBytes());
+        assertEquals(10, writer.rewindPartialFrame());
+        assertEquals(7 * frame, writer.getPendingBytes());
+        assertEquals(0, writer.rewindPartialFrame());
+
+        SinkChannel next = new SinkChannel(Integer.MAX_VALUE);
+        assertTrue(writer.flush(next));
+        next.mData.flip();
+        final int[] expected = {3};
+        new FrameDecoder(4096).feed(next.mData, new FrameDecoder.FrameListener() {
+            @Override
+            public void onFrame(ByteBuffer frame) {
+                assertEquals(expected[0]++, frame.get(frame.position()));
+            }
+        });
+        assertEquals(10, expected[0]);
+        assertEquals(0, mPool.getInUse());
+    }
+
+    /**
+     * Takes up to limit bytes in total, then writes nothing.
+     */
+    private static class SinkChannel implements GatheringByteChannel {
+        final ByteBuffer mData = ByteBuffer.allocate(64 * 1024);
+        int mLimit;
+
+        SinkChannel(int limit){
+            mLimit = limit;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            long total = 0;
+            for(int i = offset; i < offset + length; ++i) total += write(srcs[i]);
+            return total;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) {
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            int n = Math.min(src.remaining(), Math.min(mLimit, mData.remaining()));
+            ByteBuffer slice = src.duplicate();
+            slice.limit(slice.position() + n);
+            mData.put(slice);
+            src.position(src.position() + n);
+            mLimit -= n;
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {}
+    }
+}
@@ -0,0 +1,147 @@
+package com.example.wifiawarecom;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import static org.junit.Assert.*;
+
+/**
+ * Idle timeouts and heartbeats over LoopbackTransport, driven by the timers of the loops.
+ */
+public class IdleTimeoutTest {
+
+    private static final String PEER = "peer";
+    private static final long IDLE_MS = 150;
+
+    private final LoopbackTransport mTransport = new LoopbackTransport();
+    private Server mServer;
+    private Client mClient;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new Server(mTransport, null, 1, true);
+        mServer.setIdleTimeout(IDLE_MS);
+        mServer.start();
+    }
+
+    @After
+    public void tearDown() {
+        if(mClient != null) mClient.stop();
+        mServer.stop();
+        assertEquals(0, mServer.getBufferPool().getInUse());
+        assertEquals(0, mServer.getWritePool().getInUse());
+    }
+
+    private long idleClosed(){
+        long closed = 0;
+        for(IoLoop.Load load : mServer.getLoopLoads()) closed += load.idleClosed;
+        return closed;
+    }
+
+    private void connect() throws Exception {
+        assertTrue(mServer.addNewConnection(PEER));
+        mClient = new Client(mTransport, PEER, 64 * 1024, 16 * 1024, false);
+        long deadline = System.currentTimeMillis() + 5000;
+        while(!mClient.isConnected() && System.currentTimeMillis() < deadline) Thread.sleep(1);
+        assertTrue(mClient.isConnected());
+    }
+
+    @Test
+    public void silentClientIsReapedAndReconnects() throws Exception {
+        connect();
+        long deadline = System.currentTimeMillis() + 5000;
+        while(mClient.getRecoveryHistogram().getCount() < 2 && System.currentTimeMillis() < deadline) Thread.sleep(5);
+        //Cada conexion dura lo que el timeout y el cliente vuelve
+        assertTrue(mClient.getRecoveryHistogram().getCount() >= 2);
+        assertTrue(idleClosed() >= 2);
+        assertEquals(1, mServer.getPeerStateCounts().get(PeerRegistry.State.CONNECTED)
+                + mServer.getPeerStateCounts().get(PeerRegistry.State.REQUESTING));
+    }
+
+    @Test
+    public void heartbeatsKeepTheLinkUp() throws Exception {
+        connect();
+        mClient.setProbeInterval(IDLE_MS / 5);
+        mClient.setIdleTimeout(IDLE_MS);
+        Thread.sleep(IDLE_MS * 5);
+        assertTrue(mClient.isConnected());
+        assertEquals(0, idleClosed());
+        assertEquals(0, mClient.getRecoveryHistogram().getCount());
+        assertTrue(mClient.getProbe().getRttHistogram().getCount() > 5);
+    }
+
+    @Test
+    public void clientDropsASilentServer() throws Exception {
+        //Contesta al handshake y luego no vuelve a enviar nada
+        ServerSocketChannel silent = ServerSocketChannel.open();
+        silent.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        silent.socket().setSoTimeout(5000);
+        final String peer = "silent";
+        mTransport.publish(peer, silent.socket().getLocalPort(), new Transport.Callback() {
+            @Override
+            public void onAvailable(Object peer, InetSocketAddress address) {}
+
+            @Override
+            public void onLost(Object peer) {}
+        });
+        mClient = new Client(mTransport, peer, 64 * 1024, 16 * 1024, false);
+        mClient.setProbeInterval(IDLE_MS / 5);
+        mClient.setIdleTimeout(IDLE_MS);
+        try {
+            SocketChannel first = welcome(silent);
+            long start = System.nanoTime();
+            SocketChannel second = welcome(silent);
+            long millis = (System.nanoTime() - start) / 1000000;
+            assertTrue("reconnected after " + millis + " ms", millis >= IDLE_MS);
+            first.close();
+            second.close();
+        } finally {
+            mClient.stop();
+            silent.close();
+        }
+    }
+
+    private static SocketChannel welcome(ServerSocketChannel server) throws IOException {
+        SocketChannel channel;
+        try {
+            channel = server.socket().accept().getChannel();
+        } catch (SocketTimeoutException e) {
+            throw new AssertionError("Client did not connect");
+        }
+        ByteBuffer payload = ByteBuffer.allocate(16);
+        Handshake.writeWelcome(payload);
+        payload.flip();
+        ByteBuffer frame = ByteBuffer.allocate(64);
+        FrameEncoder.encode(frame, Handshake.STREAM, payload);
+        frame.flip();
+        while(frame.hasRemaining()) channel.write(frame);
+        return channel;
+    }
+
+    @Test
+    public void silentChannelOnTheSharedPortIsRejected() throws Exception {
+        //Sin timeout de inactividad: lo cierra el timer del handshake, sin otra conexion que lo provoque
+        Server server = new Server(mTransport, null, 1, true);
+        server.start();
+        try {
+            SocketChannel channel = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                    server.getSharedPort()));
+            channel.socket().setSoTimeout(10000);
+            assertEquals(-1, channel.socket().getInputStream().read());
+            assertEquals(1, server.getHandshakesRejected());
+            channel.close();
+        } finally {
+            server.stop();
+        }
+        assertEquals(0, server.getBufferPool().getInUse());
+    }
+}
@@ -0,0 +1,167 @@
+package com.example.wifiawarecom;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Many threads opening, registering and closing channels at once: every connection is accepted,
+ * read and closed, no buffer is left leased and the loops end with no channels and at most one
+ * wakeup per command. The rates are measured by IoLoopChurnBenchmark.
+ */
+public class IoLoopChurnTest {
+
+    private static final int THREADS = 8;
+    private static final int CONNECTIONS_PER_THREAD = 250;
+
+    private final AtomicLong mAccepted = new AtomicLong();
+    private final AtomicLong mFrames = new AtomicLong();
+    private final AtomicLong mClosed = new AtomicLong();
+    private BufferPool mPool;
+    private IoLoop mAcceptor;
+    private IoLoop[] mWorkers;
+
+    @Before
+    public void setUp() throws IOException {
+        //Cabe un buffer por conexion aunque los bucles vayan por detras del accept
+        mPool = new BufferPool(1024, 64, 1024 * 64 * 64);
+        IoLoop.Listener listener = new IoLoop.Listener() {
+            @Override
+            public void onAccept(IoLoop loop, Object peer, SocketChannel channel) {
+                mAccepted.incrementAndGet();
+                mWorkers[(int) (mAccepted.get() % mWorkers.length)].register(channel, peer);
+            }
+
+            @Override
+            public void onFrame(Object peer, SocketChannel channel, ByteBuffer frame) {
+                mFrames.incrementAndGet();
+            }
+
+            @Override
+            public void onClosed(Object peer, SelectableChannel channel) {
+                if(channel instanceof SocketChannel) mClosed.incrementAndGet();
+            }
+        };
+        mAcceptor = new IoLoop("accept", mPool, listener);
+        mWorkers = new IoLoop[]{new IoLoop("io-0", mPool, listener), new IoLoop("io-1", mPool, listener)};
+        mAcceptor.start();
+        for(IoLoop loop : mWorkers) loop.start();
+    }
+
+    @After
+    public void tearDown() {
+        mAcceptor.stop();
+        for(IoLoop loop : mWorkers) loop.stop();
+        assertEquals(0, mPool.getInUse());
+    }
+
+    @Test
+    public void acceptChurn() throws Exception {
+        ServerSocketChannel listener = ServerSocketChannel.open();
+        listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+        final InetSocketAddress address = (InetSocketAddress) listener.getLocalAddress();
+        mAcceptor.registerAcceptor(listener, "peer");
+
+        runOnThreads(new Churn() {
+            @Override
+            public void run(int index) throws IOException {
+                SocketChannel client = SocketChannel.open(address);
+                ByteBuffer frame = ByteBuffer.allocate(8);
+                frame.putInt(4).putInt(index).flip();
+                while(frame.hasRemaining()) client.write(frame);
+                client.close();
+            }
+        });
+        long total = (long) THREADS * CONNECTIONS_PER_THREAD;
+        awaitValue(mClosed, total);
+        assertEquals(0, mPool.getExhaustedCount());
+        assertEquals(total, mAccepted.get());
+        assertEquals(total, mFrames.get());
+        assertLoopsDrained();
+    }
+
+    @Test
+    public void crossThreadRegisterAndClose() throws Exception {
+        final ServerSocketChannel listener = ServerSocketChannel.open();
+        listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+        final InetSocketAddress address = (InetSocketAddress) listener.getLocalAddress();
+
+        runOnThreads(new Churn() {
+            @Override
+            public void run(int index) throws IOException {
+                SocketChannel client = SocketChannel.open(address);
+                SocketChannel server;
+                synchronized (listener){
+                    server = listener.accept();
+                }
+                IoLoop loop = mWorkers[index % mWorkers.length];
+                loop.register(server, index);
+                loop.close(server);
+                client.close();
+            }
+        });
+        long total = (long) THREADS * CONNECTIONS_PER_THREAD;
+        awaitValue(mClosed, total);
+        listener.close();
+        assertLoopsDrained();
+    }
+
+    private void assertLoopsDrained(){
+        long commands = 0;
+        long wakeups = 0;
+        for(IoLoop loop : mWorkers){
+            IoLoop.Load load = loop.getLoad();
+            assertEquals(0, load.channels);
+            commands += load.commands;
+            wakeups += load.wakeups;
+        }
+        //Como mucho un wakeup por comando, normalmente bastantes menos
+        assertTrue(wakeups <= commands);
+    }
+
+    private interface Churn {
+        void run(int index) throws IOException;
+    }
+
+    private static void runOnThreads(final Churn churn) throws InterruptedException {
+        final AtomicLong errors = new AtomicLong();
+        Thread[] threads = new Thread[THREADS];
+        for(int t = 0; t < THREADS; ++t){
+            final int base = t * CONNECTIONS_PER_THREAD;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for(int i = 0; i < CONNECTIONS_PER_THREAD; ++i){
+                        try {
+                            churn.run(base + i);
+                        } catch (IOException e) {
+                            errors.incrementAndGet();
+                        }
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for(Thread t : threads) t.join();
+        assertEquals(0, errors.get());
+    }
+
+    private static void awaitValue(AtomicLong value, long expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 20000;
+        while(value.get() < expected && System.currentTimeMillis() < deadline){
+            Thread.sleep(5);
+        }
+        assertEquals(expected, value.get());
+    }
+}
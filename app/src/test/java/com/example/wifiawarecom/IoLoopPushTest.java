@@ -0,0 +1,139 @@
+package com.example.wifiawarecom;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Server push through the outbound queues of an IoLoop, with a peer that never reads.
+ */
+public class IoLoopPushTest {
+
+    private static final int WRITE_BUFFER_SIZE = 4096;
+    private static final int HIGH_WATERMARK = 32 * 1024;
+    private static final int LOW_WATERMARK = 8 * 1024;
+    private static final int PAYLOAD = 100;
+
+    private BufferPool mReadPool;
+    private BufferPool mWritePool;
+    private IoLoop mLoop;
+    private ServerSocketChannel mListener;
+    private final ConcurrentMap<Object, FrameWriter> mWriters = new ConcurrentHashMap<>();
+    private final AtomicLong mClosed = new AtomicLong();
+
+    @Before
+    public void setUp() throws IOException {
+        mReadPool = new BufferPool(1024, 16, 1024 * 16);
+        mWritePool = new BufferPool(WRITE_BUFFER_SIZE, 16, WRITE_BUFFER_SIZE * 64);
+        mLoop = new IoLoop("io", mReadPool, mWritePool, HIGH_WATERMARK, LOW_WATERMARK, new IoLoop.Listener() {
+            @Override
+            public void onAccept(IoLoop loop, Object peer, SocketChannel channel) {}
+
+            @Override
+            public void onFrame(Object peer, SocketChannel channel, ByteBuffer frame) {}
+
+            @Override
+            public void onClosed(Object peer, SelectableChannel channel) {
+                mClosed.incrementAndGet();
+            }
+        });
+        mLoop.start();
+        mListener = ServerSocketChannel.open();
+        mListener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mLoop.stop();
+        mListener.close();
+        assertEquals(0, mReadPool.getInUse());
+        assertEquals(0, mWritePool.getInUse());
+    }
+
+    private SocketChannel connect(Object peer) throws IOException {
+        SocketChannel client = SocketChannel.open(mListener.getLocalAddress());
+        SocketChannel server = mListener.accept();
+        //Buffers pequenos para que el par lento se llene enseguida
+        server.setOption(StandardSocketOptions.SO_SNDBUF, 8 * 1024);
+        mWriters.put(peer, mLoop.register(server, peer));
+        return client;
+    }
+
+    @Test
+    public void slowPeerIsBoundedAndFastPeerGetsEverything() throws Exception {
+        final int frames = 20000;
+        SocketChannel fast = connect("fast");
+        SocketChannel slow = connect("slow");
+        slow.setOption(StandardSocketOptions.SO_RCVBUF, 8 * 1024);
+        final FrameWriter fastWriter = mWriters.get("fast");
+        final FrameWriter slowWriter = mWriters.get("slow");
+
+        final AtomicLong slowRefused = new AtomicLong();
+        Thread pusher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ByteBuffer payload = ByteBuffer.allocate(PAYLOAD);
+                try {
+                    for(int i = 0; i < frames; ++i){
+                        payload.clear();
+                        payload.putInt(i).position(PAYLOAD).flip();
+                        if(!slowWriter.send(payload.duplicate())) slowRefused.incrementAndGet();
+                        while(!fastWriter.send(payload)){
+                            fastWriter.awaitWritable(1, TimeUnit.SECONDS);
+                        }
+                    }
+                } catch (InterruptedException e) {}
+            }
+        });
+        pusher.start();
+
+        final int[] expected = {0};
+        final AtomicLong orderErrors = new AtomicLong();
+        FrameDecoder decoder = new FrameDecoder(PAYLOAD);
+        FrameDecoder.FrameListener check = new FrameDecoder.FrameListener() {
+            @Override
+            public void onFrame(ByteBuffer frame) {
+                if(frame.getInt() != expected[0]) orderErrors.incrementAndGet();
+                ++expected[0];
+            }
+        };
+        while(expected[0] < frames){
+            assertNotEquals(-1, decoder.read(fast, check));
+        }
+        pusher.join();
+
+        assertEquals(0, orderErrors.get());
+        assertTrue(slowRefused.get() > 0);
+        assertTrue(slowWriter.isBackpressured());
+        //La cola del par lento nunca pasa del high watermark mas un buffer
+        assertTrue(slowWriter.getPendingBytes() <= HIGH_WATERMARK + WRITE_BUFFER_SIZE);
+        //El ultimo write puede llegar al cliente antes de que el loop lo descuente
+        long drained = System.currentTimeMillis() + 1000;
+        while(fastWriter.getPendingBytes() > 0 && System.currentTimeMillis() < drained) Thread.sleep(1);
+        assertEquals(0, fastWriter.getPendingBytes());
+        assertEquals(0, mWritePool.getExhaustedCount());
+        IoLoop.Load load = mLoop.getLoad();
+        assertTrue(load.bytesWritten >= (long) frames * (FrameEncoder.HEADER_SIZE + PAYLOAD));
+
+        fast.close();
+        slow.close();
+        long deadline = System.currentTimeMillis() + 5000;
+        while(mClosed.get() < 2 && System.currentTimeMillis() < deadline) Thread.sleep(5);
+        assertEquals(2, mClosed.get());
+    }
+}
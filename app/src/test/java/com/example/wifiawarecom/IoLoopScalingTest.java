@@ -0,0 +1,198 @@
+package com.example.wifiawarecom;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Many simulated peers on loopback, each with its own listening channel as Server does,
+ * accepted on one loop and read on N sharded loops. How throughput scales with the loop count is
+ * measured by IoLoopScalingBenchmark in the benchmark module.
+ */
+public class IoLoopScalingTest {
+
+    private static final int PEERS = 32;
+    private static final int FRAME_PAYLOAD = 16;
+    private static final int FRAMES_PER_WRITE = 64;
+    private static final long RUN_MILLIS = 1000;
+
+    @Test
+    public void deliversFramesInOrderOnOneLoopPerPeer() throws Exception {
+        Harness harness = new Harness(3, 0);
+        try {
+            harness.start();
+            harness.sendFixed(500);
+            harness.awaitFrames((long) PEERS * 500, 10000);
+            assertEquals(0, harness.mOrderErrors.get());
+            assertEquals(0, harness.mShardErrors.get());
+            long perLoop = 0;
+            for(IoLoop loop : harness.mWorkers){
+                IoLoop.Load load = loop.getLoad();
+                assertTrue(load.channels > 0);
+                perLoop += load.framesRead;
+            }
+            assertEquals((long) PEERS * 500, perLoop);
+            assertEquals(0, harness.mAcceptor.getLoad().framesRead);
+        } finally {
+            harness.stop();
+        }
+    }
+
+    @Test
+    public void everyLoopCountKeepsUpUnderSustainedLoad() throws Exception {
+        for(int loops : new int[]{1, 2, 4}){
+            Harness harness = new Harness(loops, 2000);
+            try {
+                harness.start();
+                assertTrue(harness.measureFramesPerSecond(RUN_MILLIS / 4) > 0);
+            } finally {
+                harness.stop();
+            }
+            assertEquals(0, harness.mOrderErrors.get());
+            assertEquals(0, harness.mShardErrors.get());
+        }
+    }
+
+    private static class Harness implements IoLoop.Listener {
+        final IoLoop mAcceptor;
+        final IoLoop[] mWorkers;
+        final int mWorkPerFrame;
+        final BufferPool mPool = new BufferPool(4096, 16, 4096 * 16 * 8);
+        final List<ServerSocketChannel> mListeners = new ArrayList<>();
+        final List<SocketChannel> mClients = new ArrayList<>();
+        final int[] mExpectedSeq = new int[PEERS];
+        final ConcurrentHashMap<Integer, Thread> mPeerThreads = new ConcurrentHashMap<>();
+        final AtomicLong mFrames = new AtomicLong();
+        final AtomicLong mOrderErrors = new AtomicLong();
+        final AtomicLong mShardErrors = new AtomicLong();
+        volatile long mSink;
+        volatile boolean mSending;
+        Thread[] mWriters;
+
+        Harness(int loops, int workPerFrame) throws IOException {
+            mAcceptor = new IoLoop("accept", mPool, this);
+            mWorkers = new IoLoop[loops];
+            for(int i = 0; i < loops; ++i) mWorkers[i] = new IoLoop("io-" + i, mPool, this);
+            mWorkPerFrame = workPerFrame;
+        }
+
+        void start() throws IOException {
+            for(IoLoop loop : mWorkers) loop.start();
+            mAcceptor.start();
+            for(int p = 0; p < PEERS; ++p){
+                ServerSocketChannel listener = ServerSocketChannel.open();
+                listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+                mListeners.add(listener);
+                mAcceptor.registerAcceptor(listener, p);
+                mClients.add(SocketChannel.open(listener.getLocalAddress()));
+            }
+        }
+
+        void stop() throws IOException {
+            mSending = false;
+            //Cerrar primero desbloquea a los escritores sin esperar a vaciar los buffers del socket
+            for(SocketChannel c : mClients) c.close();
+            if(mWriters != null){
+                for(Thread t : mWriters){
+                    try {
+                        t.join();
+                    } catch (InterruptedException e) {}
+                }
+            }
+            mAcceptor.stop();
+            for(IoLoop loop : mWorkers) loop.stop();
+            assertEquals(0, mPool.getInUse());
+        }
+
+        void sendFixed(int frames) throws IOException {
+            for(int p = 0; p < PEERS; ++p){
+                ByteBuffer out = ByteBuffer.allocate(frames * (FrameEncoder.HEADER_SIZE + FRAME_PAYLOAD));
+                for(int seq = 0; seq < frames; ++seq) putFrame(out, seq);
+                out.flip();
+                while(out.hasRemaining()) mClients.get(p).write(out);
+            }
+        }
+
+        double measureFramesPerSecond(long millis) throws InterruptedException {
+            mSending = true;
+            mWriters = new Thread[PEERS];
+            for(int p = 0; p < PEERS; ++p){
+                final SocketChannel client = mClients.get(p);
+                mWriters[p] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        ByteBuffer out = ByteBuffer.allocate(FRAMES_PER_WRITE * (FrameEncoder.HEADER_SIZE + FRAME_PAYLOAD));
+                        int seq = 0;
+                        try {
+                            while(mSending){
+                                out.clear();
+                                for(int k = 0; k < FRAMES_PER_WRITE; ++k) putFrame(out, seq++);
+                                out.flip();
+                                while(out.hasRemaining()) client.write(out);
+                            }
+                        } catch (IOException e) {}
+                    }
+                });
+                mWriters[p].start();
+            }
+            Thread.sleep(millis / 4);
+            long startFrames = mFrames.get();
+            long start = System.nanoTime();
+            Thread.sleep(millis);
+            long frames = mFrames.get() - startFrames;
+            double seconds = (System.nanoTime() - start) / 1e9;
+            mSending = false;
+            return frames / seconds;
+        }
+
+        void awaitFrames(long count, long timeoutMillis) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            while(mFrames.get() < count && System.currentTimeMillis() < deadline){
+                Thread.sleep(10);
+            }
+            assertEquals(count, mFrames.get());
+        }
+
+        private static void putFrame(ByteBuffer out, int seq){
+            out.putInt(FRAME_PAYLOAD);
+            out.putInt(seq);
+            for(int i = 4; i < FRAME_PAYLOAD; ++i) out.put((byte) i);
+        }
+
+        @Override
+        public void onAccept(IoLoop loop, Object peer, SocketChannel channel) {
+            IoLoop target = mWorkers.length == 0 ? loop : mWorkers[(peer.hashCode() & 0x7fffffff) % mWorkers.length];
+            target.register(channel, peer);
+        }
+
+        @Override
+        public void onFrame(Object peer, SocketChannel channel, ByteBuffer frame) {
+            int p = (Integer) peer;
+            Thread previous = mPeerThreads.putIfAbsent(p, Thread.currentThread());
+            if(previous != null && previous != Thread.currentThread()) mShardErrors.incrementAndGet();
+            int seq = frame.getInt();
+            if(seq != mExpectedSeq[p]) mOrderErrors.incrementAndGet();
+            mExpectedSeq[p] = seq + 1;
+            //Trabajo simulado por frame para que el coste no sea solo la syscall
+            long acc = seq;
+            for(int i = 0; i < mWorkPerFrame; ++i) acc = acc * 31 + i;
+            mSink = acc;
+            mFrames.incrementAndGet();
+        }
+
+        @Override
+        public void onClosed(Object peer, SelectableChannel channel) {}
+    }
+}
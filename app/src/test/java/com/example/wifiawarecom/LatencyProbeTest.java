@@ -0,0 +1,119 @@
+package com.example.wifiawarecom;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class LatencyProbeTest {
+
+    //El reloj del servidor va 5 s por delante
+    private static final long SKEW = 5000000;
+
+    private final LatencyProbe mClient = new LatencyProbe();
+    private final LatencyProbe mServer = new LatencyProbe();
+    private final ByteBuffer mPing = ByteBuffer.allocate(LatencyProbe.MAX_PROBE_SIZE);
+    private final ByteBuffer mPong = ByteBuffer.allocate(LatencyProbe.MAX_PROBE_SIZE);
+
+    /**
+     * One exchange starting at client time t1, times in microseconds.
+     */
+    private void exchange(long t1, long up, long serverTime, long down){
+        mPing.clear();
+        mClient.writePing(mPing, t1);
+        mPing.flip();
+        long t2 = t1 + up + SKEW;
+        mPong.clear();
+        assertTrue(mServer.onProbe(mPing, mPong, t2, t2 + serverTime));
+        mPong.flip();
+        long t4 = t1 + up + serverTime + down;
+        assertFalse(mClient.onProbe(mPong, ByteBuffer.allocate(0), t4, t4));
+    }
+
+    @Test
+    public void symmetricPathGivesExactOffset() {
+        long t = 1000;
+        for(int i = 0; i < 10; ++i){
+            exchange(t, 400, 50, 400);
+            t += 100000;
+        }
+        assertTrue(mClient.isSynchronized());
+        assertEquals(SKEW, mClient.getOffsetMicros());
+        assertEquals(-SKEW, mServer.getOffsetMicros());
+        assertEquals(10, mClient.getRttHistogram().getCount());
+        //El servidor va un intercambio por detras
+        assertEquals(9, mServer.getRttHistogram().getCount());
+        assertEquals(800, mClient.getRttHistogram().getPercentile(0.5));
+        assertEquals(800, mServer.getRttHistogram().getMax());
+        assertEquals(0, mClient.getLostCount());
+        //Una muestra con marca del servidor pasa al reloj del cliente
+        assertEquals(12345, mClient.toLocalMicros(12345 + SKEW));
+        assertEquals(12345 + SKEW, mServer.toLocalMicros(12345));
+    }
+
+    @Test
+    public void offsetComesFromTheFastestExchange() {
+        Random random = new Random(1);
+        long t = 0;
+        for(int i = 0; i < 7; ++i){
+            //Colas en un solo sentido desplazan el offset de cada intercambio
+            exchange(t, 300 + random.nextInt(20000), 20, 300);
+            t += 100000;
+        }
+        exchange(t, 300, 20, 300);
+        assertEquals(SKEW, mClient.getOffsetMicros());
+    }
+
+    @Test
+    public void lostAndLatePongs() {
+        mPing.clear();
+        mClient.writePing(mPing, 0);
+        mPing.flip();
+        ByteBuffer late = ByteBuffer.allocate(LatencyProbe.MAX_PROBE_SIZE);
+        assertTrue(mServer.onProbe(mPing, late, SKEW + 100, SKEW + 100));
+        late.flip();
+        //Sale otro ping antes de que llegue el pong
+        exchange(10000, 100, 0, 100);
+        assertEquals(1, mClient.getLostCount());
+        assertFalse(mClient.onProbe(late, ByteBuffer.allocate(0), 20000, 20000));
+        assertEquals(1, mClient.getRttHistogram().getCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownProbeKind() {
+        mServer.onProbe(ByteBuffer.wrap(new byte[]{9}), mPong);
+    }
+
+    @Test
+    public void histogramPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for(int v = 1; v <= 100000; ++v) histogram.record(v);
+        assertEquals(100000, histogram.getCount());
+        assertEquals(1, histogram.getMin());
+        assertEquals(100000, histogram.getMax());
+        assertEquals(50000, histogram.getPercentile(0.5), 50000 * 0.04);
+        assertEquals(99000, histogram.getPercentile(0.99), 99000 * 0.04);
+        assertEquals(99900, histogram.getPercentile(0.999), 99900 * 0.04);
+        assertEquals(100000, histogram.getPercentile(1));
+        assertEquals(50000.5, histogram.getMean(), 0.001);
+
+        histogram.reset();
+        for(int v = 0; v < 64; ++v) histogram.record(v);
+        //Exacto por debajo de 64
+        assertEquals(31, histogram.getPercentile(0.5));
+        assertEquals(0, new LatencyHistogram().getPercentile(0.99));
+    }
+
+    @Test
+    public void histogramBucketsAreContiguous() {
+        long previous = -1;
+        for(int i = 0; i < LatencyHistogram.bucketIndex(Long.MAX_VALUE); ++i){
+            long high = LatencyHistogram.bucketValue(i);
+            assertEquals(i, LatencyHistogram.bucketIndex(high));
+            assertEquals(i, LatencyHistogram.bucketIndex(previous + 1));
+            previous = high;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.example.wifiawarecom;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MpscQueueTest {
+
+    @Test
+    public void singleThreadFifo() {
+        MpscQueue<Integer> queue = new MpscQueue<>();
+        assertTrue(queue.isEmpty());
+        assertNull(queue.poll());
+        for(int i = 0; i < 100; ++i) queue.offer(i);
+        assertFalse(queue.isEmpty());
+        for(int i = 0; i < 100; ++i) assertEquals(Integer.valueOf(i), queue.poll());
+        assertTrue(queue.isEmpty());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void keepsPerProducerOrderWithoutLosses() throws InterruptedException {
+        final int producers = 8;
+        final int perProducer = 100000;
+        final MpscQueue<long[]> queue = new MpscQueue<>();
+        Thread[] threads = new Thread[producers];
+        for(int p = 0; p < producers; ++p){
+            final int id = p;
+            threads[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for(int i = 0; i < perProducer; ++i) queue.offer(new long[]{id, i});
+                }
+            });
+            threads[p].start();
+        }
+        long[] next = new long[producers];
+        long received = 0;
+        long deadline = System.currentTimeMillis() + 30000;
+        while(received < (long) producers * perProducer && System.currentTimeMillis() < deadline){
+            long[] item = queue.poll();
+            if(item == null){
+                Thread.yield();
+                continue;
+            }
+            assertEquals(next[(int) item[0]], item[1]);
+            ++next[(int) item[0]];
+            ++received;
+        }
+        for(Thread t : threads) t.join();
+        assertEquals((long) producers * perProducer, received);
+        assertNull(queue.poll());
+    }
+}
@@ -0,0 +1,178 @@
+package com.example.wifiawarecom;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Hundreds of peers added and removed from several threads on a shared Server while a set of
+ * steady peers keeps streaming samples, which must arrive complete and in order.
+ */
+public class PeerChurnStressTest {
+
+    private static final int STEADY_PEERS = 16;
+    private static final int CHURN_THREADS = 4;
+    private static final int PEERS_PER_THREAD = 80;
+
+    private final LoopbackTransport mTransport = new LoopbackTransport();
+    private Server mServer;
+    private final Client[] mSteady = new Client[STEADY_PEERS];
+
+    private final ConcurrentMap<Object, long[]> mNextSample = new ConcurrentHashMap<>();
+    private final AtomicLong mSteadySamples = new AtomicLong();
+    private final AtomicLong mErrors = new AtomicLong();
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new Server(mTransport, null, 2, true);
+        mServer.getRouter().register(Client.STREAM_1, new StreamRouter.StreamConsumer() {
+            private final ThreadLocal<SampleCodec.Sample> mSample = new ThreadLocal<SampleCodec.Sample>(){
+                @Override
+                protected SampleCodec.Sample initialValue() {
+                    return new SampleCodec.Sample();
+                }
+            };
+
+            @Override
+            public void onFrame(Object peer, int streamId, ByteBuffer payload) {
+                SampleCodec.Sample sample = mSample.get();
+                SampleCodec.decode(payload, sample);
+                long[] next = mNextSample.get(peer);
+                //De un peer de la rotacion, sin orden que comprobar
+                if(next == null) return;
+                if(sample.longValue != next[0]) mErrors.incrementAndGet();
+                ++next[0];
+                mSteadySamples.incrementAndGet();
+            }
+        });
+        mServer.start();
+        for(int i = 0; i < STEADY_PEERS; ++i){
+            String peer = "steady-" + i;
+            mNextSample.put(peer, new long[1]);
+            assertTrue(mServer.addNewConnection(peer));
+            mSteady[i] = new Client(mTransport, peer, 16 * 1024, 4 * 1024, false);
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        for(Client client : mSteady){
+            while(!client.isConnected() && System.currentTimeMillis() < deadline) Thread.sleep(5);
+            assertTrue(client.isConnected());
+        }
+    }
+
+    @After
+    public void tearDown() {
+        for(Client client : mSteady) client.stop();
+        mServer.stop();
+        assertEquals(0, mServer.getBufferPool().getInUse());
+        assertEquals(0, mServer.getWritePool().getInUse());
+    }
+
+    private static boolean sendSample(Client client, ByteBuffer scratch, long value){
+        scratch.clear();
+        SampleCodec.putLong(scratch, SampleCodec.NO_TIMESTAMP, value);
+        scratch.flip();
+        return client.send(Client.STREAM_1, scratch);
+    }
+
+    @Test
+    public void churnWhileTrafficFlows() throws Exception {
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final long[] sent = new long[STEADY_PEERS];
+        Thread traffic = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ByteBuffer scratch = ByteBuffer.allocate(SampleCodec.MAX_SAMPLE_SIZE);
+                try {
+                    while(running.get()){
+                        for(int i = 0; i < STEADY_PEERS; ++i){
+                            if(sendSample(mSteady[i], scratch, sent[i])) ++sent[i];
+                        }
+                        Thread.sleep(0, 100000);
+                    }
+                } catch (InterruptedException e) {}
+            }
+        });
+        traffic.start();
+
+        final AtomicLong added = new AtomicLong();
+        final AtomicLong connected = new AtomicLong();
+        Thread[] churners = new Thread[CHURN_THREADS];
+        for(int t = 0; t < CHURN_THREADS; ++t){
+            final int thread = t;
+            churners[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random(thread);
+                    ByteBuffer scratch = ByteBuffer.allocate(SampleCodec.MAX_SAMPLE_SIZE);
+                    try {
+                        for(int i = 0; i < PEERS_PER_THREAD; ++i){
+                            String peer = "churn-" + thread + "-" + i;
+                            if(!mServer.addNewConnection(peer)){
+                                mErrors.incrementAndGet();
+                                continue;
+                            }
+                            added.incrementAndGet();
+                            Client client = new Client(mTransport, peer, 16 * 1024, 4 * 1024, false);
+                            //La mitad espera a conectar y manda algo, la otra se quita a medio conectar
+                            if(random.nextBoolean()){
+                                long deadline = System.currentTimeMillis() + 5000;
+                                while(!client.isConnected() && System.currentTimeMillis() < deadline) Thread.sleep(1);
+                                if(client.isConnected()) connected.incrementAndGet();
+                                for(int s = 0; s < 10; ++s) sendSample(client, scratch, s);
+                            }
+                            //Otro hilo quita a la vez el mismo peer
+                            final String victim = peer;
+                            Thread remover = new Thread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    mServer.removeConnection(victim);
+                                }
+                            });
+                            remover.start();
+                            mServer.removeConnection(peer);
+                            remover.join();
+                            client.stop();
+                            if(mServer.getPeerState(peer) != null) mErrors.incrementAndGet();
+                        }
+                    } catch (Exception e) {
+                        mErrors.incrementAndGet();
+                    }
+                }
+            });
+            churners[t].start();
+        }
+        for(Thread t : churners) t.join();
+        running.set(false);
+        traffic.join();
+
+        long total = 0;
+        for(long s : sent) total += s;
+        long deadline = System.currentTimeMillis() + 10000;
+        while(mSteadySamples.get() < total && System.currentTimeMillis() < deadline) Thread.sleep(5);
+
+        assertEquals(0, mErrors.get());
+        assertEquals(CHURN_THREADS * PEERS_PER_THREAD, added.get());
+        assertTrue(connected.get() > 0);
+        assertEquals(total, mSteadySamples.get());
+        Map<PeerRegistry.State, Integer> counts = mServer.getPeerStateCounts();
+        assertEquals(STEADY_PEERS, (int) counts.get(PeerRegistry.State.CONNECTED));
+        for(PeerRegistry.State state : PeerRegistry.State.values()){
+            if(state != PeerRegistry.State.CONNECTED) assertEquals(0, (int) counts.get(state));
+        }
+        for(int i = 0; i < STEADY_PEERS; ++i){
+            assertEquals(PeerRegistry.State.CONNECTED, mServer.getPeerState("steady-" + i));
+            assertTrue(mSteady[i].isConnected());
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.example.wifiawarecom;
+
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class PeerRegistryTest {
+
+    private static final PeerRegistry.State DISCOVERED = PeerRegistry.State.DISCOVERED;
+    private static final PeerRegistry.State REQUESTING = PeerRegistry.State.REQUESTING;
+    private static final PeerRegistry.State CONNECTED = PeerRegistry.State.CONNECTED;
+    private static final PeerRegistry.State DRAINING = PeerRegistry.State.DRAINING;
+    private static final PeerRegistry.State CLOSED = PeerRegistry.State.CLOSED;
+
+    @Test
+    public void lifecycle(){
+        PeerRegistry.Peer peer = new PeerRegistry.Peer("peer");
+        assertEquals(DISCOVERED, peer.getState());
+        assertTrue(peer.transition(DISCOVERED, REQUESTING));
+        assertFalse(peer.transition(DISCOVERED, REQUESTING));
+        assertEquals(REQUESTING, peer.moveTo(CONNECTED));
+        //Se pierde el enlace y vuelve
+        assertEquals(CONNECTED, peer.moveTo(REQUESTING));
+        assertEquals(REQUESTING, peer.moveTo(CONNECTED));
+        assertNull(peer.moveTo(CONNECTED));
+        assertTrue(peer.isOpen());
+        assertEquals(CONNECTED, peer.moveTo(DRAINING));
+        assertFalse(peer.isOpen());
+        assertNull(peer.moveTo(CONNECTED));
+        assertNull(peer.moveTo(REQUESTING));
+        assertEquals(DRAINING, peer.moveTo(CLOSED));
+        assertNull(peer.moveTo(DRAINING));
+        assertEquals(CLOSED, peer.getState());
+        try {
+            peer.transition(CLOSED, CONNECTED);
+            fail();
+        } catch (IllegalArgumentException e) {}
+    }
+
+    @Test
+    public void allowedTransitions(){
+        for(PeerRegistry.State from : PeerRegistry.State.values()){
+            assertFalse(PeerRegistry.isAllowed(from, DISCOVERED));
+            assertFalse(PeerRegistry.isAllowed(from, from));
+            assertEquals(from != CLOSED, PeerRegistry.isAllowed(from, CLOSED));
+            assertFalse(PeerRegistry.isAllowed(CLOSED, from));
+        }
+        assertTrue(PeerRegistry.isAllowed(DISCOVERED, CONNECTED));
+        assertFalse(PeerRegistry.isAllowed(DRAINING, REQUESTING));
+    }
+
+    @Test
+    public void registry(){
+        PeerRegistry<PeerRegistry.Peer> registry = new PeerRegistry<>();
+        PeerRegistry.Peer a = new PeerRegistry.Peer("a");
+        assertNull(registry.putIfAbsent(a));
+        assertSame(a, registry.putIfAbsent(new PeerRegistry.Peer("a")));
+        PeerRegistry.Peer b = new PeerRegistry.Peer("b");
+        registry.putIfAbsent(b);
+        b.moveTo(CONNECTED);
+        assertSame(b, registry.get("b"));
+        assertTrue(registry.contains("a"));
+        assertEquals(2, registry.size());
+        Map<PeerRegistry.State, Integer> counts = registry.getStateCounts();
+        assertEquals(1, (int) counts.get(DISCOVERED));
+        assertEquals(1, (int) counts.get(CONNECTED));
+        assertEquals(0, (int) counts.get(CLOSED));
+        //Solo se quita el objeto registrado, no otro con el mismo handle
+        assertFalse(registry.remove(new PeerRegistry.Peer("a")));
+        assertTrue(registry.remove(a));
+        assertNull(registry.get("a"));
+        assertEquals(1, registry.size());
+    }
+
+    @Test
+    public void oneThreadWinsTheRemoval() throws Exception {
+        final int threads = 8;
+        for(int round = 0; round < 200; ++round){
+            final PeerRegistry.Peer peer = new PeerRegistry.Peer("peer");
+            peer.moveTo(CONNECTED);
+            final CountDownLatch start = new CountDownLatch(1);
+            final AtomicInteger winners = new AtomicInteger();
+            Thread[] racers = new Thread[threads];
+            for(int t = 0; t < threads; ++t){
+                final boolean reconnect = t % 2 == 0;
+                racers[t] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            start.await();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        //Unos hilos desconectan y reconectan mientras otros quitan el peer
+                        if(reconnect){
+                            peer.moveTo(REQUESTING);
+                            peer.moveTo(CONNECTED);
+                        } else if(peer.moveTo(DRAINING) != null){
+                            winners.incrementAndGet();
+                        }
+                    }
+                });
+                racers[t].start();
+            }
+            start.countDown();
+            for(Thread t : racers) t.join();
+            assertEquals(1, winners.get());
+            assertEquals(DRAINING, peer.getState());
+        }
+    }
+}
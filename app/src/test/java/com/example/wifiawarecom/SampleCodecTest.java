@@ -0,0 +1,154 @@
+package com.example.wifiawarecom;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class SampleCodecTest {
+
+    private static final long[] LONGS = {0, 1, -1, 63, -64, 64, 127, 128, 300, -300, Integer.MAX_VALUE,
+            Integer.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE, 1L << 35, -(1L << 35)};
+
+    @Test
+    public void varintAndZigzagRoundTrip() {
+        ByteBuffer buffer = ByteBuffer.allocate(SampleCodec.MAX_VARINT_SIZE);
+        for(long value : LONGS){
+            long encoded = SampleCodec.zigzag(value);
+            assertEquals(value, SampleCodec.unzigzag(encoded));
+            buffer.clear();
+            SampleCodec.putVarint(buffer, encoded);
+            assertEquals(SampleCodec.varintSize(encoded), buffer.position());
+            buffer.flip();
+            assertEquals(encoded, SampleCodec.getVarint(buffer));
+            assertFalse(buffer.hasRemaining());
+        }
+        //Magnitudes pequenas en un byte sin importar el signo
+        assertEquals(1, SampleCodec.varintSize(SampleCodec.zigzag(-64)));
+        assertEquals(1, SampleCodec.varintSize(SampleCodec.zigzag(63)));
+        assertEquals(10, SampleCodec.varintSize(SampleCodec.zigzag(Long.MIN_VALUE)));
+    }
+
+    @Test
+    public void samplesRoundTrip() {
+        ByteBuffer buffer = ByteBuffer.allocate(SampleCodec.MAX_SAMPLE_SIZE * 4);
+        long now = System.currentTimeMillis();
+        SampleCodec.putInt(buffer, now, -42);
+        SampleCodec.putLong(buffer, SampleCodec.NO_TIMESTAMP, Long.MIN_VALUE);
+        SampleCodec.putFloat(buffer, now + 2, 1.5f);
+        SampleCodec.putDouble(buffer, now + 3, -Math.PI);
+        buffer.flip();
+
+        SampleCodec.Sample sample = new SampleCodec.Sample();
+        SampleCodec.decode(buffer, sample);
+        assertEquals(SampleCodec.TYPE_INT, sample.type);
+        assertEquals(now, sample.timestamp);
+        assertEquals(-42, sample.longValue);
+        assertEquals("-42", sample.valueToString());
+        SampleCodec.decode(buffer, sample);
+        assertEquals(SampleCodec.TYPE_LONG, sample.type);
+        assertEquals(SampleCodec.NO_TIMESTAMP, sample.timestamp);
+        assertEquals(Long.MIN_VALUE, sample.longValue);
+        SampleCodec.decode(buffer, sample);
+        assertEquals(SampleCodec.TYPE_FLOAT, sample.type);
+        assertEquals(1.5, sample.doubleValue, 0);
+        SampleCodec.decode(buffer, sample);
+        assertEquals(SampleCodec.TYPE_DOUBLE, sample.type);
+        assertEquals(now + 3, sample.timestamp);
+        assertEquals(-Math.PI, sample.doubleValue, 0);
+        assertFalse(buffer.hasRemaining());
+    }
+
+    @Test
+    public void rejectsMalformedInput() {
+        SampleCodec.Sample sample = new SampleCodec.Sample();
+        try {
+            SampleCodec.decode(ByteBuffer.wrap(new byte[]{99, 0, 0}), sample);
+            fail();
+        } catch (IllegalArgumentException expected) {}
+        byte[] tooLong = new byte[12];
+        java.util.Arrays.fill(tooLong, (byte) 0x80);
+        try {
+            SampleCodec.getVarint(ByteBuffer.wrap(tooLong));
+            fail();
+        } catch (IllegalArgumentException expected) {}
+        ByteBuffer truncated = ByteBuffer.allocate(SampleCodec.MAX_SAMPLE_SIZE);
+        SampleCodec.putDouble(truncated, 1000, 2.0);
+        truncated.flip().limit(truncated.limit() - 1);
+        try {
+            SampleCodec.decode(truncated, sample);
+            fail();
+        } catch (BufferUnderflowException expected) {}
+    }
+
+    /**
+     * Against the old text path: String.valueOf(i).getBytes() on the client and new String() on
+     * the server. Binary samples go without timestamp, like the text ones. The time per sample is
+     * measured by SampleCodecBenchmark in the benchmark module.
+     */
+    @Test
+    public void binaryIsSmallerAndDoesNotAllocate() {
+        final int samples = 2000000;
+        ByteBuffer buffer = ByteBuffer.allocate(SampleCodec.MAX_SAMPLE_SIZE);
+        SampleCodec.Sample sample = new SampleCodec.Sample();
+        long timestamp = SampleCodec.NO_TIMESTAMP;
+
+        //Calentamiento para que ambos caminos esten compilados
+        runText(buffer, samples / 4);
+        runBinary(buffer, sample, timestamp, samples / 4);
+
+        long textBytes = runText(buffer, samples);
+        long allocBefore = allocatedBytes();
+        long binaryBytes = runBinary(buffer, sample, timestamp, samples);
+        long binaryAlloc = allocatedBytes() - allocBefore;
+
+        //Con el byte de tipo incluido sigue ocupando menos que el texto
+        assertTrue(binaryBytes < textBytes);
+        if(allocatedBytes() >= 0){
+            assertTrue("binary path should not allocate per sample", binaryAlloc < samples / 100);
+        }
+    }
+
+    private static long runText(ByteBuffer buffer, int samples){
+        long bytes = 0;
+        long check = 0;
+        for(int i = 0; i < samples; ++i){
+            buffer.clear();
+            buffer.put(String.valueOf(i).getBytes(StandardCharsets.UTF_8));
+            buffer.flip();
+            bytes += buffer.remaining();
+            check += Integer.parseInt(Server.bb_to_str(buffer, StandardCharsets.UTF_8));
+        }
+        assertEquals((long) samples * (samples - 1) / 2, check);
+        return bytes;
+    }
+
+    private static long runBinary(ByteBuffer buffer, SampleCodec.Sample sample, long timestamp, int samples){
+        long bytes = 0;
+        long check = 0;
+        for(int i = 0; i < samples; ++i){
+            buffer.clear();
+            SampleCodec.putInt(buffer, timestamp, i);
+            buffer.flip();
+            bytes += buffer.remaining();
+            SampleCodec.decode(buffer, sample);
+            check += sample.longValue;
+        }
+        assertEquals((long) samples * (samples - 1) / 2, check);
+        return bytes;
+    }
+
+    //-1 si la JVM no permite medirlo
+    private static long allocatedBytes(){
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if(bean instanceof com.sun.management.ThreadMXBean){
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,233 @@
+package com.example.wifiawarecom;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Whole Server/Client data path over LoopbackTransport: several clients sending samples, and
+ * frames echoed back through the server push path. Throughput and round trip times are measured
+ * by ServerClientLoopbackBenchmark.
+ */
+public class ServerClientLoopbackTest {
+
+    private static final int CLIENTS = 4;
+    private static final int SAMPLES_PER_CLIENT = 50000;
+    private static final int PINGS = 2000;
+    private static final int ECHO_STREAM = 2;
+
+    private final LoopbackTransport mTransport = new LoopbackTransport();
+    private Server mServer;
+    private Client[] mClients;
+
+    private final ConcurrentMap<Object, long[]> mNextSample = new ConcurrentHashMap<>();
+    private final AtomicLong mSamples = new AtomicLong();
+    private final AtomicLong mErrors = new AtomicLong();
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new Server(mTransport, null, 2);
+        mServer.getRouter().register(Client.STREAM_1, new StreamRouter.StreamConsumer() {
+            private final ThreadLocal<SampleCodec.Sample> mSample = new ThreadLocal<SampleCodec.Sample>(){
+                @Override
+                protected SampleCodec.Sample initialValue() {
+                    return new SampleCodec.Sample();
+                }
+            };
+
+            @Override
+            public void onFrame(Object peer, int streamId, ByteBuffer payload) {
+                SampleCodec.Sample sample = mSample.get();
+                SampleCodec.decode(payload, sample);
+                long[] next = mNextSample.get(peer);
+                if(sample.longValue != next[0]) mErrors.incrementAndGet();
+                ++next[0];
+                mSamples.incrementAndGet();
+            }
+        });
+        //Devuelve cada frame tal cual por el mismo stream
+        mServer.getRouter().register(ECHO_STREAM, new StreamRouter.StreamConsumer() {
+            @Override
+            public void onFrame(Object peer, int streamId, ByteBuffer payload) {
+                if(!mServer.send(peer, ECHO_STREAM, payload)) mErrors.incrementAndGet();
+            }
+        });
+        mServer.start();
+
+        mClients = new Client[CLIENTS];
+        for(int i = 0; i < CLIENTS; ++i){
+            String peer = "peer-" + i;
+            mNextSample.put(peer, new long[1]);
+            assertTrue(mServer.addNewConnection(peer));
+            mClients[i] = new Client(mTransport, peer, 64 * 1024, 16 * 1024, false);
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        for(Client client : mClients){
+            while(!client.isConnected() && System.currentTimeMillis() < deadline) Thread.sleep(5);
+            assertTrue(client.isConnected());
+        }
+    }
+
+    @After
+    public void tearDown() {
+        for(Client client : mClients) client.stop();
+        mServer.stop();
+        assertEquals(0, mServer.getBufferPool().getInUse());
+        assertEquals(0, mServer.getWritePool().getInUse());
+        for(Client client : mClients) assertEquals(0, client.getBufferPool().getInUse());
+    }
+
+    @Test
+    public void samplesFromSeveralClients() throws Exception {
+        Thread[] senders = new Thread[CLIENTS];
+        for(int i = 0; i < CLIENTS; ++i){
+            final Client client = mClients[i];
+            senders[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    ByteBuffer scratch = ByteBuffer.allocate(SampleCodec.MAX_SAMPLE_SIZE);
+                    try {
+                        for(int s = 0; s < SAMPLES_PER_CLIENT; ++s){
+                            scratch.clear();
+                            SampleCodec.putInt(scratch, SampleCodec.NO_TIMESTAMP, s);
+                            scratch.flip();
+                            while(!client.send(Client.STREAM_1, scratch)){
+                                client.awaitWritable(1, TimeUnit.SECONDS);
+                            }
+                        }
+                    } catch (InterruptedException e) {}
+                }
+            });
+            senders[i].start();
+        }
+        for(Thread t : senders) t.join();
+        long total = (long) CLIENTS * SAMPLES_PER_CLIENT;
+        long deadline = System.currentTimeMillis() + 10000;
+        while(mSamples.get() < total && System.currentTimeMillis() < deadline) Thread.sleep(2);
+
+        assertEquals(total, mSamples.get());
+        assertEquals(0, mErrors.get());
+
+        MetricsSnapshot metrics = mServer.getMetrics();
+        assertEquals(CLIENTS, metrics.connections.size());
+        //Mas el HELLO del handshake de cada cliente
+        assertEquals(total + CLIENTS, metrics.getFramesIn());
+        for(int i = 0; i < CLIENTS; ++i){
+            ConnectionMetrics.Snapshot conn = metrics.getConnection("peer-" + i);
+            assertEquals(SAMPLES_PER_CLIENT + 1, conn.framesIn);
+            assertEquals(1, conn.channels);
+            assertTrue(conn.bytesIn >= (long) SAMPLES_PER_CLIENT * (FrameEncoder.HEADER_SIZE + 2));
+            assertTrue(conn.reads > 0);
+            assertTrue(conn.acceptLatencyNanos >= 0);
+        }
+        long bytesIn = 0;
+        for(ConnectionMetrics.Snapshot conn : metrics.connections) bytesIn += conn.bytesIn;
+        assertEquals(metrics.getBytesIn(), bytesIn);
+    }
+
+    @Test
+    public void echoRoundTrips() throws Exception {
+        final AtomicLong echoed = new AtomicLong(-1);
+        Client client = mClients[0];
+        client.setReceiveListener(new Client.ReceiveListener() {
+            @Override
+            public void onFrame(int stream, ByteBuffer frame) {
+                if(stream == ECHO_STREAM) echoed.set(frame.getLong());
+            }
+        });
+        ByteBuffer ping = ByteBuffer.allocate(8);
+        for(int i = 0; i < PINGS; ++i){
+            long sent = System.nanoTime();
+            ping.clear();
+            ping.putLong(sent).flip();
+            assertTrue(client.send(ECHO_STREAM, ping));
+            long deadline = sent + TimeUnit.SECONDS.toNanos(2);
+            while(echoed.get() != sent){
+                assertTrue("echo timed out", System.nanoTime() < deadline);
+                Thread.yield();
+            }
+        }
+        assertEquals(0, mErrors.get());
+        ConnectionMetrics.Snapshot conn = mServer.getMetrics().getConnection("peer-0");
+        //HELLO y WELCOME
+        assertEquals(PINGS + 1, conn.framesIn);
+        assertEquals(PINGS + 1, conn.framesSent);
+        assertEquals(0, conn.sendsRefused);
+        assertTrue(conn.writes >= 1 && conn.bytesOut > 0);
+    }
+
+    @Test
+    public void compressedEchoStream() throws Exception {
+        mServer.getCompressor().enable(ECHO_STREAM);
+        Client client = mClients[0];
+        client.getCompressor().enable(ECHO_STREAM);
+        final AtomicLong echoed = new AtomicLong();
+        final AtomicLong mismatched = new AtomicLong();
+        final StringBuilder text = new StringBuilder();
+        for(int i = 0; i < 40; ++i) text.append("{\"peer\":\"peer-0\",\"rssi\":-").append(40 + i % 7).append("},");
+        final byte[] payload = text.toString().getBytes("UTF-8");
+        client.setReceiveListener(new Client.ReceiveListener() {
+            @Override
+            public void onFrame(int stream, ByteBuffer frame) {
+                if(stream != ECHO_STREAM) return;
+                if(!frame.equals(ByteBuffer.wrap(payload))) mismatched.incrementAndGet();
+                echoed.incrementAndGet();
+            }
+        });
+        for(int i = 0; i < 100; ++i){
+            ByteBuffer frame = ByteBuffer.wrap(payload);
+            assertTrue(client.send(ECHO_STREAM, frame));
+            assertFalse(frame.hasRemaining());
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while(echoed.get() < 100 && System.currentTimeMillis() < deadline) Thread.sleep(2);
+        assertEquals(100, echoed.get());
+        assertEquals(0, mismatched.get());
+        assertEquals(0, mErrors.get());
+        StreamCompressor.Stats sent = client.getCompressor().getStats(ECHO_STREAM);
+        assertEquals(100, sent.getFramesDeflated());
+        assertTrue(sent.getWireBytes() * 4 < sent.getRawBytes());
+        assertEquals(100, mServer.getCompressor().getStats(ECHO_STREAM).getFramesDeflated());
+        assertTrue(mServer.getMetrics().getConnection("peer-0").bytesIn < 100L * payload.length / 4);
+    }
+
+    @Test
+    public void probesRunAlongsideData() throws Exception {
+        Client client = mClients[0];
+        client.setProbeInterval(2);
+        ByteBuffer scratch = ByteBuffer.allocate(SampleCodec.MAX_SAMPLE_SIZE);
+        long deadline = System.currentTimeMillis() + 10000;
+        int sent = 0;
+        while(client.getProbe().getRttHistogram().getCount() < 100 && System.currentTimeMillis() < deadline){
+            for(int i = 0; i < 100; ++i){
+                scratch.clear();
+                SampleCodec.putInt(scratch, LatencyProbe.nowMicros(), sent);
+                scratch.flip();
+                if(client.send(Client.STREAM_1, scratch)) ++sent;
+            }
+            Thread.sleep(1);
+        }
+        client.setProbeInterval(0);
+        LatencyProbe clientProbe = client.getProbe();
+        LatencyProbe serverProbe = mServer.getProbe("peer-0");
+        assertTrue(clientProbe.getRttHistogram().getCount() >= 100);
+        assertTrue(serverProbe.getRttHistogram().getCount() > 0);
+        assertTrue(clientProbe.isSynchronized() && serverProbe.isSynchronized());
+        //Mismo reloj en los dos lados: el offset no puede pasar de media ida y vuelta
+        long bound = clientProbe.getRttHistogram().getMax() / 2 + 1;
+        assertTrue(Math.abs(clientProbe.getOffsetMicros()) <= bound);
+        assertTrue(Math.abs(serverProbe.getOffsetMicros()) <= serverProbe.getRttHistogram().getMax() / 2 + 1);
+        deadline = System.currentTimeMillis() + 5000;
+        while(mSamples.get() < sent && System.currentTimeMillis() < deadline) Thread.sleep(2);
+        assertEquals(sent, mSamples.get());
+        assertEquals(0, mErrors.get());
+    }
+}
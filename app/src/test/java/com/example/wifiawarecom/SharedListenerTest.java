@@ -0,0 +1,138 @@
+package com.example.wifiawarecom;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Many peers on the single listening port of a shared Server over LoopbackTransport, every channel
+ * is matched to its peer by the handshake token.
+ */
+public class SharedListenerTest {
+
+    private static final int PEERS = 200;
+    private static final int SAMPLES_PER_PEER = 100;
+
+    private final LoopbackTransport mTransport = new LoopbackTransport();
+    private Server mServer;
+    private Client[] mClients;
+
+    private final ConcurrentMap<Object, long[]> mNextSample = new ConcurrentHashMap<>();
+    private final AtomicLong mSamples = new AtomicLong();
+    private final AtomicLong mErrors = new AtomicLong();
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new Server(mTransport, null, 2, true);
+        mServer.getRouter().register(Client.STREAM_1, new StreamRouter.StreamConsumer() {
+            private final ThreadLocal<SampleCodec.Sample> mSample = new ThreadLocal<SampleCodec.Sample>(){
+                @Override
+                protected SampleCodec.Sample initialValue() {
+                    return new SampleCodec.Sample();
+                }
+            };
+
+            @Override
+            public void onFrame(Object peer, int streamId, ByteBuffer payload) {
+                SampleCodec.Sample sample = mSample.get();
+                SampleCodec.decode(payload, sample);
+                //El valor lleva el numero del peer, un canal mal emparejado se nota aqui
+                long[] next = mNextSample.get(peer);
+                if(sample.longValue != next[0]) mErrors.incrementAndGet();
+                ++next[0];
+                mSamples.incrementAndGet();
+            }
+        });
+        mServer.start();
+        assertTrue(mServer.getSharedPort() > 0);
+    }
+
+    @After
+    public void tearDown() {
+        if(mClients != null) for(Client client : mClients) if(client != null) client.stop();
+        mServer.stop();
+        assertEquals(0, mServer.getBufferPool().getInUse());
+        assertEquals(0, mServer.getWritePool().getInUse());
+    }
+
+    private static long firstSample(int peer){
+        return (long) peer << 32;
+    }
+
+    @Test
+    public void hundredsOfPeersOnOnePort() throws Exception {
+        mClients = new Client[PEERS];
+        for(int i = 0; i < PEERS; ++i){
+            String peer = "peer-" + i;
+            mNextSample.put(peer, new long[]{firstSample(i)});
+            assertTrue(mServer.addNewConnection(peer));
+            mClients[i] = new Client(mTransport, peer, 16 * 1024, 4 * 1024, false);
+        }
+        long deadline = System.currentTimeMillis() + 20000;
+        for(Client client : mClients){
+            while(!client.isConnected() && System.currentTimeMillis() < deadline) Thread.sleep(5);
+            assertTrue(client.isConnected());
+        }
+        assertEquals(1, mServer.getListenerCount());
+
+        ByteBuffer scratch = ByteBuffer.allocate(SampleCodec.MAX_SAMPLE_SIZE);
+        for(int s = 0; s < SAMPLES_PER_PEER; ++s){
+            for(int i = 0; i < PEERS; ++i){
+                scratch.clear();
+                SampleCodec.putLong(scratch, SampleCodec.NO_TIMESTAMP, firstSample(i) + s);
+                scratch.flip();
+                assertTrue(mClients[i].send(Client.STREAM_1, scratch));
+            }
+        }
+        deadline = System.currentTimeMillis() + 20000;
+        while(mSamples.get() < PEERS * SAMPLES_PER_PEER && System.currentTimeMillis() < deadline) Thread.sleep(5);
+        assertEquals(PEERS * SAMPLES_PER_PEER, mSamples.get());
+        assertEquals(0, mErrors.get());
+        assertEquals(0, mServer.getHandshakesRejected());
+        assertEquals(PEERS, mServer.getMetrics().connections.size());
+    }
+
+    @Test
+    public void unknownAndGarbageHellosAreRejected() throws Exception {
+        InetSocketAddress address = new InetSocketAddress(mTransport.getBindAddress().getAddress(),
+                mServer.getSharedPort());
+
+        SocketChannel unknown = SocketChannel.open(address);
+        ByteBuffer hello = ByteBuffer.allocate(Handshake.MAX_TOKEN_SIZE + 1);
+        Handshake.writeHello(hello, "nobody".getBytes("UTF-8"));
+        hello.flip();
+        ByteBuffer frame = ByteBuffer.allocate(512);
+        FrameEncoder.encode(frame, Handshake.STREAM, hello);
+        frame.flip();
+        while(frame.hasRemaining()) unknown.write(frame);
+        assertClosedByServer(unknown);
+
+        SocketChannel garbage = SocketChannel.open(address);
+        frame.clear();
+        FrameEncoder.encode(frame, ByteBuffer.wrap(new byte[]{1, 2, 3, 4, 5}));
+        frame.flip();
+        while(frame.hasRemaining()) garbage.write(frame);
+        assertClosedByServer(garbage);
+
+        assertEquals(2, mServer.getHandshakesRejected());
+        assertEquals(0, mServer.getMetrics().connections.size());
+    }
+
+    private static void assertClosedByServer(SocketChannel channel) throws Exception {
+        ByteBuffer in = ByteBuffer.allocate(16);
+        try {
+            assertEquals(-1, channel.read(in));
+        } finally {
+            channel.close();
+        }
+    }
+}
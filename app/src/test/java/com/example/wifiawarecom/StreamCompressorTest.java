@@ -0,0 +1,174 @@
+package com.example.wifiawarecom;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class StreamCompressorTest {
+
+    private static final int STREAM = 3;
+
+    private static byte[] text(int size){
+        StringBuilder text = new StringBuilder();
+        for(int i = 0; text.length() < size; ++i){
+            text.append("t=").append(1000 + i).append(" level=info msg=\"sample stored\" stream=3\n");
+        }
+        return text.substring(0, size).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] random(int size, long seed){
+        byte[] bytes = new byte[size];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static ByteBuffer roundTrip(StreamCompressor sender, StreamCompressor receiver, ByteBuffer payload){
+        ByteBuffer wire = sender.compress(STREAM, payload);
+        //El frame viaja copiado, como en el FrameWriter
+        ByteBuffer copy = ByteBuffer.allocate(wire.remaining());
+        copy.put(wire).flip();
+        return receiver.decompress(STREAM, copy);
+    }
+
+    @Test
+    public void textIsDeflated(){
+        StreamCompressor sender = new StreamCompressor();
+        StreamCompressor receiver = new StreamCompressor();
+        sender.enable(STREAM);
+        receiver.enable(STREAM);
+        byte[] raw = text(4096);
+        ByteBuffer payload = ByteBuffer.wrap(raw);
+        assertEquals(StreamCompressor.DEFLATE, sender.compress(STREAM, payload).get(0));
+        assertEquals(raw.length, payload.remaining());
+        for(int i = 0; i < 10; ++i){
+            assertEquals(ByteBuffer.wrap(raw), roundTrip(sender, receiver, ByteBuffer.wrap(raw)));
+        }
+        StreamCompressor.Stats stats = sender.getStats(STREAM);
+        assertEquals(11, stats.getFramesDeflated());
+        assertEquals(0, stats.getFramesRaw());
+        assertEquals(11L * raw.length, stats.getRawBytes());
+        assertTrue(stats.getWireBytes() * 4 < stats.getRawBytes());
+        assertTrue(stats.getRatio() < 0.25);
+        assertFalse(stats.isBypassed());
+    }
+
+    @Test
+    public void directPayloads(){
+        StreamCompressor compressor = new StreamCompressor();
+        compressor.enable(STREAM);
+        byte[] raw = text(2000);
+        ByteBuffer payload = ByteBuffer.allocateDirect(raw.length + 10);
+        payload.position(10);
+        payload.put(raw).position(10);
+        ByteBuffer wire = compressor.compress(STREAM, payload);
+        ByteBuffer received = ByteBuffer.allocateDirect(wire.remaining());
+        received.put(wire).flip();
+        assertEquals(ByteBuffer.wrap(raw), compressor.decompress(STREAM, received));
+        assertFalse(received.hasRemaining());
+    }
+
+    @Test
+    public void incompressibleStreamIsBypassedAndProbed(){
+        StreamCompressor sender = new StreamCompressor();
+        StreamCompressor receiver = new StreamCompressor();
+        sender.enable(STREAM);
+        receiver.enable(STREAM);
+        int frames = 1 + 4 * StreamCompressor.PROBE_INTERVAL;
+        for(int i = 0; i < frames; ++i){
+            byte[] raw = random(1024, i);
+            ByteBuffer wire = sender.compress(STREAM, ByteBuffer.wrap(raw));
+            assertEquals(StreamCompressor.RAW, wire.get(0));
+            assertEquals(1 + raw.length, wire.remaining());
+            assertEquals(ByteBuffer.wrap(raw), roundTrip(sender, receiver, ByteBuffer.wrap(raw)));
+        }
+        StreamCompressor.Stats stats = sender.getStats(STREAM);
+        assertTrue(stats.isBypassed());
+        assertEquals(0, stats.getFramesDeflated());
+        //Solo el primer frame y uno de cada PROBE_INTERVAL se intentan comprimir
+        assertTrue(stats.getDeflateNanos() > 0);
+        assertTrue(stats.getRatio() > StreamCompressor.DEFAULT_MAX_RATIO);
+
+        //Cuando los datos cambian lo notan los frames de prueba
+        byte[] raw = text(1024);
+        int deflated = 0;
+        for(int i = 0; i < 3 * StreamCompressor.PROBE_INTERVAL; ++i){
+            ByteBuffer wire = sender.compress(STREAM, ByteBuffer.wrap(raw));
+            if(wire.get(0) == StreamCompressor.DEFLATE) ++deflated;
+        }
+        assertFalse(stats.isBypassed());
+        assertTrue(deflated > StreamCompressor.PROBE_INTERVAL);
+    }
+
+    @Test
+    public void smallPayloadsStayRaw(){
+        StreamCompressor compressor = new StreamCompressor();
+        compressor.enable(STREAM);
+        byte[] raw = new byte[StreamCompressor.MIN_COMPRESS_SIZE - 1];
+        ByteBuffer wire = compressor.compress(STREAM, ByteBuffer.wrap(raw));
+        assertEquals(StreamCompressor.RAW, wire.get(0));
+        assertEquals(-1, compressor.getStats(STREAM).getRatio(), 0);
+        assertEquals(0, compressor.compress(STREAM, ByteBuffer.allocate(0)).get(0));
+    }
+
+    @Test
+    public void onlyEnabledStreams(){
+        StreamCompressor compressor = new StreamCompressor();
+        compressor.enable(300);
+        assertTrue(compressor.isEnabled(300));
+        assertFalse(compressor.isEnabled(STREAM));
+        assertNull(compressor.getStats(70000));
+        try {
+            compressor.compress(STREAM, ByteBuffer.allocate(10));
+            fail();
+        } catch (IllegalArgumentException e) {}
+        compressor.disable(300);
+        assertFalse(compressor.isEnabled(300));
+    }
+
+    @Test
+    public void corruptedFramesAreMalformed(){
+        StreamCompressor sender = new StreamCompressor();
+        sender.enable(STREAM);
+        StreamCompressor receiver = new StreamCompressor(1024, StreamCompressor.DEFAULT_MAX_RATIO);
+        receiver.enable(STREAM);
+        StreamRouter router = new StreamRouter();
+        router.setCompressor(receiver);
+        final AtomicInteger consumed = new AtomicInteger();
+        router.register(STREAM, new StreamRouter.StreamConsumer() {
+            @Override
+            public void onFrame(Object peer, int streamId, ByteBuffer payload) {
+                consumed.incrementAndGet();
+            }
+        });
+
+        ByteBuffer wire = sender.compress(STREAM, ByteBuffer.wrap(text(1000)));
+        ByteBuffer frame = ByteBuffer.allocate(1 + wire.remaining());
+        frame.put((byte) STREAM).put(wire).flip();
+        assertTrue(router.dispatch("peer", frame.duplicate()));
+
+        //Longitud anunciada que no cuadra con el bloque
+        ByteBuffer wrongLength = frame.duplicate();
+        wrongLength.put(2, (byte) (wrongLength.get(2) + 1));
+        assertFalse(router.dispatch("peer", wrongLength));
+        ByteBuffer truncated = frame.duplicate();
+        truncated.limit(truncated.limit() - 5);
+        assertFalse(router.dispatch("peer", truncated));
+        ByteBuffer unknownFlag = frame.duplicate();
+        unknownFlag.put(1, (byte) 7);
+        assertFalse(router.dispatch("peer", unknownFlag));
+        //Mas grande que el bloque maximo del receptor
+        ByteBuffer large = sender.compress(STREAM, ByteBuffer.wrap(text(2000)));
+        ByteBuffer largeFrame = ByteBuffer.allocate(1 + large.remaining());
+        largeFrame.put((byte) STREAM).put(large).flip();
+        assertFalse(router.dispatch("peer", largeFrame));
+
+        assertEquals(1, consumed.get());
+        assertEquals(4, receiver.getCorruptedCount());
+        assertEquals(4, router.getMalformedCount());
+    }
+}
@@ -0,0 +1,141 @@
+package com.example.wifiawarecom;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class StreamRouterTest {
+
+    @Test
+    public void routesThousandsOfStreamsOverOneSocket() throws Exception {
+        final int streams = 4096;
+        final int rounds = 10;
+        final StreamRouter router = new StreamRouter();
+        final int[] next = new int[streams];
+        final AtomicLong errors = new AtomicLong();
+        final AtomicLong received = new AtomicLong();
+        StreamRouter.StreamConsumer consumer = new StreamRouter.StreamConsumer() {
+            @Override
+            public void onFrame(Object peer, int streamId, ByteBuffer payload) {
+                if(payload.getInt() != streamId || payload.getInt() != next[streamId]) errors.incrementAndGet();
+                ++next[streamId];
+                received.incrementAndGet();
+            }
+        };
+        for(int s = 0; s < streams; ++s) router.register(s, consumer);
+
+        BufferPool pool = new BufferPool(8192, 16, 8192 * 64);
+        IoLoop loop = new IoLoop("io", pool, new IoLoop.Listener() {
+            @Override
+            public void onAccept(IoLoop loop, Object peer, SocketChannel channel) {}
+
+            @Override
+            public void onFrame(Object peer, SocketChannel channel, ByteBuffer frame) {
+                if(!router.dispatch(peer, frame)) errors.incrementAndGet();
+            }
+
+            @Override
+            public void onClosed(Object peer, SelectableChannel channel) {}
+        });
+        loop.start();
+        ServerSocketChannel listener = ServerSocketChannel.open();
+        listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        SocketChannel client = SocketChannel.open(listener.getLocalAddress());
+        loop.register(listener.accept(), "peer");
+
+        //El cliente tambien escribe con un FrameWriter, desde su propio bucle
+        IoLoop clientLoop = new IoLoop("client", pool, new IoLoop.Listener() {
+            @Override
+            public void onAccept(IoLoop loop, Object peer, SocketChannel channel) {}
+
+            @Override
+            public void onFrame(Object peer, SocketChannel channel, ByteBuffer frame) {}
+
+            @Override
+            public void onClosed(Object peer, SelectableChannel channel) {}
+        });
+        clientLoop.start();
+        FrameWriter writer = clientLoop.register(client, "server");
+
+        ByteBuffer payload = ByteBuffer.allocate(8);
+        for(int r = 0; r < rounds; ++r){
+            for(int s = 0; s < streams; ++s){
+                payload.clear();
+                payload.putInt(s).putInt(r).flip();
+                while(!writer.send(s, payload)) writer.awaitWritable(1, TimeUnit.SECONDS);
+            }
+        }
+        long total = (long) streams * rounds;
+        long deadline = System.currentTimeMillis() + 10000;
+        while(received.get() < total && System.currentTimeMillis() < deadline) Thread.sleep(5);
+
+        clientLoop.stop();
+        loop.stop();
+        listener.close();
+        assertEquals(total, received.get());
+        assertEquals(0, errors.get());
+        for(int s = 0; s < streams; ++s) assertEquals(rounds, next[s]);
+        assertEquals(0, router.getUnroutedCount());
+        assertEquals(0, pool.getInUse());
+    }
+
+    @Test
+    public void countsUnroutedAndMalformedFrames() {
+        StreamRouter router = new StreamRouter();
+        final AtomicLong defaults = new AtomicLong();
+        ByteBuffer frame = ByteBuffer.allocate(16);
+        FrameEncoder.encode(frame, 300, ByteBuffer.wrap(new byte[]{1, 2}));
+        frame.flip();
+        frame.position(FrameEncoder.HEADER_SIZE);
+
+        assertFalse(router.dispatch("peer", frame.duplicate()));
+        assertEquals(1, router.getUnroutedCount());
+
+        router.setDefaultConsumer(new StreamRouter.StreamConsumer() {
+            @Override
+            public void onFrame(Object peer, int streamId, ByteBuffer payload) {
+                assertEquals(300, streamId);
+                assertEquals(2, payload.remaining());
+                defaults.incrementAndGet();
+            }
+        });
+        assertTrue(router.dispatch("peer", frame.duplicate()));
+        assertEquals(1, defaults.get());
+
+        //Id fuera de rango
+        ByteBuffer bad = ByteBuffer.allocate(8);
+        SampleCodec.putVarint(bad, StreamRouter.MAX_STREAM_ID + 1L);
+        bad.flip();
+        assertFalse(router.dispatch("peer", bad));
+        assertEquals(1, router.getMalformedCount());
+    }
+
+    @Test
+    public void registrationIsValidated() {
+        StreamRouter router = new StreamRouter();
+        StreamRouter.StreamConsumer consumer = new StreamRouter.StreamConsumer() {
+            @Override
+            public void onFrame(Object peer, int streamId, ByteBuffer payload) {}
+        };
+        router.register(StreamRouter.MAX_STREAM_ID, consumer);
+        try {
+            router.register(StreamRouter.MAX_STREAM_ID, consumer);
+            fail();
+        } catch (IllegalStateException expected) {}
+        try {
+            router.register(StreamRouter.MAX_STREAM_ID + 1, consumer);
+            fail();
+        } catch (IllegalArgumentException expected) {}
+        router.unregister(StreamRouter.MAX_STREAM_ID);
+        router.register(StreamRouter.MAX_STREAM_ID, consumer);
+    }
+}
@@ -0,0 +1,120 @@
+package com.example.wifiawarecom;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TimerWheelTest {
+
+    private static final long TICK = 1000;
+    private static final int SLOTS = 64;
+
+    private final List<String> mFired = new ArrayList<>();
+
+    private TimerWheel.Timeout timeout(final String name){
+        return new TimerWheel.Timeout(new Runnable() {
+            @Override
+            public void run() {
+                mFired.add(name);
+            }
+        });
+    }
+
+    @Test
+    public void firesOnTimeAndNeverEarly() {
+        TimerWheel wheel = new TimerWheel(TICK, SLOTS, 0);
+        wheel.schedule(timeout("a"), 2500);
+        wheel.schedule(timeout("b"), 1000);
+        //Dos vueltas y pico, comparte hueco con los de la primera
+        wheel.schedule(timeout("c"), 2 * SLOTS * TICK + 2500);
+        assertEquals(3, wheel.size());
+        assertEquals(1000, wheel.nanosUntilNext(0));
+
+        assertEquals(0, wheel.advance(999));
+        assertEquals(1, wheel.advance(1000));
+        assertEquals(0, wheel.advance(2999));
+        assertEquals(1, wheel.advance(3000));
+        assertEquals(0, wheel.advance(SLOTS * TICK + 3000));
+        assertEquals(1, wheel.size());
+        assertEquals(1, wheel.advance(2 * SLOTS * TICK + 3000));
+        assertEquals("[b, a, c]", mFired.toString());
+        assertEquals(0, wheel.size());
+        assertEquals(-1, wheel.nanosUntilNext(0));
+    }
+
+    @Test
+    public void cancelAndRescheduleMoveTheTimer() {
+        TimerWheel wheel = new TimerWheel(TICK, SLOTS, 0);
+        TimerWheel.Timeout a = timeout("a");
+        TimerWheel.Timeout b = timeout("b");
+        wheel.schedule(a, 5000);
+        wheel.schedule(b, 5000);
+        assertTrue(wheel.cancel(b));
+        assertFalse(wheel.cancel(b));
+        assertFalse(b.isPending());
+        //Reprogramar no lo duplica
+        wheel.schedule(a, 10000);
+        wheel.schedule(a, 20000);
+        assertEquals(1, wheel.size());
+        assertEquals(20000, wheel.nanosUntilNext(0));
+        assertEquals(0, wheel.advance(19999));
+        assertEquals(1, wheel.advance(20000));
+        assertEquals("[a]", mFired.toString());
+        assertFalse(a.isPending());
+    }
+
+    @Test
+    public void tasksCanRescheduleAndCancel() {
+        final TimerWheel wheel = new TimerWheel(TICK, SLOTS, 0);
+        final TimerWheel.Timeout victim = timeout("victim");
+        final long[] now = {0};
+        final int[] beats = {0};
+        final TimerWheel.Timeout[] heartbeat = new TimerWheel.Timeout[1];
+        heartbeat[0] = new TimerWheel.Timeout(new Runnable() {
+            @Override
+            public void run() {
+                ++beats[0];
+                wheel.cancel(victim);
+                //Con retraso 0 salta en el siguiente advance, no en este
+                wheel.schedule(heartbeat[0], now[0]);
+            }
+        });
+        wheel.schedule(heartbeat[0], 1000);
+        wheel.schedule(victim, 1000);
+        for(now[0] = 1000; now[0] <= 10000; now[0] += TICK) wheel.advance(now[0]);
+        assertEquals(10, beats[0]);
+        assertTrue(mFired.isEmpty());
+        assertTrue(heartbeat[0].isPending());
+        wheel.clear();
+        assertEquals(0, wheel.size());
+        assertFalse(heartbeat[0].isPending());
+    }
+
+    @Test
+    public void longGapsFireEverythingDueOnce() {
+        TimerWheel wheel = new TimerWheel(TICK, SLOTS, 0);
+        Random random = new Random(3);
+        long max = 0;
+        for(int i = 0; i < 10000; ++i){
+            long deadline = random.nextInt(10 * SLOTS) * TICK;
+            max = Math.max(max, deadline);
+            wheel.schedule(timeout("t"), deadline);
+        }
+        long half = max / 2;
+        int fired = wheel.advance(half);
+        assertEquals(10000 - fired, wheel.size());
+        assertTrue(wheel.nanosUntilNext(half) <= TICK);
+        fired += wheel.advance(max);
+        assertEquals(10000, fired);
+        assertEquals(0, wheel.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void slotsMustBeAPowerOfTwo() {
+        new TimerWheel(TICK, 100, 0);
+    }
+}
@@ -0,0 +1,60 @@
+package com.example.wifiawarecom;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Server.bb_to_str on heap and direct buffers (the pooled read buffers are direct), against
+ * decoding the same value as a binary sample.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+public class BbToStrBenchmark {
+
+    @Param({"3", "64", "1024"})
+    public int textLength;
+
+    private ByteBuffer mHeap;
+    private ByteBuffer mDirect;
+    private ByteBuffer mSampleBuffer;
+    private final SampleCodec.Sample mSample = new SampleCodec.Sample();
+
+    @Setup
+    public void setUp(){
+        byte[] text = new byte[textLength];
+        for(int i = 0; i < textLength; ++i) text[i] = (byte) ('0' + i % 10);
+        mHeap = ByteBuffer.wrap(text);
+        mDirect = ByteBuffer.allocateDirect(textLength);
+        mDirect.put(text).flip();
+        mSampleBuffer = ByteBuffer.allocate(SampleCodec.MAX_SAMPLE_SIZE);
+        SampleCodec.putInt(mSampleBuffer, SampleCodec.NO_TIMESTAMP, 100);
+        mSampleBuffer.flip();
+    }
+
+    @Benchmark
+    public String heap(){
+        mHeap.rewind();
+        return BufferStrings.decode(mHeap, StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public String direct(){
+        mDirect.rewind();
+        return BufferStrings.decode(mDirect, StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public long binarySample(){
+        mSampleBuffer.rewind();
+        SampleCodec.decode(mSampleBuffer, mSample);
+        return mSample.longValue;
+    }
+}
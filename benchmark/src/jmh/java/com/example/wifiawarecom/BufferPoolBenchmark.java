@@ -0,0 +1,49 @@
+package com.example.wifiawarecom;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Lease and release of pooled buffers, alone and with the I/O threads competing for the pool.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+public class BufferPoolBenchmark {
+
+    @Param({"1024", "8192"})
+    public int bufferSize;
+
+    private BufferPool mPool;
+
+    @Setup
+    public void setUp(){
+        mPool = new BufferPool(bufferSize, 16, (long) bufferSize * 16 * 8);
+        //Los slabs se reservan antes de medir
+        ByteBuffer[] all = new ByteBuffer[16 * 8];
+        for(int i = 0; i < all.length; ++i) all[i] = mPool.lease();
+        for(ByteBuffer buffer : all) mPool.release(buffer);
+    }
+
+    @Benchmark
+    public ByteBuffer leaseRelease(){
+        ByteBuffer buffer = mPool.lease();
+        mPool.release(buffer);
+        return buffer;
+    }
+
+    @Benchmark
+    @Threads(4)
+    public ByteBuffer leaseReleaseContended(){
+        ByteBuffer buffer = mPool.lease();
+        mPool.release(buffer);
+        return buffer;
+    }
+}
@@ -0,0 +1,152 @@
+package com.example.wifiawarecom;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * CPU cost of the compression stage per frame against the bytes it saves, by payload type.
+ * raw is what an uncompressed stream costs (the copy into the frame), adaptive the stage as
+ * Client and Server run it, forced the stage never bypassing, inflate the receive side.
+ * The wire counters give raw and wire bytes per second: on a link of L bytes/s the net
+ * throughput is min(rawBytes, L * rawBytes / wireBytes).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+public class CompressionBenchmark {
+
+    private static final int STREAM = 2;
+    private static final int FRAMES = 64;
+
+    @Param({"text", "json", "samples", "random"})
+    public String payload;
+
+    @Param({"512", "4096"})
+    public int size;
+
+    private final StreamCompressor mAdaptive = new StreamCompressor();
+    private final StreamCompressor mForced = new StreamCompressor(StreamCompressor.DEFAULT_MAX_BLOCK_SIZE, Double.MAX_VALUE);
+    private final ByteBuffer[] mFrames = new ByteBuffer[FRAMES];
+    private final ByteBuffer[] mCompressed = new ByteBuffer[FRAMES];
+    private ByteBuffer mOut;
+    private int mNext = 0;
+
+    /**
+     * Payload bytes in and out of the stage, per second.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Wire {
+        public long rawBytes;
+        public long wireBytes;
+
+        @Setup(Level.Iteration)
+        public void reset(){
+            rawBytes = 0;
+            wireBytes = 0;
+        }
+    }
+
+    @Setup
+    public void setUp(){
+        mAdaptive.enable(STREAM);
+        mForced.enable(STREAM);
+        Random random = new Random(1);
+        for(int i = 0; i < FRAMES; ++i){
+            mFrames[i] = generate(random, i);
+            ByteBuffer wire = mForced.compress(STREAM, mFrames[i]);
+            mCompressed[i] = ByteBuffer.allocate(wire.remaining());
+            mCompressed[i].put(wire).flip();
+        }
+        mOut = ByteBuffer.allocateDirect(FrameEncoder.HEADER_SIZE + 3 + 1 + SampleCodec.MAX_VARINT_SIZE + size);
+    }
+
+    private ByteBuffer generate(Random random, int frame){
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        switch(payload){
+            case "text":
+                fill(buffer, random, "t=%d level=info tag=Server msg=\"frame routed\" stream=%d queue=%d\n");
+                break;
+            case "json":
+                fill(buffer, random, "{\"peer\":\"peer-%d\",\"rssi\":%d,\"samples\":[%d,1,2,3]},");
+                break;
+            case "samples":
+                long timestamp = 1000000L * frame;
+                while(buffer.remaining() >= SampleCodec.MAX_SAMPLE_SIZE){
+                    timestamp += 1000 + random.nextInt(50);
+                    SampleCodec.putLong(buffer, timestamp, 20000 + random.nextInt(500));
+                }
+                break;
+            default:
+                byte[] bytes = new byte[size];
+                random.nextBytes(bytes);
+                buffer.put(bytes);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static void fill(ByteBuffer buffer, Random random, String format){
+        while(buffer.hasRemaining()){
+            byte[] line = String.format(format, random.nextInt(100000), random.nextInt(90), random.nextInt(64))
+                    .getBytes(StandardCharsets.US_ASCII);
+            buffer.put(line, 0, Math.min(line.length, buffer.remaining()));
+        }
+    }
+
+    private ByteBuffer next(ByteBuffer[] frames){
+        mNext = (mNext + 1) % FRAMES;
+        return frames[mNext].duplicate();
+    }
+
+    private int encode(ByteBuffer payload){
+        mOut.clear();
+        FrameEncoder.encode(mOut, STREAM, payload);
+        return mOut.position();
+    }
+
+    @Benchmark
+    public int raw(Wire wire){
+        ByteBuffer frame = next(mFrames);
+        wire.rawBytes += frame.remaining();
+        wire.wireBytes += frame.remaining();
+        return encode(frame);
+    }
+
+    @Benchmark
+    public int adaptive(Wire wire){
+        return compressed(mAdaptive, wire);
+    }
+
+    @Benchmark
+    public int forced(Wire wire){
+        return compressed(mForced, wire);
+    }
+
+    private int compressed(StreamCompressor compressor, Wire wire){
+        ByteBuffer frame = next(mFrames);
+        wire.rawBytes += frame.remaining();
+        ByteBuffer out = compressor.compress(STREAM, frame);
+        wire.wireBytes += out.remaining();
+        return encode(out);
+    }
+
+    @Benchmark
+    public int inflate(Wire wire){
+        ByteBuffer frame = next(mCompressed);
+        wire.wireBytes += frame.remaining();
+        ByteBuffer raw = mAdaptive.decompress(STREAM, frame);
+        wire.rawBytes += raw.remaining();
+        return raw.remaining();
+    }
+}
@@ -0,0 +1,79 @@
+package com.example.wifiawarecom;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The step Server runs for every read: split the bytes into frames, route each one by stream id
+ * and decode its sample. batch is the number of frames per read. Scores are per frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+public class DispatchBenchmark {
+
+    private static final int FRAMES = 64;
+
+    @Param({"2", "1024"})
+    public int streams;
+
+    @Param({"1", "16", "64"})
+    public int batch;
+
+    private ByteBuffer mWire;
+    private FrameDecoder mDecoder;
+    private final StreamRouter mRouter = new StreamRouter();
+    private final SampleCodec.Sample mSample = new SampleCodec.Sample();
+    private Blackhole mBlackhole;
+
+    private final FrameDecoder.FrameListener mListener = new FrameDecoder.FrameListener() {
+        @Override
+        public void onFrame(ByteBuffer frame) {
+            mRouter.dispatch("peer", frame);
+        }
+    };
+
+    private final StreamRouter.StreamConsumer mConsumer = new StreamRouter.StreamConsumer() {
+        @Override
+        public void onFrame(Object peer, int streamId, ByteBuffer payload) {
+            SampleCodec.decode(payload, mSample);
+            mBlackhole.consume(mSample.longValue);
+        }
+    };
+
+    @Setup
+    public void setUp(Blackhole blackhole){
+        mBlackhole = blackhole;
+        for(int s = 0; s < streams; ++s) mRouter.register(s, mConsumer);
+        mWire = ByteBuffer.allocateDirect(batch * (FrameEncoder.HEADER_SIZE + 3 + SampleCodec.MAX_SAMPLE_SIZE));
+        ByteBuffer sample = ByteBuffer.allocate(SampleCodec.MAX_SAMPLE_SIZE);
+        for(int i = 0; i < batch; ++i){
+            sample.clear();
+            SampleCodec.putInt(sample, SampleCodec.NO_TIMESTAMP, i * 37);
+            sample.flip();
+            FrameEncoder.encode(mWire, (i * 7919) % streams, sample);
+        }
+        mWire.flip();
+        mDecoder = new FrameDecoder(ByteBuffer.allocateDirect(8192));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public int readDispatch() throws IOException {
+        int frames = 0;
+        for(int n = 0; n < FRAMES; n += batch){
+            mWire.rewind();
+            frames += mDecoder.feed(mWire, mListener);
+        }
+        return frames;
+    }
+}
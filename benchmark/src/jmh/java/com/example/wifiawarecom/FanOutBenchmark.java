@@ -0,0 +1,160 @@
+package com.example.wifiawarecom;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+
+/**
+ * One frame relayed to every peer over loopback sockets: FanOutHub (encoded once, read-only views
+ * queued to each writer) against a FrameWriter.send per peer, which copies the payload into every
+ * queue. Each invocation relays BATCH frames and then flushes every writer, like a loop that
+ * wakes up with a few frames to relay; a thread drains the other ends. Scores are per frame relayed
+ * to all the peers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+public class FanOutBenchmark {
+
+    private static final int BATCH = 16;
+    private static final int STREAM = 7;
+    private static final int BUFFER_SIZE = 8192;
+
+    @Param({"16", "64"})
+    public int peers;
+
+    @Param({"64", "1024", "4096"})
+    public int payloadSize;
+
+    private BufferPool mPool;
+    private FanOutHub mHub;
+    private FrameWriter[] mWriters;
+    private SocketChannel[] mChannels;
+    private SocketChannel[] mReaders;
+    private ServerSocketChannel mListener;
+    private Selector mDrainSelector;
+    private Thread mDrain;
+    private ByteBuffer mPayload;
+
+    private final FrameWriter.Listener mWriterListener = new FrameWriter.Listener() {
+        @Override
+        public void onWriteRequested(FrameWriter writer) {}
+
+        @Override
+        public void onBackpressure(FrameWriter writer, boolean engaged) {}
+    };
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        //Cada peer puede tener un lote copiado entero y cada frame compartido ocupa un buffer
+        mPool = new BufferPool(BUFFER_SIZE, 64, (long) BUFFER_SIZE * 64 * (peers + 1));
+        mListener = ServerSocketChannel.open();
+        mListener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        mDrainSelector = Selector.open();
+        mWriters = new FrameWriter[peers];
+        mChannels = new SocketChannel[peers];
+        mReaders = new SocketChannel[peers];
+        for(int i = 0; i < peers; ++i){
+            mChannels[i] = SocketChannel.open(mListener.getLocalAddress());
+            mChannels[i].configureBlocking(false);
+            mReaders[i] = mListener.accept();
+            mReaders[i].configureBlocking(false);
+            mReaders[i].register(mDrainSelector, SelectionKey.OP_READ);
+            mWriters[i] = new FrameWriter(mPool, 1024 * 1024, 256 * 1024, mWriterListener);
+        }
+        mHub = new FanOutHub(mPool, new FanOutHub.Peers() {
+            @Override
+            public FrameWriter getWriter(Object peer) {
+                return mWriters[(Integer) peer];
+            }
+
+            @Override
+            public void disconnect(Object peer, FrameWriter writer) {}
+        });
+        for(int i = 0; i < peers; ++i) mHub.subscribe(i, FanOutHub.Policy.DROP_NEWEST);
+        mPayload = ByteBuffer.allocateDirect(payloadSize);
+        mDrain = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ByteBuffer sink = ByteBuffer.allocateDirect(64 * 1024);
+                try {
+                    while(!Thread.currentThread().isInterrupted()){
+                        mDrainSelector.select(100);
+                        Iterator<SelectionKey> keys = mDrainSelector.selectedKeys().iterator();
+                        while(keys.hasNext()){
+                            SelectionKey key = keys.next();
+                            keys.remove();
+                            sink.clear();
+                            ((SocketChannel) key.channel()).read(sink);
+                        }
+                    }
+                } catch (IOException e) {}
+            }
+        });
+        mDrain.setDaemon(true);
+        mDrain.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        mDrain.interrupt();
+        mDrain.join();
+        mDrainSelector.close();
+        for(int i = 0; i < peers; ++i){
+            mWriters[i].close();
+            mChannels[i].close();
+            mReaders[i].close();
+        }
+        mListener.close();
+    }
+
+    /**
+     * Writes what the sockets take, a writer left behind catches up in the next invocation.
+     */
+    private void flushAll() throws IOException {
+        for(int i = 0; i < peers; ++i) mWriters[i].flush(mChannels[i]);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public int sharedFrame() throws IOException {
+        int queued = 0;
+        for(int i = 0; i < BATCH; ++i){
+            mPayload.clear();
+            //Un remitente que no esta suscrito, le llega a todos
+            queued += mHub.publish(-1, STREAM, mPayload);
+        }
+        flushAll();
+        return queued;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public int copyPerPeer() throws IOException {
+        int queued = 0;
+        for(int i = 0; i < BATCH; ++i){
+            for(FrameWriter writer : mWriters){
+                mPayload.clear();
+                if(writer.send(STREAM, mPayload)) ++queued;
+            }
+        }
+        flushAll();
+        return queued;
+    }
+}
@@ -0,0 +1,156 @@
+package com.example.wifiawarecom;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One file sent over loopback per invocation: FileSender/FileReceiver (transferTo out, a direct
+ * buffer in, checksums on both sides) against a plain copy loop through heap buffers on both
+ * sides, with no checksums. Divide fileSize by the score for the throughput.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class FileTransferBenchmark {
+
+    @Param({"16777216", "134217728"})
+    public int fileSize;
+
+    @Param({"65536", "1048576"})
+    public int chunkSize;
+
+    private File mDirectory;
+    private File mSource;
+    private ServerSocketChannel mZeroCopyListener;
+    private ServerSocketChannel mCopyListener;
+    private FileSender mSender;
+    private ByteBuffer mBuffer;
+    private long mTransferId = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mDirectory = Files.createTempDirectory("transfer").toFile();
+        mSource = new File(mDirectory, "source.bin");
+        byte[] block = new byte[1024 * 1024];
+        new Random(1).nextBytes(block);
+        try (FileOutputStream out = new FileOutputStream(mSource)) {
+            for(int written = 0; written < fileSize; written += block.length){
+                out.write(block, 0, Math.min(block.length, fileSize - written));
+            }
+        }
+        final File inbox = new File(mDirectory, "inbox");
+        inbox.mkdir();
+        final FileReceiver receiver = new FileReceiver(inbox);
+        mZeroCopyListener = listen();
+        mCopyListener = listen();
+        serve(mZeroCopyListener, new Handler() {
+            @Override
+            public void handle(SocketChannel channel) throws IOException {
+                receiver.receive(channel);
+            }
+        });
+        serve(mCopyListener, new Handler() {
+            private final ByteBuffer mBuffer = ByteBuffer.allocate(chunkSize);
+
+            @Override
+            public void handle(SocketChannel channel) throws IOException {
+                long length = FileTransfer.readLong(channel);
+                try (RandomAccessFile raf = new RandomAccessFile(new File(inbox, "copy.bin"), "rw")) {
+                    FileChannel file = raf.getChannel();
+                    file.truncate(0);
+                    long received = 0;
+                    while(received < length){
+                        mBuffer.clear();
+                        if(channel.read(mBuffer) < 0) throw new IOException("Closed");
+                        mBuffer.flip();
+                        received += mBuffer.remaining();
+                        while(mBuffer.hasRemaining()) file.write(mBuffer);
+                    }
+                }
+                FileTransfer.writeLong(channel, length);
+            }
+        });
+        mSender = new FileSender(chunkSize);
+        mBuffer = ByteBuffer.allocate(chunkSize);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        mZeroCopyListener.close();
+        mCopyListener.close();
+        for(File file : new File(mDirectory, "inbox").listFiles()) file.delete();
+        new File(mDirectory, "inbox").delete();
+        mSource.delete();
+        mDirectory.delete();
+    }
+
+    private interface Handler {
+        void handle(SocketChannel channel) throws IOException;
+    }
+
+    private static ServerSocketChannel listen() throws IOException {
+        ServerSocketChannel listener = ServerSocketChannel.open();
+        listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        return listener;
+    }
+
+    private static void serve(final ServerSocketChannel listener, final Handler handler){
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while(listener.isOpen()){
+                    try (SocketChannel channel = listener.accept()) {
+                        handler.handle(channel);
+                    } catch (IOException e) {}
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Benchmark
+    public long zeroCopy() throws IOException {
+        try (SocketChannel channel = SocketChannel.open(mZeroCopyListener.getLocalAddress())) {
+            return mSender.send(channel, mSource, ++mTransferId);
+        }
+    }
+
+    @Benchmark
+    public long copyLoop() throws IOException {
+        try (SocketChannel channel = SocketChannel.open(mCopyListener.getLocalAddress());
+             RandomAccessFile raf = new RandomAccessFile(mSource, "r")) {
+            FileChannel file = raf.getChannel();
+            FileTransfer.writeLong(channel, file.size());
+            while(true){
+                mBuffer.clear();
+                if(file.read(mBuffer) < 0) break;
+                mBuffer.flip();
+                while(mBuffer.hasRemaining()) channel.write(mBuffer);
+            }
+            return FileTransfer.readLong(channel);
+        }
+    }
+}
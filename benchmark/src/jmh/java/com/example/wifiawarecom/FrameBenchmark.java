@@ -0,0 +1,146 @@
+package com.example.wifiawarecom;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * Frame encode/decode. batch is the number of frames handled per socket read or write, it grows
+ * with the message rate since more frames are waiting each time the selector wakes up.
+ * Scores are per frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+public class FrameBenchmark {
+
+    @Param({"16", "256", "4096"})
+    public int payloadSize;
+
+    @Param({"1", "16", "64"})
+    public int batch;
+
+    private ByteBuffer mPayload;
+    private ByteBuffer mWire;
+    private ByteBuffer mEncoded;
+    private FrameDecoder mDecoder;
+    private FrameWriter mWriter;
+    private Blackhole mBlackhole;
+
+    private final FrameDecoder.FrameListener mListener = new FrameDecoder.FrameListener() {
+        @Override
+        public void onFrame(ByteBuffer frame) {
+            mBlackhole.consume(frame.get(frame.position()));
+        }
+    };
+
+    private final FrameWriter.Listener mWriterListener = new FrameWriter.Listener() {
+        @Override
+        public void onWriteRequested(FrameWriter writer) {}
+
+        @Override
+        public void onBackpressure(FrameWriter writer, boolean engaged) {}
+    };
+
+    /**
+     * Accepts every write, so flush() measures the gathering path and not the socket.
+     */
+    private static final class NullChannel implements GatheringByteChannel {
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            long written = 0;
+            for(int i = offset; i < offset + length; ++i) written += write(srcs[i]);
+            return written;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) {
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            int written = src.remaining();
+            src.position(src.limit());
+            return written;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {}
+    }
+
+    private final NullChannel mChannel = new NullChannel();
+
+    @Setup
+    public void setUp(Blackhole blackhole){
+        mBlackhole = blackhole;
+        mPayload = ByteBuffer.allocate(payloadSize);
+        for(int i = 0; i < payloadSize; ++i) mPayload.put(i, (byte) i);
+        int wireSize = batch * (FrameEncoder.HEADER_SIZE + payloadSize);
+        mWire = ByteBuffer.allocateDirect(wireSize);
+        mEncoded = ByteBuffer.allocateDirect(wireSize);
+        for(int i = 0; i < batch; ++i){
+            mPayload.clear();
+            FrameEncoder.encode(mEncoded, mPayload);
+        }
+        mEncoded.flip();
+        mDecoder = new FrameDecoder(ByteBuffer.allocateDirect(Math.max(8192, wireSize + FrameEncoder.HEADER_SIZE)));
+        int bufferSize = Math.max(8192, FrameEncoder.HEADER_SIZE + payloadSize + 3);
+        BufferPool pool = new BufferPool(bufferSize, 16, (long) bufferSize * 16 * 64);
+        mWriter = new FrameWriter(pool, Integer.MAX_VALUE, 0, mWriterListener);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(64)
+    public void encode(){
+        //Normaliza a 64 frames por invocacion sea cual sea el batch
+        for(int n = 0; n < 64; n += batch){
+            mWire.clear();
+            for(int i = 0; i < batch; ++i){
+                mPayload.clear();
+                FrameEncoder.encode(mWire, mPayload);
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(64)
+    public int decode() throws IOException {
+        int frames = 0;
+        for(int n = 0; n < 64; n += batch){
+            mEncoded.rewind();
+            frames += mDecoder.feed(mEncoded, mListener);
+        }
+        return frames;
+    }
+
+    /**
+     * Client send path: tagged frames packed into pooled buffers and flushed with one gathering
+     * write per batch.
+     */
+    @Benchmark
+    @OperationsPerInvocation(64)
+    public void writerSendFlush() throws IOException {
+        for(int n = 0; n < 64; n += batch){
+            for(int i = 0; i < batch; ++i){
+                mPayload.clear();
+                mWriter.send(1, mPayload);
+            }
+            mWriter.flush(mChannel);
+        }
+    }
+}
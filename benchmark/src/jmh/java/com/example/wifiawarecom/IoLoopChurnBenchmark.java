@@ -0,0 +1,197 @@
+package com.example.wifiawarecom;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loopback connections opened, registered with an IoLoop and closed by THREADS threads at once,
+ * against an accept loop and two I/O loops. acceptChurn goes through the accept loop, which hands
+ * every channel to a worker and the worker closes it on EOF after reading one frame;
+ * registerAndClose registers and closes accepted channels from the churning threads, so every
+ * connection is two cross-thread commands. Each invocation waits until the loops closed all its
+ * channels. Scores are connections per second, the counters the loop commands and the wakeups
+ * they cost; wakeupsPerCommand stays at or below 1 while the command queue batches.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+public class IoLoopChurnBenchmark implements IoLoop.Listener {
+
+    private static final int THREADS = 8;
+    private static final int CONNECTIONS_PER_THREAD = 32;
+    private static final int CONNECTIONS = THREADS * CONNECTIONS_PER_THREAD;
+
+    private BufferPool mPool;
+    private IoLoop mAcceptor;
+    private IoLoop[] mWorkers;
+    private ServerSocketChannel mAccepted;
+    private ServerSocketChannel mUnregistered;
+    private ExecutorService mThreads;
+    private final AtomicLong mAccepts = new AtomicLong();
+    private final AtomicLong mClosed = new AtomicLong();
+
+    /**
+     * Commands posted to the loops and the selector wakeups they caused, in the iteration.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Wakeups {
+        public long commands;
+        public long wakeups;
+        public double wakeupsPerCommand;
+
+        @Setup(Level.Iteration)
+        public void reset(){
+            commands = 0;
+            wakeups = 0;
+            wakeupsPerCommand = 0;
+        }
+    }
+
+    private interface Churn {
+        void run(int index) throws IOException;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        //Cabe un buffer por conexion aunque los bucles vayan por detras del accept
+        mPool = new BufferPool(1024, 64, 1024 * 64 * 64);
+        mAcceptor = new IoLoop("accept", mPool, this);
+        mWorkers = new IoLoop[]{new IoLoop("io-0", mPool, this), new IoLoop("io-1", mPool, this)};
+        mAcceptor.start();
+        for(IoLoop loop : mWorkers) loop.start();
+        mAccepted = ServerSocketChannel.open();
+        mAccepted.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+        mAcceptor.registerAcceptor(mAccepted, "peer");
+        mUnregistered = ServerSocketChannel.open();
+        mUnregistered.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+        mThreads = Executors.newFixedThreadPool(THREADS);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        mThreads.shutdownNow();
+        mAcceptor.stop();
+        for(IoLoop loop : mWorkers) loop.stop();
+        mAccepted.close();
+        mUnregistered.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CONNECTIONS)
+    public long acceptChurn(Wakeups wakeups) throws Exception {
+        final InetSocketAddress address = (InetSocketAddress) mAccepted.getLocalAddress();
+        return churn(wakeups, new Churn() {
+            @Override
+            public void run(int index) throws IOException {
+                SocketChannel client = SocketChannel.open(address);
+                ByteBuffer frame = ByteBuffer.allocate(8);
+                frame.putInt(4).putInt(index).flip();
+                while(frame.hasRemaining()) client.write(frame);
+                client.close();
+            }
+        });
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CONNECTIONS)
+    public long registerAndClose(Wakeups wakeups) throws Exception {
+        final InetSocketAddress address = (InetSocketAddress) mUnregistered.getLocalAddress();
+        return churn(wakeups, new Churn() {
+            @Override
+            public void run(int index) throws IOException {
+                SocketChannel client = SocketChannel.open(address);
+                SocketChannel server;
+                synchronized (mUnregistered){
+                    server = mUnregistered.accept();
+                }
+                IoLoop loop = mWorkers[index % mWorkers.length];
+                loop.register(server, index);
+                loop.close(server);
+                client.close();
+            }
+        });
+    }
+
+    /**
+     * CONNECTIONS_PER_THREAD connections from each thread, then waits for the loops to close them.
+     */
+    private long churn(Wakeups wakeups, final Churn churn) throws Exception {
+        long commands = -commands();
+        long woken = -wakeups();
+        long expected = mClosed.get() + CONNECTIONS;
+        List<Callable<Void>> tasks = new ArrayList<>(THREADS);
+        for(int t = 0; t < THREADS; ++t){
+            final int base = t * CONNECTIONS_PER_THREAD;
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    for(int i = 0; i < CONNECTIONS_PER_THREAD; ++i) churn.run(base + i);
+                    return null;
+                }
+            });
+        }
+        for(Future<Void> future : mThreads.invokeAll(tasks)){
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause());
+            }
+        }
+        while(mClosed.get() < expected) Thread.yield();
+        commands += commands();
+        woken += wakeups();
+        wakeups.commands += commands;
+        wakeups.wakeups += woken;
+        wakeups.wakeupsPerCommand = wakeups.commands == 0 ? 0 : (double) wakeups.wakeups / wakeups.commands;
+        return expected;
+    }
+
+    private long commands(){
+        long commands = mAcceptor.getLoad().commands;
+        for(IoLoop loop : mWorkers) commands += loop.getLoad().commands;
+        return commands;
+    }
+
+    private long wakeups(){
+        long wakeups = mAcceptor.getLoad().wakeups;
+        for(IoLoop loop : mWorkers) wakeups += loop.getLoad().wakeups;
+        return wakeups;
+    }
+
+    @Override
+    public void onAccept(IoLoop loop, Object peer, SocketChannel channel) {
+        mWorkers[(int) (mAccepts.incrementAndGet() % mWorkers.length)].register(channel, peer);
+    }
+
+    @Override
+    public void onFrame(Object peer, SocketChannel channel, ByteBuffer frame) {}
+
+    @Override
+    public void onClosed(Object peer, SelectableChannel channel) {
+        if(channel instanceof SocketChannel) mClosed.incrementAndGet();
+    }
+}
@@ -0,0 +1,116 @@
+package com.example.wifiawarecom;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Frames read from PEERS loopback connections by an accept loop and 1, 2 or 4 sharded IoLoops, as
+ * Server splits its peers. Each invocation writes a batch of frames to every peer and waits until
+ * the loops delivered all of them; a simulated cost per frame keeps the work on the reading side,
+ * so more loops only help with as many cores. Scores are per frame.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+public class IoLoopScalingBenchmark implements IoLoop.Listener {
+
+    private static final int PEERS = 32;
+    private static final int FRAME_PAYLOAD = 16;
+    private static final int FRAMES_PER_WRITE = 64;
+    private static final int WORK_PER_FRAME = 2000;
+
+    @Param({"1", "2", "4"})
+    public int loops;
+
+    private BufferPool mPool;
+    private IoLoop mAcceptor;
+    private IoLoop[] mWorkers;
+    private ServerSocketChannel[] mListeners;
+    private SocketChannel[] mClients;
+    private ByteBuffer mBatch;
+    private final AtomicLong mFrames = new AtomicLong();
+    private long mExpected;
+    private volatile long mSink;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mPool = new BufferPool(4096, 16, 4096 * 16 * 8);
+        mAcceptor = new IoLoop("accept", mPool, this);
+        mWorkers = new IoLoop[loops];
+        for(int i = 0; i < loops; ++i){
+            mWorkers[i] = new IoLoop("io-" + i, mPool, this);
+            mWorkers[i].start();
+        }
+        mAcceptor.start();
+        mListeners = new ServerSocketChannel[PEERS];
+        mClients = new SocketChannel[PEERS];
+        for(int p = 0; p < PEERS; ++p){
+            mListeners[p] = ServerSocketChannel.open();
+            mListeners[p].bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            mAcceptor.registerAcceptor(mListeners[p], p);
+            mClients[p] = SocketChannel.open(mListeners[p].getLocalAddress());
+        }
+        mBatch = ByteBuffer.allocate(FRAMES_PER_WRITE * (FrameEncoder.HEADER_SIZE + FRAME_PAYLOAD));
+        for(int seq = 0; seq < FRAMES_PER_WRITE; ++seq){
+            mBatch.putInt(FRAME_PAYLOAD);
+            mBatch.putInt(seq);
+            for(int i = 4; i < FRAME_PAYLOAD; ++i) mBatch.put((byte) i);
+        }
+        mBatch.flip();
+        mFrames.set(0);
+        mExpected = 0;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        for(SocketChannel client : mClients) client.close();
+        mAcceptor.stop();
+        for(IoLoop loop : mWorkers) loop.stop();
+        for(ServerSocketChannel listener : mListeners) listener.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PEERS * FRAMES_PER_WRITE)
+    public long readFrames() throws IOException {
+        for(SocketChannel client : mClients){
+            mBatch.rewind();
+            while(mBatch.hasRemaining()) client.write(mBatch);
+        }
+        mExpected += PEERS * FRAMES_PER_WRITE;
+        while(mFrames.get() < mExpected) Thread.yield();
+        return mSink;
+    }
+
+    @Override
+    public void onAccept(IoLoop loop, Object peer, SocketChannel channel) {
+        mWorkers[(peer.hashCode() & 0x7fffffff) % mWorkers.length].register(channel, peer);
+    }
+
+    @Override
+    public void onFrame(Object peer, SocketChannel channel, ByteBuffer frame) {
+        //Trabajo simulado por frame para que el coste no sea solo la syscall
+        long acc = frame.getInt();
+        for(int i = 0; i < WORK_PER_FRAME; ++i) acc = acc * 31 + i;
+        mSink = acc;
+        mFrames.incrementAndGet();
+    }
+
+    @Override
+    public void onClosed(Object peer, SelectableChannel channel) {}
+}
@@ -0,0 +1,85 @@
+package com.example.wifiawarecom;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+
+/**
+ * A capture replayed at full speed through a router decoding samples, the repeatable version of
+ * a field load. Setup writes a synthetic capture of FRAMES samples spread over peers and streams,
+ * point captureDir at a real one (-p captureDir=...) to replay that instead. Scores are per frame.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+public class ReplayBenchmark {
+
+    private static final int FRAMES = 100000;
+
+    @Param({""})
+    public String captureDir;
+
+    @Param({"8"})
+    public int peers;
+
+    private File mDirectory;
+    private boolean mSynthetic;
+    private CaptureReplay mReplay;
+    private final StreamRouter mRouter = new StreamRouter();
+    private final SampleCodec.Sample mSample = new SampleCodec.Sample();
+    private Blackhole mBlackhole;
+
+    private final StreamRouter.StreamConsumer mConsumer = new StreamRouter.StreamConsumer() {
+        @Override
+        public void onFrame(Object peer, int streamId, ByteBuffer payload) {
+            SampleCodec.decode(payload, mSample);
+            mBlackhole.consume(mSample.longValue);
+        }
+    };
+
+    @Setup(Level.Trial)
+    public void setUp(Blackhole blackhole) throws IOException {
+        mBlackhole = blackhole;
+        mRouter.setDefaultConsumer(mConsumer);
+        mSynthetic = captureDir.isEmpty();
+        mDirectory = mSynthetic ? Files.createTempDirectory("capture").toFile() : new File(captureDir);
+        if(mSynthetic){
+            CaptureLog log = new CaptureLog(mDirectory, CaptureLog.DEFAULT_SEGMENT_SIZE, Long.MAX_VALUE);
+            ByteBuffer frame = ByteBuffer.allocate(3 + SampleCodec.MAX_SAMPLE_SIZE);
+            for(int i = 0; i < FRAMES; ++i){
+                frame.clear();
+                SampleCodec.putVarint(frame, i % 4);
+                SampleCodec.putLong(frame, 1000L * i, i * 31L);
+                frame.flip();
+                log.append("peer-" + (i % peers), frame);
+            }
+            log.close();
+        }
+        mReplay = new CaptureReplay(mDirectory);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown(){
+        if(!mSynthetic) return;
+        for(File file : mDirectory.listFiles()) file.delete();
+        mDirectory.delete();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public long replay() throws IOException, InterruptedException {
+        return mReplay.replay(mRouter, false);
+    }
+}
@@ -0,0 +1,42 @@
+package com.example.wifiawarecom;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Cost of encoding one int sample into a buffer and decoding it again. text writes the decimal
+ * string and parses it back through a decoded String; binary is SampleCodec without timestamp
+ * into a reused Sample. Scores are samples per second, -prof gc gives the bytes allocated per
+ * sample (gc.alloc.rate.norm).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+public class SampleCodecBenchmark {
+
+    private final ByteBuffer mBuffer = ByteBuffer.allocate(SampleCodec.MAX_SAMPLE_SIZE);
+    private final SampleCodec.Sample mSample = new SampleCodec.Sample();
+    private int mValue = 0;
+
+    @Benchmark
+    public int text(){
+        mBuffer.clear();
+        mBuffer.put(String.valueOf(mValue++).getBytes(StandardCharsets.UTF_8));
+        mBuffer.flip();
+        return Integer.parseInt(BufferStrings.decode(mBuffer, StandardCharsets.UTF_8));
+    }
+
+    @Benchmark
+    public long binary(){
+        mBuffer.clear();
+        SampleCodec.putInt(mBuffer, SampleCodec.NO_TIMESTAMP, mValue++);
+        mBuffer.flip();
+        SampleCodec.decode(mBuffer, mSample);
+        return mSample.longValue;
+    }
+}
@@ -0,0 +1,129 @@
+package com.example.wifiawarecom;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Whole data path of a Server with two I/O loops and CLIENTS Clients over LoopbackTransport.
+ * samples: every benchmark thread drives its own client, sending BATCH samples on stream 1 and
+ * waiting until the server decoded them all; scores are samples per second across the clients.
+ * echo: a frame the server sends back on the same stream through its push path, sampled so the
+ * report gives the round trip percentiles.
+ */
+@State(Scope.Benchmark)
+public class ServerClientLoopbackBenchmark {
+
+    private static final int CLIENTS = 4;
+    private static final int BATCH = 1000;
+    private static final int ECHO_STREAM = 2;
+    private static final long CONNECT_TIMEOUT_MS = 5000;
+
+    private final LoopbackTransport mTransport = new LoopbackTransport();
+    private Server mServer;
+    private final Client[] mClients = new Client[CLIENTS];
+    private final AtomicLong[] mReceived = new AtomicLong[CLIENTS];
+    private volatile long mEchoed = -1;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, InterruptedException {
+        mServer = new Server(mTransport, null, 2);
+        mServer.getRouter().register(Client.STREAM_1, new StreamRouter.StreamConsumer() {
+            private final ThreadLocal<SampleCodec.Sample> mSample = new ThreadLocal<SampleCodec.Sample>(){
+                @Override
+                protected SampleCodec.Sample initialValue() {
+                    return new SampleCodec.Sample();
+                }
+            };
+
+            @Override
+            public void onFrame(Object peer, int streamId, ByteBuffer payload) {
+                SampleCodec.decode(payload, mSample.get());
+                mReceived[indexOf(peer)].incrementAndGet();
+            }
+        });
+        //Devuelve cada frame tal cual por el mismo stream
+        mServer.getRouter().register(ECHO_STREAM, new StreamRouter.StreamConsumer() {
+            @Override
+            public void onFrame(Object peer, int streamId, ByteBuffer payload) {
+                mServer.send(peer, ECHO_STREAM, payload);
+            }
+        });
+        mServer.start();
+        for(int i = 0; i < CLIENTS; ++i){
+            mReceived[i] = new AtomicLong();
+            String peer = "peer-" + i;
+            if(!mServer.addNewConnection(peer)) throw new IllegalStateException("Peer " + peer + " not added");
+            mClients[i] = new Client(mTransport, peer, 64 * 1024, 16 * 1024, false);
+        }
+        mClients[0].setReceiveListener(new Client.ReceiveListener() {
+            @Override
+            public void onFrame(int stream, ByteBuffer frame) {
+                if(stream == ECHO_STREAM) mEchoed = frame.getLong();
+            }
+        });
+        long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT_MS;
+        for(Client client : mClients){
+            while(!client.isConnected()){
+                if(System.currentTimeMillis() > deadline) throw new IllegalStateException("Client not connected");
+                Thread.sleep(5);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        for(Client client : mClients) client.stop();
+        mServer.stop();
+    }
+
+    private static int indexOf(Object peer){
+        String name = (String) peer;
+        return name.charAt(name.length() - 1) - '0';
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @Threads(CLIENTS)
+    @OperationsPerInvocation(BATCH)
+    public long samples(ThreadParams thread) throws InterruptedException {
+        int index = thread.getThreadIndex() % CLIENTS;
+        Client client = mClients[index];
+        AtomicLong received = mReceived[index];
+        long expected = received.get() + BATCH;
+        ByteBuffer scratch = ByteBuffer.allocate(SampleCodec.MAX_SAMPLE_SIZE);
+        for(int s = 0; s < BATCH; ++s){
+            scratch.clear();
+            SampleCodec.putInt(scratch, SampleCodec.NO_TIMESTAMP, s);
+            scratch.flip();
+            while(!client.send(Client.STREAM_1, scratch)) client.awaitWritable(1, TimeUnit.SECONDS);
+        }
+        while(received.get() < expected) Thread.yield();
+        return expected;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    public long echo() throws InterruptedException {
+        Client client = mClients[0];
+        ByteBuffer ping = ByteBuffer.allocate(8);
+        long sent = System.nanoTime();
+        ping.putLong(sent).flip();
+        while(!client.send(ECHO_STREAM, ping)) client.awaitWritable(1, TimeUnit.SECONDS);
+        while(mEchoed != sent) Thread.yield();
+        return sent;
+    }
+}
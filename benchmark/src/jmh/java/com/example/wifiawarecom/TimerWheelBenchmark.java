@@ -0,0 +1,123 @@
+package com.example.wifiawarecom;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timer operations of a loop with tens of thousands of pending timers (idle timeouts, heartbeats),
+ * against a PriorityQueue as a ScheduledThreadPoolExecutor would keep them. reschedule moves one
+ * timer further away, what every read does to an idle timeout; advance moves the clock one tick
+ * and re-arms what fires, like periodic heartbeats. The clock is simulated.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+public class TimerWheelBenchmark {
+
+    private static final long TICK = TimeUnit.MILLISECONDS.toNanos(1);
+    //Timeouts entre 1 y 30 s, varias vueltas de la rueda
+    private static final int MAX_DELAY_TICKS = 30000;
+
+    @Param({"10000", "50000"})
+    public int pending;
+
+    private TimerWheel mWheel;
+    private TimerWheel.Timeout[] mTimeouts;
+    private PriorityQueue<Entry> mQueue;
+    private Entry[] mEntries;
+    private final TimerWheel.Timeout mExtra = new TimerWheel.Timeout(new Runnable() {
+        @Override
+        public void run() {}
+    });
+    private long mNow = 0;
+    private int mSeed = 1;
+    private int mFired = 0;
+
+    private static final class Entry implements Comparable<Entry> {
+        long mDeadline;
+
+        @Override
+        public int compareTo(Entry other) {
+            return Long.compare(mDeadline, other.mDeadline);
+        }
+    }
+
+    @Setup
+    public void setUp(){
+        mWheel = new TimerWheel(TICK, 1024, 0);
+        mTimeouts = new TimerWheel.Timeout[pending];
+        mQueue = new PriorityQueue<>(pending);
+        mEntries = new Entry[pending];
+        for(int i = 0; i < pending; ++i){
+            final int index = i;
+            mTimeouts[i] = new TimerWheel.Timeout(new Runnable() {
+                @Override
+                public void run() {
+                    ++mFired;
+                    mWheel.schedule(mTimeouts[index], mNow + delay());
+                }
+            });
+            mWheel.schedule(mTimeouts[i], delay());
+            mEntries[i] = new Entry();
+            mEntries[i].mDeadline = delay();
+            mQueue.add(mEntries[i]);
+        }
+    }
+
+    private int next(){
+        //xorshift, Random pesaria mas que lo medido
+        mSeed ^= mSeed << 13;
+        mSeed ^= mSeed >>> 17;
+        mSeed ^= mSeed << 5;
+        return mSeed & 0x7fffffff;
+    }
+
+    private long delay(){
+        return (1 + next() % MAX_DELAY_TICKS) * TICK;
+    }
+
+    @Benchmark
+    public boolean reschedule(){
+        TimerWheel.Timeout timeout = mTimeouts[next() % pending];
+        mWheel.schedule(timeout, mNow + delay());
+        return timeout.isPending();
+    }
+
+    /**
+     * A timeout that rarely fires, like the one of a handshake: scheduled and cancelled.
+     */
+    @Benchmark
+    public boolean scheduleCancel(){
+        mWheel.schedule(mExtra, mNow + delay());
+        return mWheel.cancel(mExtra);
+    }
+
+    @Benchmark
+    public int advance(){
+        mNow += TICK;
+        mWheel.advance(mNow);
+        return mFired;
+    }
+
+    @Benchmark
+    public long nanosUntilNext(){
+        return mWheel.nanosUntilNext(mNow);
+    }
+
+    @Benchmark
+    public boolean reschedulePriorityQueue(){
+        Entry entry = mEntries[next() % pending];
+        //remove(Object) recorre la cola
+        boolean removed = mQueue.remove(entry);
+        entry.mDeadline = mNow + delay();
+        mQueue.add(entry);
+        return removed;
+    }
+}
@@ -0,0 +1,34 @@
+package android.util;
+
+/**
+ * Stand-in for the Android logger so Server and Client run on a plain JVM: every call is dropped,
+ * logging is not part of what the benchmarks measure.
+ */
+public final class Log {
+
+    private Log(){}
+
+    public static int d(String tag, String msg){
+        return 0;
+    }
+
+    public static int i(String tag, String msg){
+        return 0;
+    }
+
+    public static int w(String tag, String msg){
+        return 0;
+    }
+
+    public static int w(String tag, String msg, Throwable tr){
+        return 0;
+    }
+
+    public static int e(String tag, String msg){
+        return 0;
+    }
+
+    public static int e(String tag, String msg, Throwable tr){
+        return 0;
+    }
+}